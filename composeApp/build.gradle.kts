@@ -253,6 +253,16 @@ android {
     androidResources {
         generateLocaleConfig = true
     }
+
+    testOptions {
+        unitTests.all {
+            it.useJUnitPlatform {
+                // Benchmarks only run with -Pbenchmark
+                if( !project.hasProperty( "benchmark" ) )
+                    excludeTags( "benchmark" )
+            }
+        }
+    }
 }
 
 java {
@@ -305,7 +315,6 @@ dependencies {
     implementation(libs.compose.animation)
     implementation(libs.kotlin.csv)
     implementation(libs.timber)
-    implementation(libs.math3)
     implementation(libs.gson)
     implementation (libs.hypnoticcanvas)
     implementation (libs.hypnoticcanvas.shaders)
@@ -322,4 +331,7 @@ dependencies {
 
     // Debug only
     debugImplementation(libs.ui.tooling.preview.android)
+
+    testImplementation(libs.junit5.jupiter.api)
+    testRuntimeOnly(libs.junit5.jupiter.engine)
 }
@@ -0,0 +1,41 @@
+package app.cubic.android.core.network
+
+import android.os.SystemClock
+import okhttp3.Dns
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps resolved addresses for [ttlMs], so requests to the same hosts
+ * (youtube, googlevideo, ytimg...) don't wait on a lookup every time
+ * a new connection is opened.
+ *
+ * When a lookup fails, expired addresses are used if there are any.
+ */
+class CachingDns(
+    private val ttlMs: Long = 5 * 60 * 1000L,
+    private val delegate: Dns = Dns.SYSTEM
+) : Dns {
+
+    private class Entry(val addresses: List<InetAddress>, val expiresAt: Long)
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+
+    override fun lookup(hostname: String): List<InetAddress> {
+        val cached = entries[hostname]
+        if (cached != null && cached.expiresAt > SystemClock.elapsedRealtime())
+            return cached.addresses
+
+        return try {
+            delegate.lookup(hostname).also {
+                if (it.isNotEmpty())
+                    entries[hostname] = Entry(it, SystemClock.elapsedRealtime() + ttlMs)
+            }
+        } catch (e: UnknownHostException) {
+            cached?.addresses ?: throw e
+        }
+    }
+
+    fun clear() = entries.clear()
+}
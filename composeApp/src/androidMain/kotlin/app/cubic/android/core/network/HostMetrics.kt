@@ -0,0 +1,110 @@
+package app.cubic.android.core.network
+
+import android.os.SystemClock
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Protocol
+import okhttp3.Response
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Per-host numbers of every call made through [NetworkClientFactory]:
+ * how many calls needed a new connection, how long connecting took,
+ * and how long until response headers arrived.
+ */
+object HostMetrics : EventListener.Factory {
+
+    data class Stats(
+        val calls: Long,
+        val failures: Long,
+        val newConnections: Long,
+        val reusedConnections: Long,
+        val http2Calls: Long,
+        val averageConnectMs: Long,
+        val averageLatencyMs: Long,
+        val maxLatencyMs: Long
+    )
+
+    private class Counters {
+        val calls = AtomicLong()
+        val failures = AtomicLong()
+        val newConnections = AtomicLong()
+        val reusedConnections = AtomicLong()
+        val http2Calls = AtomicLong()
+        val connectMs = AtomicLong()
+        val latencyMs = AtomicLong()
+        val latencyCount = AtomicLong()
+        val maxLatencyMs = AtomicLong()
+
+        fun toStats() = Stats(
+            calls = calls.get(),
+            failures = failures.get(),
+            newConnections = newConnections.get(),
+            reusedConnections = reusedConnections.get(),
+            http2Calls = http2Calls.get(),
+            averageConnectMs = newConnections.get().let { if (it > 0) connectMs.get() / it else 0L },
+            averageLatencyMs = latencyCount.get().let { if (it > 0) latencyMs.get() / it else 0L },
+            maxLatencyMs = maxLatencyMs.get()
+        )
+    }
+
+    private val hosts = ConcurrentHashMap<String, Counters>()
+
+    private fun countersOf(call: Call): Counters {
+        val host = call.request().url.host
+        return hosts[host] ?: Counters().let { hosts.putIfAbsent(host, it) ?: it }
+    }
+
+    fun snapshot(): Map<String, Stats> = hosts.mapValues { it.value.toStats() }
+
+    fun reset() = hosts.clear()
+
+    override fun create(call: Call): EventListener = Listener(countersOf(call))
+
+    private class Listener(private val counters: Counters) : EventListener() {
+
+        private var callStartedAt = 0L
+        private var connectStartedAt = 0L
+        private var isNewConnection = false
+
+        override fun callStart(call: Call) {
+            callStartedAt = SystemClock.elapsedRealtime()
+            counters.calls.incrementAndGet()
+        }
+
+        override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+            connectStartedAt = SystemClock.elapsedRealtime()
+            isNewConnection = true
+        }
+
+        override fun connectEnd(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy, protocol: Protocol?) {
+            counters.newConnections.incrementAndGet()
+            counters.connectMs.addAndGet(SystemClock.elapsedRealtime() - connectStartedAt)
+        }
+
+        override fun connectionAcquired(call: Call, connection: Connection) {
+            if (!isNewConnection) counters.reusedConnections.incrementAndGet()
+            if (connection.protocol() == Protocol.HTTP_2) counters.http2Calls.incrementAndGet()
+            // Following redirects or retries acquire again
+            isNewConnection = false
+        }
+
+        override fun responseHeadersEnd(call: Call, response: Response) {
+            val latencyMs = SystemClock.elapsedRealtime() - callStartedAt
+            counters.latencyMs.addAndGet(latencyMs)
+            counters.latencyCount.incrementAndGet()
+            var max = counters.maxLatencyMs.get()
+            while (latencyMs > max && !counters.maxLatencyMs.compareAndSet(max, latencyMs))
+                max = counters.maxLatencyMs.get()
+        }
+
+        override fun callFailed(call: Call, ioe: IOException) {
+            counters.failures.incrementAndGet()
+        }
+    }
+}
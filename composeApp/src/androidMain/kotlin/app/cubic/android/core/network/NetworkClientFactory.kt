@@ -2,22 +2,88 @@ package app.cubic.android.core.network
  
 import io.ktor.client.HttpClient
 import io.ktor.client.engine.okhttp.OkHttp
+import it.fast4x.innertube.Innertube
+import it.fast4x.invidious.Invidious
+import it.fast4x.kugou.KuGou
+import it.fast4x.lrclib.LrcLib
+import it.fast4x.piped.Piped
 import okhttp3.Cache
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.Interceptor
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
 import okhttp3.Request
+import okhttp3.Response
 import timber.log.Timber
 import java.io.File
+import java.io.IOException
 import java.net.URI
 import java.net.Proxy
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
+/**
+ * Connect and read timeouts of a single request, in seconds
+ */
+private class Timeouts(val connect: Long, val read: Long)
+
+/**
+ * Use [connect] and [read] timeouts, in seconds,
+ * for this request only instead of client's.
+ */
+fun Request.Builder.timeouts(connect: Long, read: Long): Request.Builder =
+    tag(Timeouts::class.java, Timeouts(connect, read))
+
+/**
+ * Single HTTP transport of the app.
+ *
+ * Every client handed out here, and the ones extensions are given,
+ * derives from one root [OkHttpClient], so they all share its
+ * connection pool, dispatcher, [CachingDns] and [HostMetrics].
+ * A TLS connection opened by one of them (e.g. to youtube or
+ * googlevideo) can then be reused, or multiplexed over HTTP/2,
+ * by all the others.
+ *
+ * Timeouts that differ per use are applied per call, see [timeouts],
+ * derived clients are built once and kept until [configure] is called again.
+ */
 object NetworkClientFactory {
     private const val CHROME_WINDOWS_USER_AGENT =
         "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/134.0.0.0 Safari/537.3"
 
+    private const val MAX_IDLE_CONNECTIONS = 10
+    private const val KEEP_ALIVE_MINUTES = 5L
+    private const val MAX_REQUESTS_PER_HOST = 10
+
+    /**
+     * Hosts reached as soon as playback starts,
+     * connected to ahead of time by [prewarm]
+     */
+    val PLAYBACK_HOSTS = listOf(
+        "music.youtube.com",
+        "www.youtube.com",
+        "i.ytimg.com",
+        "lh3.googleusercontent.com"
+    )
+
+    private val connectionPool = ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES)
+    private val dispatcher = Dispatcher().apply { maxRequestsPerHost = MAX_REQUESTS_PER_HOST }
+    val dns = CachingDns()
+
     @Volatile
     private var client: OkHttpClient? = null
 
+    @Volatile
+    private var cachelessClient: OkHttpClient? = null
+
+    @Volatile
+    private var translatorClient: OkHttpClient? = null
+
+    private val timeoutClients = ConcurrentHashMap<Pair<Long, Long>, OkHttpClient>()
+
     @Volatile
     private var ktorClient: HttpClient? = null
 
@@ -33,6 +99,30 @@ object NetworkClientFactory {
             "${parsed.scheme}://${parsed.host}${parsed.rawPath.orEmpty()}"
         }.getOrDefault("<stream-url>")
 
+    /**
+     * Apply [Timeouts] tag of a request, set with [timeouts]
+     */
+    private val timeoutsInterceptor = Interceptor { chain ->
+        val timeouts = chain.request().tag(Timeouts::class.java)
+        if (timeouts == null)
+            chain.proceed(chain.request())
+        else
+            chain.withConnectTimeout(timeouts.connect.toInt(), TimeUnit.SECONDS)
+                 .withReadTimeout(timeouts.read.toInt(), TimeUnit.SECONDS)
+                 .proceed(chain.request())
+    }
+
+    private fun baseBuilder(connectTimeout: Long, readTimeout: Long): OkHttpClient.Builder =
+        OkHttpClient.Builder()
+            .connectTimeout(connectTimeout, TimeUnit.SECONDS)
+            .readTimeout(readTimeout, TimeUnit.SECONDS)
+            .connectionPool(connectionPool)
+            .dispatcher(dispatcher)
+            .dns(dns)
+            .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .eventListenerFactory(HostMetrics)
+            .addInterceptor(timeoutsInterceptor)
+
     fun configure(
         proxy: Proxy?,
         cacheDir: File?,
@@ -42,10 +132,7 @@ object NetworkClientFactory {
         synchronized(this) {
             val currentClient = client
             if (currentClient == null) {
-                val builder = OkHttpClient.Builder()
-                    .connectTimeout(connectTimeout, TimeUnit.SECONDS)
-                    .readTimeout(readTimeout, TimeUnit.SECONDS)
-                    .proxy(proxy)
+                val builder = baseBuilder(connectTimeout, readTimeout).proxy(proxy)
                 
                 if (cacheDir != null) {
                     builder.cache(Cache(cacheDir, 100L * 1024 * 1024)) // 100MB cache
@@ -53,22 +140,38 @@ object NetworkClientFactory {
                 
                 client = builder.build()
             } else {
+                // Nothing to rebuild, e.g. activity was recreated
+                if (currentClient.proxy == proxy) return
                 client = currentClient.newBuilder()
                     .proxy(proxy)
                     .build()
             }
-            // Reset Ktor clients to force reconfiguration with new proxy/settings
+            // Reset derived clients to force reconfiguration with new proxy/settings
+            cachelessClient = null
+            translatorClient = null
+            timeoutClients.clear()
             ktorClient = null
             ktorCachelessClient = null
             ktorTranslatorClient = null
         }
+        shareWithExtensions()
+    }
+
+    /**
+     * Extensions are separate modules, they're handed
+     * the shared client instead of building their own
+     */
+    private fun shareWithExtensions() {
+        val shared = getCachelessClient()
+        Innertube.okHttpClient = shared
+        Invidious.okHttpClient = shared
+        Piped.okHttpClient = shared
+        LrcLib.okHttpClient = shared
+        KuGou.okHttpClient = shared
     }
 
     private fun buildDefaultClient(): OkHttpClient {
-        return OkHttpClient.Builder()
-            .connectTimeout(30L, TimeUnit.SECONDS)
-            .readTimeout(30L, TimeUnit.SECONDS)
-            .build()
+        return baseBuilder(30L, 30L).build()
     }
 
     fun getClient(): OkHttpClient {
@@ -77,31 +180,73 @@ object NetworkClientFactory {
         }
     }
 
+    /**
+     * Builder of a client that shares the transport with every
+     * other client, without the disk cache. For clients that need
+     * their own settings, e.g. interceptors or cookie jar.
+     */
+    fun newBuilder(): OkHttpClient.Builder = getCachelessClient().newBuilder()
+
     fun getCachelessClient(): OkHttpClient {
-        return getClient().newBuilder()
-            .cache(null)
-            .build()
+        return cachelessClient ?: synchronized(this) {
+            cachelessClient ?: getClient().newBuilder()
+                .cache(null)
+                .build()
+                .also { cachelessClient = it }
+        }
     }
 
+    /**
+     * For APIs taking a client rather than requests,
+     * otherwise prefer [timeouts] on [getClient].
+     * Like [getCachelessClient], responses aren't written to disk cache.
+     */
     fun getClientWithTimeout(connect: Long, read: Long): OkHttpClient {
-        return getClient().newBuilder()
+        val key = connect to read
+        return timeoutClients[key] ?: getCachelessClient().newBuilder()
             .connectTimeout(connect, TimeUnit.SECONDS)
             .readTimeout(read, TimeUnit.SECONDS)
             .build()
+            .let { timeoutClients.putIfAbsent(key, it) ?: it }
+    }
+
+    /**
+     * Open connections to [hosts] ahead of time, so
+     * the first real request doesn't pay for DNS and TLS.
+     */
+    fun prewarm(hosts: List<String> = PLAYBACK_HOSTS) {
+        val client = getCachelessClient()
+        hosts.forEach { host ->
+            val request = Request.Builder()
+                .url("https://$host/generate_204")
+                .head()
+                .header("User-Agent", CHROME_WINDOWS_USER_AGENT)
+                .timeouts(5, 5)
+                .build()
+            client.newCall(request).enqueue(object : Callback {
+                override fun onFailure(call: Call, e: IOException) =
+                    Timber.d("Prewarm of %s failed: %s", host, e.message)
+
+                override fun onResponse(call: Call, response: Response) = response.close()
+            })
+        }
     }
 
     fun getTranslatorClient(): OkHttpClient {
-        return getClient().newBuilder()
-            .addInterceptor { chain ->
-                val request = chain.request().newBuilder()
-                    .header(
-                        "User-Agent",
-                        CHROME_WINDOWS_USER_AGENT
-                    )
-                    .build()
-                chain.proceed(request)
-            }
-            .build()
+        return translatorClient ?: synchronized(this) {
+            translatorClient ?: getClient().newBuilder()
+                .addInterceptor { chain ->
+                    val request = chain.request().newBuilder()
+                        .header(
+                            "User-Agent",
+                            CHROME_WINDOWS_USER_AGENT
+                        )
+                        .build()
+                    chain.proceed(request)
+                }
+                .build()
+                .also { translatorClient = it }
+        }
     }
 
     fun getTranslatorKtorClient(): HttpClient {
@@ -182,13 +327,14 @@ object NetworkClientFactory {
         }
 
         return try {
-            val client = getClientWithTimeout(3, 4)
+            val client = getClient()
             for (range in probeRanges()) {
                 val rangeRequest = Request.Builder()
                     .url(streamUrl)
                     .get()
                     .header("Range", range)
                     .applyPlaybackHeaders()
+                    .timeouts(3, 4)
                     .build()
 
                 val isUsable = client.newCall(rangeRequest).execute().use { response ->
@@ -220,9 +366,10 @@ object NetworkClientFactory {
                 .url("https://www.youtube.com/generate_204")
                 .head()
                 .header("User-Agent", CHROME_WINDOWS_USER_AGENT)
+                .timeouts(3, 3)
                 .build()
 
-            getClientWithTimeout(3, 3).newCall(request).execute().use { response ->
+            getClient().newCall(request).execute().use { response ->
                 response.code in 200..399 || response.code == 405
             }
         } catch (e: Exception) {
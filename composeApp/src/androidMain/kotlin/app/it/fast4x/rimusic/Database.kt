@@ -11,16 +11,21 @@ import androidx.room.TypeConverters
 import androidx.sqlite.db.SimpleSQLiteQuery
 import it.fast4x.innertube.Innertube
 import app.it.fast4x.rimusic.models.Album
+import app.it.fast4x.rimusic.models.AlbumFts
 import app.it.fast4x.rimusic.models.Artist
+import app.it.fast4x.rimusic.models.ArtistFts
 import app.it.fast4x.rimusic.models.Event
 import app.it.fast4x.rimusic.models.Format
 import app.it.fast4x.rimusic.models.Lyrics
+import app.it.fast4x.rimusic.models.LyricsTranslation
 import app.it.fast4x.rimusic.models.Playlist
+import app.it.fast4x.rimusic.models.PlaylistFts
 import app.it.fast4x.rimusic.models.QueuedMediaItem
 import app.it.fast4x.rimusic.models.SearchQuery
 import app.it.fast4x.rimusic.models.Song
 import app.it.fast4x.rimusic.models.SongAlbumMap
 import app.it.fast4x.rimusic.models.SongArtistMap
+import app.it.fast4x.rimusic.models.SongFts
 import app.it.fast4x.rimusic.models.SongPlaylistMap
 import app.it.fast4x.rimusic.models.SortedSongPlaylistMap
 import app.it.fast4x.rimusic.utils.asSong
@@ -34,6 +39,7 @@ import app.kreate.android.me.knighthat.database.Converters
 import app.kreate.android.me.knighthat.database.EventTable
 import app.kreate.android.me.knighthat.database.FormatTable
 import app.kreate.android.me.knighthat.database.LyricsTable
+import app.kreate.android.me.knighthat.database.LyricsTranslationTable
 import app.kreate.android.me.knighthat.database.PlaylistTable
 import app.kreate.android.me.knighthat.database.QueuedMediaItemTable
 import app.kreate.android.me.knighthat.database.SearchQueryTable
@@ -51,6 +57,9 @@ import app.kreate.android.me.knighthat.database.migration.From23To24Migration
 import app.kreate.android.me.knighthat.database.migration.From24To25Migration
 import app.kreate.android.me.knighthat.database.migration.From25To26Migration
 import app.kreate.android.me.knighthat.database.migration.From26To27Migration
+import app.kreate.android.me.knighthat.database.migration.From27To28Migration
+import app.kreate.android.me.knighthat.database.migration.From28To29Migration
+import app.kreate.android.me.knighthat.database.migration.From29To30Migration
 import app.kreate.android.me.knighthat.database.migration.From3To4Migration
 import app.kreate.android.me.knighthat.database.migration.From7To8Migration
 import app.kreate.android.me.knighthat.database.migration.From8To9Migration
@@ -74,6 +83,8 @@ object Database {
         get() = _internal.formatTable
     val lyricsTable: LyricsTable
         get() = _internal.lyricsTable
+    val lyricsTranslationTable: LyricsTranslationTable
+        get() = _internal.lyricsTranslationTable
     val playlistTable: PlaylistTable
         get() = _internal.playlistTable
     val queueTable: QueuedMediaItemTable
@@ -289,9 +300,11 @@ object Database {
      *
      * @param playlist to map
      * @param songs to map
+     *
+     * @return id of [playlist] in the database, [Playlist.id] if [songs] is empty
      */
-    fun mapIgnore( playlist: Playlist, vararg songs: Song ) {
-        if( songs.isEmpty() ) return
+    fun mapIgnore( playlist: Playlist, vararg songs: Song ): Long {
+        if( songs.isEmpty() ) return playlist.id
 
         /**
          * [Playlist] has its [Playlist.id] `autogenerated`, therefore,
@@ -310,6 +323,7 @@ object Database {
             songTable.insertIgnore( it )
             songPlaylistMapTable.map( it.id, pId )
         }
+        return pId
     }
 
     /**
@@ -347,6 +361,31 @@ object Database {
             this.block()
         }
 
+    /**
+     * Same as [asyncTransaction], but every statement inside [block]
+     * is committed in a single SQLite transaction.
+     *
+     * ## Best use cases:
+     * - Write hundreds of records at once, where committing
+     * each statement separately is significantly slower
+     *
+     * @param onFailure called with exception thrown by [block],
+     * after the whole transaction was rolled back
+     * @param onSuccess called once the transaction is committed
+     * @param block of statements to write to database
+     */
+    fun asyncBatchTransaction(
+        onFailure: (Throwable) -> Unit = { throw it },
+        onSuccess: () -> Unit = {},
+        block: Database.() -> Unit
+    ) =
+        _internal.transactionExecutor.execute {
+            runCatching {
+                _internal.runInTransaction { this.block() }
+            }.onSuccess { onSuccess() }
+             .onFailure( onFailure )
+        }
+
 
     /**
      * Access and retrieve records from database.
@@ -369,6 +408,18 @@ object Database {
             this.block()
         }
 
+    /**
+     * Get notified when any of [tables] is modified,
+     * without running any query.
+     *
+     * The first value is emitted right away, subsequent values
+     * contain names of tables that were modified since.
+     *
+     * @param tables names of tables to observe
+     */
+    fun observeTables( vararg tables: String ): Flow<Set<String>> =
+        _internal.invalidationTracker.createFlow( *tables )
+
     fun checkpoint() = _internal.query( SimpleSQLiteQuery("PRAGMA wal_checkpoint(FULL)") )
                                      .use {
                                          if( it.moveToFirst() ) it.getInt( 0 ) else -1
@@ -394,11 +445,16 @@ object Database {
         Format::class,
         Event::class,
         Lyrics::class,
+        LyricsTranslation::class,
+        SongFts::class,
+        AlbumFts::class,
+        ArtistFts::class,
+        PlaylistFts::class,
     ],
     views = [
         SortedSongPlaylistMap::class
     ],
-    version = 27,
+    version = 30,
     exportSchema = true,
     autoMigrations = [
         AutoMigration(from = 1, to = 2),
@@ -428,6 +484,7 @@ abstract class DatabaseInitializer protected constructor() : RoomDatabase() {
     abstract val eventTable: EventTable
     abstract val formatTable: FormatTable
     abstract val lyricsTable: LyricsTable
+    abstract val lyricsTranslationTable: LyricsTranslationTable
     abstract val playlistTable: PlaylistTable
     abstract val queueTable: QueuedMediaItemTable
     abstract val searchQueryTable: SearchQueryTable
@@ -451,7 +508,10 @@ abstract class DatabaseInitializer protected constructor() : RoomDatabase() {
                     From23To24Migration(),
                     From24To25Migration(),
                     From25To26Migration(),
-                    From26To27Migration()
+                    From26To27Migration(),
+                    From27To28Migration(),
+                    From28To29Migration(),
+                    From29To30Migration()
                 )
                 .build()
         }
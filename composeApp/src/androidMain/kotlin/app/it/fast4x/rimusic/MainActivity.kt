@@ -95,7 +95,6 @@ import androidx.navigation.compose.rememberNavController
 import app.kreate.android.BuildConfig
 import app.kreate.android.R
 import app.kreate.android.Threads
-import android.graphics.Bitmap
 import androidx.palette.graphics.Palette
 import app.cubic.android.core.network.NetworkClientFactory
 import com.kieronquinn.monetcompat.core.MonetActivityAccessException
@@ -239,7 +238,6 @@ import app.kreate.android.me.knighthat.coil.*
 import me.knighthat.invidious.Invidious
 import me.knighthat.piped.Piped
 import app.kreate.android.me.knighthat.utils.Toaster
-import okhttp3.OkHttpClient
 import org.schabi.newpipe.extractor.NewPipe
 import timber.log.Timber
 import java.net.Proxy
@@ -257,7 +255,7 @@ class MainActivity :
 {
     var downloadHelper = MyDownloadHelper
 
-    var client = OkHttpClient()
+    var client = NetworkClientFactory.getCachelessClient()
     var request = OkHttpRequest(client)
 
     private val serviceConnection = object : ServiceConnection {
@@ -621,22 +619,16 @@ class MainActivity :
                     preferences.getEnum(colorPaletteModeKey, ColorPaletteMode.Dark)
                 coroutineScope.launch(Dispatchers.IO) {
                     try {
-                        val bitmap: Bitmap? = ImageCacheFactory.loadBitmap(url, allowHardware = false)
+                        val palette: Palette? = ArtworkDerivatives.palette(url) {
+                            ImageCacheFactory.loadBitmap(url, allowHardware = false)
+                        }
 
-                        
                         val isPicthBlack = colorPaletteMode == ColorPaletteMode.PitchBlack
                         val isDark =
                             colorPaletteMode == ColorPaletteMode.Dark || isPicthBlack || (colorPaletteMode == ColorPaletteMode.System && isSystemInDarkTheme)
 
-                        if (bitmap != null) {
-                            val palette: Palette = Palette
-                                .from(bitmap)
-                                .maximumColorCount(8)
-                                .addFilter(if (isDark) ({ _: Int, hsl: FloatArray -> hsl[0] !in 36f..100f }) else null)
-                                .generate()
-
-
-                            dynamicColorPaletteOf(bitmap, isDark)?.let { paletteResult ->
+                        if (palette != null) {
+                            dynamicColorPaletteOf(palette, isDark)?.let { paletteResult ->
                                 withContext(Dispatchers.Main) {
                                     setSystemBarAppearance(paletteResult.isDark)
                                     val newAppearance = appearance.copy(
@@ -18,6 +18,7 @@ import app.it.fast4x.rimusic.service.modern.PlayerServiceModern
 import app.it.fast4x.rimusic.service.MyDownloadHelper
 import app.it.fast4x.rimusic.utils.CaptureCrash
 import app.it.fast4x.rimusic.utils.FileLoggingTree
+import app.it.fast4x.rimusic.utils.isProxyEnabledKey
 import app.it.fast4x.rimusic.utils.logDebugEnabledKey
 import app.it.fast4x.rimusic.utils.preferences
 import app.it.fast4x.rimusic.utils.ytCookieKey
@@ -43,6 +44,9 @@ class MainApplication : Application(), SingletonImageLoader.Factory {
         Dependencies.init(this)
         CipherDeobfuscator.initialize(this)
         NetworkClientFactory.configure(proxy = null, cacheDir = cacheDir)
+        // Proxy is only applied by MainActivity, prewarming now would go around it
+        if (!preferences.getBoolean(isProxyEnabledKey, false))
+            NetworkClientFactory.prewarm()
         initializeYouTubeSession()
 
         createNotificationChannels()
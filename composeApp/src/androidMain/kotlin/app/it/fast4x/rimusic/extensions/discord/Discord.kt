@@ -17,6 +17,7 @@ import androidx.compose.runtime.rememberCoroutineScope
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.viewinterop.AndroidView
 import androidx.navigation.NavController
+import app.cubic.android.core.network.NetworkClientFactory
 import app.kreate.android.R
 import app.it.fast4x.rimusic.LocalPlayerAwareWindowInsets
 import app.it.fast4x.rimusic.ui.components.themed.Title
@@ -27,7 +28,6 @@ import androidx.compose.foundation.layout.Column
 import androidx.compose.foundation.layout.Arrangement
 import androidx.compose.ui.Alignment
 import app.it.fast4x.rimusic.context
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.json.JSONObject
 import kotlinx.coroutines.withContext
@@ -45,7 +45,7 @@ private const val SAMSUNG_USER_AGENT = "Mozilla/5.0 (Linux; Android 14; SM-S921U
      */
 
 suspend fun fetchDiscordUser(token: String): Pair<String, String>? = withContext(Dispatchers.IO) {
-    val client = OkHttpClient()
+    val client = NetworkClientFactory.getCachelessClient()
     val request = Request.Builder()
         .url("https://discord.com/api/v9/users/@me")
         .header("Authorization", token)
@@ -4,6 +4,7 @@ import android.content.Context
 import android.net.Uri
 import androidx.core.net.toUri
 import androidx.media3.common.MediaItem
+import app.cubic.android.core.network.NetworkClientFactory
 import app.kreate.android.R
 import com.my.kizzyrpc.KizzyRPC
 import com.my.kizzyrpc.model.Activity
@@ -36,7 +37,6 @@ import kotlinx.serialization.json.putJsonArray
 import app.kreate.android.me.knighthat.utils.ImageProcessor
 import app.kreate.android.me.knighthat.utils.Toaster
 import app.kreate.android.me.knighthat.utils.isNetworkAvailable
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.jetbrains.annotations.Contract
 import timber.log.Timber
@@ -86,7 +86,7 @@ class DiscordPresenceManager(
     @Volatile
     private var isSendingActivity = false
     private var consecutiveRpcFailures = 0
-    private val client = OkHttpClient.Builder()
+    private val client = NetworkClientFactory.newBuilder()
         .connectTimeout(10, java.util.concurrent.TimeUnit.SECONDS)
         .readTimeout(10, java.util.concurrent.TimeUnit.SECONDS)
         .build()
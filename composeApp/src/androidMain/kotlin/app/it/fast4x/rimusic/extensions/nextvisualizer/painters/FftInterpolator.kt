@@ -0,0 +1,119 @@
+package app.it.fast4x.rimusic.extensions.nextvisualizer.painters
+
+import kotlin.math.abs
+
+/**
+ * Linear or Akima spline interpolation over evenly spaced knots.
+ *
+ * Unlike commons-math interpolators, one instance is refitted every frame,
+ * all arrays are reused as long as the number of knots doesn't change.
+ *
+ * Knot `k` is located at `x0 + k * h`, so [value] finds
+ * its segment in O(1) instead of a binary search.
+ */
+class FftInterpolator {
+
+    private var size = 0
+    private var x0 = 0.0
+    private var h = 1.0
+    private var spline = false
+
+    private var y = DoubleArray(0)
+    /** Slope of each segment */
+    private var m = DoubleArray(0)
+    /** First derivative at each knot, only used by spline */
+    private var d = DoubleArray(0)
+    /** Akima weights, only used by spline */
+    private var w = DoubleArray(0)
+
+    private fun ensureCapacity(n: Int) {
+        if (y.size == n) return
+
+        y = DoubleArray(n)
+        m = DoubleArray((n - 1).coerceAtLeast(0))
+        d = DoubleArray(n)
+        w = DoubleArray((n - 1).coerceAtLeast(0))
+    }
+
+    /**
+     * Fit [models] heights, knot `k` is at `x0 + k * h`.
+     *
+     * Akima spline requires at least 5 knots, linear is used otherwise.
+     *
+     * @param spline `true` for Akima spline, `false` for linear
+     */
+    fun fit(models: Array<Painter.GravityModel>, x0: Double, h: Double, spline: Boolean): FftInterpolator {
+        val n = models.size
+        ensureCapacity(n)
+        size = n
+        this.x0 = x0
+        this.h = h
+        this.spline = spline && n >= 5
+
+        for (i in 0 until n) y[i] = models[i].height.toDouble()
+        for (i in 0 until n - 1) m[i] = (y[i + 1] - y[i]) / h
+
+        if (this.spline) fitAkima()
+        return this
+    }
+
+    /**
+     * Same steps as commons-math `AkimaSplineInterpolator`,
+     * simplified for evenly spaced knots.
+     */
+    private fun fitAkima() {
+        val n = size
+        for (i in 1 until n - 1) w[i] = abs(m[i] - m[i - 1])
+
+        for (i in 2 until n - 2) {
+            val wP = w[i + 1]
+            val wM = w[i - 1]
+            d[i] = if (wP == 0.0 && wM == 0.0)
+                // Evenly spaced, so it's the average of both slopes
+                (m[i - 1] + m[i]) / 2
+            else
+                (wP * m[i - 1] + wM * m[i]) / (wP + wM)
+        }
+
+        d[0] = threePointDerivative(0, 0)
+        d[1] = threePointDerivative(1, 0)
+        d[n - 2] = threePointDerivative(n - 2, n - 3)
+        d[n - 1] = threePointDerivative(n - 1, n - 3)
+    }
+
+    /**
+     * Derivative at knot [index] of the parabola through knots [first], `first + 1` and `first + 2`
+     */
+    private fun threePointDerivative(index: Int, first: Int): Double {
+        val y0 = y[first]
+        val y1 = y[first + 1]
+        val y2 = y[first + 2]
+        val t = (index - first) * h
+        val t1 = h
+        val t2 = 2 * h
+
+        val a = (y2 - y0 - (t2 / t1 * (y1 - y0))) / (t2 * t2 - t1 * t2)
+        val b = (y1 - y0 - a * t1 * t1) / t1
+        return 2 * a * t + b
+    }
+
+    /**
+     * @param x position, values outside of knots are extrapolated from the closest segment
+     */
+    fun value(x: Double): Double {
+        if (size == 0) return 0.0
+        if (size == 1) return y[0]
+
+        val segment = ((x - x0) / h).toInt().coerceIn(0, size - 2)
+        val t = x - (x0 + segment * h)
+        if (!spline) return y[segment] + m[segment] * t
+
+        // Cubic Hermite between 2 knots
+        val slope = m[segment]
+        val d0 = d[segment]
+        val d1 = d[segment + 1]
+        val c2 = (3 * slope - 2 * d0 - d1) / h
+        val c3 = (d0 + d1 - 2 * slope) / (h * h)
+        return y[segment] + t * (d0 + t * (c2 + t * c3))
+    }
+}
@@ -3,16 +3,24 @@ package app.it.fast4x.rimusic.extensions.nextvisualizer.painters
 import android.graphics.Canvas
 import android.graphics.Paint
 import app.it.fast4x.rimusic.extensions.nextvisualizer.utils.VisualizerHelper
-import org.apache.commons.math3.analysis.interpolation.AkimaSplineInterpolator
-import org.apache.commons.math3.analysis.interpolation.LinearInterpolator
-import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction
 import kotlin.math.cos
 import kotlin.math.sin
 
+/**
+ * Every helper that returns an array writes into a buffer owned by this painter,
+ * so a frame doesn't allocate once sizes are stable. Returned arrays are only valid
+ * until the same helper is called again, copy them if they must be kept.
+ */
 abstract class Painter {
 
-    private val li = LinearInterpolator()
-    private val sp = AkimaSplineInterpolator()
+    private val fftInterpolator = FftInterpolator()
+    private var rangeFft = DoubleArray(0)
+    private var powerFft = DoubleArray(0)
+    private var mirrorFft = DoubleArray(0)
+    private var circleFft = DoubleArray(0)
+    private var pointBuffer = FloatArray(0)
+    private val cartesian = Array(4) { FloatArray(2) }
+    private var cartesianIndex = 0
 
     abstract var paint:Paint
 
@@ -31,6 +39,22 @@ abstract class Painter {
      */
     abstract fun draw(canvas: Canvas, helper: VisualizerHelper)
 
+    /**
+     * Fft magnitude from [startHz] to [endHz], see [VisualizerHelper.getFftMagnitudeRange]
+     */
+    fun getFftMagnitudeRange(helper: VisualizerHelper, startHz: Int, endHz: Int): DoubleArray {
+        rangeFft = helper.getFftMagnitudeRange(startHz, endHz, rangeFft)
+        return rangeFft
+    }
+
+    /**
+     * @return array of at least [size] floats, reused between frames
+     */
+    fun getPointBuffer(size: Int): FloatArray {
+        if (pointBuffer.size < size) pointBuffer = FloatArray(size)
+        return pointBuffer
+    }
+
     /**
      * Interpolate FFT spectrum
      *
@@ -44,23 +68,14 @@ abstract class Painter {
      * @param sliceNum Number of Slice
      * @param interpolator Which interpolator to use, `li` for Linear, `sp` for Spline
      *
-     * @return a `PolynomialSplineFunction` (psf). To get the value, use
+     * @return this painter's [FftInterpolator] (psf). To get the value, use
      * `psf.value(x)`, where `x` must be a Double value from 0 to `num`
      */
     fun interpolateFft(
         gravityModels: Array<GravityModel>, sliceNum: Int, interpolator: String
-    ): PolynomialSplineFunction {
-        val nRaw = gravityModels.size
-        val xRaw = DoubleArray(nRaw) { (it * sliceNum).toDouble() / (nRaw - 1) }
-        val yRaw = DoubleArray(nRaw)
-        gravityModels.forEachIndexed { index, bar -> yRaw[index] = bar.height.toDouble() }
-        val psf: PolynomialSplineFunction
-        psf = when (interpolator) {
-            "li", "linear" -> li.interpolate(xRaw, yRaw)
-            "sp", "spline" -> sp.interpolate(xRaw, yRaw)
-            else -> li.interpolate(xRaw, yRaw)
-        }
-        return psf
+    ): FftInterpolator {
+        val h = sliceNum.toDouble() / (gravityModels.size - 1)
+        return fftInterpolator.fit(gravityModels, 0.0, h, isSpline(interpolator))
     }
 
     /**
@@ -72,25 +87,19 @@ abstract class Painter {
      * @param sliceNum Number of Slice
      * @param interpolator Which interpolator to use, `li` for Linear, `sp` for Spline
      *
-     * @return a `PolynomialSplineFunction` (psf). To get the value, use
+     * @return this painter's [FftInterpolator] (psf). To get the value, use
      * `psf.value(x)`, where `x` must be a Double value from 0 to `num`
      */
     fun interpolateFftCircle(
         gravityModels: Array<GravityModel>, sliceNum: Int, interpolator: String
-    ): PolynomialSplineFunction {
-        val nRaw = gravityModels.size
-        val xRaw = DoubleArray(nRaw) { ((it - 1) * sliceNum).toDouble() / (nRaw - 1 - 2) }
-        val yRaw = DoubleArray(nRaw)
-        gravityModels.forEachIndexed { index, bar -> yRaw[index] = bar.height.toDouble() }
-        val psf: PolynomialSplineFunction
-        psf = when (interpolator) {
-            "li", "linear" -> li.interpolate(xRaw, yRaw)
-            "sp", "spline" -> sp.interpolate(xRaw, yRaw)
-            else -> li.interpolate(xRaw, yRaw)
-        }
-        return psf
+    ): FftInterpolator {
+        // First knot is the patched one, located before 0
+        val h = sliceNum.toDouble() / (gravityModels.size - 1 - 2)
+        return fftInterpolator.fit(gravityModels, -h, h, isSpline(interpolator))
     }
 
+    private fun isSpline(interpolator: String): Boolean = interpolator == "sp" || interpolator == "spline"
+
     /**
      * Check if it's quiet enough such that we can skip the drawing
      * @param fft Fft
@@ -104,14 +113,20 @@ abstract class Painter {
 
     /**
      * Convert Polar to Cartesian
+     *
+     * Results rotate through 4 buffers, so up to 4 points
+     * can be used at the same time without allocating.
+     *
      * @param radius Radius
      * @param theta Theta
      * @return FloatArray of (x,y) of Cartesian
      */
     fun toCartesian(radius: Float, theta: Float): FloatArray {
-        val x = radius * cos(theta)
-        val y = radius * sin(theta)
-        return floatArrayOf(x, y)
+        val point = cartesian[cartesianIndex]
+        cartesianIndex = (cartesianIndex + 1) and 3
+        point[0] = radius * cos(theta)
+        point[1] = radius * sin(theta)
+        return point
     }
 
     /**
@@ -123,7 +138,8 @@ abstract class Painter {
      * @return CircleFft
      */
     fun getCircleFft(fft: DoubleArray): DoubleArray {
-        val patched = DoubleArray(fft.size + 2)
+        if (circleFft.size != fft.size + 2) circleFft = DoubleArray(fft.size + 2)
+        val patched = circleFft
         fft.forEachIndexed { index, d -> patched[index + 1] = d }
         patched[0] = fft[fft.lastIndex - 1]
         patched[patched.lastIndex - 1] = fft[0]
@@ -147,21 +163,24 @@ abstract class Painter {
      * @return MirrorFft
      */
     fun getMirrorFft(fft: DoubleArray, mode: Int = 1): DoubleArray {
-        return when (mode) {
-            1 -> {
-                fft.sliceArray(0..fft.lastIndex).reversedArray() + fft.sliceArray(0..fft.lastIndex)
-            }
-            2 -> {
-                fft.sliceArray(0..fft.lastIndex) + fft.sliceArray(0..fft.lastIndex).reversedArray()
-            }
-            3 -> {
-                fft.sliceArray(0..fft.lastIndex / 2).reversedArray() + fft.sliceArray(0..fft.lastIndex / 2)
-            }
-            4 -> {
-                fft.sliceArray(0..fft.lastIndex / 2) + fft.sliceArray(0..fft.lastIndex / 2).reversedArray()
+        val half = when (mode) {
+            1, 2 -> fft.size
+            3, 4 -> fft.lastIndex / 2 + 1
+            else -> return fft
+        }
+        if (mirrorFft.size != half * 2) mirrorFft = DoubleArray(half * 2)
+
+        val reversedFirst = mode == 1 || mode == 3
+        for (i in 0 until half) {
+            if (reversedFirst) {
+                mirrorFft[half - 1 - i] = fft[i]
+                mirrorFft[half + i] = fft[i]
+            } else {
+                mirrorFft[i] = fft[i]
+                mirrorFft[half * 2 - 1 - i] = fft[i]
             }
-            else -> fft
         }
+        return mirrorFft
     }
 
     /**
@@ -171,7 +190,9 @@ abstract class Painter {
      * @return PowerFft
      */
     fun getPowerFft(fft: DoubleArray, param: Double = 100.0): DoubleArray {
-        return fft.map { it * it / param }.toDoubleArray()
+        if (powerFft.size != fft.size) powerFft = DoubleArray(fft.size)
+        for (i in fft.indices) powerFft[i] = fft[i] * fft[i] / param
+        return powerFft
     }
 
     /**
@@ -182,7 +203,7 @@ abstract class Painter {
      * @param yR Rotation point Y, 1f = `canvas.height`
      * @param d Drawing operation here
      */
-    fun rotateHelper(canvas: Canvas, rot: Float, xR: Float, yR: Float, d: () -> Unit) {
+    inline fun rotateHelper(canvas: Canvas, rot: Float, xR: Float, yR: Float, d: () -> Unit) {
         canvas.save()
         canvas.rotate(rot, canvas.width * xR, canvas.height * yR)
         d()
@@ -197,7 +218,7 @@ abstract class Painter {
      * @param yR Rotation point Y, 1f = `canvas.height`
      * @param d Drawing operation for side a here
      */
-    fun drawHelper(canvas: Canvas, side: String, xR: Float, yR: Float, d: () -> Unit) {
+    inline fun drawHelper(canvas: Canvas, side: String, xR: Float, yR: Float, d: () -> Unit) {
         canvas.save()
         when (side) {
             "a" -> {
@@ -228,7 +249,7 @@ abstract class Painter {
      * @param d Drawing operation for side a here
      * @param dab Drawing operation for side ab here
      */
-    fun drawHelper(canvas: Canvas, side: String, xR: Float, yR: Float, d: () -> Unit, dab: () -> Unit) {
+    inline fun drawHelper(canvas: Canvas, side: String, xR: Float, yR: Float, d: () -> Unit, dab: () -> Unit) {
         canvas.save()
         when (side) {
             "a" -> {
@@ -258,7 +279,7 @@ abstract class Painter {
      * @param db Drawing operation for side b here
      * @param dab Drawing operation for side ab here
      */
-    fun drawHelper(
+    inline fun drawHelper(
         canvas: Canvas, side: String, xR: Float, yR: Float, da: () -> Unit, db: () -> Unit, dab: () -> Unit
     ) {
         canvas.save()
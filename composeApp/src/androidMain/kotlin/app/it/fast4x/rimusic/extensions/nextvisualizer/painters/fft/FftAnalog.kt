@@ -4,9 +4,9 @@ import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
 import android.graphics.Path
+import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.FftInterpolator
 import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.Painter
 import app.it.fast4x.rimusic.extensions.nextvisualizer.utils.VisualizerHelper
-import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction
 
 class FftAnalog(
     override var paint: Paint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
@@ -29,10 +29,10 @@ class FftAnalog(
     private val path = Path()
     private var skipFrame = false
     lateinit var fft: DoubleArray
-    lateinit var psf: PolynomialSplineFunction
+    lateinit var psf: FftInterpolator
 
     override fun calc(helper: VisualizerHelper) {
-        fft = helper.getFftMagnitudeRange(startHz, endHz)
+        fft = getFftMagnitudeRange(helper, startHz, endHz)
 
         if (isQuiet(fft)) {
             skipFrame = true
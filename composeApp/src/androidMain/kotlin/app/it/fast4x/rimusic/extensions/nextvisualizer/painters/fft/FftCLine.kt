@@ -3,9 +3,9 @@ package app.it.fast4x.rimusic.extensions.nextvisualizer.painters.fft
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.FftInterpolator
 import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.Painter
 import app.it.fast4x.rimusic.extensions.nextvisualizer.utils.VisualizerHelper
-import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction
 import kotlin.math.PI
 import kotlin.math.min
 
@@ -32,10 +32,10 @@ class FftCLine(
     private var points = Array(0) { GravityModel() }
     private var skipFrame = false
     lateinit var fft: DoubleArray
-    lateinit var psf: PolynomialSplineFunction
+    lateinit var psf: FftInterpolator
 
     override fun calc(helper: VisualizerHelper) {
-        fft = helper.getFftMagnitudeRange(startHz, endHz)
+        fft = getFftMagnitudeRange(helper, startHz, endHz)
         if (isQuiet(fft)) {
             skipFrame = true
             return
@@ -55,7 +55,7 @@ class FftCLine(
         if (skipFrame) return
 
         val angle = 2 * PI.toFloat() / num
-        val pts = FloatArray(4 * num)
+        val pts = getPointBuffer(4 * num)
         val shortest = min(canvas.width, canvas.height)
 
         drawHelper(canvas, side, .5f, .5f, {
@@ -68,7 +68,7 @@ class FftCLine(
                 pts[4 * i] = start[0];pts[4 * i + 1] = start[1]
                 pts[4 * i + 2] = stop[0];pts[4 * i + 3] = stop[1]
             }
-            canvas.drawLines(pts, paint)
+            canvas.drawLines(pts, 0, 4 * num, paint)
         }, {
             for (i in 0 until num) {
                 val start =
@@ -79,7 +79,7 @@ class FftCLine(
                 pts[4 * i] = start[0];pts[4 * i + 1] = start[1]
                 pts[4 * i + 2] = stop[0];pts[4 * i + 3] = stop[1]
             }
-            canvas.drawLines(pts, paint)
+            canvas.drawLines(pts, 0, 4 * num, paint)
         }, {
             for (i in 0 until num) {
                 val start =
@@ -92,7 +92,7 @@ class FftCLine(
                 pts[4 * i] = start[0];pts[4 * i + 1] = start[1]
                 pts[4 * i + 2] = stop[0];pts[4 * i + 3] = stop[1]
             }
-            canvas.drawLines(pts, paint)
+            canvas.drawLines(pts, 0, 4 * num, paint)
         })
     }
 }
\ No newline at end of file
@@ -3,9 +3,9 @@ package app.it.fast4x.rimusic.extensions.nextvisualizer.painters.fft
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.FftInterpolator
 import app.it.fast4x.rimusic.extensions.nextvisualizer.painters.Painter
 import app.it.fast4x.rimusic.extensions.nextvisualizer.utils.VisualizerHelper
-import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction
 
 class FftLine(
     val colorPaint: Int = Color.WHITE,
@@ -29,10 +29,10 @@ class FftLine(
     private var points = Array(0) { GravityModel() }
     private var skipFrame = false
     lateinit var fft: DoubleArray
-    lateinit var psf: PolynomialSplineFunction
+    lateinit var psf: FftInterpolator
 
     override fun calc(helper: VisualizerHelper) {
-        fft = helper.getFftMagnitudeRange(startHz, endHz)
+        fft = getFftMagnitudeRange(helper, startHz, endHz)
 
         if (isQuiet(fft)) {
             skipFrame = true
@@ -55,7 +55,7 @@ class FftLine(
         val width = canvas.width.toFloat()
         val gapWidth = width / num
 
-        val pts = FloatArray(4 * num)
+        val pts = getPointBuffer(4 * num)
         drawHelper(canvas, side, 0f, .5f, {
             for (i in 0 until num) {
                 pts[4 * i] = gapWidth * (i + .5f)
@@ -63,7 +63,7 @@ class FftLine(
                 pts[4 * i + 2] = gapWidth * (i + .5f)
                 pts[4 * i + 3] = 0f
             }
-            canvas.drawLines(pts, paint)
+            canvas.drawLines(pts, 0, 4 * num, paint)
         }, {
             for (i in 0 until num) {
                 pts[4 * i] = gapWidth * (i + .5f)
@@ -71,7 +71,7 @@ class FftLine(
                 pts[4 * i + 2] = gapWidth * (i + .5f)
                 pts[4 * i + 3] = psf.value(i.toDouble()).toFloat()
             }
-            canvas.drawLines(pts, paint)
+            canvas.drawLines(pts, 0, 4 * num, paint)
         })
     }
 }
\ No newline at end of file
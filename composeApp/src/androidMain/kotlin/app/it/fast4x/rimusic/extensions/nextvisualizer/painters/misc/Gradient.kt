@@ -27,7 +27,30 @@ class Gradient(
     override fun calc(helper: VisualizerHelper) {
     }
 
+    // Shader only depends on these, no need to recreate it every frame
+    private var shaderWidth = -1
+    private var shaderHeight = -1
+    private var shaderPreset = -1
+    private var shaderColor1 = 0
+    private var shaderColor2 = 0
+    private var shaderHsv = false
+
     override fun draw(canvas: Canvas, helper: VisualizerHelper) {
+        if (paint.shader == null || shaderWidth != canvas.width || shaderHeight != canvas.height
+            || shaderPreset != preset || shaderColor1 != color1 || shaderColor2 != color2 || shaderHsv != hsv
+        ) {
+            shaderWidth = canvas.width
+            shaderHeight = canvas.height
+            shaderPreset = preset
+            shaderColor1 = color1
+            shaderColor2 = color2
+            shaderHsv = hsv
+            updateShader(canvas)
+        }
+        canvas.drawPaint(paint)
+    }
+
+    private fun updateShader(canvas: Canvas) {
         val shortest = min(canvas.width, canvas.height)
         when (preset) {
             LINEAR_HORIZONTAL -> paint.shader = LinearGradient(
@@ -55,6 +78,5 @@ class Gradient(
                 if (hsv) HSV else intArrayOf(color2, color1, color2), null
             )
         }
-        canvas.drawPaint(paint)
     }
 }
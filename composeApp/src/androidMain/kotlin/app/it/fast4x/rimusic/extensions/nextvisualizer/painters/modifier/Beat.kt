@@ -24,7 +24,7 @@ class Beat(
     private val energy = GravityModel(0f)
 
     override fun calc(helper: VisualizerHelper) {
-        energy.update(helper.getFftMagnitudeRange(startHz, endHz).average().toFloat())
+        energy.update(helper.getFftMagnitudeAverage(startHz, endHz).toFloat())
         painters.forEach { painter ->
             painter.calc(helper)
         }
@@ -21,8 +21,13 @@ class Glitch(
     private val energy = GravityModel(0f)
     private var count = 0
 
+    private val redFilter = LightingColorFilter(Color.RED, Color.BLACK)
+    private val greenFilter = LightingColorFilter(Color.GREEN, Color.BLACK)
+    private val blueFilter = LightingColorFilter(Color.BLUE, Color.BLACK)
+    private val addXfermode = PorterDuffXfermode(PorterDuff.Mode.ADD)
+
     override fun calc(helper: VisualizerHelper) {
-        energy.update(helper.getFftMagnitudeRange(startHz, endHz).average().toFloat())
+        energy.update(helper.getFftMagnitudeAverage(startHz, endHz).toFloat())
         if (energy.height > peak) count = (duration / 1000f * 60f).toInt()
         painters.forEach { painter ->
             painter.calc(helper)
@@ -60,8 +65,7 @@ class Glitch(
             drawHelper(canvas, "a", displacement - noise, 0f) {
                 painters.forEach { painter ->
                     painter.paint.apply {
-                        colorFilter = LightingColorFilter(Color.RED, Color.BLACK)
-                        ;xfermode = PorterDuffXfermode(PorterDuff.Mode.ADD)
+                        colorFilter = redFilter;xfermode = addXfermode
                     }
                     painter.draw(canvas, helper)
                 }
@@ -69,8 +73,7 @@ class Glitch(
             drawHelper(canvas, "a", displacement, 0f) {
                 painters.forEach { painter ->
                     painter.paint.apply {
-                        colorFilter = LightingColorFilter(Color.GREEN, Color.BLACK)
-                        ;xfermode = PorterDuffXfermode(PorterDuff.Mode.ADD)
+                        colorFilter = greenFilter;xfermode = addXfermode
                     }
                     painter.draw(canvas, helper)
                 }
@@ -78,8 +81,7 @@ class Glitch(
             drawHelper(canvas, "a", displacement + noise, 0f) {
                 painters.forEach { painter ->
                     painter.paint.apply {
-                        colorFilter = LightingColorFilter(Color.BLUE, Color.BLACK)
-                        ;xfermode = PorterDuffXfermode(PorterDuff.Mode.ADD)
+                        colorFilter = blueFilter;xfermode = addXfermode
                     }
                     painter.draw(canvas, helper)
                 }
@@ -26,7 +26,7 @@ class WfmAnalog(
     lateinit var waveform : ByteArray
 
     override fun calc(helper: VisualizerHelper) {
-        val fft = helper.getFftMagnitudeRange(startHz, endHz)
+        val fft = getFftMagnitudeRange(helper, startHz, endHz)
 
         if (isQuiet(fft)) {
             skipFrame = true
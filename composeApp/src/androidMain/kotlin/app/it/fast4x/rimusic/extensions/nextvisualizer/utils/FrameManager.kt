@@ -1,5 +1,7 @@
 package app.it.fast4x.rimusic.extensions.nextvisualizer.utils
 
+import android.os.Debug
+
 class FrameManager {
 
     private var last: Long = 0
@@ -7,17 +9,79 @@ class FrameManager {
     private var count: Float = 0f
     private var fps: Float = 0f
 
-    fun tick() {
+    // Frame time and allocations of calc + draw, see beginFrame() and endFrame()
+    private var frameStart: Long = 0
+    private var allocStart: Int = 0
+    private var measuredFrames: Int = 0
+    private var frameNanos: Long = 0
+    private var frameMaxNanos: Long = 0
+    private var frameAllocs: Long = 0
+    private var avgFrameMs: Float = 0f
+    private var maxFrameMs: Float = 0f
+    private var allocsPerFrame: Float = 0f
+
+    /**
+     * Count objects allocated on the drawing thread between [beginFrame]
+     * and [endFrame], should stay at 0 once painters are warmed up.
+     *
+     * Allocation counting slows the whole runtime down, only enable it when debugging.
+     */
+    @Suppress("DEPRECATION")
+    var trackAllocations: Boolean = false
+        set(value) {
+            if (field == value) return
+            field = value
+            if (value) Debug.startAllocCounting() else Debug.stopAllocCounting()
+        }
+
+    /**
+     * @return true when a new 1s window was completed, and stats were updated
+     */
+    fun tick(): Boolean {
         val current = System.currentTimeMillis()
         span += current - last
+        var updated = false
         if (span > 1000) {
             fps = count / span * 1000f
             span = 0
             count = 0f
+
+            if (measuredFrames > 0) {
+                avgFrameMs = frameNanos / measuredFrames / 1_000_000f
+                maxFrameMs = frameMaxNanos / 1_000_000f
+                allocsPerFrame = frameAllocs.toFloat() / measuredFrames
+            }
+            measuredFrames = 0
+            frameNanos = 0
+            frameMaxNanos = 0
+            frameAllocs = 0
+            updated = true
         }
         count++
         last = current
+        return updated
+    }
+
+    @Suppress("DEPRECATION")
+    fun beginFrame() {
+        if (trackAllocations) allocStart = Debug.getThreadAllocCount()
+        frameStart = System.nanoTime()
+    }
+
+    @Suppress("DEPRECATION")
+    fun endFrame() {
+        val nanos = System.nanoTime() - frameStart
+        if (trackAllocations) frameAllocs += Debug.getThreadAllocCount() - allocStart
+        frameNanos += nanos
+        if (nanos > frameMaxNanos) frameMaxNanos = nanos
+        measuredFrames++
     }
 
     fun fps() = fps
-}
\ No newline at end of file
+
+    fun avgFrameMs() = avgFrameMs
+
+    fun maxFrameMs() = maxFrameMs
+
+    fun allocsPerFrame() = allocsPerFrame
+}
@@ -14,6 +14,13 @@ class VisualizerHelper(sessionId: Int) {
     private lateinit var handler: Handler
     private lateinit var runnable: Runnable
 
+    /**
+     * Incremented by [nextFrame], magnitude is only computed
+     * once per frame no matter how many painters request it
+     */
+    private var frame = 0L
+    private var magnitudeFrame = -1L
+
     init {
         visualizer.enabled = false
         visualizer.captureSize = Visualizer.getCaptureSizeRange()[1]
@@ -34,11 +41,24 @@ class VisualizerHelper(sessionId: Int) {
         return waveBuff
     }
 
+    /**
+     * Mark the start of a new frame, next call to [getFftMagnitude]
+     * captures new data. Without it, every call captures new data.
+     */
+    fun nextFrame() {
+        frame++
+    }
+
     fun getFftMagnitude(): DoubleArray {
+        if (frame > 0 && magnitudeFrame == frame) return fftM
+        magnitudeFrame = frame
+
         getFft()
         for (k in 0 until fftMF.size) {
             val i = (k + 1) * 2
-            fftM[k] = Math.hypot(fftBuff[i].toDouble(), fftBuff[i + 1].toDouble())
+            val re = fftBuff[i].toDouble()
+            val im = fftBuff[i + 1].toDouble()
+            fftM[k] = Math.sqrt(re * re + im * im)
         }
         return fftM
     }
@@ -52,6 +72,33 @@ class VisualizerHelper(sessionId: Int) {
         return getFftMagnitude().copyOfRange(sIndex, eIndex)
     }
 
+    /**
+     * Same as [getFftMagnitudeRange], values are written into [out]
+     * when it has the right size, a new array is returned otherwise.
+     */
+    fun getFftMagnitudeRange(startHz: Int, endHz: Int, out: DoubleArray): DoubleArray {
+        val sIndex = hzToFftIndex(startHz)
+        val eIndex = hzToFftIndex(endHz)
+        val size = (eIndex - sIndex).coerceAtLeast(0)
+        val result = if (out.size == size) out else DoubleArray(size)
+        System.arraycopy(getFftMagnitude(), sIndex, result, 0, size)
+        return result
+    }
+
+    /**
+     * Average of Fft values from startHz to endHz, without copying them
+     */
+    fun getFftMagnitudeAverage(startHz: Int, endHz: Int): Double {
+        val sIndex = hzToFftIndex(startHz)
+        val eIndex = hzToFftIndex(endHz)
+        if (eIndex <= sIndex) return Double.NaN
+
+        val magnitude = getFftMagnitude()
+        var sum = 0.0
+        for (i in sIndex until eIndex) sum += magnitude[i]
+        return sum / (eIndex - sIndex)
+    }
+
     /**
      * Equation from documentation, kth frequency = k*Fs/(n/2)
      */
@@ -22,6 +22,11 @@ class VisualizerView : View {
 
     var anim = true
     var fps = false
+        set(value) {
+            field = value
+            frameManager.trackAllocations = value
+            if (!value) simpleText.text = ""
+        }
 
     companion object {
         private fun dp2px(resources: Resources, dp: Float): Float {
@@ -42,12 +47,20 @@ class VisualizerView : View {
         super.onDraw(canvas)
         if (this::painter.isInitialized && this::visualizerHelper.isInitialized) {
             setLayerType(LAYER_TYPE_HARDWARE, paint)
-            canvas?.apply {
-                simpleText.text = if (fps) "FPS: ${frameManager.fps()}" else ""
-                painter.calc(visualizerHelper)
-                painter.draw(canvas, visualizerHelper)
-            }
-            frameManager.tick()
+            frameManager.beginFrame()
+            visualizerHelper.nextFrame()
+            painter.calc(visualizerHelper)
+            painter.draw(canvas, visualizerHelper)
+            frameManager.endFrame()
+
+            // Text is only rebuilt once per second, not to allocate every frame
+            if (frameManager.tick() && fps)
+                simpleText.text = "FPS: %.1f | %.2f ms (max %.2f) | %.1f alloc/frame".format(
+                    frameManager.fps(),
+                    frameManager.avgFrameMs(),
+                    frameManager.maxFrameMs(),
+                    frameManager.allocsPerFrame()
+                )
             if (anim) invalidate()
         }
     }
@@ -10,6 +10,7 @@ import android.webkit.WebView
 import androidx.annotation.MainThread
 import androidx.webkit.WebSettingsCompat
 import androidx.webkit.WebViewFeature
+import app.cubic.android.core.network.NetworkClientFactory
 import app.kreate.android.R
 import it.fast4x.innertube.Innertube
 import app.it.fast4x.rimusic.isDebugModeEnabled
@@ -19,7 +20,6 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.withContext
 import okhttp3.Headers.Companion.toHeaders
-import okhttp3.OkHttpClient
 import okhttp3.RequestBody.Companion.toRequestBody
 import timber.log.Timber
 import java.time.Instant
@@ -295,7 +295,7 @@ class PoTokenWebView private constructor(
                 "AppleWebKit/537.36 (KHTML, like Gecko) Chrome/131.0.0.0 Safari/537.3"
         private const val JS_INTERFACE = "PoTokenWebView"
 
-        private val httpClient = OkHttpClient.Builder()
+        private val httpClient = NetworkClientFactory.newBuilder()
             .proxy(Innertube.proxy)
             .build()
 
@@ -2,45 +2,183 @@ package app.it.fast4x.rimusic.extensions.youtubelogin
 
 import io.ktor.client.plugins.ClientRequestException
 import kotlinx.coroutines.delay
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
+import timber.log.Timber
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
 import kotlin.math.max
+import kotlin.math.min
 import kotlin.random.Random
 
+/**
+ * Token-bucket scheduler for YouTube requests.
+ *
+ * Each [Endpoint] has its own bucket, so a burst of browse requests
+ * never delays stream resolution. Requests go through without any
+ * delay as long as the bucket has tokens, they only wait when burst
+ * capacity is used up, or after YouTube answered with HTTP 429.
+ */
 object YouTubeRequestThrottler {
-    private val mutex = Mutex()
-    private var nextAllowedAt = 0L
-
-    suspend fun <T> run(block: suspend () -> T): T {
-        repeat(3) { attempt ->
-            waitForTurn()
-            try {
-                return block()
-            } catch (throwable: Throwable) {
-                if (!throwable.isRateLimited() || attempt == 2) throw throwable
-                val backoffMs = (1500L shl attempt) + Random.nextLong(250L, 900L)
-                postpone(backoffMs)
-            }
+
+    enum class Endpoint(
+        /** Number of requests allowed in a burst */
+        val capacity: Int,
+        /** Tokens regained per second */
+        val refillPerSecond: Double
+    ) {
+        Player( 6, 3.0 ),
+        Browse( 4, 2.0 ),
+        Next( 4, 2.0 ),
+        Search( 4, 2.0 );
+
+        internal val bucket = Bucket( capacity.toDouble(), refillPerSecond )
+    }
+
+    data class Stats(
+        val requests: Long,
+        /** Requests that had to wait for a token or a backoff */
+        val queued: Long,
+        /** Total time spent waiting, in milliseconds */
+        val waitedMs: Long,
+        /** HTTP 429 responses */
+        val rateLimited: Long,
+        /** Requests given up after repeated HTTP 429 */
+        val rejected: Long
+    )
+
+    internal class Bucket( private val capacity: Double, refillPerSecond: Double ) {
+
+        private val refillPerMs = refillPerSecond / 1000.0
+        /**
+         * Can go below 0, negative value means
+         * tokens were reserved by waiting requests.
+         */
+        private var tokens = capacity
+        private var lastRefillAt = System.currentTimeMillis()
+        private var blockedUntil = 0L
+        private var consecutiveRateLimits = 0
+
+        val requests = AtomicLong()
+        val queued = AtomicLong()
+        val waitedMs = AtomicLong()
+        val rateLimited = AtomicLong()
+        val rejected = AtomicLong()
+
+        private fun refill( now: Long ) {
+            tokens = min( capacity, tokens + (now - lastRefillAt) * refillPerMs )
+            lastRefillAt = now
         }
 
-        error("Request throttler exhausted retries")
+        /**
+         * Take one token.
+         *
+         * @return how long caller must wait before sending request, in milliseconds
+         */
+        @Synchronized
+        fun reserve(): Long {
+            val now = System.currentTimeMillis()
+            refill( now )
+            tokens -= 1.0
+
+            val tokenWait = if( tokens >= 0 ) 0L else ceil( -tokens / refillPerMs ).toLong()
+            return max( tokenWait, blockedUntil - now )
+        }
+
+        /**
+         * Block the whole bucket after a 429, duration
+         * doubles with every consecutive 429.
+         *
+         * @return backoff duration in milliseconds
+         */
+        @Synchronized
+        fun onRateLimited(): Long {
+            val backoffMs = (1500L shl min( consecutiveRateLimits, 4 )) + Random.nextLong( 250L, 900L )
+            consecutiveRateLimits++
+            blockedUntil = max( blockedUntil, System.currentTimeMillis() + backoffMs )
+            // Drain burst so requests resume slowly after the block
+            tokens = min( tokens, 0.0 )
+            return backoffMs
+        }
+
+        @Synchronized
+        fun onSuccess() {
+            consecutiveRateLimits = 0
+        }
+
+        fun stats() = Stats(
+            requests = requests.get(),
+            queued = queued.get(),
+            waitedMs = waitedMs.get(),
+            rateLimited = rateLimited.get(),
+            rejected = rejected.get()
+        )
     }
 
-    private suspend fun waitForTurn() {
-        val waitMs = mutex.withLock {
-            max(0L, nextAllowedAt - System.currentTimeMillis())
+    private const val MAX_ATTEMPTS = 3
+
+    /**
+     * Same as `run(Endpoint.Browse, block)`
+     */
+    suspend fun <T> run( block: suspend () -> T ): T = run( Endpoint.Browse, block )
+
+    /**
+     * Send request of [block] once [endpoint] has a token.
+     *
+     * HTTP 429 is retried after a backoff, whether [block] throws it or,
+     * like Innertube requests do, returns it as a failed [Result].
+     * After [MAX_ATTEMPTS] the last exception is thrown, or the last
+     * failed [Result] returned.
+     */
+    suspend fun <T> run( endpoint: Endpoint, block: suspend () -> T ): T {
+        val bucket = endpoint.bucket
+        bucket.requests.incrementAndGet()
+
+        repeat( MAX_ATTEMPTS ) { attempt ->
+            val waitMs = bucket.reserve()
+            if( waitMs > 0 ) {
+                bucket.queued.incrementAndGet()
+                bucket.waitedMs.addAndGet( waitMs )
+                delay( waitMs )
+            }
+
+            val result = try {
+                block()
+            } catch ( throwable: Throwable ) {
+                if( !throwable.isRateLimited() ) throw throwable
+                if( !backOff( endpoint, attempt ) ) throw throwable
+                return@repeat
+            }
+
+            val failure = (result as? Result<*>)?.exceptionOrNull()
+            if( failure == null || !failure.isRateLimited() || !backOff( endpoint, attempt ) ) {
+                if( failure == null ) bucket.onSuccess()
+                return result
+            }
         }
-        if (waitMs > 0) delay(waitMs)
-        delay(Random.nextLong(125L, 375L))
+
+        error("Request throttler exhausted retries")
     }
 
-    private suspend fun postpone(durationMs: Long) {
-        mutex.withLock {
-            nextAllowedAt = max(nextAllowedAt, System.currentTimeMillis() + durationMs)
+    /**
+     * Record a 429 of [endpoint] and block it for a while.
+     *
+     * @return whether request should be tried again
+     */
+    private fun backOff( endpoint: Endpoint, attempt: Int ): Boolean {
+        val bucket = endpoint.bucket
+        bucket.rateLimited.incrementAndGet()
+        val backoffMs = bucket.onRateLimited()
+        if( attempt == MAX_ATTEMPTS - 1 ) {
+            bucket.rejected.incrementAndGet()
+            return false
         }
-        delay(durationMs)
+        Timber.w( "YouTube %s request rate limited, backing off %dms", endpoint.name, backoffMs )
+        return true
     }
 
+    fun stats( endpoint: Endpoint ): Stats = endpoint.bucket.stats()
+
+    fun stats(): Map<Endpoint, Stats> = Endpoint.entries.associateWith { it.bucket.stats() }
+
     private fun Throwable.isRateLimited(): Boolean =
         this is ClientRequestException && response.status.value == 429 ||
             message?.contains("429") == true ||
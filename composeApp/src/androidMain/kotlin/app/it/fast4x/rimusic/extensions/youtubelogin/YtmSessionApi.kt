@@ -1,5 +1,6 @@
 package app.it.fast4x.rimusic.extensions.youtubelogin
 
+import app.cubic.android.core.network.NetworkClientFactory
 import app.cubic.android.core.network.NetworkQualityHelper
 import app.cubic.android.core.network.enum.NetworkQuality
 import app.it.fast4x.rimusic.appContext
@@ -15,7 +16,6 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.Call
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.Request.Builder
 import okhttp3.Response
@@ -38,7 +38,7 @@ object YtmSessionApi {
 
     private val jsonMediaType = "application/json; charset=utf-8".toMediaType()
 
-    private val httpClient = OkHttpClient.Builder()
+    private val httpClient = NetworkClientFactory.newBuilder()
         .retryOnConnectionFailure(true)
         .connectTimeout(15, TimeUnit.SECONDS)
         .readTimeout(60, TimeUnit.SECONDS)
@@ -4,6 +4,7 @@ import androidx.compose.runtime.Immutable
 import androidx.room.ColumnInfo
 import androidx.room.Entity
 import androidx.room.ForeignKey
+import androidx.room.Index
 import androidx.room.PrimaryKey
 
 @Immutable
@@ -15,6 +16,9 @@ import androidx.room.PrimaryKey
             childColumns = ["songId"],
             onDelete = ForeignKey.CASCADE
         )
+    ],
+    indices = [
+        Index(value = ["timestamp", "songId"])
     ]
 )
 data class Event(
@@ -0,0 +1,33 @@
+package app.it.fast4x.rimusic.models
+
+import androidx.compose.runtime.Immutable
+import androidx.room.Entity
+import androidx.room.ForeignKey
+
+/**
+ * Translation of [Lyrics] of a song into [language].
+ *
+ * [lines] holds everything the translator returned for each line
+ * (as JSON), so all romanization modes are rendered from it
+ * without asking the translator again.
+ * [sourceHash] tells whether lyrics changed since they were translated.
+ */
+@Immutable
+@Entity(
+    primaryKeys = ["songId", "language", "synced"],
+    foreignKeys = [
+        ForeignKey(
+            entity = Song::class,
+            parentColumns = ["id"],
+            childColumns = ["songId"],
+            onDelete = ForeignKey.CASCADE,
+        )
+    ]
+)
+class LyricsTranslation(
+    val songId: String,
+    val language: String,
+    val synced: Boolean,
+    val sourceHash: Int,
+    val lines: String,
+)
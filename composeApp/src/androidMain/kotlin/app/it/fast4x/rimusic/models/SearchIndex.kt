@@ -0,0 +1,39 @@
+package app.it.fast4x.rimusic.models
+
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+
+/*
+ * Full-text indices of the library, used by local search.
+ *
+ * Each index only stores tokens, text is read from its content entity.
+ * Rows share ROWID with their content entity and are kept in sync
+ * by triggers that Room creates for [Fts4.contentEntity].
+ */
+
+@Fts4(contentEntity = Song::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity
+class SongFts(
+    val title: String,
+    val artistsText: String?
+)
+
+@Fts4(contentEntity = Album::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity
+class AlbumFts(
+    val title: String?,
+    val authorsText: String?
+)
+
+@Fts4(contentEntity = Artist::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity
+class ArtistFts(
+    val name: String?
+)
+
+@Fts4(contentEntity = Playlist::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity
+class PlaylistFts(
+    val name: String
+)
@@ -14,7 +14,6 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
-import java.io.ByteArrayOutputStream
 import kotlin.coroutines.coroutineContext
 import kotlin.math.max
 
@@ -26,11 +25,12 @@ class AudioRecorder(private val scope: CoroutineScope) {
 
     private val _active   = MutableStateFlow(false)
     private val _duration = MutableStateFlow(0)
-    private val _buffer   = MutableStateFlow(ByteArray(0))
 
     val active   = _active.asStateFlow()
     val duration = _duration.asStateFlow()
-    val buffer   = _buffer.asStateFlow()
+
+    /** Fed while recording, can be encoded at any time for an early attempt */
+    val signature = ShazamSignature()
 
     fun start() {
         scope.launch {
@@ -66,15 +66,14 @@ class AudioRecorder(private val scope: CoroutineScope) {
     private suspend fun loop() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO)
         runCatching {
-            val out = ByteArrayOutputStream()
+            val chunk = ByteArray(BUFFER_SIZE)
+            var recordedBytes = 0
             while (coroutineContext.isActive) {
-                val chunk = ByteArray(BUFFER_SIZE)
                 val read  = instance?.read(chunk, 0, chunk.size) ?: 0
                 if (read > 0) {
-                    out.write(chunk, 0, read)
-                    val bytes = out.toByteArray()
-                    _buffer.emit(bytes)
-                    _duration.emit(bytes.size / (SAMPLE_RATE * SAMPLE_WIDTH * CHANNEL_COUNT))
+                    signature.feed(chunk, read)
+                    recordedBytes += read
+                    _duration.emit(recordedBytes / (SAMPLE_RATE * SAMPLE_WIDTH * CHANNEL_COUNT))
                 }
             }
         }.onFailure { reset(false) }
@@ -83,7 +82,7 @@ class AudioRecorder(private val scope: CoroutineScope) {
     private suspend fun reset(active: Boolean) {
         _active.emit(active)
         _duration.emit(0)
-        _buffer.emit(ByteArray(0))
+        signature.reset()
     }
 
     companion object {
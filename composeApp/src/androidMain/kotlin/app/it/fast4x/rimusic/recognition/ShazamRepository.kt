@@ -1,14 +1,13 @@
 package app.it.fast4x.rimusic.recognition
 
 import android.util.Log
+import app.cubic.android.core.network.NetworkClientFactory
 import app.it.fast4x.rimusic.utils.SecureApiConfig
 import okhttp3.MediaType.Companion.toMediaType
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.RequestBody.Companion.toRequestBody
 import org.json.JSONObject
 import java.nio.ByteBuffer
-import java.nio.ByteOrder
 import java.security.MessageDigest
 import java.util.Calendar
 import java.util.Locale
@@ -27,21 +26,21 @@ data class RecognizedTrack(
 class ShazamRepository {
 
     private val client by lazy {
-        OkHttpClient.Builder()
+        NetworkClientFactory.newBuilder()
             .connectTimeout(15, TimeUnit.SECONDS)
             .readTimeout(20, TimeUnit.SECONDS)
             .retryOnConnectionFailure(true)
             .build()
     }
 
-    private val signature by lazy { ShazamSignature() }
+    /**
+     * @param signature fed with recorded audio, its current state is sent
+     */
+    suspend fun identify(duration: Int, signature: ShazamSignature): RecognizedTrack? {
+        if (signature.sampleCount == 0) return null
 
-    suspend fun identify(duration: Int, data: ByteArray): RecognizedTrack? {
-        if (data.isEmpty()) return null
-
-        val shorts = data.toShortArray()
         val signatureUri = runCatching {
-            signature.safeCreate(shorts)
+            signature.encode()
         }.onFailure {
             Log.e(TAG, "Signature generation failed", it)
         }.getOrNull() ?: return null
@@ -168,12 +167,6 @@ class ShazamRepository {
     }
 
     // ── Helpers ───────────────────────────────────────────────────────────────
-    private fun ByteArray.toShortArray(): ShortArray {
-        val shorts = ShortArray(size / 2)
-        ByteBuffer.wrap(this).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(shorts)
-        return shorts
-    }
-
     private fun uuidFromNamespace(namespace: UUID, value: String): String {
         val nsBytes = ByteBuffer.allocate(16)
             .putLong(namespace.mostSignificantBits)
@@ -1,12 +1,14 @@
 package app.it.fast4x.rimusic.recognition
 
-import android.util.Base64
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
+import java.util.Base64
+import java.util.zip.CRC32
+import kotlin.math.PI
+import kotlin.math.cos
 import kotlin.math.ln
-import kotlin.math.max
 import kotlin.math.round
-import kotlin.math.sqrt
+import kotlin.math.sin
 
 // ─── Hanning window (2048 points) ────────────────────────────────────────────
 private val HANNING = floatArrayOf(
@@ -315,52 +317,59 @@ private val HANNING = floatArrayOf(
     2.1157e-5f, 9.4032e-6f, 2.3508e-6f
 )
 
-// ─── Simple Cooley-Tukey FFT (real-input, power-of-2) ─────────────────────────
-private fun fftReal(x: FloatArray): FloatArray {
-    val n = x.size
-    val re = x.copyOf()
-    val im = FloatArray(n)
-    // bit-reversal
+// ─── Radix-2 FFT (2048 points) with cached twiddles ──────────────────────────
+private const val FFT_SIZE = 2048
+private const val FFT_BINS = FFT_SIZE / 2 + 1
+
+private val BIT_REVERSED = IntArray(FFT_SIZE).also { table ->
     var j = 0
-    for (i in 1 until n) {
-        var bit = n shr 1
+    for (i in 1 until FFT_SIZE) {
+        var bit = FFT_SIZE shr 1
         while (j and bit != 0) { j = j xor bit; bit = bit shr 1 }
         j = j xor bit
-        if (i < j) {
-            re[i] = re[j].also { re[j] = re[i] }
-            im[i] = im[j].also { im[j] = im[i] }
+        table[i] = j
+    }
+}
+// Twiddles of butterflies `half` apart start at index `half - 1`. They're stepped
+// by rotation in Float, like the transform used before, so signatures stay identical
+private val TWIDDLE_COS = FloatArray(FFT_SIZE - 1)
+private val TWIDDLE_SIN = FloatArray(FFT_SIZE - 1)
+    .also { sines ->
+        var half = 1
+        while (half < FFT_SIZE) {
+            val wR = cos(PI / half).toFloat()
+            val wI = sin(PI / half).toFloat()
+            var curR = 1f; var curI = 0f
+            for (k in 0 until half) {
+                TWIDDLE_COS[half - 1 + k] = curR
+                sines[half - 1 + k] = curI
+                val nextR = curR * wR - curI * wI
+                curI = curR * wI + curI * wR; curR = nextR
+            }
+            half = half shl 1
         }
     }
-    var len = 2
-    while (len <= n) {
-        val ang = 2.0 * Math.PI / len
-        val wRe = Math.cos(ang).toFloat()
-        val wIm = Math.sin(ang).toFloat()
+
+/** In-place transform of [re] + i[im], both already in bit-reversed order */
+private fun fft(re: FloatArray, im: FloatArray) {
+    var half = 1
+    while (half < FFT_SIZE) {
         var i = 0
-        while (i < n) {
-            var curRe = 1f; var curIm = 0f
-            for (k in 0 until len / 2) {
-                val uR = re[i + k]; val uI = im[i + k]
-                val vR = re[i + k + len / 2] * curRe - im[i + k + len / 2] * curIm
-                val vI = re[i + k + len / 2] * curIm + im[i + k + len / 2] * curRe
-                re[i + k] = uR + vR; im[i + k] = uI + vI
-                re[i + k + len / 2] = uR - vR; im[i + k + len / 2] = uI - vI
-                val newRe = curRe * wRe - curIm * wIm
-                curIm = curRe * wIm + curIm * wRe; curRe = newRe
+        while (i < FFT_SIZE) {
+            var t = half - 1
+            for (a in i until i + half) {
+                val b  = a + half
+                val wR = TWIDDLE_COS[t]; val wI = TWIDDLE_SIN[t]
+                val vR = re[b] * wR - im[b] * wI
+                val vI = re[b] * wI + im[b] * wR
+                re[b] = re[a] - vR; im[b] = im[a] - vI
+                re[a] += vR;        im[a] += vI
+                t++
             }
-            i += len
+            i += half * 2
         }
-        len = len shl 1
+        half = half shl 1
     }
-    val out = FloatArray(n + 2)
-    for (i in 0..n / 2) { out[i * 2] = re[i]; out[i * 2 + 1] = im[i] }
-    return out
-}
-
-// ─── Ring buffer ──────────────────────────────────────────────────────────────
-private class RingF(val size: Int) {
-    val data = FloatArray(size)
-    var pos = 0
 }
 
 // ─── Frequency band IDs ───────────────────────────────────────────────────────
@@ -368,141 +377,193 @@ private const val BAND_250_520   = 0
 private const val BAND_520_1450  = 1
 private const val BAND_1450_3500 = 2
 private const val BAND_3500_5500 = 3
+private const val BAND_COUNT     = 4
+
+// ─── Peak recognition tables ─────────────────────────────────────────────────
+private const val BATCH_SIZE   = 128
+private const val HISTORY      = 256
+private val NEIGHBOR_BINS      = intArrayOf(-10, -7, -4, -3, 1, 2, 5, 8)
+private val SPREAD_BACK_PASSES = intArrayOf(-1, -3, -6)
+private val OTHER_PASSES       = intArrayOf(
+    -53, -45,
+    165, 172, 179, 186, 193, 200,
+    214, 221, 228, 235, 242, 249
+)
+
+// ─── Peaks of one band, kept as primitives ───────────────────────────────────
+private class PeakList {
+    var size = 0
+    var fftPasses  = IntArray(64)
+    var magnitudes = IntArray(64)
+    var freqBins   = IntArray(64)
 
-// ─── Peak data holder ─────────────────────────────────────────────────────────
-private data class Peak(val fftPass: Int, val magnitude: Int, val freqBin: Int)
+    fun add(fftPass: Int, magnitude: Int, freqBin: Int) {
+        if (size == fftPasses.size) {
+            fftPasses  = fftPasses.copyOf(size * 2)
+            magnitudes = magnitudes.copyOf(size * 2)
+            freqBins   = freqBins.copyOf(size * 2)
+        }
+        fftPasses[size] = fftPass; magnitudes[size] = magnitude; freqBins[size] = freqBin
+        size++
+    }
+}
 
 // ─── ShazamSignature: pure-Kotlin audio fingerprinter ─────────────────────────
+/**
+ * Fingerprints 16 kHz mono PCM as it's recorded: [feed] samples
+ * whenever they arrive, [encode] whenever a recognition attempt is made.
+ * Every buffer is allocated once, so feeding doesn't allocate at all.
+ */
 class ShazamSignature {
 
+    private val ring      = FloatArray(FFT_SIZE)
+    private var ringPos   = 0
+    private val batch     = FloatArray(BATCH_SIZE)
+    private var batchSize = 0
+    // Low byte of a sample split between reads, -1 if none
+    private var pendingByte = -1
+
+    private val re        = FloatArray(FFT_SIZE)
+    private val im        = FloatArray(FFT_SIZE)
+    private val fftOut    = Array(HISTORY) { FloatArray(FFT_BINS) }
+    private val spreadOut = Array(HISTORY) { FloatArray(FFT_BINS) }
+    // Rows of spreadOut looked at by current pass
+    private val spreadBack = Array(SPREAD_BACK_PASSES.size) { spreadOut[0] }
+    private val others     = Array(OTHER_PASSES.size) { spreadOut[0] }
+    private var passes    = 0
+
+    private val peaks = Array(BAND_COUNT) { PeakList() }
+
+    /** Number of samples fed since [reset] */
+    var sampleCount = 0
+        private set
+
+    @Synchronized
+    fun reset() {
+        ring.fill(0f); ringPos = 0
+        batchSize = 0; pendingByte = -1
+        fftOut.forEach { it.fill(0f) }
+        spreadOut.forEach { it.fill(0f) }
+        passes = 0
+        peaks.forEach { it.size = 0 }
+        sampleCount = 0
+    }
+
+    @Synchronized
+    fun feed(samples: ShortArray, offset: Int = 0, length: Int = samples.size - offset) {
+        for (i in offset until offset + length) add(samples[i].toFloat())
+    }
+
+    /** Feed 16-bit little-endian PCM as read from `AudioRecord` */
+    @Synchronized
+    fun feed(pcm: ByteArray, length: Int) {
+        var i = 0
+        if (pendingByte >= 0 && length > 0) {
+            add((pendingByte or (pcm[0].toInt() shl 8)).toShort().toFloat())
+            pendingByte = -1
+            i = 1
+        }
+        while (i + 1 < length) {
+            add(((pcm[i].toInt() and 0xff) or (pcm[i + 1].toInt() shl 8)).toShort().toFloat())
+            i += 2
+        }
+        if (i < length) pendingByte = pcm[i].toInt() and 0xff
+    }
+
+    private fun add(sample: Float) {
+        batch[batchSize++] = sample
+        sampleCount++
+        if (batchSize == BATCH_SIZE) {
+            process(BATCH_SIZE)
+            batchSize = 0
+        }
+    }
+
     /** Entry point: convert raw PCM bytes → Shazam data-URI signature */
+    @Synchronized
     fun safeCreate(samples: ShortArray): String {
-        val peaks = mutableMapOf<Int, MutableList<Peak>>()
+        reset()
+        feed(samples)
+        // Last samples make a shorter batch
+        if (batchSize > 0) {
+            process(batchSize)
+            batchSize = 0
+        }
+        return encode()
+    }
 
-        val ring      = RingF(2048)
-        val fftOut    = Array(256) { FloatArray(1025) }
-        val spreadOut = Array(256) { FloatArray(1025) }
-        var fftPos    = 0; var spreadPos = 0; var spreadDone = 0
-        var totalSamples = 0
+    private fun process(count: Int) {
+        // --- doFFT ---
+        for (k in 0 until count) ring[(ringPos + k) and (FFT_SIZE - 1)] = batch[k]
+        ringPos = (ringPos + count) and (FFT_SIZE - 1)
 
-        // Process in 128-sample batches (matching the TS implementation)
-        var i = 0
-        while (i < samples.size) {
-            val end   = minOf(i + 128, samples.size)
-            val batch = FloatArray(end - i) { samples[i + it].toFloat() }
-            totalSamples += batch.size
-
-            // --- doFFT ---
-            for (k in batch.indices) {
-                ring.data[(ring.pos + k) % 2048] = batch[k]
-            }
-            ring.pos = (ring.pos + batch.size) % 2048
+        for (idx in 0 until FFT_SIZE) {
+            re[BIT_REVERSED[idx]] = ring[(ringPos + idx) and (FFT_SIZE - 1)] * HANNING[idx]
+        }
+        im.fill(0f)
+        fft(re, im)
 
-            val excerpt = FloatArray(2048) { idx ->
-                ring.data[(ring.pos + idx) % 2048] * HANNING[idx]
-            }
-            val raw  = fftReal(excerpt)
-            val dest = fftOut[fftPos % 256]
-            for (b in 0..1024) {
-                val re = raw[b * 2]; val im = raw[b * 2 + 1]
-                // FIX 1: replaced (1.0f shl 17) with the literal 131072f
-                dest[b] = maxOf(1e-10f, (re * re + im * im) / 131072f)
-            }
-            fftPos++
-
-            // --- doPeakSpreading ---
-            val originLast = fftOut[(fftPos - 1 + 256) % 256]
-            val spreadLast = spreadOut[spreadPos % 256]
-            // FIX 2: replaced spreadLast.set(originLast) with copyInto
-            originLast.copyInto(spreadLast)
-            for (p in 0..1022) spreadLast[p] = maxOf(spreadLast[p], spreadLast[p + 1], spreadLast[p + 2])
-            for (p in 0..1024) {
-                for (off in intArrayOf(-1, -3, -6)) {
-                    val prev = spreadOut[(spreadPos + off + 512) % 256]
-                    if (prev[p] < spreadLast[p]) prev[p] = spreadLast[p]
-                }
-            }
-            spreadPos++
-            spreadDone++
-
-            // --- doPeakRecognition (only after 46 spreads done) ---
-            if (spreadDone >= 46) {
-                val fm46 = fftOut[(fftPos - 46 + 512) % 256]
-                val sm49 = spreadOut[(spreadPos - 49 + 512) % 256]
-
-                for (bin in 10..1014) {
-                    if (fm46[bin] < 1f / 64f || fm46[bin] < sm49[bin - 1]) continue
-                    val neighbors = intArrayOf(-10, -7, -4, -3, 1, 2, 5, 8)
-                    val maxNeigh  = neighbors.maxOf { n -> sm49[bin + n] }
-                    if (fm46[bin] <= maxNeigh) continue
-                    val otherOffsets = intArrayOf(
-                        -53, -45,
-                        165, 172, 179, 186, 193, 200,
-                        214, 221, 228, 235, 242, 249
-                    )
-                    val maxOther = otherOffsets.maxOf { off ->
-                        spreadOut[(spreadPos + off + 512 * 4) % 256][bin - 1]
-                    }
-                    if (fm46[bin] <= maxOther) continue
-
-                    val fftNum  = spreadDone - 46
-                    val mag     = ln(maxOf(1f / 64f, fm46[bin]).toDouble()) * 1477.3 + 6144.0
-                    val magBef  = ln(maxOf(1f / 64f, fm46[bin - 1]).toDouble()) * 1477.3 + 6144.0
-                    val magAft  = ln(maxOf(1f / 64f, fm46[bin + 1]).toDouble()) * 1477.3 + 6144.0
-                    val var1    = mag * 2.0 - magBef - magAft
-                    if (var1 <= 0.0) continue
-                    val var2    = (magAft - magBef) * 32.0 / var1
-                    val corrBin = ((bin * 64 + var2).toInt() and 0xFFFF)
-                    // FIX 3: all operands cast to Double to avoid type mismatch
-                    val freqHz  = corrBin.toDouble() * (16000.0 / 2.0 / 1024.0 / 64.0)
-                    val band = when {
-                        freqHz < 250.0  -> continue
-                        freqHz < 520.0  -> BAND_250_520
-                        freqHz < 1450.0 -> BAND_520_1450
-                        freqHz < 3500.0 -> BAND_1450_3500
-                        freqHz <= 5500.0 -> BAND_3500_5500
-                        else -> continue
-                    }
-                    peaks.getOrPut(band) { mutableListOf() }
-                        .add(Peak(fftNum, round(mag).toInt() and 0xFFFF, round(corrBin.toDouble()).toInt()))
-                }
-            }
-            i = end
+        val dest = fftOut[passes % HISTORY]
+        for (b in 0 until FFT_BINS) {
+            dest[b] = maxOf(1e-10f, (re[b] * re[b] + im[b] * im[b]) / 131072f)
+        }
+
+        // --- doPeakSpreading ---
+        val spreadLast = spreadOut[passes % HISTORY]
+        dest.copyInto(spreadLast)
+        for (p in 0..FFT_BINS - 3) spreadLast[p] = maxOf(spreadLast[p], spreadLast[p + 1], spreadLast[p + 2])
+        for (o in SPREAD_BACK_PASSES.indices) spreadBack[o] = spreadOut[(passes + SPREAD_BACK_PASSES[o] + 512) % HISTORY]
+        for (prev in spreadBack) {
+            for (p in 0 until FFT_BINS) if (prev[p] < spreadLast[p]) prev[p] = spreadLast[p]
         }
+        passes++
 
-        return encodeToBinaryUri(peaks, totalSamples)
+        // --- doPeakRecognition (only after 46 spreads done) ---
+        if (passes >= 46) recognizePeaks()
     }
 
-    // ─── Binary encoder ──────────────────────────────────────────────────────
-    private fun encodeToBinaryUri(peaks: Map<Int, List<Peak>>, numSamples: Int): String {
-        val SAMPLE_RATE = 16000
-        val buf = mutableListOf<Byte>()
-
-        // Build content first (TLV peak data)
-        val content     = mutableListOf<Byte>()
-        val sortedBands = peaks.keys.sorted()
-        for (band in sortedBands) {
-            val bandPeaks  = peaks[band]!!.sortedBy { it.fftPass }
-            val peaksBytes = mutableListOf<Byte>()
-            var prevFft    = 0
-            for (p in bandPeaks) {
-                val diff = p.fftPass - prevFft
-                if (diff >= 0xff) {
-                    peaksBytes.add(0xff.toByte())
-                    writeInt32LE(p.fftPass, peaksBytes)
-                    prevFft = p.fftPass
-                }
-                peaksBytes.add((p.fftPass - prevFft).toByte())
-                writeInt16LE(p.magnitude - 1, peaksBytes)
-                writeInt16LE(p.freqBin - 1, peaksBytes)
-                prevFft = p.fftPass
+    private fun recognizePeaks() {
+        val fm46 = fftOut[(passes - 46 + 512) % HISTORY]
+        val sm49 = spreadOut[(passes - 49 + 512) % HISTORY]
+        for (o in OTHER_PASSES.indices) others[o] = spreadOut[(passes + OTHER_PASSES[o] + 512 * 4) % HISTORY]
+        val fftNum = passes - 46
+
+        bins@ for (bin in 10..1014) {
+            val value = fm46[bin]
+            if (value < 1f / 64f || value < sm49[bin - 1]) continue
+            for (n in NEIGHBOR_BINS) if (value <= sm49[bin + n]) continue@bins
+            for (other in others) if (value <= other[bin - 1]) continue@bins
+
+            val mag     = ln(maxOf(1f / 64f, value).toDouble()) * 1477.3 + 6144.0
+            val magBef  = ln(maxOf(1f / 64f, fm46[bin - 1]).toDouble()) * 1477.3 + 6144.0
+            val magAft  = ln(maxOf(1f / 64f, fm46[bin + 1]).toDouble()) * 1477.3 + 6144.0
+            val var1    = mag * 2.0 - magBef - magAft
+            if (var1 <= 0.0) continue
+            val var2    = (magAft - magBef) * 32.0 / var1
+            val corrBin = ((bin * 64 + var2).toInt() and 0xFFFF)
+            val freqHz  = corrBin.toDouble() * (16000.0 / 2.0 / 1024.0 / 64.0)
+            val band = when {
+                freqHz < 250.0  -> continue
+                freqHz < 520.0  -> BAND_250_520
+                freqHz < 1450.0 -> BAND_520_1450
+                freqHz < 3500.0 -> BAND_1450_3500
+                freqHz <= 5500.0 -> BAND_3500_5500
+                else -> continue
             }
-            writeInt32LE(0x60030040 + band, content)
-            writeInt32LE(peaksBytes.size, content)
-            content.addAll(peaksBytes)
-            val pad = (4 - peaksBytes.size % 4) % 4
-            repeat(pad) { content.add(0) }
+            peaks[band].add(fftNum, round(mag).toInt() and 0xFFFF, corrBin)
         }
+    }
+
+    // ─── Binary encoder ──────────────────────────────────────────────────────
+    /** Signature of everything fed so far, as a Shazam data URI */
+    @Synchronized
+    fun encode(): String {
+        val SAMPLE_RATE = 16000
+
+        // Largest peak takes 10 bytes (with an escaped pass number)
+        var capacity = 56
+        for (band in peaks) if (band.size > 0) capacity += 8 + band.size * 10 + 3
+        val buf = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN)
 
         // Header magic values
         val magic1                 = 0xcafe2580.toInt()
@@ -510,62 +571,58 @@ class ShazamSignature {
         val sampleRateId           = 3 // 16000 Hz → enum value 3
         val shiftedSampleRate      = sampleRateId shl 27
         val fixedValue             = (15 shl 19) + 0x40000
-        val numSamplesPlusDivided  = numSamples + (SAMPLE_RATE * 0.24).toInt()
-        val sizeMinusHeader        = content.size + 8
-
-        // Build header (48 bytes) + sub-chunk marker
-        val headerBuf = mutableListOf<Byte>()
-        writeInt32LE(magic1, headerBuf)
-        writeInt32LE(0, headerBuf)            // crc placeholder
-        writeInt32LE(sizeMinusHeader, headerBuf)
-        writeInt32LE(magic2, headerBuf)
-        repeat(3) { writeInt32LE(0, headerBuf) }
-        writeInt32LE(shiftedSampleRate, headerBuf)
-        repeat(2) { writeInt32LE(0, headerBuf) }
-        writeInt32LE(numSamplesPlusDivided, headerBuf)
-        writeInt32LE(fixedValue, headerBuf)
-        // sub-chunk
-        writeInt32LE(0x40000000, headerBuf)
-        writeInt32LE(content.size + 8, headerBuf)
-
-        buf.addAll(headerBuf)
-        buf.addAll(content)
-
-        // Compute CRC32 over bytes 8..end and patch
-        val byteArray = buf.map { it.toInt() and 0xff }.toIntArray()
-        val crc       = crc32(byteArray, 8)
-        // patch CRC at offset 4..7 (little-endian)
-        buf[4] = (crc and 0xff).toByte()
-        buf[5] = ((crc shr 8) and 0xff).toByte()
-        buf[6] = ((crc shr 16) and 0xff).toByte()
-        buf[7] = ((crc shr 24) and 0xff).toByte()
-
-        val bytes = buf.map { it }.toByteArray()
-        return "data:audio/vnd.shazam.sig;base64," + Base64.encodeToString(bytes, Base64.NO_WRAP)
-    }
+        val numSamplesPlusDivided  = sampleCount + (SAMPLE_RATE * 0.24).toInt()
 
-    private fun writeInt32LE(v: Int, out: MutableList<Byte>) {
-        out.add((v and 0xff).toByte())
-        out.add(((v shr 8) and 0xff).toByte())
-        out.add(((v shr 16) and 0xff).toByte())
-        out.add(((v shr 24) and 0xff).toByte())
-    }
+        // Header (48 bytes) + sub-chunk marker, sizes are patched once content is written
+        buf.putInt(magic1)
+        buf.putInt(0)                         // crc placeholder
+        buf.putInt(0)                         // size minus header placeholder
+        buf.putInt(magic2)
+        repeat(3) { buf.putInt(0) }
+        buf.putInt(shiftedSampleRate)
+        repeat(2) { buf.putInt(0) }
+        buf.putInt(numSamplesPlusDivided)
+        buf.putInt(fixedValue)
+        buf.putInt(0x40000000)
+        buf.putInt(0)                         // content size placeholder
+        val contentStart = buf.position()
 
-    private fun writeInt16LE(v: Int, out: MutableList<Byte>) {
-        out.add((v and 0xff).toByte())
-        out.add(((v shr 8) and 0xff).toByte())
-    }
+        // Content (TLV peak data), peaks are recorded in pass order already
+        for (band in 0 until BAND_COUNT) {
+            val list = peaks[band]
+            if (list.size == 0) continue
 
-    private fun crc32(data: IntArray, fromIndex: Int): Int {
-        val table = IntArray(256) { n ->
-            var c = n
-            repeat(8) { c = if (c and 1 != 0) (0xEDB88320.toInt() xor (c ushr 1)) else (c ushr 1) }
-            c
-        }
-        var crc = -1
-        for (i in fromIndex until data.size) {
-            crc = (crc ushr 8) xor table[(crc xor data[i]) and 0xFF]
+            buf.putInt(0x60030040 + band)
+            val sizePosition = buf.position()
+            buf.putInt(0)
+            val peaksStart = buf.position()
+            var prevFft = 0
+            for (p in 0 until list.size) {
+                val fftPass = list.fftPasses[p]
+                if (fftPass - prevFft >= 0xff) {
+                    buf.put(0xff.toByte())
+                    buf.putInt(fftPass)
+                    prevFft = fftPass
+                }
+                buf.put((fftPass - prevFft).toByte())
+                buf.putShort((list.magnitudes[p] - 1).toShort())
+                buf.putShort((list.freqBins[p] - 1).toShort())
+                prevFft = fftPass
+            }
+            val peaksSize = buf.position() - peaksStart
+            buf.putInt(sizePosition, peaksSize)
+            repeat((4 - peaksSize % 4) % 4) { buf.put(0.toByte()) }
         }
-        return crc xor -1
+
+        val contentSize = buf.position() - contentStart
+        buf.putInt(8, contentSize + 8)
+        buf.putInt(contentStart - 4, contentSize + 8)
+
+        // CRC32 over bytes 8..end
+        val crc = CRC32().apply { update(buf.array(), 8, buf.position() - 8) }
+        buf.putInt(4, crc.value.toInt())
+
+        return "data:audio/vnd.shazam.sig;base64," +
+            Base64.getEncoder().encodeToString(buf.array().copyOf(buf.position()))
     }
-}
\ No newline at end of file
+}
@@ -184,9 +184,11 @@ object QuickPicksRepository {
     private suspend fun refreshRelatedIfNeeded() {
         val currentTrending = _trending.value
         if (currentTrending != null && (_relatedPage.value == null || _relatedPage.value?.songs?.firstOrNull()?.key != currentTrending.id)) {
-            _relatedPage.value = Innertube.relatedPage(
-                NextBody(videoId = currentTrending.id)
-            )?.getOrNull()
+            _relatedPage.value = YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Next) {
+                Innertube.relatedPage(
+                    NextBody(videoId = currentTrending.id)
+                )
+            }?.getOrNull()
         }
     }
 }
@@ -0,0 +1,330 @@
+package app.it.fast4x.rimusic.service
+
+import android.content.Context
+import android.net.Uri
+import android.os.Environment
+import android.provider.DocumentsContract
+import androidx.documentfile.provider.DocumentFile
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.datasource.cache.Cache
+import androidx.media3.datasource.cache.CacheSpan
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import timber.log.Timber
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Copies downloaded songs out of the download cache into a folder picked by user.
+ *
+ * - Content of the folder is listed once per [Target], not once per song,
+ * [open] a new one for each export run
+ * - Songs already there with the same size are left alone, so exporting
+ * again only copies what's new or changed
+ * - When the folder is reachable as a real directory, cache spans are copied
+ * with [java.nio.channels.FileChannel.transferTo], otherwise through SAF streams
+ * - [exportAll] copies [EXPORT_WORKERS] songs at a time
+ */
+@UnstableApi
+object DownloadExporter {
+
+    private const val EXPORT_WORKERS = 3
+    private const val MIME_TYPE = "audio/mp4"
+    private const val COPY_BUFFER_SIZE = 256 * 1024
+
+    enum class Outcome {
+        EXPORTED,
+        /** Same file with the same size is already in the folder */
+        UNCHANGED,
+        /** Song has nothing in download cache */
+        MISSING
+    }
+
+    data class Summary(
+        val exportedCount: Int,
+        val unchangedCount: Int,
+        val skippedCount: Int
+    )
+
+    /**
+     * Destination folder, with what's inside it.
+     *
+     * Safe to share between threads, files written
+     * through it are added to its listing.
+     */
+    class Target internal constructor(
+        val treeUri: Uri,
+        internal val root: DocumentFile,
+        directory: File?
+    ) {
+        internal class Entry(val uri: Uri?, val size: Long)
+
+        internal val entries = ConcurrentHashMap<String, Entry>()
+
+        /**
+         * Same folder as a real directory, `null` once writing to it failed
+         */
+        @Volatile
+        internal var directory: File? = directory
+    }
+
+    /**
+     * @return folder of [treeUri] with its files listed, or `null` if it can't be opened
+     */
+    fun open(context: Context, treeUri: Uri): Target? {
+        val root = DocumentFile.fromTreeUri(context, treeUri) ?: return null
+        val directory = resolveTreeUriToFile(context, treeUri)?.takeIf { it.isDirectory && it.canWrite() }
+        val target = Target(treeUri, root, directory)
+
+        // A single query returns name and size of every child,
+        // DocumentFile would issue one per file and per property
+        val childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+            treeUri,
+            DocumentsContract.getDocumentId(root.uri)
+        )
+        val projection = arrayOf(
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_MIME_TYPE
+        )
+        runCatching {
+            context.contentResolver.query(childrenUri, projection, null, null, null)?.use { cursor ->
+                while (cursor.moveToNext()) {
+                    if (cursor.getString(3) == DocumentsContract.Document.MIME_TYPE_DIR) continue
+                    val name = cursor.getString(1) ?: continue
+                    val uri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0))
+                    val size = if (cursor.isNull(2)) -1L else cursor.getLong(2)
+                    target.entries[name] = Target.Entry(uri, size)
+                }
+            }
+        }.onFailure {
+            Timber.w(it, "DownloadExporter failed listing %s", treeUri)
+        }
+
+        return target
+    }
+
+    fun spansOf(cache: Cache, songId: String): List<CacheSpan> =
+        cache.getCachedSpans(songId)
+             .sortedBy(CacheSpan::position)
+             .filter { it.length > 0L && it.file != null }
+
+    /**
+     * Calls [block] with the part of each span's file that follows
+     * previous spans, so overlapping spans aren't written twice.
+     */
+    private inline fun forEachRange(spans: List<CacheSpan>, block: (file: File, offset: Long, length: Long) -> Unit) {
+        var end = 0L
+        spans.forEach { span ->
+            val file = span.file ?: return@forEach
+            val offset = (end - span.position).coerceAtLeast(0L)
+            if (offset >= span.length) return@forEach
+
+            block(file, offset, span.length - offset)
+            end = span.position + span.length
+        }
+    }
+
+    private fun exportedSizeOf(spans: List<CacheSpan>): Long {
+        var size = 0L
+        forEachRange(spans) { _, _, length -> size += length }
+        return size
+    }
+
+    /**
+     * Size of [name] in [target] as it is now, `-1` if it's not there
+     */
+    private fun currentSizeOf(context: Context, target: Target, name: String): Long {
+        target.directory?.let { directory ->
+            val file = File(directory, name)
+            return if (file.isFile) file.length() else -1L
+        }
+
+        val uri = target.entries[name]?.uri ?: return -1L
+        return runCatching {
+            context.contentResolver.query(uri, arrayOf(DocumentsContract.Document.COLUMN_SIZE), null, null, null)
+                ?.use { cursor -> if (cursor.moveToFirst() && !cursor.isNull(0)) cursor.getLong(0) else -1L }
+        }.getOrNull() ?: -1L
+    }
+
+    /**
+     * Write [spans] to [name] in [target], unless a file of
+     * that name and the same size is already there.
+     *
+     * @param isListingStale whether [target] was listed long before this call,
+     * e.g. kept around between downloads. The file may have been removed
+     * since, so it's looked up again before being skipped.
+     *
+     * @throws IOException when the file can't be written
+     */
+    fun exportSong(
+        context: Context,
+        target: Target,
+        spans: List<CacheSpan>,
+        name: String,
+        isListingStale: Boolean = false
+    ): Outcome {
+        if (spans.isEmpty()) return Outcome.MISSING
+
+        val size = exportedSizeOf(spans)
+        if (target.entries[name]?.size == size) {
+            if (!isListingStale || currentSizeOf(context, target, name) == size) return Outcome.UNCHANGED
+            target.entries.remove(name)
+        }
+
+        target.directory?.let { directory ->
+            val file = File(directory, name)
+            try {
+                writeToFile(file, spans)
+                target.entries[name] = Target.Entry(target.entries[name]?.uri, size)
+                return Outcome.EXPORTED
+            } catch (e: Exception) {
+                // Mostly scoped storage, fall back to SAF for this and next songs
+                Timber.w(e, "DownloadExporter can't write to %s directly", directory)
+                target.directory = null
+                file.delete()
+            }
+        }
+
+        val uri = openDocument(context, target, name) { output ->
+            val buffer = ByteArray(COPY_BUFFER_SIZE)
+            forEachRange(spans) { file, offset, length ->
+                FileInputStream(file).use { input ->
+                    input.channel.position(offset)
+                    var remaining = length
+                    while (remaining > 0) {
+                        val read = input.read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt())
+                        if (read < 0) throw IOException("Unexpected end of ${file.name}")
+                        output.write(buffer, 0, read)
+                        remaining -= read
+                    }
+                }
+            }
+        }
+        target.entries[name] = Target.Entry(uri, size)
+
+        return Outcome.EXPORTED
+    }
+
+    private fun writeToFile(file: File, spans: List<CacheSpan>) =
+        FileOutputStream(file).channel.use { output ->
+            forEachRange(spans) { source, offset, length ->
+                FileInputStream(source).channel.use { input ->
+                    var position = offset
+                    val end = offset + length
+                    while (position < end) {
+                        val transferred = input.transferTo(position, end - position, output)
+                        if (transferred <= 0L) throw IOException("Unexpected end of ${source.name}")
+                        position += transferred
+                    }
+                }
+            }
+        }
+
+    /**
+     * Reuse existing document of [name], truncated, or create it.
+     *
+     * @return uri of written document
+     */
+    private inline fun openDocument(context: Context, target: Target, name: String, write: (OutputStream) -> Unit): Uri {
+        val resolver = context.contentResolver
+
+        val existing = target.entries[name]?.uri ?: target.root.findFile(name)?.uri
+        if (existing != null) {
+            val output = runCatching { resolver.openOutputStream(existing, "wt") }.getOrNull()
+            if (output != null) {
+                output.use(write)
+                return existing
+            }
+            // Gone, or provider doesn't truncate
+            runCatching { DocumentsContract.deleteDocument(resolver, existing) }
+        }
+
+        val created = target.root.createFile(MIME_TYPE, name)
+            ?: throw IOException("Could not create $name in the selected folder")
+        resolver.openOutputStream(created.uri, "w")?.use(write)
+            ?: throw IOException("Could not open $name for writing")
+
+        return created.uri
+    }
+
+    /**
+     * Export [items] into [target], [EXPORT_WORKERS] at a time.
+     *
+     * Items ending up with the same file name are exported once.
+     * [onProgress] is called from worker threads.
+     */
+    suspend fun <T> exportAll(
+        context: Context,
+        target: Target,
+        cache: Cache,
+        items: List<T>,
+        idOf: (T) -> String,
+        nameOf: (T) -> String,
+        onProgress: (current: Int, total: Int, item: T) -> Unit
+    ): Summary = coroutineScope {
+        val named = items.map { it to nameOf(it) }.distinctBy { it.second }
+        val dispatcher = Dispatchers.IO.limitedParallelism(EXPORT_WORKERS)
+
+        val done = AtomicInteger()
+        val exported = AtomicInteger()
+        val unchanged = AtomicInteger()
+        val skipped = AtomicInteger()
+
+        named.map { (item, name) ->
+            async(dispatcher) {
+                ensureActive()
+                when (exportSong(context, target, spansOf(cache, idOf(item)), name)) {
+                    Outcome.EXPORTED -> exported.incrementAndGet()
+                    Outcome.UNCHANGED -> unchanged.incrementAndGet()
+                    Outcome.MISSING -> skipped.incrementAndGet()
+                }
+                onProgress(done.incrementAndGet(), named.size, item)
+            }
+        }.awaitAll()
+
+        Summary(exported.get(), unchanged.get(), skipped.get())
+    }
+
+    fun resolveTreeUriToFile(context: Context, treeUri: Uri): File? {
+        val treeDocumentId = runCatching { DocumentsContract.getTreeDocumentId(treeUri) }.getOrNull()
+            ?: return null
+        val parts = treeDocumentId.split(":", limit = 2)
+        val volume = parts.firstOrNull()?.lowercase().orEmpty()
+        val relativePath = parts.getOrNull(1).orEmpty()
+
+        return when (volume) {
+            "primary" -> {
+                val root = Environment.getExternalStorageDirectory()
+                if (relativePath.isBlank()) root else root.resolve(relativePath)
+            }
+            "home" -> {
+                val documentsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS)
+                if (relativePath.isBlank()) documentsDir else documentsDir.resolve(relativePath)
+            }
+            else -> {
+                context.getExternalFilesDirs(null)
+                    .filterNotNull()
+                    .firstOrNull { file -> file.absolutePath.contains(volume, ignoreCase = true) }
+                    ?.let { scopedDir ->
+                        val androidDataIndex = scopedDir.absolutePath.indexOf("/Android/", ignoreCase = true)
+                        val storageRoot = if (androidDataIndex >= 0) {
+                            File(scopedDir.absolutePath.substring(0, androidDataIndex))
+                        } else {
+                            scopedDir
+                        }
+                        if (relativePath.isBlank()) storageRoot else storageRoot.resolve(relativePath)
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package app.it.fast4x.rimusic.service
+
+import android.content.Context
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.exoplayer.offline.Download
+import androidx.media3.exoplayer.offline.DownloadManager
+import app.it.fast4x.rimusic.utils.isConnectionMetered
+import app.kreate.android.service.preResolveDownloadFormatUrl
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Decides how many downloads of [MyDownloadHelper] run at
+ * the same time, and which one goes next.
+ *
+ * - Parallel downloads start from a base that depends on whether
+ * network is metered, then grow one slot at a time as long as
+ * total throughput keeps improving, and shrink when it doesn't
+ * - Stream URLs of the next queued downloads are resolved before
+ * they get a slot, so a freed slot starts transferring right away
+ * - Queued songs that are in player's queue go first, other queued
+ * downloads are held back with [STOP_REASON_DEFERRED] until then
+ * - Throughput and ETA of the bulk session are published in [bulkStats]
+ *
+ * [tick] must be called on main thread, about once per second.
+ */
+@UnstableApi
+object DownloadScheduler {
+
+    /**
+     * Stop reason of queued downloads waiting for songs of player's queue
+     */
+    const val STOP_REASON_DEFERRED = 0x6B64
+
+    private const val MIN_PARALLEL = 1
+    private const val METERED_BASE_PARALLEL = 2
+    private const val METERED_MAX_PARALLEL = 3
+    private const val UNMETERED_BASE_PARALLEL = 3
+    private const val UNMETERED_MAX_PARALLEL = 6
+
+    /**
+     * Number of ticks throughput is measured over before changing parallelism
+     */
+    private const val WINDOW_TICKS = 6
+    /**
+     * An extra slot is only kept if it brings this much more throughput
+     */
+    private const val MIN_THROUGHPUT_GAIN = 1.12
+    /**
+     * Below this rate per download, link is considered saturated
+     */
+    private const val SATURATED_BYTES_PER_SECOND = 64 * 1024.0
+    /**
+     * Windows to wait after an extra slot didn't help, before probing again
+     */
+    private const val HOLD_WINDOWS = 4
+    /**
+     * Weight of the newest sample in smoothed throughput
+     */
+    private const val SMOOTHING = 0.2
+
+    data class BulkStats(
+        val total: Int,
+        val completed: Int,
+        val bytesPerSecond: Long,
+        /**
+         * `null` until enough is known to estimate
+         */
+        val etaMs: Long?,
+        val parallelDownloads: Int
+    )
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    private val mutableBulkStats = MutableStateFlow<BulkStats?>(null)
+    val bulkStats: StateFlow<BulkStats?> = mutableBulkStats.asStateFlow()
+
+    @Volatile
+    private var priorityIds: Set<String> = emptySet()
+    private var sessionIds: Set<String> = emptySet()
+
+    /** Ids with stream URL resolved (or being resolved) ahead of time */
+    private val preResolvedIds: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    private val lastBytes = HashMap<String, Long>()
+    private var lastTickAt = 0L
+    private var smoothedBytesPerSecond = 0.0
+
+    private var isMetered: Boolean? = null
+    private var parallel = UNMETERED_BASE_PARALLEL
+    private var windowBytes = 0L
+    private var windowMs = 0L
+    private var windowTicks = 0
+    private var previousWindowRate = 0.0
+    private var lastStep = 0
+    private var holdWindows = 0
+
+    private fun baseParallelOf(metered: Boolean) = if (metered) METERED_BASE_PARALLEL else UNMETERED_BASE_PARALLEL
+
+    private fun maxParallelOf(metered: Boolean) = if (metered) METERED_MAX_PARALLEL else UNMETERED_MAX_PARALLEL
+
+    fun initialParallelDownloads(context: Context): Int = baseParallelOf(context.isConnectionMetered())
+
+    /**
+     * Songs of player's queue, their downloads are started first
+     */
+    fun prioritize(songIds: Collection<String>) {
+        priorityIds = songIds.toHashSet()
+    }
+
+    fun onBulkSessionStarted(songIds: Set<String>) {
+        sessionIds = songIds
+        mutableBulkStats.value = if (songIds.isEmpty()) null else BulkStats(songIds.size, 0, 0L, null, parallel)
+    }
+
+    fun onBulkSessionCleared() {
+        sessionIds = emptySet()
+        mutableBulkStats.value = null
+    }
+
+    fun tick(context: Context, manager: DownloadManager) {
+        val now = System.currentTimeMillis()
+        val elapsedMs = (now - lastTickAt).coerceAtLeast(1L)
+        lastTickAt = now
+
+        val downloads = manager.currentDownloads
+        if (downloads.isEmpty()) {
+            lastBytes.clear()
+            preResolvedIds.clear()
+            smoothedBytesPerSecond = 0.0
+            resetWindow()
+            updateBulkStats(downloads)
+            return
+        }
+
+        // Bytes transferred since last tick, by all downloads together
+        var tickBytes = 0L
+        val seen = HashSet<String>(downloads.size)
+        downloads.forEach { download ->
+            val id = download.request.id
+            seen += id
+            val previous = lastBytes.put(id, download.bytesDownloaded)
+            if (previous != null && download.bytesDownloaded > previous)
+                tickBytes += download.bytesDownloaded - previous
+        }
+        lastBytes.keys.retainAll(seen)
+        preResolvedIds.retainAll(seen)
+
+        val tickRate = tickBytes * 1000.0 / elapsedMs
+        smoothedBytesPerSecond = SMOOTHING * tickRate + (1 - SMOOTHING) * smoothedBytesPerSecond
+
+        adaptParallelism(context, downloads, tickBytes, elapsedMs)
+        if (manager.maxParallelDownloads != parallel)
+            manager.maxParallelDownloads = parallel
+
+        applyPriority(manager, downloads)
+        preResolveNext(downloads)
+        updateBulkStats(downloads)
+    }
+
+    private fun resetWindow() {
+        windowBytes = 0L
+        windowMs = 0L
+        windowTicks = 0
+    }
+
+    private fun adaptParallelism(context: Context, downloads: List<Download>, tickBytes: Long, elapsedMs: Long) {
+        val metered = context.isConnectionMetered()
+        if (metered != isMetered) {
+            // Different network, what was learned no longer applies
+            isMetered = metered
+            parallel = baseParallelOf(metered)
+            previousWindowRate = 0.0
+            lastStep = 0
+            holdWindows = 0
+            resetWindow()
+            return
+        }
+
+        windowBytes += tickBytes
+        windowMs += elapsedMs
+        if (++windowTicks < WINDOW_TICKS) return
+
+        val rate = windowBytes * 1000.0 / windowMs
+        resetWindow()
+
+        val active = downloads.count { it.state == Download.STATE_DOWNLOADING }
+        val waiting = downloads.count { it.state == Download.STATE_QUEUED }
+        // Slots aren't the bottleneck when some of them are empty
+        if (waiting == 0 || active < parallel) {
+            previousWindowRate = rate
+            lastStep = 0
+            return
+        }
+
+        val max = maxParallelOf(metered)
+        when {
+            lastStep > 0 && rate < previousWindowRate * MIN_THROUGHPUT_GAIN -> {
+                parallel = (parallel - 1).coerceAtLeast(MIN_PARALLEL)
+                lastStep = 0
+                holdWindows = HOLD_WINDOWS
+            }
+            holdWindows > 0 -> {
+                holdWindows--
+                lastStep = 0
+            }
+            rate / active < SATURATED_BYTES_PER_SECOND && parallel > MIN_PARALLEL -> {
+                parallel--
+                lastStep = -1
+            }
+            parallel < max -> {
+                parallel++
+                lastStep = 1
+            }
+            else -> lastStep = 0
+        }
+        previousWindowRate = rate
+
+        Timber.d("DownloadScheduler %d parallel downloads at %.0f KB/s", parallel, rate / 1024)
+    }
+
+    /**
+     * Queued downloads are started in the order they were added,
+     * holding back the others lets songs of player's queue take next free slot.
+     */
+    private fun applyPriority(manager: DownloadManager, downloads: List<Download>) {
+        val priority = priorityIds
+        val isPriorityWaiting = downloads.any {
+            it.state == Download.STATE_QUEUED && it.request.id in priority
+        }
+
+        downloads.forEach { download ->
+            val id = download.request.id
+            when {
+                isPriorityWaiting
+                        && download.state == Download.STATE_QUEUED
+                        && download.stopReason == Download.STOP_REASON_NONE
+                        && id !in priority ->
+                    manager.setStopReason(id, STOP_REASON_DEFERRED)
+
+                download.state == Download.STATE_STOPPED
+                        && download.stopReason == STOP_REASON_DEFERRED
+                        && (!isPriorityWaiting || id in priority) ->
+                    manager.setStopReason(id, Download.STOP_REASON_NONE)
+            }
+        }
+    }
+
+    /**
+     * Resolve URLs of as many queued downloads as there are slots,
+     * priority ones first.
+     */
+    private fun preResolveNext(downloads: List<Download>) {
+        val priority = priorityIds
+        val metered = isMetered ?: return
+        val quality = MyDownloadHelper.audioQualityFormat
+
+        downloads.asSequence()
+                 .filter { it.state == Download.STATE_QUEUED }
+                 .sortedWith(compareBy<Download> { it.request.id !in priority }.thenBy { it.startTimeMs })
+                 .take(parallel)
+                 .map { it.request.id }
+                 .filter(preResolvedIds::add)
+                 .forEach { videoId ->
+                     scope.launch {
+                         if (!preResolveDownloadFormatUrl(videoId, quality, metered))
+                             preResolvedIds.remove(videoId)
+                     }
+                 }
+    }
+
+    private fun updateBulkStats(downloads: List<Download>) {
+        val ids = sessionIds
+        if (ids.isEmpty()) return
+
+        val known = MyDownloadHelper.downloads.value
+        val current = downloads.associateBy { it.request.id }
+
+        var completed = 0
+        var completedBytes = 0L
+        var remainingBytes = 0L
+        var unknownRemaining = 0
+        ids.forEach { id ->
+            val download = current[id] ?: known[id]
+            when {
+                download == null -> unknownRemaining++
+                download.state == Download.STATE_COMPLETED -> {
+                    completed++
+                    completedBytes += download.bytesDownloaded
+                }
+                download.state == Download.STATE_FAILED
+                        || download.state == Download.STATE_REMOVING -> completed++
+                download.contentLength > 0 ->
+                    remainingBytes += (download.contentLength - download.bytesDownloaded).coerceAtLeast(0L)
+                else -> unknownRemaining++
+            }
+        }
+
+        // Songs with unknown size are assumed to be as big as the average completed one
+        val averageSize = if (completed > 0) completedBytes / completed else 0L
+        val canEstimate = unknownRemaining == 0 || averageSize > 0
+        val rate = smoothedBytesPerSecond.toLong()
+        val etaMs = if (canEstimate && rate > 0)
+            (remainingBytes + unknownRemaining * averageSize) * 1000 / rate
+        else
+            null
+
+        mutableBulkStats.value = BulkStats(ids.size, completed, rate, etaMs, parallel)
+    }
+}
@@ -97,8 +97,12 @@ object MyDownloadHelper {
     val progresses = mutableProgresses.asStateFlow()
     private val mutableBulkDownloadIds = MutableStateFlow<Set<String>>(emptySet())
     val bulkDownloadIds = mutableBulkDownloadIds.asStateFlow()
+    val bulkDownloadStats = DownloadScheduler.bulkStats
     private var progressLoopStarted = false
     private val mirrorJobs = mutableSetOf<String>()
+    /** Custom download folder, listed once and reused by every mirrored song */
+    @Volatile
+    private var mirrorTarget: DownloadExporter.Target? = null
     private const val MIN_VALID_DOWNLOAD_BYTES = 1024L * 1024L
 
     fun getDownload(songId: String): Flow<Download?> {
@@ -110,12 +114,19 @@ object MyDownloadHelper {
             .map(String::trim)
             .filter(String::isNotBlank)
             .toSet()
+        DownloadScheduler.onBulkSessionStarted(mutableBulkDownloadIds.value)
     }
 
     fun clearBulkDownloadSession() {
         mutableBulkDownloadIds.value = emptySet()
+        DownloadScheduler.onBulkSessionCleared()
     }
 
+    /**
+     * Queued downloads of [songIds] start before any other
+     */
+    fun prioritize(songIds: Collection<String>) = DownloadScheduler.prioritize(songIds)
+
     @SuppressLint("LongLogTag")
     @Synchronized
     fun getDownloads() {
@@ -284,6 +295,10 @@ private fun File.looksLikeExoCacheDirectory(): Boolean =
                                 }
                             }
                         }
+                        withContext(Dispatchers.Main) {
+                            runCatching { DownloadScheduler.tick(context.applicationContext, downloadManager) }
+                                .onFailure { Timber.w(it, "DownloadScheduler tick failed") }
+                        }
                         delay(1000)
                     }
                 }
@@ -293,6 +308,7 @@ private fun File.looksLikeExoCacheDirectory(): Boolean =
 
     @Synchronized
     fun reinitializeDownloadStorage(context: Context) {
+        mirrorTarget = null
         audioQualityFormat =
             context.preferences.getEnum(audioQualityFormatKey, AudioQualityFormat.Auto)
         runCatching {
@@ -322,7 +338,8 @@ private fun File.looksLikeExoCacheDirectory(): Boolean =
                 createDataSourceFactory(),
                 executor
             ).apply {
-                maxParallelDownloads = 3
+                // Adjusted by DownloadScheduler as throughput is measured
+                maxParallelDownloads = DownloadScheduler.initialParallelDownloads(context)
                 minRetryCount = 1
                 requirements = Requirements(Requirements.NETWORK)
 
@@ -383,30 +400,17 @@ private fun File.looksLikeExoCacheDirectory(): Boolean =
         fallbackName: String = ""
     ): Boolean = withContext(Dispatchers.IO) {
         val treeUri = getCustomDownloadTreeUri(context) ?: return@withContext false
-        val root = DocumentFile.fromTreeUri(context, treeUri) ?: return@withContext false
-        val spans = getDownloadCache(context)
-            .getCachedSpans(songId)
-            .sortedBy(CacheSpan::position)
-            .filter { it.length > 0L && it.file != null }
+        val target = mirrorTarget?.takeIf { it.treeUri == treeUri }
+            ?: DownloadExporter.open(context, treeUri)?.also { mirrorTarget = it }
+            ?: return@withContext false
+        val spans = DownloadExporter.spansOf(getDownloadCache(context), songId)
 
         if (spans.isEmpty()) return@withContext false
         if (!hasContiguousDownloadSpans(songId, spans)) return@withContext false
 
         val outputName = buildMirroredDownloadFileName(songId, fallbackName)
-        root.findFile(outputName)?.delete()
-        val outputFile = root.createFile("audio/mp4", outputName)
-            ?: return@withContext false
-
-        context.contentResolver.openOutputStream(outputFile.uri, "w")?.use { outputStream ->
-            spans.forEach { span ->
-                val cacheFile = span.file ?: return@withContext false
-                cacheFile.inputStream().use { inputStream ->
-                    inputStream.copyTo(outputStream)
-                }
-            }
-        } ?: return@withContext false
-
-        true
+        // Target is kept between downloads, user may have deleted files since
+        DownloadExporter.exportSong(context, target, spans, outputName, isListingStale = true) != DownloadExporter.Outcome.MISSING
     }
 
     fun getCustomDownloadFileCount(context: Context): Int {
@@ -454,6 +458,7 @@ private fun File.looksLikeExoCacheDirectory(): Boolean =
 
         if (activeIds != currentIds) {
             mutableBulkDownloadIds.value = activeIds
+            if (activeIds.isEmpty()) DownloadScheduler.onBulkSessionCleared()
         }
     }
 
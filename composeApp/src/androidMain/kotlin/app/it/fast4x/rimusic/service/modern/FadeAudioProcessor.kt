@@ -0,0 +1,114 @@
+package app.it.fast4x.rimusic.service.modern
+
+import androidx.media3.common.C
+import androidx.media3.common.audio.AudioProcessor.AudioFormat
+import androidx.media3.common.audio.AudioProcessor.UnhandledAudioFormatException
+import androidx.media3.common.audio.BaseAudioProcessor
+import androidx.media3.common.util.UnstableApi
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.sin
+
+/**
+ * Applies gain ramps to PCM audio, frame by frame.
+ *
+ * Ramps requested with [fadeTo] are picked up by the audio thread
+ * with the next buffer, gain then follows an equal-power curve
+ * instead of the steps of changing player's volume from a handler.
+ * Once a ramp ends, its target gain is kept until the next one.
+ */
+@UnstableApi
+class FadeAudioProcessor : BaseAudioProcessor() {
+
+    private class Ramp(val from: Float, val to: Float, val durationUs: Long)
+
+    private val pendingRamp = AtomicReference<Ramp?>(null)
+
+    /**
+     * Gain applied to the last processed frame
+     */
+    @Volatile
+    var gain = 1f
+        private set
+
+    private var startGain = 1f
+    private var targetGain = 1f
+    private var rampFrames = 0L
+    private var rampPosition = 0L
+
+    /**
+     * Ramp gain to [target] over [durationUs] of audio.
+     *
+     * @param from gain to start the ramp at, `NaN` to start from current gain
+     */
+    fun fadeTo(target: Float, durationUs: Long, from: Float = Float.NaN) {
+        pendingRamp.set(Ramp(from, target.coerceIn(0f, 1f), durationUs.coerceAtLeast(0L)))
+    }
+
+    private fun startRamp(ramp: Ramp) {
+        startGain = if (ramp.from.isNaN()) gain else ramp.from.coerceIn(0f, 1f)
+        targetGain = ramp.to
+        rampFrames = ramp.durationUs * inputAudioFormat.sampleRate / C.MICROS_PER_SECOND
+        rampPosition = 0L
+        gain = if (rampFrames > 0L) startGain else targetGain
+    }
+
+    /**
+     * Sine going up and cosine going down, so a fade out
+     * followed by a fade in keeps perceived loudness steady.
+     */
+    private fun gainAt(position: Long): Float {
+        val angle = position.toDouble() / rampFrames * PI / 2
+        return if (targetGain > startGain)
+            startGain + (targetGain - startGain) * sin(angle).toFloat()
+        else
+            targetGain + (startGain - targetGain) * cos(angle).toFloat()
+    }
+
+    override fun onConfigure(inputAudioFormat: AudioFormat): AudioFormat {
+        if (inputAudioFormat.encoding != C.ENCODING_PCM_16BIT && inputAudioFormat.encoding != C.ENCODING_PCM_FLOAT)
+            throw UnhandledAudioFormatException(inputAudioFormat)
+        return inputAudioFormat
+    }
+
+    override fun queueInput(inputBuffer: ByteBuffer) {
+        pendingRamp.getAndSet(null)?.let(::startRamp)
+
+        val remaining = inputBuffer.remaining()
+        if (remaining == 0) return
+        val output = replaceOutputBuffer(remaining)
+
+        if (rampPosition >= rampFrames && gain == 1f) {
+            output.put(inputBuffer)
+        } else {
+            val channelCount = inputAudioFormat.channelCount
+            val isFloat = inputAudioFormat.encoding == C.ENCODING_PCM_FLOAT
+            var frameGain = gain
+            while (inputBuffer.hasRemaining()) {
+                if (rampPosition < rampFrames) {
+                    rampPosition++
+                    frameGain = if (rampPosition == rampFrames) targetGain else gainAt(rampPosition)
+                }
+                for (channel in 0 until channelCount) {
+                    if (isFloat)
+                        output.putFloat(inputBuffer.getFloat() * frameGain)
+                    else
+                        output.putShort((inputBuffer.getShort() * frameGain).toInt().toShort())
+                }
+            }
+            gain = frameGain
+        }
+        output.flip()
+    }
+
+    override fun onReset() {
+        pendingRamp.set(null)
+        gain = 1f
+        startGain = 1f
+        targetGain = 1f
+        rampFrames = 0L
+        rampPosition = 0L
+    }
+}
@@ -74,11 +74,13 @@ import app.it.fast4x.rimusic.utils.sanitizePlaybackUri
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.guava.future
+import app.kreate.android.me.knighthat.database.FtsQuery
 import app.kreate.android.me.knighthat.database.ext.FormatWithSong
 import it.fast4x.innertube.models.NavigationEndpoint
 import kotlinx.coroutines.flow.Flow
 import it.fast4x.innertube.models.MusicShelfRenderer
 import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
 
 @UnstableApi
 class MediaLibrarySessionCallback(
@@ -102,7 +104,13 @@ class MediaLibrarySessionCallback(
     var searchedVideos: List<Innertube.VideoItem> = emptyList()
     var searchedAlbums: List<Innertube.AlbumItem> = emptyList()
 
-    private val searchCache = mutableMapOf<String, List<MediaItem>>()
+    private val searchCache = ConcurrentHashMap<String, List<MediaItem>>()
+
+    /**
+     * Children of local nodes, built once and served from memory
+     * until one of [BROWSE_TABLES] (or downloads, quick picks) changes.
+     */
+    private val browseCache = ConcurrentHashMap<String, List<MediaItem>>()
 
     private fun clearSearchCacheIfNeeded() {
     if (searchCache.size > 50) {
@@ -119,9 +127,36 @@ override fun onSearch(
     println("PlayerServiceModern MediaLibrarySessionCallback.onSearch: $query")
     clearSearchCacheIfNeeded()  // ← THIS IS THE FIX
     searchCache.clear()
-    session.notifySearchResultChanged(browser, query, 0, params)
+    scope.launch {
+        // Library results are ready by the time browser asks for them
+        val parentId = "${MediaSessionConstants.ID_SEARCH_LIBRARY}/$query"
+        val libraryResults = withContext(Dispatchers.IO) {
+            runCatching { searchLibrary(query, parentId) }
+                .onFailure { Timber.e(it, "MediaLibrarySessionCallback.onSearch library search failed") }
+                .getOrDefault(emptyList())
+        }
+        if (libraryResults.isNotEmpty()) {
+            browseCache[parentId] = libraryResults
+        }
+        session.notifySearchResultChanged(browser, query, SEARCH_RESULT_FOLDERS, params)
+    }
     return Futures.immediateFuture(LibraryResult.ofVoid(params))
 }
+
+    /**
+     * Look up local library through the full-text search index,
+     * songs come first, followed by artists, albums and playlists.
+     */
+    private suspend fun searchLibrary(query: String, parentId: String): List<MediaItem> {
+        val match = FtsQuery.prefixMatchOf(query) ?: return emptyList()
+        val searchTerm = query.trim()
+
+        val songs = database.songTable.findAllMatching(match, searchTerm, LIBRARY_SEARCH_LIMIT).first().map { song -> MediaItemMapper.mapSongToMediaItem(song, parentId) }
+        val artists = database.artistTable.findAllMatching(match, searchTerm, LIBRARY_SEARCH_LIMIT).first().map { artist -> MediaItemMapper.browsableMediaItem("${PlayerServiceModern.ARTIST}/${artist.id}", artist.name ?: "", null, MediaItemMapper.drawableUri(context, R.drawable.artist), MediaMetadata.MEDIA_TYPE_ARTIST) }
+        val albums = database.albumTable.findAllMatching(match, searchTerm, LIBRARY_SEARCH_LIMIT).first().map { album -> MediaItemMapper.mapAlbumToMediaItem(PlayerServiceModern.ALBUM, album.id, album.title ?: "", album.authorsText, album.thumbnailUrl) }
+        val playlists = database.playlistTable.findAllMatching(match, searchTerm, LIBRARY_SEARCH_LIMIT).first().map { preview -> MediaItemMapper.browsableMediaItem("${PlayerServiceModern.PLAYLIST}/${preview.playlist.id}", preview.playlist.name, preview.songCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.library), MediaMetadata.MEDIA_TYPE_PLAYLIST) }
+        return songs + artists + albums + playlists
+    }
     private fun isCached(songId: String, contentLength: Long?): Boolean {
         if (!::binder.isInitialized || contentLength == null) return false
 
@@ -212,26 +247,68 @@ override fun onSearch(
         )
     }
 
+    /**
+     * Children of these nodes come from YouTube,
+     * database changes don't affect them.
+     */
+    private fun isRemoteNode(parentId: String): Boolean {
+        val parts = parentId.split("/")
+        return parts[0] in SEARCH_NODES
+                || (parts[0] == PlayerServiceModern.ARTIST && parts.size > 1 && !parts[1].startsWith(LOCAL_KEY_PREFIX))
+    }
+
+    /**
+     * @return items of [page] (0-based), or all items when [pageSize] is not set
+     */
+    private fun List<MediaItem>.page(page: Int, pageSize: Int): List<MediaItem> {
+        if (pageSize <= 0 || pageSize == Int.MAX_VALUE) return this
+
+        val from = page.coerceAtLeast(0).toLong() * pageSize
+        if (from >= size) return emptyList()
+        return subList(from.toInt(), minOf(size.toLong(), from + pageSize).toInt())
+    }
+
     fun observeRepository(session: MediaLibrarySession) {
         observationJob?.cancel()
         observationJob = scope.launch {
-            combine(
-                QuickPicksRepository.trendingList,
-                QuickPicksRepository.relatedPage,
-                database.artistTable.allFollowing(),
-                database.albumTable.all(),
-                database.songTable.all(),
-                database.eventTable.findSongsMostPlayedBetween(0L),
-                database.playlistTable.allAsPreview(),
-                downloadHelper.downloads,
-                database.formatTable.allWithSongs()
-            ) { _ -> Unit }.collect {
-                session.notifyChildrenChanged(PlayerServiceModern.ROOT, 0, null)
-                session.notifyChildrenChanged(ID_QUICK_PICKS, 0, null)
-                session.notifyChildrenChanged(PlayerServiceModern.SONG, 0, null)
-                session.notifyChildrenChanged(PlayerServiceModern.ARTIST, 0, null)
-                session.notifyChildrenChanged(PlayerServiceModern.ALBUM, 0, null)
-                session.notifyChildrenChanged(PlayerServiceModern.PLAYLIST, 0, null)
+            // Invalidation tracker only reports which tables changed,
+            // no query runs until a browser asks for children again
+            launch {
+                database.observeTables(*BROWSE_TABLES).collect {
+                    browseCache.clear()
+                    session.notifyChildrenChanged(PlayerServiceModern.ROOT, 0, null)
+                    session.notifyChildrenChanged(PlayerServiceModern.SONG, 0, null)
+                    session.notifyChildrenChanged(PlayerServiceModern.ARTIST, 0, null)
+                    session.notifyChildrenChanged(PlayerServiceModern.ALBUM, 0, null)
+                    session.notifyChildrenChanged(PlayerServiceModern.PLAYLIST, 0, null)
+                }
+            }
+            launch {
+                database.observeTables(*PLAYBACK_TABLES).collect {
+                    browseCache.remove(PlayerServiceModern.SONG)
+                    browseCache.remove(MediaSessionConstants.ID_SONGS_TOP)
+                    browseCache.remove(MediaSessionConstants.ID_SONGS_CACHED)
+                    session.notifyChildrenChanged(PlayerServiceModern.SONG, 0, null)
+                    session.notifyChildrenChanged(MediaSessionConstants.ID_SONGS_TOP, 0, null)
+                    session.notifyChildrenChanged(MediaSessionConstants.ID_SONGS_CACHED, 0, null)
+                }
+            }
+            launch {
+                combine(
+                    QuickPicksRepository.trendingList,
+                    QuickPicksRepository.relatedPage
+                ) { _, _ -> Unit }.collect {
+                    browseCache.remove(ID_QUICK_PICKS)
+                    session.notifyChildrenChanged(ID_QUICK_PICKS, 0, null)
+                }
+            }
+            launch {
+                downloadHelper.downloads.collect {
+                    browseCache.remove(PlayerServiceModern.SONG)
+                    browseCache.remove(MediaSessionConstants.ID_SONGS_DOWNLOADED)
+                    session.notifyChildrenChanged(PlayerServiceModern.SONG, 0, null)
+                    session.notifyChildrenChanged(MediaSessionConstants.ID_SONGS_DOWNLOADED, 0, null)
+                }
             }
         }
     }
@@ -239,6 +316,7 @@ override fun onSearch(
     fun release() {
         observationJob?.cancel()
         scope.cancel()
+        browseCache.clear()
     }
 
 override fun onConnect(
@@ -291,6 +369,7 @@ override fun onConnect(
         params: MediaLibraryService.LibraryParams?
     ): ListenableFuture<LibraryResult<ImmutableList<MediaItem>>> {
         val results = listOf(
+            MediaItemMapper.browsableMediaItem("${MediaSessionConstants.ID_SEARCH_LIBRARY}/$query", context.getString(R.string.library), null, MediaItemMapper.drawableUri(context, R.drawable.library), MediaMetadata.MEDIA_TYPE_FOLDER_MIXED),
             MediaItemMapper.browsableMediaItem("${MediaSessionConstants.ID_SEARCH_SONGS}/$query", context.getString(R.string.songs), null, MediaItemMapper.drawableUri(context, R.drawable.musical_notes), MediaMetadata.MEDIA_TYPE_FOLDER_MIXED),
             MediaItemMapper.browsableMediaItem("${MediaSessionConstants.ID_SEARCH_ALBUMS}/$query", context.getString(R.string.albums), null, MediaItemMapper.drawableUri(context, R.drawable.album), MediaMetadata.MEDIA_TYPE_FOLDER_ALBUMS),
             MediaItemMapper.browsableMediaItem("${MediaSessionConstants.ID_SEARCH_ARTISTS}/$query", context.getString(R.string.artists), null, MediaItemMapper.drawableUri(context, R.drawable.artist), MediaMetadata.MEDIA_TYPE_FOLDER_ARTISTS),
@@ -349,9 +428,12 @@ override fun onConnect(
         pageSize: Int,
         params: MediaLibraryService.LibraryParams?,
     ): ListenableFuture<LibraryResult<ImmutableList<MediaItem>>> = scope.future(Dispatchers.IO) {
-        val cached = searchCache[parentId]
+        // Head units request large folders page by page,
+        // only the first page builds the list
+        val cache = if (isRemoteNode(parentId)) searchCache else browseCache
+        val cached = cache[parentId]
         if (!cached.isNullOrEmpty()) {
-            return@future LibraryResult.ofItemList(ImmutableList.copyOf(cached), params)
+            return@future LibraryResult.ofItemList(ImmutableList.copyOf(cached.page(page, pageSize)), params)
         }
 
         val list: List<MediaItem> = try {
@@ -376,11 +458,11 @@ override fun onConnect(
                     val showDownloadedPlaylist = try { context.preferences.getBoolean(showDownloadedPlaylistKey, true) } catch (e: Exception) { true }
                     val showCachedPlaylist = try { context.preferences.getBoolean(showCachedPlaylistKey, true) } catch (e: Exception) { true }
                     val showOnDevicePlaylist = try { context.preferences.getBoolean(showOnDevicePlaylistKey, true) } catch (e: Exception) { true }
-                    val allCount = database.songTable.sortAll(SongSortBy.DateAdded, SortOrder.Descending, excludeHidden = true).first().size
-                    val favoritesCount = database.songTable.allFavorites().first().size
-                    val downloadedCount = (getCountDownloadedSongs() as Flow<Int>).first()
-                    val onDeviceCount = database.songTable.allOnDevice().first().size
-                    val cachedCount = (getCountCachedSongs() as Flow<Int>).first()
+                    val allCount = database.songTable.countAll(excludeHidden = true).first()
+                    val favoritesCount = if (showFavoritesPlaylist) database.songTable.countFavorites().first() else 0
+                    val downloadedCount = if (showDownloadedPlaylist) getCountDownloadedSongs().first() else 0
+                    val onDeviceCount = if (showOnDevicePlaylist) database.songTable.countOnDevice().first() else 0
+                    val cachedCount = if (showCachedPlaylist) getCountCachedSongs().first() else 0
                     val topCount = database.eventTable.findSongsMostPlayedBetween(from = 0, limit = context.preferences.getEnum(MaxTopPlaylistItemsKey, MaxTopPlaylistItems.`10`).toInt()).first().size
                     val songs = mutableListOf(
                         MediaItemMapper.browsableMediaItem(MediaSessionConstants.ID_SONGS_ALL, context.getString(R.string.all), allCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.musical_notes), MediaMetadata.MEDIA_TYPE_PLAYLIST)
@@ -401,8 +483,8 @@ override fun onConnect(
                     songs
                 }
                 PlayerServiceModern.ARTIST -> {
-                    val libraryCount = database.artistTable.allInLibrary().first().size
-                    val favoritesCount = database.artistTable.allFollowing().first().size
+                    val libraryCount = database.artistTable.countInLibrary().first()
+                    val favoritesCount = database.artistTable.countFollowing().first()
                     listOf(
                         MediaItemMapper.browsableMediaItem(MediaSessionConstants.ID_ARTISTS_LIBRARY, context.getString(R.string.library), libraryCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.artist), MediaMetadata.MEDIA_TYPE_FOLDER_ARTISTS),
                         MediaItemMapper.browsableMediaItem(MediaSessionConstants.ID_ARTISTS_FAVORITES, context.getString(R.string.favorites), favoritesCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.heart), MediaMetadata.MEDIA_TYPE_FOLDER_ARTISTS)
@@ -451,8 +533,8 @@ override fun onConnect(
                     listOf(shuffleItem) + artists
                 }
                 PlayerServiceModern.ALBUM -> {
-                    val libraryCount = database.albumTable.allInLibrary().first().size
-                    val favoritesCount = database.albumTable.allBookmarked().first().size
+                    val libraryCount = database.albumTable.countInLibrary().first()
+                    val favoritesCount = database.albumTable.countBookmarked().first()
                     listOf(
                         MediaItemMapper.browsableMediaItem(MediaSessionConstants.ID_ALBUMS_LIBRARY, context.getString(R.string.library), libraryCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.album), MediaMetadata.MEDIA_TYPE_FOLDER_ALBUMS),
                         MediaItemMapper.browsableMediaItem(MediaSessionConstants.ID_ALBUMS_FAVORITES, context.getString(R.string.favorites), favoritesCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.heart), MediaMetadata.MEDIA_TYPE_FOLDER_ALBUMS)
@@ -462,11 +544,12 @@ override fun onConnect(
                     val showMonthlyPlaylists = try { context.preferences.getBoolean(showMonthlyPlaylistsKey, true) } catch (e: Exception) { true }
                     val showPipedPlaylists = try { context.preferences.getBoolean(showPipedPlaylistsKey, true) } catch (e: Exception) { true }
                     val showPinnedPlaylists = try { context.preferences.getBoolean(showPinnedPlaylistsKey, true) } catch (e: Exception) { true }
-                    val pinnedCount = database.playlistTable.allAsPreview().first().filter { it.playlist.name.startsWith(PINNED_PREFIX, true) }.size
-                    val localCount = database.playlistTable.allAsPreview().first().filter { !it.playlist.isYoutubePlaylist && !it.playlist.name.startsWith(PIPED_PREFIX, true) && !it.playlist.name.startsWith(PINNED_PREFIX, true) && !it.playlist.name.startsWith(MONTHLY_PREFIX, true) }.size
-                    val ytCount = database.playlistTable.allAsPreview().first().filter { it.playlist.isYoutubePlaylist }.size
-                    val pipedCount = database.playlistTable.allAsPreview().first().filter { it.playlist.name.startsWith(PIPED_PREFIX, true) }.size
-                    val monthlyCount = database.playlistTable.allAsPreview().first().filter { it.playlist.name.startsWith(MONTHLY_PREFIX, true) }.size
+                    val counts = database.playlistTable.countByCategory().first()
+                    val pinnedCount = counts.pinned
+                    val localCount = counts.local
+                    val ytCount = counts.youtube
+                    val pipedCount = counts.piped
+                    val monthlyCount = counts.monthly
                     val playlists = mutableListOf<MediaItem>()
                     if (showPinnedPlaylists) {
                         playlists.add(MediaItemMapper.browsableMediaItem(ID_PLAYLISTS_PINNED, context.getString(R.string.pinned_playlists), pinnedCount.toString(), MediaItemMapper.drawableUri(context, R.drawable.pin_filled), MediaMetadata.MEDIA_TYPE_FOLDER_PLAYLISTS))
@@ -520,6 +603,7 @@ override fun onConnect(
                 else -> {
                     val parts = parentId.split("/")
                     when (parts[0]) {
+                        MediaSessionConstants.ID_SEARCH_LIBRARY -> searchLibrary(parts.getOrNull(1).orEmpty(), parentId)
                         MediaSessionConstants.ID_SEARCH_SONGS -> {
                             val allMapped = mutableListOf<MediaItem>()
                             var cont: String? = null
@@ -702,9 +786,9 @@ override fun onConnect(
             emptyList()
         }
         if (list.isNotEmpty()) {
-            searchCache[parentId] = list
+            cache[parentId] = list
         }
-        LibraryResult.ofItemList(ImmutableList.copyOf(list), params)
+        LibraryResult.ofItemList(ImmutableList.copyOf(list.page(page, pageSize)), params)
     }
 
     @OptIn(UnstableApi::class)
@@ -844,6 +928,11 @@ override fun onConnect(
                 when (paths.firstOrNull()) {
                     MediaSessionConstants.ID_QUICK_PICKS -> { songId = paths.getOrNull(1).orEmpty(); queryList = (QuickPicksRepository.trendingList.value + (QuickPicksRepository.relatedPage.value?.songs?.map { it.asSong } ?: emptyList())).distinctBy { it.id } }
                     MediaSessionConstants.ID_SEARCH_SONGS -> { songId = paths.getOrNull(2).orEmpty(); queryList = searchedSongs }
+                    MediaSessionConstants.ID_SEARCH_LIBRARY -> {
+                        songId = paths.getOrNull(2).orEmpty()
+                        val match = FtsQuery.prefixMatchOf(paths.getOrNull(1).orEmpty())
+                        queryList = match?.let { database.songTable.findAllMatching(it, paths[1].trim(), LIBRARY_SEARCH_LIMIT).first() }.orEmpty()
+                    }
                     MediaSessionConstants.ID_SEARCH_VIDEOS -> { songId = paths.getOrNull(2).orEmpty(); queryList = searchedVideos.map { it.asSong } }
                     PlayerServiceModern.SEARCHED -> { songId = paths.getOrNull(1).orEmpty(); queryList = searchedSongs }
                     PlayerServiceModern.SONG -> { songId = paths.getOrNull(1).orEmpty(); queryList = database.songTable.all().first() }
@@ -935,11 +1024,17 @@ override fun onConnect(
         if (!context.preferences.getBoolean(persistentQueueKey, false)) return Futures.immediateFuture(defaultResult)
         scope.launch {
             try {
-                database.queueTable.all().first().run {
-                    val idx = indexOfFirst { it.position != null }.coerceAtLeast(0)
-                    val startPos = getOrNull(idx)?.position ?: 0L
-                    val mediaItems = map { itm -> MediaItemMapper.mapSongToMediaItem(itm.mediaItem.asSong, true) }
-                    settableFuture.set(MediaSession.MediaItemsWithStartPosition(mediaItems, idx, startPos))
+                val queue = withContext(Dispatchers.IO) { PersistentQueueStore.read(context) }
+                if (queue == null) {
+                    database.queueTable.all().first().run {
+                        val idx = indexOfFirst { it.position != null }.coerceAtLeast(0)
+                        val startPos = getOrNull(idx)?.position ?: 0L
+                        val mediaItems = map { itm -> MediaItemMapper.mapSongToMediaItem(itm.mediaItem.asSong, true) }
+                        settableFuture.set(MediaSession.MediaItemsWithStartPosition(mediaItems, idx, startPos))
+                    }
+                } else {
+                    val mediaItems = queue.mediaItems.map { itm -> MediaItemMapper.mapSongToMediaItem(itm.asSong, true) }
+                    settableFuture.set(MediaSession.MediaItemsWithStartPosition(mediaItems, queue.index, queue.positionMs))
                 }
             } catch (e: Exception) {
                 settableFuture.set(defaultResult)
@@ -958,4 +1053,41 @@ override fun onConnect(
         downloadHelper.getDownloadManager(context)
         return downloadHelper.downloads.map { dm -> dm.filter { ite -> downloadHelper.isSongDownloaded(ite.key) }.size }
     }
+
+    companion object {
+        /**
+         * Number of folders returned by [onGetSearchResult]
+         */
+        private const val SEARCH_RESULT_FOLDERS = 8
+
+        /**
+         * Max number of songs, artists, albums and playlists each in library search results
+         */
+        private const val LIBRARY_SEARCH_LIMIT = 50
+
+        /**
+         * Tables that the structure of local browse nodes is built from
+         */
+        private val BROWSE_TABLES = arrayOf(
+            "Song", "Artist", "Album", "Playlist",
+            "SongPlaylistMap", "SongArtistMap", "SongAlbumMap"
+        )
+
+        /**
+         * Written on every played song, so they only invalidate the nodes
+         * built from them: [MediaSessionConstants.ID_SONGS_TOP],
+         * [MediaSessionConstants.ID_SONGS_CACHED] and [PlayerServiceModern.SONG]
+         */
+        private val PLAYBACK_TABLES = arrayOf("Event", "Format")
+
+        private val SEARCH_NODES = setOf(
+            MediaSessionConstants.ID_SEARCH_SONGS,
+            MediaSessionConstants.ID_SEARCH_ARTISTS,
+            MediaSessionConstants.ID_SEARCH_ALBUMS,
+            MediaSessionConstants.ID_SEARCH_VIDEOS,
+            MediaSessionConstants.ID_SEARCH_PLAYLISTS,
+            MediaSessionConstants.ID_SEARCH_FEATURED,
+            MediaSessionConstants.ID_SEARCH_PODCASTS
+        )
+    }
 }
@@ -22,6 +22,7 @@ object MediaSessionConstants {
     const val ID_SEARCH_PLAYLISTS = "SEARCH_PLAYLISTS"
     const val ID_SEARCH_FEATURED = "SEARCH_FEATURED"
     const val ID_SEARCH_PODCASTS = "SEARCH_PODCASTS"
+    const val ID_SEARCH_LIBRARY = "SEARCH_LIBRARY"
     const val ID_FAVORITES = "FAVORITES"
 
     const val ID_CACHED = "CACHED"
@@ -0,0 +1,381 @@
+package app.it.fast4x.rimusic.service.modern
+
+import android.content.Context
+import androidx.media3.common.MediaItem
+import androidx.media3.common.util.UnstableApi
+import app.kreate.android.me.knighthat.database.Converters
+import timber.log.Timber
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Persists player's queue so saving costs as much as what changed.
+ *
+ * Queue is stored in 2 files inside `files/queue`:
+ * - `queue.snapshot`: whole queue, gzipped, rewritten only on compaction
+ * - `queue.journal`: operations applied to the snapshot, appended on every [save]
+ *
+ * [save] diffs the new queue against the last saved one, a song
+ * added by radio or moved by user writes 1 small record instead
+ * of the whole queue. Journal is compacted into a new snapshot once
+ * it has [MAX_JOURNAL_RECORDS] structural records or grows bigger
+ * than the snapshot.
+ *
+ * Every journal record carries a checksum, a record cut short
+ * by a crash is ignored along with everything after it.
+ *
+ * All I/O happens on a single background thread.
+ */
+@UnstableApi
+class PersistentQueueStore( context: Context ) {
+
+    companion object {
+        private const val SNAPSHOT_MAGIC = 0x4B51534E     // KQSN
+        private const val JOURNAL_MAGIC = 0x4B514A4E      // KQJN
+        private const val VERSION = 1
+
+        private const val OP_REPLACE: Byte = 1
+        private const val OP_MOVE: Byte = 2
+        private const val OP_POSITION: Byte = 3
+
+        private const val MAX_JOURNAL_RECORDS = 64
+        private const val MIN_COMPACTION_BYTES = 64 * 1024L
+
+        /**
+         * Shared by all instances, so a recreated service
+         * never writes concurrently with the previous one.
+         */
+        private val executor = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "PersistentQueueStore").apply { isDaemon = true }
+        }
+
+        private fun directoryOf( context: Context ) = File(context.filesDir, "queue")
+
+        private fun snapshotOf( directory: File ) = File(directory, "queue.snapshot")
+
+        private fun journalOf( directory: File ) = File(directory, "queue.journal")
+
+        private fun DataOutputStream.writeMediaItem( mediaItem: MediaItem ) {
+            val bytes = Converters.mediaItemToByteArray( mediaItem ) ?: ByteArray(0)
+            writeInt( bytes.size )
+            write( bytes )
+        }
+
+        private fun DataInputStream.readMediaItem(): MediaItem? {
+            val bytes = ByteArray(readInt())
+            readFully( bytes )
+            return Converters.mediaItemFromByteArray( bytes )
+        }
+
+        /**
+         * Read stored queue without touching any state,
+         * safe to call from anywhere while the store is writing.
+         *
+         * @return stored queue, or `null` if there's none
+         */
+        fun read( context: Context ): Queue? = readState( directoryOf( context ) )?.toQueue()
+
+        private fun readState( directory: File ): State? {
+            val snapshot = snapshotOf( directory )
+            if( !snapshot.exists() ) return null
+
+            val state = runCatching {
+                DataInputStream(BufferedInputStream(GZIPInputStream(FileInputStream(snapshot)))).use { input ->
+                    if( input.readInt() != SNAPSHOT_MAGIC || input.readInt() != VERSION )
+                        throw IOException("Unknown queue snapshot format")
+
+                    val generation = input.readLong()
+                    val index = input.readInt()
+                    val positionMs = input.readLong()
+                    val count = input.readInt()
+                    val items = ArrayList<MediaItem?>(count)
+                    repeat( count ) { items.add( input.readMediaItem() ) }
+
+                    State(generation, items, index, positionMs)
+                }
+            }.onFailure {
+                Timber.e( it, "PersistentQueueStore failed to read snapshot" )
+            }.getOrNull() ?: return null
+
+            replayJournal( journalOf( directory ), state )
+            return state
+        }
+
+        /**
+         * Apply records of [journal] to [state], stops at
+         * the first record that is incomplete or invalid.
+         */
+        private fun replayJournal( journal: File, state: State ) {
+            if( !journal.exists() ) return
+
+            runCatching {
+                DataInputStream(BufferedInputStream(FileInputStream(journal))).use { input ->
+                    if( input.readInt() != JOURNAL_MAGIC
+                        || input.readInt() != VERSION
+                        || input.readLong() != state.generation
+                    ) return@use        // Journal of another snapshot
+
+                    val crc = CRC32()
+                    while( true ) {
+                        val length = try { input.readInt() } catch ( _: EOFException ) { break }
+                        val checksum = input.readLong()
+                        val payload = ByteArray(length)
+                        input.readFully( payload )
+
+                        crc.reset()
+                        crc.update( payload )
+                        if( crc.value != checksum || !state.apply( payload ) ) break
+                    }
+                }
+            }.onFailure {
+                // Truncated record, keep what was replayed so far
+                Timber.w( "PersistentQueueStore journal ended early: %s", it.message )
+            }
+        }
+    }
+
+    class Queue(
+        val mediaItems: List<MediaItem>,
+        val index: Int,
+        val positionMs: Long
+    )
+
+    private class State(
+        var generation: Long,
+        val items: MutableList<MediaItem?>,
+        var index: Int,
+        var positionMs: Long
+    ) {
+
+        fun toQueue(): Queue? {
+            val decoded = items.filterNotNull()
+            if( decoded.isEmpty() ) return null
+
+            // Items that couldn't be decoded are dropped, index must follow
+            val current = items.getOrNull( index )
+            if( current == null ) return Queue(decoded, 0, 0L)
+
+            val newIndex = index - items.subList( 0, index ).count { it == null }
+            return Queue(decoded, newIndex, positionMs)
+        }
+
+        /**
+         * @return `false` when [payload] doesn't fit current state
+         */
+        fun apply( payload: ByteArray ): Boolean {
+            val input = DataInputStream(payload.inputStream())
+            when( input.readByte() ) {
+                OP_REPLACE -> {
+                    val from = input.readInt()
+                    val removeCount = input.readInt()
+                    if( from < 0 || removeCount < 0 || from + removeCount > items.size ) return false
+
+                    val added = List(input.readInt()) { input.readMediaItem() }
+                    items.subList( from, from + removeCount ).clear()
+                    items.addAll( from, added )
+                }
+                OP_MOVE -> {
+                    val from = input.readInt()
+                    val to = input.readInt()
+                    if( from !in items.indices || to !in items.indices ) return false
+
+                    items.add( to, items.removeAt( from ) )
+                }
+                OP_POSITION -> {
+                    index = input.readInt()
+                    positionMs = input.readLong()
+                }
+                else -> return false
+            }
+            return true
+        }
+    }
+
+    private val directory = directoryOf( context )
+    private val snapshotFile = snapshotOf( directory )
+    private val journalFile = journalOf( directory )
+
+    // Only accessed by the executor thread
+    /** Items of the last saved queue, `null` forces a snapshot on next save */
+    private var savedItems: MutableList<MediaItem>? = null
+    private var savedIndex = -1
+    private var savedPositionMs = -1L
+    private var generation = 0L
+    private var journalRecords = 0
+
+    /**
+     * Load stored queue and use it as the base of next [save].
+     *
+     * Blocks until all pending saves are written.
+     *
+     * @return stored queue, or `null` if there's none
+     */
+    fun load(): Queue? = executor.submit( Callable {
+        // Journal may have been cut short, next save writes a new
+        // snapshot so records aren't appended after a broken one
+        savedItems = null
+        readState( directory )?.toQueue()
+    } ).get()
+
+    /**
+     * Persist queue in the background, only what changed
+     * since the last call is written.
+     *
+     * Must be called with [mediaItems] captured on player's thread.
+     *
+     * @param onSaved called on store's thread once queue is on disk,
+     * not called if writing fails
+     */
+    fun save( mediaItems: List<MediaItem>, index: Int, positionMs: Long, onSaved: () -> Unit = {} ) =
+        executor.execute {
+            runCatching {
+                val saved = savedItems
+                if( saved == null || shouldCompact() )
+                    writeSnapshot( mediaItems, index, positionMs )
+                else
+                    appendChanges( saved, mediaItems, index, positionMs )
+            }.onSuccess {
+                onSaved()
+            }.onFailure {
+                Timber.e( it, "PersistentQueueStore failed to save queue" )
+                // State on disk is unknown, rewrite everything next time
+                savedItems = null
+            }
+        }
+
+    /**
+     * Remove stored queue
+     */
+    fun clear() =
+        executor.execute {
+            snapshotFile.delete()
+            journalFile.delete()
+            savedItems = null
+        }
+
+    private fun shouldCompact(): Boolean =
+        journalRecords >= MAX_JOURNAL_RECORDS
+                || journalFile.length() > maxOf( MIN_COMPACTION_BYTES, snapshotFile.length() )
+
+    @Throws(IOException::class)
+    private fun writeSnapshot( mediaItems: List<MediaItem>, index: Int, positionMs: Long ) {
+        directory.mkdirs()
+        // Unique across instances, a journal of an older
+        // snapshot can never be replayed onto this one
+        generation = maxOf( generation + 1, System.currentTimeMillis() )
+
+        val temp = File(directory, "${snapshotFile.name}.tmp")
+        DataOutputStream(BufferedOutputStream(GZIPOutputStream(FileOutputStream(temp)))).use { output ->
+            output.writeInt( SNAPSHOT_MAGIC )
+            output.writeInt( VERSION )
+            output.writeLong( generation )
+            output.writeInt( index )
+            output.writeLong( positionMs )
+            output.writeInt( mediaItems.size )
+            mediaItems.forEach { output.writeMediaItem( it ) }
+        }
+        if( !temp.renameTo( snapshotFile ) )
+            throw IOException("Couldn't replace queue snapshot")
+
+        // Old journal belongs to previous generation, it's ignored even if this fails
+        DataOutputStream(FileOutputStream(journalFile)).use { output ->
+            output.writeInt( JOURNAL_MAGIC )
+            output.writeInt( VERSION )
+            output.writeLong( generation )
+        }
+
+        savedItems = ArrayList(mediaItems)
+        savedIndex = index
+        savedPositionMs = positionMs
+        journalRecords = 0
+        Timber.d( "PersistentQueueStore wrote snapshot of %d items", mediaItems.size )
+    }
+
+    /**
+     * Diff [mediaItems] against [saved] and append the result to journal.
+     *
+     * Unchanged head and tail are skipped, what's left in between is
+     * written as a single move when 1 item changed its place, or
+     * replaced otherwise.
+     *
+     * Items are compared with [MediaItem.equals], so a song whose
+     * metadata changed in place is replaced too.
+     */
+    @Throws(IOException::class)
+    private fun appendChanges( saved: MutableList<MediaItem>, mediaItems: List<MediaItem>, index: Int, positionMs: Long ) {
+        val common = minOf( saved.size, mediaItems.size )
+        var head = 0
+        while( head < common && saved[head] == mediaItems[head] ) head++
+        var tail = 0
+        while( tail < common - head && saved[saved.size - 1 - tail] == mediaItems[mediaItems.size - 1 - tail] ) tail++
+
+        val oldEnd = saved.size - tail
+        val newEnd = mediaItems.size - tail
+        val records = ArrayList<ByteArray>(2)
+
+        if( head < oldEnd || head < newEnd ) {
+            val span = oldEnd - head
+            val movedForward = span > 1 && span == newEnd - head
+                    && saved[head] == mediaItems[newEnd - 1]
+                    && saved.subList( head + 1, oldEnd ) == mediaItems.subList( head, newEnd - 1 )
+            val movedBackward = !movedForward && span > 1 && span == newEnd - head
+                    && saved[oldEnd - 1] == mediaItems[head]
+                    && saved.subList( head, oldEnd - 1 ) == mediaItems.subList( head + 1, newEnd )
+
+            records += when {
+                movedForward -> record( OP_MOVE ) { writeInt( head ); writeInt( newEnd - 1 ) }
+                movedBackward -> record( OP_MOVE ) { writeInt( oldEnd - 1 ); writeInt( head ) }
+                else -> record( OP_REPLACE ) {
+                    writeInt( head )
+                    writeInt( span )
+                    writeInt( newEnd - head )
+                    for( i in head until newEnd ) writeMediaItem( mediaItems[i] )
+                }
+            }
+            journalRecords++
+        }
+
+        if( records.isNotEmpty() || index != savedIndex || positionMs != savedPositionMs )
+            records += record( OP_POSITION ) { writeInt( index ); writeLong( positionMs ) }
+
+        if( records.isEmpty() ) return
+
+        DataOutputStream(BufferedOutputStream(FileOutputStream(journalFile, true))).use { output ->
+            val crc = CRC32()
+            records.forEach { payload ->
+                crc.reset()
+                crc.update( payload )
+                output.writeInt( payload.size )
+                output.writeLong( crc.value )
+                output.write( payload )
+            }
+        }
+
+        saved.subList( head, oldEnd ).clear()
+        saved.addAll( head, mediaItems.subList( head, newEnd ) )
+        savedIndex = index
+        savedPositionMs = positionMs
+    }
+
+    private inline fun record( op: Byte, block: DataOutputStream.() -> Unit ): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use {
+            it.writeByte( op.toInt() )
+            it.block()
+        }
+        return bytes.toByteArray()
+    }
+}
@@ -0,0 +1,100 @@
+package app.it.fast4x.rimusic.service.modern
+
+import android.os.Handler
+import android.os.Looper
+import app.it.fast4x.rimusic.Database
+import app.it.fast4x.rimusic.models.Event
+import app.it.fast4x.rimusic.models.Song
+import timber.log.Timber
+
+/**
+ * Write-behind buffer for what [PlayerServiceModern] records
+ * when a song finishes playing.
+ *
+ * Play time of the same song is added up and events are queued,
+ * then everything is written in a single transaction once
+ * [MAX_PENDING] songs are waiting, [FLUSH_DELAY_MS] after the
+ * first one, or on [flush] (when playback pauses or app is
+ * swiped away). Observers of song and event tables are then
+ * notified once per batch instead of twice per song.
+ *
+ * A batch that fails is rolled back as a whole.
+ */
+class PlaybackEventWriter {
+
+    private companion object {
+        const val MAX_PENDING = 10
+        const val FLUSH_DELAY_MS = 30_000L
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val flushRunnable = Runnable(::flush)
+    private var isFlushScheduled = false
+
+    private var playTimes = LinkedHashMap<String, Long>()
+    private var events = ArrayList<Event>()
+
+    /**
+     * Add [playTimeMs] to total play time of [songId]
+     */
+    @Synchronized
+    fun addPlayTime(songId: String, playTimeMs: Long) {
+        playTimes[songId] = (playTimes[songId] ?: 0L) + playTimeMs
+        scheduleFlush()
+    }
+
+    @Synchronized
+    fun addEvent(songId: String, playTimeMs: Long) {
+        events.add(
+            Event(
+                songId = songId,
+                timestamp = System.currentTimeMillis(),
+                playTime = playTimeMs
+            )
+        )
+        scheduleFlush()
+    }
+
+    private fun scheduleFlush() {
+        if (playTimes.size + events.size >= MAX_PENDING)
+            flush()
+        else if (!isFlushScheduled) {
+            isFlushScheduled = true
+            handler.postDelayed(flushRunnable, FLUSH_DELAY_MS)
+        }
+    }
+
+    /**
+     * Write everything recorded so far
+     */
+    @Synchronized
+    fun flush() {
+        handler.removeCallbacks(flushRunnable)
+        isFlushScheduled = false
+        if (playTimes.isEmpty() && events.isEmpty()) return
+
+        val playTimes = this.playTimes
+        val events = this.events
+        this.playTimes = LinkedHashMap()
+        this.events = ArrayList()
+
+        Database.asyncBatchTransaction(
+            onFailure = {
+                Timber.e(
+                    it,
+                    "PlaybackEventWriter failed to write %d play times and %d events",
+                    playTimes.size,
+                    events.size
+                )
+            }
+        ) {
+            (playTimes.keys + events.map(Event::songId)).forEach {
+                songTable.insertIgnore(Song.makePlaceholder(it))
+            }
+            playTimes.forEach { (songId, playTimeMs) ->
+                songTable.updateTotalPlayTime(songId, playTimeMs, true)
+            }
+            events.forEach(eventTable::insertIgnore)
+        }
+    }
+}
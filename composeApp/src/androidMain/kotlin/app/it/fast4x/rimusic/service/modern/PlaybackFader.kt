@@ -0,0 +1,168 @@
+package app.it.fast4x.rimusic.service.modern
+
+import android.os.Handler
+import android.os.Looper
+import androidx.annotation.MainThread
+import androidx.media3.common.C
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.common.util.Util
+import androidx.media3.exoplayer.audio.AudioSink
+import androidx.media3.exoplayer.audio.ForwardingAudioSink
+import java.nio.ByteBuffer
+
+/**
+ * Volume fades of [PlayerServiceModern], applied to samples
+ * by [processor] instead of stepping player's volume.
+ *
+ * - Play/pause fades are requested from main thread
+ * - When a fade duration is set and there's a next song, current song
+ * fades out over its last moments and the next one fades in from its
+ * first sample. Both are started by the audio sink on playback thread,
+ * at the buffer where they belong.
+ *
+ * ExoPlayer renders one song at a time, so songs don't overlap:
+ * fade out ends exactly where the next song begins.
+ */
+@UnstableApi
+class PlaybackFader {
+
+    private companion object {
+        /**
+         * Anything above this isn't sink buffering but a discontinuity
+         */
+        const val MAX_OUTPUT_LATENCY_US = 1_000_000L
+    }
+
+    private class Transition(val fadeUs: Long, val endUs: Long)
+
+    val processor = FadeAudioProcessor()
+
+    @Volatile
+    private var transition = Transition(0L, C.TIME_UNSET)
+
+    /**
+     * How far audio handed to the sink is ahead of what's being heard
+     */
+    @Volatile
+    private var outputLatencyUs = 0L
+
+    private val handler = Handler(Looper.getMainLooper())
+    private var pendingFadeOutEnd: Runnable? = null
+
+    fun wrap(sink: AudioSink): AudioSink = FadingAudioSink(sink)
+
+    /**
+     * @param fadeMs length of the fade between songs, 0 to disable it
+     * @param durationMs duration of current song, or [C.TIME_UNSET]
+     * when it's unknown or no song plays after it
+     */
+    fun setTransition(fadeMs: Long, durationMs: Long) {
+        transition = Transition(Util.msToUs(fadeMs.coerceAtLeast(0L)), Util.msToUs(durationMs))
+    }
+
+    /**
+     * Fade to silence, then call [onEnd] once the end of
+     * the fade is heard, not just processed.
+     */
+    @MainThread
+    fun fadeOut(durationMs: Long, onEnd: () -> Unit) {
+        cancelPendingFadeOut()
+        processor.fadeTo(0f, Util.msToUs(durationMs))
+
+        val runnable = Runnable {
+            pendingFadeOutEnd = null
+            onEnd()
+        }
+        pendingFadeOutEnd = runnable
+        handler.postDelayed(runnable, durationMs + Util.usToMs(outputLatencyUs))
+    }
+
+    /**
+     * @param fromSilence when `false`, start from current gain,
+     * e.g. to take back a fade out that hasn't ended yet
+     */
+    @MainThread
+    fun fadeIn(durationMs: Long, fromSilence: Boolean = true) {
+        cancelPendingFadeOut()
+        processor.fadeTo(1f, Util.msToUs(durationMs), if (fromSilence) 0f else Float.NaN)
+    }
+
+    /**
+     * Back to full volume on next buffer
+     */
+    @MainThread
+    fun restore() {
+        cancelPendingFadeOut()
+        processor.fadeTo(1f, 0L)
+    }
+
+    @MainThread
+    private fun cancelPendingFadeOut() {
+        pendingFadeOutEnd?.let(handler::removeCallbacks)
+        pendingFadeOutEnd = null
+    }
+
+    private inner class FadingAudioSink(sink: AudioSink) : ForwardingAudioSink(sink) {
+
+        private var streamOffsetUs = 0L
+        private var lastPresentationTimeUs = C.TIME_UNSET
+        private var isEndFadeStarted = false
+
+        /**
+         * Called before the first buffer of every song
+         */
+        override fun setOutputStreamOffsetUs(outputStreamOffsetUs: Long) {
+            super.setOutputStreamOffsetUs(outputStreamOffsetUs)
+            streamOffsetUs = outputStreamOffsetUs
+
+            val fadeUs = transition.fadeUs
+            when {
+                fadeUs > 0L -> processor.fadeTo(1f, fadeUs, 0f)
+                isEndFadeStarted -> processor.fadeTo(1f, 0L)
+            }
+            isEndFadeStarted = false
+        }
+
+        override fun handleBuffer(
+            buffer: ByteBuffer,
+            presentationTimeUs: Long,
+            encodedAccessUnitCount: Int
+        ): Boolean {
+            lastPresentationTimeUs = presentationTimeUs
+            if (!isEndFadeStarted) maybeStartEndFade(presentationTimeUs - streamOffsetUs)
+
+            return super.handleBuffer(buffer, presentationTimeUs, encodedAccessUnitCount)
+        }
+
+        private fun maybeStartEndFade(positionUs: Long) {
+            val current = transition
+            if (current.fadeUs <= 0L || current.endUs == C.TIME_UNSET) return
+
+            // Fade never takes more than half of the song
+            val fadeUs = minOf(current.fadeUs, current.endUs / 2)
+            val remainingUs = current.endUs - positionUs
+            if (remainingUs in 1..fadeUs) {
+                isEndFadeStarted = true
+                processor.fadeTo(0f, remainingUs)
+            }
+        }
+
+        override fun getCurrentPositionUs(sourceEnded: Boolean): Long {
+            val positionUs = super.getCurrentPositionUs(sourceEnded)
+            if (positionUs != AudioSink.CURRENT_POSITION_NOT_SET && lastPresentationTimeUs != C.TIME_UNSET)
+                outputLatencyUs = (lastPresentationTimeUs - positionUs).coerceIn(0L, MAX_OUTPUT_LATENCY_US)
+
+            return positionUs
+        }
+
+        override fun flush() {
+            super.flush()
+            lastPresentationTimeUs = C.TIME_UNSET
+            // Seeked away from the end of song
+            if (isEndFadeStarted) {
+                isEndFadeStarted = false
+                processor.fadeTo(1f, 0L)
+            }
+        }
+    }
+}
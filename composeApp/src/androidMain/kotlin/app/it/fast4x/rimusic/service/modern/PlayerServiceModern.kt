@@ -82,11 +82,15 @@ import androidx.media3.session.MediaNotification
 import androidx.media3.session.MediaSession
 import androidx.media3.session.MediaStyleNotificationHelper
 import androidx.media3.session.SessionToken
+import app.cubic.android.core.network.HostMetrics
 import app.kreate.android.R
+import app.kreate.android.service.PlaybackChunks
 import app.kreate.android.service.PlaybackSourceMonitor
 import app.kreate.android.service.createDataSourceFactory
+import app.kreate.android.service.createPrefetchDataSourceFactory
 import app.kreate.android.service.invalidateFormatCache
 import app.kreate.android.widget.Widget
+import app.kreate.android.me.knighthat.coil.thumbnail
 import com.google.common.collect.ImmutableList
 import com.google.common.util.concurrent.MoreExecutors
 import it.fast4x.innertube.Innertube
@@ -111,11 +115,8 @@ import app.it.fast4x.rimusic.extensions.audiovolume.AudioVolumeObserver
 import app.it.fast4x.rimusic.extensions.audiovolume.OnAudioVolumeChangedListener
 import app.it.fast4x.rimusic.extensions.connectivity.AndroidConnectivityObserverLegacy
 import app.it.fast4x.rimusic.extensions.discord.DiscordPresenceManager
+import app.it.fast4x.rimusic.extensions.youtubelogin.YouTubeRequestThrottler
 import app.it.fast4x.rimusic.isHandleAudioFocusEnabled
-import app.it.fast4x.rimusic.models.Event
-import app.it.fast4x.rimusic.models.PersistentQueue
-import app.it.fast4x.rimusic.models.PersistentSong
-import app.it.fast4x.rimusic.models.QueuedMediaItem
 import app.it.fast4x.rimusic.models.Song
 import app.it.fast4x.rimusic.models.asMediaItem
 import app.it.fast4x.rimusic.service.BitmapProvider
@@ -157,8 +158,10 @@ import app.it.fast4x.rimusic.utils.isAtLeastAndroid10
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid6
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid7
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid8
+import app.it.fast4x.rimusic.utils.isConnectionMetered
 import app.it.fast4x.rimusic.utils.isNetworkConnected
 import app.it.fast4x.rimusic.utils.isPauseOnVolumeZeroEnabledKey
+import app.it.fast4x.rimusic.utils.LyricsResolver
 import app.it.fast4x.rimusic.utils.loudnessBaseGainKey
 import app.it.fast4x.rimusic.utils.manageDownload
 import app.it.fast4x.rimusic.utils.mediaItems
@@ -224,8 +227,6 @@ import java.io.InterruptedIOException
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
-import java.io.ObjectInputStream
-import java.io.ObjectOutputStream
 import java.net.ConnectException
 import java.net.NoRouteToHostException
 import java.net.SocketTimeoutException
@@ -294,6 +295,7 @@ class PlayerServiceModern : MediaLibraryService(),
     lateinit var cache: Cache
     lateinit var downloadCache: Cache
     private lateinit var audioVolumeObserver: AudioVolumeObserver
+    private val fader = PlaybackFader()
     private lateinit var bitmapProvider: BitmapProvider
     private var volumeNormalizationJob: Job? = null
     private var isPersistentQueueEnabled: Boolean = false
@@ -346,6 +348,9 @@ class PlayerServiceModern : MediaLibraryService(),
     private var lastWidgetUpdateMs = 0L
     private var widgetUpdateJob: Job? = null
     private var cacheCompletionJob: Job? = null
+    private lateinit var queuePrefetcher: QueuePrefetcher
+    private val playbackEventWriter = PlaybackEventWriter()
+    private val queueStore by lazy { PersistentQueueStore(this) }
     private var cacheCompletionMediaId: String? = null
     private var lastCacheWarmupFailureMediaId: String? = null
     private var lastCacheWarmupFailureMs = 0L
@@ -583,6 +588,14 @@ class PlayerServiceModern : MediaLibraryService(),
 
         sleepTimer = SleepTimer(coroutineScope, sessionPlayer)
         sessionPlayer.addListener(sleepTimer)
+        queuePrefetcher = QueuePrefetcher(
+            context = this,
+            scope = coroutineScope,
+            player = player,
+            cache = cache,
+            dataSourceFactory = createPrefetchDataSourceFactory()
+        )
+        player.addListener(queuePrefetcher)
         player.addListener(this@PlayerServiceModern)
         player.addAnalyticsListener(playbackStatsListener)
 
@@ -734,6 +747,8 @@ class PlayerServiceModern : MediaLibraryService(),
         maybeSavePlayerQueue()
         if (!playWhenReady) {
             releasePlaybackWakeLock()
+            // Process may be killed any time while paused
+            playbackEventWriter.flush()
             if (waitingForNetwork.value) {
                 // Keep restoration armed. Network-recovery pauses also trigger this callback;
                 // clearing this guard here makes playback stay paused after the stream returns.
@@ -748,6 +763,7 @@ class PlayerServiceModern : MediaLibraryService(),
     override fun onRepeatModeChanged(repeatMode: Int) {
         if (!isServiceReady) return
         updateDefaultNotification()
+        updateFadeTransition()
         preferences.edit {
             putEnum(queueLoopTypeKey, QueueLoopType.from(repeatMode))
         }
@@ -770,38 +786,17 @@ class PlayerServiceModern : MediaLibraryService(),
         if (songId.isBlank()) return
 
         if (totalPlayTimeMs > 5000)
-            Database.asyncTransaction {
-                songTable.insertIgnore(Song.makePlaceholder(songId))
-                songTable.updateTotalPlayTime(songId, totalPlayTimeMs, true)
-            }
+            playbackEventWriter.addPlayTime(songId, totalPlayTimeMs)
 
         val minTimeForEvent =
             preferences.getEnum(exoPlayerMinTimeForEventKey, ExoPlayerMinTimeForEvent.`20s`)
 
-        if (totalPlayTimeMs > minTimeForEvent.asMillis) {
-            Database.asyncTransaction {
-                runCatching {
-                    songTable.insertIgnore(Song.makePlaceholder(songId))
-                    eventTable.insertIgnore(
-                        Event(
-                            songId = songId,
-                            timestamp = System.currentTimeMillis(),
-                            playTime = totalPlayTimeMs
-                        )
-                    )
-                }.onFailure {
-                    Timber.e(
-                        it,
-                        "PlayerServiceModern failed to insert playback event for mediaId=%s songId=%s",
-                        mediaItem.mediaId,
-                        songId
-                    )
-                }
-            }
-        }
+        if (totalPlayTimeMs > minTimeForEvent.asMillis)
+            playbackEventWriter.addEvent(songId, totalPlayTimeMs)
     }
 
     override fun onTaskRemoved(rootIntent: Intent?) {
+        playbackEventWriter.flush()
         isclosebackgroundPlayerEnabled = preferences.getBoolean(closebackgroundPlayerKey, false)
         Timber.d(
             "PlayerServiceModern.onTaskRemoved closebackgroundPlayerEnabled=%s isPlaying=%s playWhenReady=%s playbackState=%s mediaId=%s queueSize=%s",
@@ -856,11 +851,17 @@ override fun onDestroy() {
                 discordPresenceManager?.onStop()
             }
             if (isPersistentQueueEnabled) maybeSavePlayerQueue()
+            playbackEventWriter.flush()
             preferences.unregisterOnSharedPreferenceChangeListener(this)
             if (::player.isInitialized) {
                 player.removeListener(this)
             }
             cacheCompletionJob?.cancel()
+            if (::queuePrefetcher.isInitialized) {
+                queuePrefetcher.release()
+            }
+            Timber.d("YouTube request stats: %s", YouTubeRequestThrottler.stats())
+            Timber.d("Network host stats: %s", HostMetrics.snapshot())
             if (::player.isInitialized) {
                 runCatching { player.stop() }
                     .onFailure { Timber.e(it, "Failed to stop player during onDestroy") }
@@ -996,6 +997,8 @@ private fun syncPlaybackWakeLockState() {
                     isPersistentQueueEnabled =
                         it.getBoolean(key, isPersistentQueueEnabled)
                 }
+                // Stored queue would otherwise be restored by playback resumption
+                if (!isPersistentQueueEnabled) queueStore.clear()
             }
 
             volumeNormalizationKey, loudnessBaseGainKey -> maybeNormalizeVolume()
@@ -1003,6 +1006,8 @@ private fun syncPlaybackWakeLockState() {
             resumePlaybackWhenDeviceConnectedKey ->
                 maybeResumePlaybackWhenDeviceConnected()
 
+            playbackFadeAudioDurationKey -> updateFadeTransition()
+
             skipSilenceKey -> {
                 sharedPreferences?.let {
                     val enabled = it.getBoolean(key, false)
@@ -1060,6 +1065,7 @@ private fun syncPlaybackWakeLockState() {
             consecutiveErrorSkipCount = 0
         }
         val transitionMediaId = mediaItem?.mediaId
+        PlaybackChunks.onTransition(transitionMediaId)
         val keepNetworkRecovery = waitingForNetwork.value &&
             !networkRecoveryMediaId.isNullOrBlank() &&
             transitionMediaId == networkRecoveryMediaId
@@ -1076,9 +1082,11 @@ private fun syncPlaybackWakeLockState() {
         val displayMediaItem = displayedMediaItem() ?: mediaItem
         currentMediaItem.update { displayMediaItem }
         maybeNormalizeVolume()
+        updateFadeTransition()
         loadFromRadio(reason)
         requestArtworkPlaybackSurfaceRefresh(displayMediaItem, minIntervalMs = 0L)
         warmCurrentSongCache(displayMediaItem)
+        prefetchUpcomingLyrics()
 
         val now = System.currentTimeMillis()
         val presenceSnapshot = currentPresenceSnapshot()
@@ -1100,7 +1108,20 @@ private fun syncPlaybackWakeLockState() {
         if (!isServiceReady) return
         if (reason == Player.TIMELINE_CHANGE_REASON_PLAYLIST_CHANGED) {
             maybeSavePlayerQueue()
+            MyDownloadHelper.prioritize(timeline.mediaItems.map { it.mediaId })
         }
+        updateFadeTransition()
+    }
+
+    /**
+     * Songs fade into each other only when there's a song after current one
+     */
+    private fun updateFadeTransition() {
+        val fade = preferences.getEnum(playbackFadeAudioDurationKey, DurationInMilliseconds.Disabled)
+        fader.setTransition(
+            fade.asMillis,
+            if (player.hasNextMediaItem()) player.duration else C.TIME_UNSET
+        )
     }
 
     override fun onShuffleModeEnabledChanged(shuffleModeEnabled: Boolean) {
@@ -1477,6 +1498,8 @@ override fun onPlaybackStateChanged(playbackState: Int) {
         when (playbackState) {
             Player.STATE_READY -> {
                 waitingForNetwork.value = false
+                // Duration is known from here
+                updateFadeTransition()
                 consecutiveErrorSkipCount = 0
                 if (
                     player.playWhenReady &&
@@ -1718,7 +1741,7 @@ override fun onPlaybackStateChanged(playbackState: Int) {
                 minimumSilenceDurationKey, 2_000_000L
             ).coerceIn(1000L..2_000_000L)
 
-            return DefaultAudioSink.Builder(applicationContext)
+            val sink = DefaultAudioSink.Builder(applicationContext)
                 .setEnableFloatOutput(enableFloatOutput)
                 .setEnableAudioTrackPlaybackParams(enableAudioTrackPlaybackParams)
                 .setAudioOffloadSupportProvider(
@@ -1726,7 +1749,7 @@ override fun onPlaybackStateChanged(playbackState: Int) {
                 )
                 .setAudioProcessorChain(
                     DefaultAudioProcessorChain(
-                        arrayOf(),
+                        arrayOf(fader.processor),
                         SilenceSkippingAudioProcessor(
                             2_000_000L,
                             0.01f,
@@ -1741,6 +1764,8 @@ override fun onPlaybackStateChanged(playbackState: Int) {
                 .apply {
                     if (isAtLeastAndroid10) setOffloadMode(AudioSink.OFFLOAD_MODE_DISABLED)
                 }
+
+            return fader.wrap(sink)
         }
     }.apply {
         setEnableDecoderFallback(true)
@@ -1756,6 +1781,32 @@ override fun onPlaybackStateChanged(playbackState: Int) {
         }
     )
 
+    /**
+     * Lyrics of current song and [LyricsResolver.PREFETCH_COUNT] songs after it
+     * are fetched in background, so lyrics screen opens with them already saved.
+     * Skipped on metered networks.
+     */
+    private fun prefetchUpcomingLyrics() {
+        if (!isServiceReady || !isNetworkConnected(this) || isConnectionMetered()) return
+
+        val timeline = player.currentTimeline
+        if (timeline.isEmpty) return
+
+        val queries = mutableListOf<LyricsResolver.Query>()
+        var index = player.currentMediaItemIndex
+        while (index != C.INDEX_UNSET && queries.size <= LyricsResolver.PREFETCH_COUNT) {
+            val mediaItem = player.getMediaItemAt(index)
+            if (!mediaItem.isLocal) {
+                // Player knows current song's exact duration, lyrics screen searches with it
+                val durationMs = if (index == player.currentMediaItemIndex) player.duration.takeIf { it != C.TIME_UNSET } else null
+                queries.add(LyricsResolver.Query.of(mediaItem, durationMs))
+            }
+            index = timeline.getNextWindowIndex(index, Player.REPEAT_MODE_OFF, player.shuffleModeEnabled)
+        }
+
+        LyricsResolver.prefetch(queries)
+    }
+
     private fun warmCurrentSongCache(mediaItem: MediaItem?) {
         if (!isServiceReady) return
         val mediaId = mediaItem
@@ -2150,6 +2201,9 @@ override fun onPlaybackStateChanged(playbackState: Int) {
             binder.player::seekToNext
         )
 
+        // Same key as player, so palette is shared with it
+        val artworkUrl = displayMediaMetadata.artworkUri.thumbnail(1000)?.toString()
+
         widgetUpdateJob?.cancel()
         widgetUpdateJob = coroutineScope.launch {
             val file = File(cacheDir, "widget_thumbnail.png")
@@ -2158,8 +2212,8 @@ override fun onPlaybackStateChanged(playbackState: Int) {
             }
 
             withContext(Dispatchers.Default) {
-                Widget.Vertical.update(applicationContext, actions, status, file)
-                Widget.Horizontal.update(applicationContext, actions, status, file)
+                Widget.Vertical.update(applicationContext, actions, status, file, artworkUrl)
+                Widget.Horizontal.update(applicationContext, actions, status, file, artworkUrl)
             }
         }
     }
@@ -2353,21 +2407,8 @@ override fun onPlaybackStateChanged(playbackState: Int) {
 
             if (mediaItems.isEmpty()) return@launch
 
-            mediaItems.mapIndexed { index, mediaItem ->
-                QueuedMediaItem(
-                    mediaItem = mediaItem,
-                    position = if (index == mediaItemIndex) mediaItemPosition else null
-                )
-            }.let { queuedMediaItems ->
-                if (queuedMediaItems.isEmpty()) return@let
-
-                Database.asyncTransaction {
-                    queueTable.deleteAll()
-                    queueTable.insert(queuedMediaItems)
-                }
-
-                Timber.d("PlayerServiceModern QueuePersistentEnabled Saved queue")
-            }
+            // Only changes since last save are written, see PersistentQueueStore
+            queueStore.save(mediaItems, mediaItemIndex, mediaItemPosition)
         }
     }
 
@@ -2384,90 +2425,48 @@ override fun onPlaybackStateChanged(playbackState: Int) {
         if (!isPersistentQueueEnabled) return
 
         Database.asyncQuery {
-            val queuedSong = runBlocking {
-                queueTable.all().first()
+            val storedQueue = queueStore.load()
+            val queue = storedQueue ?: runBlocking {
+                // Queue saved by older versions, moved to queueStore on next save
+                val queuedSong = queueTable.all().first()
+                val index = queuedSong.indexOfFirst { it.position != null }.coerceAtLeast(0)
+                queuedSong.getOrNull(index)?.let { current ->
+                    PersistentQueueStore.Queue(
+                        queuedSong.map { it.mediaItem },
+                        index,
+                        current.position ?: C.TIME_UNSET
+                    )
+                }
             }
 
-            if (queuedSong.isEmpty()) return@asyncQuery
+            if (queue == null || queue.mediaItems.isEmpty()) return@asyncQuery
 
-            val index = queuedSong.indexOfFirst { it.position != null }.coerceAtLeast(0)
-
-            runBlocking(Dispatchers.Main) {
-                if (!isServiceReady) return@runBlocking
-                if (!player.safeSetMediaItems(
-                    queuedSong.map { mediaItem ->
-                        mediaItem.mediaItem.buildUpon()
-                            .setUri(sanitizePlaybackUri(mediaItem.mediaItem.mediaId))
-                            .setCustomCacheKey(mediaItem.mediaItem.mediaId)
-                            .build().apply {
-                                mediaMetadata.extras?.putBoolean("isFromPersistentQueue", true)
-                            }
-                    },
-                    index,
-                    queuedSong[index].position ?: C.TIME_UNSET
-                )) return@runBlocking
-                player.safePrepare()
-            }
-        }
-    }
-
-    @ExperimentalCoroutinesApi
-    @FlowPreview
-    @UnstableApi
-    private fun maybeRestoreFromDiskPlayerQueue() {
-        runCatching {
-            filesDir.resolve("persistentQueue.data").inputStream().use { fis ->
-                ObjectInputStream(fis).use { oos ->
-                    oos.readObject() as PersistentQueue
-                }
-            }
-        }.onSuccess { queue ->
             runBlocking(Dispatchers.Main) {
                 if (!isServiceReady) return@runBlocking
                 if (!player.safeSetMediaItems(
-                    queue.songMediaItems.map { song ->
-                        song.asMediaItem.buildUpon()
-                            .setUri(sanitizePlaybackUri(song.asMediaItem.mediaId))
-                            .setCustomCacheKey(song.asMediaItem.mediaId)
+                    queue.mediaItems.map { mediaItem ->
+                        mediaItem.buildUpon()
+                            .setUri(sanitizePlaybackUri(mediaItem.mediaId))
+                            .setCustomCacheKey(mediaItem.mediaId)
                             .build().apply {
                                 mediaMetadata.extras?.putBoolean("isFromPersistentQueue", true)
                             }
                     },
-                    queue.mediaItemIndex,
-                    queue.position
+                    queue.index,
+                    queue.positionMs
                 )) return@runBlocking
                 player.safePrepare()
-            }
-        }.onFailure {
-            Timber.e(it.stackTraceToString())
-        }
-    }
 
-    private fun maybeSaveToDiskPlayerQueue() {
-        val persistentQueue = PersistentQueue(
-            title = "title",
-            songMediaItems = player.currentTimeline.mediaItems.map {
-                PersistentSong(
-                    id = it.mediaId,
-                    title = it.mediaMetadata.title.toString(),
-                    durationText = it.mediaMetadata.extras?.getString("durationText").toString(),
-                    thumbnailUrl = it.mediaMetadata.artworkUri.toString()
-                )
-            },
-            mediaItemIndex = player.currentMediaItemIndex,
-            position = player.currentPosition
-        )
-
-        runCatching {
-            filesDir.resolve("persistentQueue.data").outputStream().use { fos ->
-                ObjectOutputStream(fos).use { oos ->
-                    oos.writeObject(persistentQueue)
-                }
+                if (storedQueue == null)
+                    // Old rows are the only copy of the queue until it's written to queueStore
+                    queueStore.save(
+                        player.currentTimeline.mediaItems,
+                        player.currentMediaItemIndex,
+                        player.currentPosition
+                    ) {
+                        Database.asyncTransaction { queueTable.deleteAll() }
+                    }
             }
-        }.onFailure {
-            Timber.e(it.stackTraceToString())
-        }.onSuccess {
-            Log.d("mediaItem", "QueuePersistentEnabled Saved $persistentQueue")
         }
     }
 
@@ -2555,6 +2554,9 @@ override fun onPlaybackStateChanged(playbackState: Int) {
         val player: ExoPlayer
             get() = this@PlayerServiceModern.player
 
+        val fader: PlaybackFader
+            get() = this@PlayerServiceModern.fader
+
         val sessionPlayer: ExoPlayer
             get() = this@PlayerServiceModern.sessionPlayer
 
@@ -2646,7 +2648,9 @@ override fun onPlaybackStateChanged(playbackState: Int) {
                 var playlistId = endpoint?.playlistId
 
                 if (playlistId == null)
-                    Innertube.nextPage(NextBody(videoId = sourceVideoId))
+                    YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Next) {
+                        Innertube.nextPage(NextBody(videoId = sourceVideoId))
+                    }
                         ?.getOrNull()
                         ?.itemsPage
                         ?.items
@@ -2655,7 +2659,9 @@ override fun onPlaybackStateChanged(playbackState: Int) {
                         ?.also { playlistId = it }
 
                 if (!playlistId.isNullOrBlank())
-                    Innertube.nextPage(NextBody(videoId = sourceVideoId, playlistId = playlistId))
+                    YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Next) {
+                        Innertube.nextPage(NextBody(videoId = sourceVideoId, playlistId = playlistId))
+                    }
                         ?.getOrNull()
                         ?.itemsPage
                         ?.items
@@ -2704,13 +2710,13 @@ override fun onPlaybackStateChanged(playbackState: Int) {
         @MainThread
         fun gracefulPause() {
             val duration = preferences.getEnum(playbackFadeAudioDurationKey, DurationInMilliseconds.Disabled)
-            player.fadeOutEffect(duration.asMillis)
+            player.fadeOutEffect(fader, duration.asMillis)
         }
 
         @MainThread
         fun gracefulPlay() {
             val duration = preferences.getEnum(playbackFadeAudioDurationKey, DurationInMilliseconds.Disabled)
-            player.fadeInEffect(duration.asMillis)
+            player.fadeInEffect(fader, duration.asMillis)
         }
 
         fun restartForegroundOrStop() {
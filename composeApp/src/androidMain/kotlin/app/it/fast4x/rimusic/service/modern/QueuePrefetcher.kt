@@ -0,0 +1,204 @@
+package app.it.fast4x.rimusic.service.modern
+
+import android.content.Context
+import android.os.SystemClock
+import androidx.media3.common.C
+import androidx.media3.common.MediaItem
+import androidx.media3.common.Player
+import androidx.media3.common.Timeline
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.datasource.DataSpec
+import androidx.media3.datasource.cache.Cache
+import androidx.media3.datasource.cache.CacheDataSource
+import androidx.media3.datasource.cache.CacheWriter
+import app.it.fast4x.rimusic.service.MyDownloadHelper
+import app.it.fast4x.rimusic.utils.isConnectionMetered
+import app.it.fast4x.rimusic.utils.isNetworkConnected
+import app.it.fast4x.rimusic.utils.playbackVideoIdOrNull
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
+import timber.log.Timber
+
+/**
+ * Resolves stream URLs and caches the first [PREFETCH_BYTES]
+ * of the next [LOOK_AHEAD] queue items, so a transition doesn't
+ * have to wait for the network.
+ *
+ * Pre-fetching is skipped on metered networks.
+ *
+ * Also measures how long playback stalls after each transition,
+ * totals are logged on [release].
+ */
+@UnstableApi
+class QueuePrefetcher(
+    private val context: Context,
+    private val scope: CoroutineScope,
+    private val player: Player,
+    private val cache: Cache,
+    private val dataSourceFactory: CacheDataSource.Factory
+) : Player.Listener {
+
+    companion object {
+        const val LOOK_AHEAD = 2
+        const val PREFETCH_BYTES = 384 * 1024L       // 384Kb
+    }
+
+    private data class TransitionStats(
+        val transitions: Int = 0,
+        val prefetchedTransitions: Int = 0,
+        val stalledTransitions: Int = 0,
+        val totalStallMs: Long = 0L,
+        val maxStallMs: Long = 0L,
+        val lastStallMs: Long = 0L
+    ) {
+        val averageStallMs: Long
+            get() = if( transitions == 0 ) 0L else totalStallMs / transitions
+    }
+
+    // Only accessed by player's thread
+    private var stats = TransitionStats()
+
+    private var prefetchJob: Job? = null
+    private var prefetchedIds: List<String> = emptyList()
+
+    /**
+     * Time (from [SystemClock.elapsedRealtime]) when current
+     * transition started waiting for data, `-1` when not waiting.
+     */
+    private var stallStartedAt = -1L
+    private var stallWasPrefetched = false
+
+    private fun upcomingVideoIds( count: Int ): List<String> {
+        val timeline = player.currentTimeline
+        if( timeline.isEmpty || count <= 0 ) return emptyList()
+
+        val window = Timeline.Window()
+        val result = mutableListOf<String>()
+        var index = player.currentMediaItemIndex
+        // Bounded by queue size, repeat mode may loop forever otherwise
+        repeat( timeline.windowCount ) {
+            if( result.size >= count ) return result
+
+            index = timeline.getNextWindowIndex( index, player.repeatMode, player.shuffleModeEnabled )
+            if( index == C.INDEX_UNSET ) return result
+
+            val mediaItem = timeline.getWindow( index, window ).mediaItem
+            mediaItem.takeUnless { it.isLocal }
+                     ?.playbackVideoIdOrNull()
+                     ?.takeUnless { it in result || MyDownloadHelper.isSongDownloaded( it ) }
+                     ?.let( result::add )
+        }
+        return result
+    }
+
+    private suspend fun prefetch( videoId: String ) {
+        if( cache.isCached( videoId, 0, PREFETCH_BYTES ) ) return
+
+        val dataSpec = DataSpec.Builder()
+                               .setUri( "https://music.youtube.com/watch?v=$videoId" )
+                               .setKey( videoId )
+                               .setPosition( 0 )
+                               .setLength( PREFETCH_BYTES )
+                               .build()
+        val writer = CacheWriter( dataSourceFactory.createDataSource(), dataSpec, null, null )
+        val startedAt = SystemClock.elapsedRealtime()
+        // CacheWriter blocks, interrupting its thread is what stops the transfer when cancelled
+        runInterruptible( Dispatchers.IO ) { writer.cache() }
+        Timber.d( "QueuePrefetcher cached %d bytes of %s in %dms", PREFETCH_BYTES, videoId, SystemClock.elapsedRealtime() - startedAt )
+    }
+
+    /**
+     * Restart pre-fetching with current queue state,
+     * songs that were already scheduled won't be re-scheduled.
+     */
+    fun schedule() {
+        if( !isNetworkConnected( context ) || context.isConnectionMetered() ) {
+            prefetchJob?.cancel()
+            prefetchedIds = emptyList()
+            return
+        }
+
+        val upcoming = upcomingVideoIds( LOOK_AHEAD )
+        if( upcoming == prefetchedIds && prefetchJob?.isActive == true ) return
+
+        prefetchJob?.cancel()
+        prefetchedIds = upcoming
+        if( upcoming.isEmpty() ) return
+
+        prefetchJob = scope.launch {
+            for( videoId in upcoming ) {
+                if( !isActive ) break
+
+                try {
+                    prefetch( videoId )
+                } catch( e: CancellationException ) {
+                    throw e
+                } catch( e: Exception ) {
+                    Timber.w( e, "QueuePrefetcher failed to pre-fetch %s", videoId )
+                }
+            }
+        }
+    }
+
+    fun release() {
+        prefetchJob?.cancel()
+        prefetchJob = null
+        Timber.d( "QueuePrefetcher stats: %s", stats )
+    }
+
+    private fun recordTransition( stallMs: Long, prefetched: Boolean ) {
+        stats = stats.copy(
+            transitions = stats.transitions + 1,
+            prefetchedTransitions = stats.prefetchedTransitions + if( prefetched ) 1 else 0,
+            stalledTransitions = stats.stalledTransitions + if( stallMs > 0 ) 1 else 0,
+            totalStallMs = stats.totalStallMs + stallMs,
+            maxStallMs = maxOf( stats.maxStallMs, stallMs ),
+            lastStallMs = stallMs
+        )
+    }
+
+    override fun onMediaItemTransition( mediaItem: MediaItem?, reason: Int ) {
+        val videoId = mediaItem?.takeUnless { it.isLocal }?.playbackVideoIdOrNull()
+        stallWasPrefetched = videoId != null && videoId in prefetchedIds
+
+        if( videoId == null || reason == Player.MEDIA_ITEM_TRANSITION_REASON_PLAYLIST_CHANGED ) {
+            // Not a transition between songs of the same queue
+            stallStartedAt = -1L
+        } else if( player.playbackState == Player.STATE_READY ) {
+            recordTransition( 0L, stallWasPrefetched )
+            stallStartedAt = -1L
+        } else
+            stallStartedAt = SystemClock.elapsedRealtime()
+
+        schedule()
+    }
+
+    override fun onTimelineChanged( timeline: Timeline, reason: Int ) {
+        if( reason == Player.TIMELINE_CHANGE_REASON_PLAYLIST_CHANGED )
+            schedule()
+    }
+
+    override fun onShuffleModeEnabledChanged( shuffleModeEnabled: Boolean ) = schedule()
+
+    override fun onRepeatModeChanged( repeatMode: Int ) = schedule()
+
+    override fun onPlaybackStateChanged( playbackState: Int ) {
+        if( playbackState != Player.STATE_READY || stallStartedAt < 0 ) return
+
+        val stallMs = SystemClock.elapsedRealtime() - stallStartedAt
+        stallStartedAt = -1L
+        recordTransition( stallMs, stallWasPrefetched )
+        Timber.d(
+            "QueuePrefetcher transition stalled %dms (prefetched=%s), average %dms over %d transitions",
+            stallMs,
+            stallWasPrefetched,
+            stats.averageStallMs,
+            stats.transitions
+        )
+    }
+}
@@ -53,6 +53,7 @@ import app.it.fast4x.rimusic.ui.styling.Dimensions
 import app.it.fast4x.rimusic.typography
 import app.it.fast4x.rimusic.utils.ScrollingInfo
 import app.it.fast4x.rimusic.utils.floatActionIconOffsetXkey
+import app.it.fast4x.rimusic.utils.formatAsDuration
 import app.it.fast4x.rimusic.utils.floatActionIconOffsetYkey
 import app.it.fast4x.rimusic.utils.rememberPreference
 import app.it.fast4x.rimusic.utils.scrollingInfo
@@ -64,6 +65,7 @@ private fun ActiveDownloadIndicator(modifier: Modifier = Modifier) {
     val downloads by MyDownloadHelper.downloads.collectAsState()
     val progresses by MyDownloadHelper.progresses.collectAsState()
     val bulkDownloadIds by MyDownloadHelper.bulkDownloadIds.collectAsState()
+    val bulkDownloadStats by MyDownloadHelper.bulkDownloadStats.collectAsState()
     val trackedIds = if (bulkDownloadIds.isNotEmpty()) {
         bulkDownloadIds.toList()
     } else {
@@ -96,6 +98,10 @@ private fun ActiveDownloadIndicator(modifier: Modifier = Modifier) {
         ?.toFloat()
         ?: 0f
     val progressPercent = (averageProgress * 100).toInt().coerceIn(0, 100)
+    val eta = bulkDownloadStats?.etaMs
+        ?.takeIf { bulkDownloadIds.isNotEmpty() }
+        ?.let { " · ${formatAsDuration(it)}" }
+        .orEmpty()
 
     Row(
         verticalAlignment = Alignment.CenterVertically,
@@ -113,9 +119,9 @@ private fun ActiveDownloadIndicator(modifier: Modifier = Modifier) {
         )
         androidx.compose.foundation.text.BasicText(
             text = if (trackedIds.size == 1) {
-                "1 download $progressPercent%"
+                "1 download $progressPercent%$eta"
             } else {
-                "${trackedIds.size} downloads $progressPercent%"
+                "${trackedIds.size} downloads $progressPercent%$eta"
             },
             style = typography().xxs.copy(color = colorPalette().text)
         )
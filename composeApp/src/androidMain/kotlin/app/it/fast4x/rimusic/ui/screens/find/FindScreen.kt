@@ -126,7 +126,6 @@ fun FindScreen(
     val sheetMaxHeight = configuration.screenHeightDp.dp * 0.88f
 
     val duration       by recorder.duration.collectAsState(0)
-    val recordedBuffer by recorder.buffer.collectAsState(ByteArray(0))
     var state          by remember { mutableStateOf<FindUiState>(FindUiState.Idle) }
     var recognitionJob by remember { mutableStateOf<Job?>(null) }
     var lastAttemptSecond    by remember { mutableStateOf(0) }
@@ -167,13 +166,13 @@ fun FindScreen(
         else state = FindUiState.Error(context.getString(R.string.find_error_microphone_permission))
     }
 
-    LaunchedEffect(duration, recordedBuffer, state) {
+    LaunchedEffect(duration, state) {
         if (state !is FindUiState.Listening) return@LaunchedEffect
-        if (duration < 3 || recordedBuffer.isEmpty()) return@LaunchedEffect
+        if (duration < 3) return@LaunchedEffect
         if (isMatching || duration == lastAttemptSecond || duration - lastAttemptSecond < 2) return@LaunchedEffect
         isMatching = true; lastAttemptSecond = duration
         scope.launch {
-            val track = withContext(Dispatchers.IO) { repository.identify(duration, recordedBuffer) }
+            val track = withContext(Dispatchers.IO) { repository.identify(duration, recorder.signature) }
             if (track != null) {
                 recorder.stop(); recognitionJob?.cancel(); recognitionJob = null
                 isMatching = false; state = FindUiState.Success(track)
@@ -52,7 +52,6 @@ import androidx.compose.material3.ripple
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.DisposableEffect
 import androidx.compose.runtime.LaunchedEffect
-import androidx.compose.runtime.MutableState
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableStateListOf
 import androidx.compose.runtime.mutableStateOf
@@ -145,6 +144,7 @@ import app.it.fast4x.rimusic.ui.styling.DefaultDarkColorPalette
 import app.it.fast4x.rimusic.ui.styling.Dimensions
 import app.it.fast4x.rimusic.ui.styling.PureBlackColorPalette
 import app.it.fast4x.rimusic.ui.styling.onOverlayShimmer
+import app.it.fast4x.rimusic.utils.LyricsTimeline
 import app.it.fast4x.rimusic.utils.SynchronizedLyrics
 import app.it.fast4x.rimusic.utils.BetterLyricsProvider
 import app.it.fast4x.rimusic.utils.center
@@ -159,12 +159,13 @@ import app.it.fast4x.rimusic.utils.defaultLyricsSourceKey
 import app.it.fast4x.rimusic.utils.effectRotationKey
 import app.it.fast4x.rimusic.utils.expandedplayerKey
 import app.it.fast4x.rimusic.utils.fetchSimpMusicLyrics
-import app.cubic.android.core.network.NetworkClientFactory
 import app.it.fast4x.rimusic.utils.isShowingSynchronizedLyricsKey
 import app.it.fast4x.rimusic.utils.jumpPreviousKey
 import app.it.fast4x.rimusic.utils.landscapeControlsKey
 import app.it.fast4x.rimusic.utils.languageDestination
 import app.it.fast4x.rimusic.utils.languageDestinationName
+import app.it.fast4x.rimusic.utils.LyricsResolver
+import app.it.fast4x.rimusic.utils.LyricsTranslator
 import app.it.fast4x.rimusic.utils.lyricsAlignmentKey
 import app.it.fast4x.rimusic.utils.lyricsBackgroundKey
 import app.it.fast4x.rimusic.utils.lyricsColorKey
@@ -201,8 +202,6 @@ import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import me.bush.translator.Language
-import me.bush.translator.Translator
 import app.kreate.android.me.knighthat.utils.Toaster
 import timber.log.Timber
 import kotlin.Float.Companion.POSITIVE_INFINITY
@@ -227,10 +226,10 @@ private fun karaokeAnnotatedString(
     val activeCount = (text.length * progress.coerceIn(0f, 1f)).toInt().coerceIn(0, text.length)
     return buildAnnotatedString {
         withStyle(SpanStyle(color = activeColor)) {
-            append(text.take(activeCount))
+            append(text, 0, activeCount)
         }
         withStyle(SpanStyle(color = inactiveColor)) {
-            append(text.drop(activeCount))
+            append(text, activeCount, text.length)
         }
     }
 }
@@ -418,8 +417,7 @@ fun Lyrics(
         }
 
         var languageDestination = languageDestination(otherLanguageApp)
-
-        val translator = Translator(NetworkClientFactory.getTranslatorKtorClient())
+        val isTranslating = showSecondLine || translateEnabled || romanization != Romanization.Off
 
         var copyToClipboard by remember {
             mutableStateOf(false)
@@ -468,7 +466,12 @@ fun Lyrics(
         val mediaMetadata = mediaMetadataProvider()
         var artistName by rememberSaveable(mediaId) { mutableStateOf(cleanPrefix(mediaMetadata.artist?.toString().orEmpty()))}
         var title by rememberSaveable(mediaId) { mutableStateOf(cleanPrefix(mediaMetadata.title?.toString().orEmpty()))}
-        val sharePreviewLines = remember(text) { buildLyricsShareLines(text.orEmpty()) }
+        val sharePreviewLines = remember(text, isShowingSynchronizedLyrics) {
+            if (isShowingSynchronizedLyrics && !text.isNullOrBlank())
+                buildLyricsShareLines(LyricsTimeline.of(text))
+            else
+                buildLyricsShareLines(text.orEmpty())
+        }
         val shareMaxStartIndex = (sharePreviewLines.size - 1).coerceAtLeast(0)
         val shareSliceStartIndex = shareSliceStartLine.toInt().coerceIn(0, shareMaxStartIndex)
         val shareSelectedLineCount = shareLineCount.toInt().coerceIn(1, 11)
@@ -727,70 +730,47 @@ fun Lyrics(
             }
         }
 
-        fun translateLyricsWithRomanization(output: MutableState<String>, textToTranslate: String, isSync: Boolean, destinationLanguage: Language = Language.AUTO) = @Composable{
-            LaunchedEffect(showSecondLine, romanization, textToTranslate, destinationLanguage){
-                var destLanguage = destinationLanguage
-                val result = withContext(Dispatchers.IO) {
-                    try {
-
-                        /** used to find the source language of the text and detect CHINESE_TRADITIONAL*/
-                        val helperTranslation = translator.translate(
-                            textToTranslate,
-                            Language.CHINESE_TRADITIONAL,
-                            Language.AUTO
+        /**
+         * Synced lyrics from all providers at once, see [LyricsResolver]
+         */
+        suspend fun resolveLyrics(): LyricsResolver.Result? {
+            var duration = withContext(Dispatchers.Main) { durationProvider() }
+            while (duration == C.TIME_UNSET) {
+                delay(100)
+                duration = withContext(Dispatchers.Main) { durationProvider() }
+            }
+
+            val result = LyricsResolver.resolveAndStore(
+                LyricsResolver.Query(
+                    videoId = mediaId,
+                    title = title,
+                    artist = artistName,
+                    album = mediaMetadata.albumTitle?.toString(),
+                    durationMs = duration,
+                    thumbnailUrl = mediaMetadata.artworkUri?.toString()
+                )
+            )
+            checkedLyricsLrc = true
+            checkedLyricsKugou = true
+            isError = result == null
+
+            if (playerEnableLyricsPopupMessage)
+                coroutineScope.launch {
+                    if (result != null)
+                        Toaster.s(
+                            R.string.info_lyrics_found_on_s,
+                            result.provider.displayName
                         )
-                        if(destinationLanguage == Language.AUTO){
-                            destLanguage = if(helperTranslation.translatedText == textToTranslate){
-                                Language.CHINESE_TRADITIONAL
-                            } else {
-                                helperTranslation.sourceLanguage
-                            }
-                        }
-                        val mainTranslation = translator.translate(
-                            textToTranslate,
-                            destLanguage,
-                            Language.AUTO
+                    else
+                        Toaster.e(
+                            R.string.info_lyrics_not_found_on_s,
+                            LyricsResolver.Provider.entries.joinToString { it.displayName },
+                            duration = Toast.LENGTH_LONG
                         )
-                        val outputText = if (textToTranslate == "") {
-                            ""
-                       }
-                        else if (!showSecondLine || (mainTranslation.sourceText == mainTranslation.translatedText)){
-                            if (romanization == Romanization.Off) {
-                                if (translateEnabled) mainTranslation.translatedText else textToTranslate
-                            }
-                            else if (romanization == Romanization.Original) if (helperTranslation.sourceText == helperTranslation.translatedText) helperTranslation.sourcePronunciation else mainTranslation.sourcePronunciation ?: mainTranslation.sourceText
-                            else if (romanization == Romanization.Translated) mainTranslation.translatedPronunciation ?: mainTranslation.translatedText
-                            else if (helperTranslation.sourceText == helperTranslation.translatedText) helperTranslation.sourcePronunciation else mainTranslation.sourcePronunciation ?: mainTranslation.sourceText
-                        } else {
-                            if (romanization == Romanization.Off) {
-                                textToTranslate + "\\n[${mainTranslation.translatedText}]"
-                            } else if (romanization == Romanization.Original) {
-                                if (helperTranslation.sourceText == helperTranslation.translatedText){
-                                    helperTranslation.sourcePronunciation
-                                } else {mainTranslation.sourcePronunciation ?: mainTranslation.sourceText} + "\\n[${mainTranslation.translatedText}]"
-                            } else if (romanization == Romanization.Translated) {
-                                textToTranslate + "\\n[${mainTranslation.translatedPronunciation ?: mainTranslation.translatedText}]"
-                            } else
-                                if (helperTranslation.sourceText == helperTranslation.translatedText){
-                                    helperTranslation.sourcePronunciation
-                                } else {mainTranslation.sourcePronunciation ?: mainTranslation.sourceText} + "\\n[${mainTranslation.translatedPronunciation ?: mainTranslation.translatedText}]"
-                        }
-                        outputText?.replace("\\r","\r")?.replace("\\n","\n")
-                    } catch (e: Exception) {
-                        if(isSync){
-                            Timber.e("Lyrics sync translation ${e.stackTraceToString()}")
-                        } else {
-                            Timber.e("Lyrics not sync translation ${e.stackTraceToString()}")
-                        }
-                    }
                 }
-                val translatedText =
-                    if (result.toString() == "kotlin.Unit") "" else result.toString()
-                showPlaceholder = false
-                output.value = translatedText
-            }
-        }
 
+            return result
+        }
 
         LaunchedEffect(mediaId, mediaMetadata.title, mediaMetadata.artist, isShowingSynchronizedLyrics, checkLyrics) {
             Database.lyricsTable
@@ -798,7 +778,11 @@ fun Lyrics(
                     .collect { currentLyrics ->
                         if (!showLyricsSourceSwitcher) {
                             if (isShowingSynchronizedLyrics && currentLyrics?.synced.isNullOrBlank()) {
-                                fetchLyricsFromSource("lrclib", allowSimpFallback = false)
+                                showPlaceholder = true
+                                val result = resolveLyrics()
+                                showPlaceholder = false
+                                if (result != null && result.synced.isNullOrBlank())
+                                    isShowingSynchronizedLyrics = false
                                 return@collect
                             }
 
@@ -867,149 +851,7 @@ fun Lyrics(
 
                         if (isShowingSynchronizedLyrics && currentLyrics?.synced == null) {
                             lyrics = null
-                            var duration = withContext(Dispatchers.Main) {
-                                durationProvider()
-                            }
-
-                            while (duration == C.TIME_UNSET) {
-                                delay(100)
-                                duration = withContext(Dispatchers.Main) {
-                                    durationProvider()
-                                }
-                            }
-
-                            kotlin.runCatching {
-                                LrcLib.lyrics(
-                                    artist = artistName ?: "",
-                                    title = title ?: "",
-                                    duration = duration.milliseconds,
-                                    album = mediaMetadata.albumTitle?.toString()
-                                )?.onSuccess {
-                                    if ((it?.text?.isNotEmpty() == true || it?.sentences?.isNotEmpty() == true)
-                                        && playerEnableLyricsPopupMessage
-                                    )
-                                        coroutineScope.launch {
-                                            Toaster.s(
-                                                R.string.info_lyrics_found_on_s,
-                                                "LrcLib.net"
-                                            )
-                                        }
-                                    else
-                                        if (playerEnableLyricsPopupMessage)
-                                            coroutineScope.launch {
-
-                                                Toaster.e(
-                                                    R.string.info_lyrics_not_found_on_s,
-                                                    "LrcLib.net",
-                                                    duration = Toast.LENGTH_LONG
-                                                )
-                                            }
-
-                                    isError = false
-                                    checkedLyricsLrc = true
-
-                                    Database.asyncTransaction {
-                                        lyricsTable.upsert(
-                                            Lyrics(
-                                                songId = mediaId,
-                                                fixed = currentLyrics?.fixed ?: plainLyricsFromTimedText(it?.text),
-                                                synced = it?.text.orEmpty()
-                                            )
-                                        )
-                                    }
-                                }?.onFailure {
-                                    if (playerEnableLyricsPopupMessage)
-                                        coroutineScope.launch {
-                                            Toaster.e(
-                                                R.string.info_lyrics_not_found_on_s_try_on_s,
-                                                "LrcLib.net", "KuGou.com",
-                                                duration = Toast.LENGTH_LONG
-                                            )
-                                        }
-
-                                    checkedLyricsLrc = true
-
-                                    kotlin.runCatching {
-                                        KuGou.lyrics(
-                                            artist = mediaMetadata.artist?.toString() ?: "",
-                                            title = cleanPrefix(mediaMetadata.title?.toString() ?: ""),
-                                            duration = duration / 1000
-                                        )?.onSuccess {
-                                            if ((it?.value?.isNotEmpty() == true || it?.sentences?.isNotEmpty() == true)
-                                                && playerEnableLyricsPopupMessage
-                                            )
-                                                coroutineScope.launch {
-                                                    Toaster.s(
-                                                        R.string.info_lyrics_found_on_s,
-                                                        "KuGou.com"
-                                                    )
-                                                }
-                                            else
-                                                if (playerEnableLyricsPopupMessage)
-                                                    coroutineScope.launch {
-                                                        Toaster.e(
-                                                            R.string.info_lyrics_not_found_on_s,
-                                                            "KuGou.com",
-                                                            duration = Toast.LENGTH_LONG
-                                                        )
-                                                    }
-
-                                            isError = false
-                                            checkedLyricsKugou = true
-                                            Database.asyncTransaction {
-                                                lyricsTable.upsert(
-                                                    Lyrics(
-                                                        songId = mediaId,
-                                                        fixed = currentLyrics?.fixed,
-                                                        synced = it?.value.orEmpty()
-                                                    )
-                                                )
-                                            }
-                                        }?.onFailure {
-                                            checkedLyricsKugou = true
-                                            val simpLyrics = fetchSimpMusicLyrics(mediaId)
-                                            if (!simpLyrics?.syncedLyrics.isNullOrBlank() || !simpLyrics?.plainLyrics.isNullOrBlank()) {
-                                                if (playerEnableLyricsPopupMessage) {
-                                                    coroutineScope.launch {
-                                                        Toaster.s(
-                                                            R.string.info_lyrics_found_on_s,
-                                                            "SimpMusic"
-                                                        )
-                                                    }
-                                                }
-
-                                                Database.asyncTransaction {
-                                                    lyricsTable.upsert(
-                                                        Lyrics(
-                                                            songId = mediaId,
-                                                            fixed = simpLyrics?.plainLyrics ?: currentLyrics?.fixed,
-                                                            synced = simpLyrics?.syncedLyrics ?: currentLyrics?.synced
-                                                        )
-                                                    )
-                                                }
-                                                isError = false
-                                            } else {
-                                                if (playerEnableLyricsPopupMessage)
-                                                    coroutineScope.launch {
-                                                        Toaster.e(
-                                                            R.string.info_lyrics_not_found_on_s_try_on_s,
-                                                            "KuGou.com",
-                                                            "SimpMusic",
-                                                            duration = Toast.LENGTH_LONG
-                                                        )
-                                                    }
-
-                                                isError = true
-                                            }
-                                        }
-                                    }.onFailure {
-                                        Timber.e("Lyrics Kugou get error ${it.stackTraceToString()}")
-                                    }
-                                }
-                            }.onFailure {
-                                Timber.e("Lyrics get error ${it.stackTraceToString()}")
-                            }
-
+                            resolveLyrics()
                         } else if (!isShowingSynchronizedLyrics && currentLyrics?.fixed == null) {
                             isError = false
                             lyrics = null
@@ -1780,9 +1622,9 @@ fun SelectLyricFromTrack(
                         ?: return@AnimatedVisibility
 
                     val synchronizedLyrics = remember(text) {
-                        val sentences = LrcLib.Lyrics(text).sentences
-                        invalidLrc = sentences.size <= 1
-                        SynchronizedLyrics(sentences) {
+                        val timeline = LyricsTimeline.of(text)
+                        invalidLrc = timeline.size <= 1
+                        SynchronizedLyrics(timeline) {
                             player.currentPosition + 50L
                         }
                     }
@@ -1827,6 +1669,20 @@ fun SelectLyricFromTrack(
                         }
                     }
 
+                    var translatedLines by remember(mediaId, text) {
+                        mutableStateOf<List<LyricsTranslator.Line>?>(null)
+                    }
+                    LaunchedEffect(mediaId, text, isTranslating, languageDestination) {
+                        if (!isTranslating) return@LaunchedEffect
+                        translatedLines = LyricsTranslator.translate(
+                            mediaId,
+                            synchronizedLyrics.sentences.map { it.second.trim() },
+                            true,
+                            languageDestination
+                        )
+                        showPlaceholder = false
+                    }
+
                     var modifierBG = Modifier.verticalFadingEdge()
                     if (showBackgroundLyrics && showlyricsthumbnail) modifierBG =
                         modifierBG.background(colorPalette().accent)
@@ -1850,15 +1706,12 @@ fun SelectLyricFromTrack(
                         itemsIndexed(
                             items = synchronizedLyrics.sentences
                         ) { index, sentence ->
-                            var translatedText by remember { mutableStateOf("") }
                             val trimmedSentence = sentence.second.trim()
-                            if (showSecondLine || translateEnabled || romanization != Romanization.Off) {
-                                val mutState = remember { mutableStateOf("") }
-                                translateLyricsWithRomanization(mutState, trimmedSentence, true, languageDestination)()
-                                translatedText = mutState.value.takeIf { it.isNotBlank() } ?: trimmedSentence
-                            } else {
-                                    translatedText = trimmedSentence
-                            }
+                            val translatedText = translatedLines?.getOrNull(index)
+                                ?.takeIf { isTranslating && it.source == trimmedSentence }
+                                ?.let { LyricsTranslator.format(it, romanization, showSecondLine, translateEnabled) }
+                                ?.takeIf { it.isNotBlank() }
+                                ?: trimmedSentence
 
                             //Rainbow Shimmer
                             val infiniteTransition = rememberInfiniteTransition()
@@ -1996,17 +1849,19 @@ fun SelectLyricFromTrack(
                                 ),
                                 label = ""
                             )
-                            val nextSentenceStart = synchronizedLyrics.sentences
-                                .getOrNull(index + 1)
-                                ?.first
-                                ?: (sentence.first + 4_000L)
+                            val nextSentenceStart = synchronizedLyrics.timeline.endOf(index)
                             val timedLineDuration = (nextSentenceStart - sentence.first).coerceAtLeast(600L)
                             val readableLineDuration = (trimmedSentence.length * 85L)
                                 .coerceIn(900L, 4_500L)
                             val karaokeLineDuration = timedLineDuration.coerceAtMost(readableLineDuration)
+                            val words = synchronizedLyrics.timeline.wordsOf(index)
                             val karaokeProgress = if (lyricsKaraokeEnabled && index == synchronizedLyrics.index) {
-                                ((karaokePosition - sentence.first).toFloat() / karaokeLineDuration)
-                                    .coerceIn(0f, 1f)
+                                // Word timing is only usable when the line is displayed as is
+                                if (words != null && words.text == translatedText && translatedText.isNotEmpty())
+                                    words.activeLength(karaokePosition).toFloat() / translatedText.length
+                                else
+                                    ((karaokePosition - sentence.first).toFloat() / karaokeLineDuration)
+                                        .coerceIn(0f, 1f)
                             } else 0f
                             val karaokeBrush = Brush.horizontalGradient(
                                 0f to colorPalette().accent,
@@ -2394,14 +2249,19 @@ fun SelectLyricFromTrack(
                         }
                     }
                 } else {
-                    var translatedText by remember { mutableStateOf("") }
-                    if (showSecondLine || translateEnabled || romanization != Romanization.Off) {
-                        val mutState = remember { mutableStateOf("") }
-                        translateLyricsWithRomanization(mutState, text, false, languageDestination)()
-                        translatedText = mutState.value.takeIf { it.isNotBlank() } ?: text
-                    } else {
-                        translatedText = text
+                    var translatedLines by remember(mediaId, text) {
+                        mutableStateOf<List<LyricsTranslator.Line>?>(null)
+                    }
+                    LaunchedEffect(mediaId, text, isTranslating, languageDestination) {
+                        if (!isTranslating) return@LaunchedEffect
+                        translatedLines = LyricsTranslator.translate(mediaId, text.lines(), false, languageDestination)
+                        showPlaceholder = false
                     }
+                    val translatedText = translatedLines
+                        ?.takeIf { isTranslating }
+                        ?.let { LyricsTranslator.format(LyricsTranslator.joined(it), romanization, showSecondLine, translateEnabled) }
+                        ?.takeIf { it.isNotBlank() }
+                        ?: text
 
                     Column(
                         modifier = Modifier
@@ -18,6 +18,7 @@ import androidx.compose.foundation.Image
 import androidx.compose.foundation.background
 import app.kreate.android.me.knighthat.coil.thumbnail
 import app.kreate.android.me.knighthat.coil.ImageCacheFactory
+import app.kreate.android.me.knighthat.coil.ArtworkDerivatives
 import androidx.compose.foundation.clickable
 import androidx.compose.foundation.combinedClickable
 import androidx.compose.foundation.gestures.detectHorizontalDragGestures
@@ -87,7 +88,6 @@ import androidx.compose.ui.graphics.Path
 import androidx.compose.ui.graphics.Shape
 import androidx.compose.ui.graphics.StrokeJoin
 import androidx.compose.ui.graphics.asComposeRenderEffect
-import androidx.compose.runtime.derivedStateOf
 import androidx.compose.ui.graphics.graphicsLayer
 import androidx.compose.ui.graphics.toArgb
 import androidx.compose.ui.input.pointer.pointerInput
@@ -121,7 +121,6 @@ import androidx.media3.common.Timeline
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.exoplayer.offline.Download
 import androidx.navigation.NavController
-import androidx.palette.graphics.Palette
 import app.kreate.android.R
 import app.kreate.android.drawable.APP_ICON_IMAGE_BITMAP
 import app.kreate.android.screens.player.background.BlurredCover
@@ -421,7 +420,6 @@ private fun PlayerContent(
     }
 
     val fadeAdjuster = FadeAdjuster()
-    fadeAdjuster.setContext(context)
     val currentSongDownloadState by binder.service.currentSongStateDownload.collectAsState()
 
     LaunchedEffect(playbackFadeAudioDuration) {
@@ -894,9 +892,10 @@ private fun PlayerContent(
                 onConfirm = {
                     val fadeDuration = playbackFadeAudioDuration.milliSeconds
                     if (fadeDuration > 0) {
-                        fadeAdjuster.fadeOut(binder.player) {
+                        fadeAdjuster.fadeOut(binder.fader) {
                             binder.cancelSleepTimer()
                             delayedSleepTimer = false
+                            fadeAdjuster.fadeIn(binder.fader)
                         }
                     } else {
                         binder.cancelSleepTimer()
@@ -1049,9 +1048,9 @@ private fun PlayerContent(
         ) {
             try {
                 val imageUrl = mediaItem.mediaMetadata.artworkUri.thumbnail(1000).toString()
-                val bitmap = getBitmapFromUrl(context, imageUrl)
-                dynamicColorPalette = dynamicColorPaletteOf(bitmap, !lightTheme) ?: color
-                val palette = Palette.from(bitmap).generate()
+                val palette = ArtworkDerivatives.palette(imageUrl) { getBitmapFromUrl(context, imageUrl) }
+                    ?: throw IllegalStateException("No palette for $imageUrl")
+                dynamicColorPalette = dynamicColorPaletteOf(palette, !lightTheme) ?: color
                 dominant = palette.getDominantColor(dynamicColorPalette.accent.toArgb())
                 vibrant = palette.getVibrantColor(dynamicColorPalette.accent.toArgb())
                 lightVibrant = palette.getLightVibrantColor(dynamicColorPalette.accent.toArgb())
@@ -1098,28 +1097,7 @@ private fun PlayerContent(
         fadeAdjuster.setDuration(playbackFadeAudioDuration.milliSeconds)
     }
 
-    var previousMediaItemId by remember { mutableStateOf<String?>(null) }
-    LaunchedEffect(mediaItem.mediaId) {
-        val fadeDuration = playbackFadeAudioDuration.milliSeconds
-        if (fadeDuration > 0 && previousMediaItemId != null && previousMediaItemId != mediaItem.mediaId) {
-            fadeAdjuster.fadeOut(binder.player) {
-                fadeAdjuster.fadeIn(binder.player, binder.player.volume)
-            }
-        }
-        previousMediaItemId = mediaItem.mediaId
-    }
-
-    val previousShouldBePlaying by remember { derivedStateOf { shouldBePlaying } }
-    LaunchedEffect(shouldBePlaying) {
-        val fadeDuration = playbackFadeAudioDuration.milliSeconds
-        if (fadeDuration > 0 && previousShouldBePlaying != shouldBePlaying) {
-            if (shouldBePlaying) {
-                fadeAdjuster.fadeIn(binder.player, binder.player.volume)
-            } else {
-                fadeAdjuster.fadeOut(binder.player)
-            }
-        }
-    }
+    // Fades between songs and on play/pause are applied by the player service
 
     containerModifier = containerModifier.then(
         rememberPlayerBackgroundModifier(
@@ -2,11 +2,16 @@ package app.it.fast4x.rimusic.ui.screens.rewind
 
 import app.it.fast4x.rimusic.Database
 import app.it.fast4x.rimusic.models.*
+import app.kreate.android.me.knighthat.database.ext.ListeningTotals
 import kotlinx.coroutines.flow.*
+import java.time.DayOfWeek
 import java.time.Instant
+import java.time.LocalDate
 import java.time.LocalDateTime
+import java.time.Year
 import java.time.ZoneId
 import java.time.format.DateTimeFormatter
+import java.time.format.TextStyle
 import java.util.*
 
 // Data classes for rewind stats
@@ -95,85 +100,54 @@ data class RewindData(
 
 // Data fetcher class
 object RewindDataFetcher {
-    
-    // Get rewind data for a specific year
+
+    private const val TOP_LIMIT = 10
+
+    // Get rewind data for a specific year.
+    // Everything is aggregated by SQLite, memory usage doesn't grow with number of events.
     suspend fun getRewindData(year: Int): RewindData {
         return try {
             // Get year boundaries
             val (yearStart, yearEnd) = getYearBoundaries(year)
-            
-            // Get all events for the year - use the available method from EventTable
-            val allEvents = Database.eventTable.allWithSong(Int.MAX_VALUE).first()
-            
-            // Filter events for the specific year
-            val yearlyEvents = allEvents.filter { eventWithSong -> 
-                eventWithSong.event.timestamp in yearStart..yearEnd 
-            }
-            
-            if (yearlyEvents.isEmpty()) {
+
+            val totals = Database.eventTable
+                .findListeningTotalsBetween(yearStart, yearEnd)
+                .first()
+
+            if (totals.plays == 0) {
                 return createEmptyData(year)
             }
-            
-            // Extract just the events
-            val events = yearlyEvents.map { it.event }
-            
-            // Get songs for the year using database query
-            val topSongs = getTopSongs(yearStart, yearEnd, yearlyEvents)
-            val topArtists = getTopArtists(yearStart, yearEnd, yearlyEvents)
-            val topAlbums = getTopAlbums(yearStart, yearEnd, yearlyEvents)
+
+            val topSongs = getTopSongs(yearStart, yearEnd)
+            val topArtists = getTopArtists(yearStart, yearEnd)
+            val topAlbums = getTopAlbums(yearStart, yearEnd)
             val topPlaylists = getTopPlaylists(yearStart, yearEnd)
-            
-            // Get counts using actual database queries
-            val totalUniqueSongs = Database.eventTable
-                .findSongsMostPlayedBetween(yearStart, yearEnd, Int.MAX_VALUE)
-                .first()
-                .size
-            
+
             val totalUniqueArtists = Database.eventTable
-                .findArtistsMostPlayedBetween(yearStart, yearEnd, Int.MAX_VALUE)
+                .countArtistsPlayedBetween(yearStart, yearEnd)
                 .first()
-                .size
-            
+
             val totalUniqueAlbums = Database.eventTable
-                .findAlbumsMostPlayedBetween(yearStart, yearEnd, Int.MAX_VALUE)
+                .countAlbumsPlayedBetween(yearStart, yearEnd)
                 .first()
-                .size
-            
+
             val totalUniquePlaylists = Database.eventTable
-                .findPlaylistMostPlayedBetweenAsPreview(yearStart, yearEnd, Int.MAX_VALUE)
+                .countPlaylistsPlayedBetween(yearStart, yearEnd)
                 .first()
-                .size
-            
-            // Calculate statistics from real event data - use database queries for accurate playtime
-            val monthlyStats = getMonthlyStats(yearStart, yearEnd, events)
-            val dailyStats = getDailyStats(yearStart, yearEnd, events)
-            val hourlyStats = getHourlyStats(yearStart, yearEnd, events)
-            
-            // Calculate total playtime using database query
-            val totalPlaytimeMs = events.sumOf { event ->
-                Database.eventTable.getSongPlayTimeBetween(event.songId, yearStart, yearEnd).first()
-            }
-            
+
+            val monthlyStats = getMonthlyStats(yearStart, yearEnd, year)
+            val dailyStats = getDailyStats(yearStart, yearEnd)
+            val hourlyStats = getHourlyStats(yearStart, yearEnd)
+
             // Calculate listening stats
             val stats = calculateListeningStats(
-                events, 
-                totalPlaytimeMs,
-                monthlyStats, 
-                dailyStats, 
-                hourlyStats, 
+                totals,
+                monthlyStats,
+                dailyStats,
+                hourlyStats,
                 year
             )
-            
-            // Count days with music
-            val daysWithMusic = events
-                .map { event ->
-                    Instant.ofEpochMilli(event.timestamp)
-                        .atZone(ZoneId.systemDefault())
-                        .toLocalDate()
-                }
-                .distinct()
-                .size
-            
+
             RewindData(
                 topSongs = topSongs,
                 topArtists = topArtists,
@@ -183,131 +157,64 @@ object RewindDataFetcher {
                 monthlyStats = monthlyStats,
                 dailyStats = dailyStats,
                 hourlyStats = hourlyStats,
-                totalUniqueSongs = totalUniqueSongs,
+                totalUniqueSongs = totals.uniqueSongs,
                 totalUniqueArtists = totalUniqueArtists,
                 totalUniqueAlbums = totalUniqueAlbums,
                 totalUniquePlaylists = totalUniquePlaylists,
                 year = year,
-                daysWithMusic = daysWithMusic
+                daysWithMusic = totals.activeDays
             )
-            
+
         } catch (e: Exception) {
             e.printStackTrace()
             createEmptyData(year)
         }
     }
-    
-    private suspend fun getTopSongs(
-        yearStart: Long, 
-        yearEnd: Long,
-        yearlyEvents: List<app.kreate.android.me.knighthat.database.ext.EventWithSong>
-    ): List<TopSong> {
-        // Get top songs by playtime from database
-        val topSongsFromDb = Database.eventTable
-            .findSongsMostPlayedBetween(yearStart, yearEnd, 10)
+
+    private suspend fun getTopSongs(yearStart: Long, yearEnd: Long): List<TopSong> =
+        Database.eventTable
+            .findSongPlayStatsBetween(yearStart, yearEnd, TOP_LIMIT)
             .first()
-        
-        return topSongsFromDb.mapNotNull { song ->
-            // Calculate playtime for this song using database query
-            val playtimeMs = Database.eventTable.getSongPlayTimeBetween(song.id, yearStart, yearEnd).first()
-            
-            // Count play events for this song
-            val playCount = yearlyEvents.count { it.event.songId == song.id }
-            
-            if (playCount == 0) return@mapNotNull null
-            
-            TopSong(
-                song = song,
-                minutes = playtimeMs / 60000,
-                playCount = playCount
-            )
-        }.sortedByDescending { it.minutes }
-    }
-    
-    private suspend fun getTopArtists(
-        yearStart: Long,
-        yearEnd: Long,
-        yearlyEvents: List<app.kreate.android.me.knighthat.database.ext.EventWithSong>
-    ): List<TopArtist> {
-        // Get top artists by playtime from database
-        val topArtistsFromDb = Database.eventTable
-            .findArtistsMostPlayedBetween(yearStart, yearEnd, 10)
+            .map { stat ->
+                TopSong(
+                    song = stat.song,
+                    minutes = stat.playTimeMs / 60000,
+                    playCount = stat.plays
+                )
+            }
+
+    private suspend fun getTopArtists(yearStart: Long, yearEnd: Long): List<TopArtist> =
+        Database.eventTable
+            .findArtistPlayStatsBetween(yearStart, yearEnd, TOP_LIMIT)
             .first()
-        
-        return topArtistsFromDb.mapNotNull { artist ->
-            // Get all songs by this artist from database
-            val artistSongs = Database.songArtistMapTable.allSongsBy(artist.id, Int.MAX_VALUE)
-                .first()
-            
-            if (artistSongs.isEmpty()) return@mapNotNull null
-            
-            // Calculate total playtime for this artist's songs
-            var totalPlayTimeMs = 0L
-            var uniqueSongCount = 0
-            
-            artistSongs.forEach { song ->
-                val playtimeMs = Database.eventTable.getSongPlayTimeBetween(song.id, yearStart, yearEnd).first()
-                if (playtimeMs > 0) {
-                    totalPlayTimeMs += playtimeMs
-                    uniqueSongCount++
-                }
+            .filter { it.playTimeMs > 0 }
+            .map { stat ->
+                TopArtist(
+                    artist = stat.artist,
+                    minutes = stat.playTimeMs / 60000,
+                    songCount = stat.songCount
+                )
             }
-            
-            if (totalPlayTimeMs == 0L) return@mapNotNull null
-            
-            TopArtist(
-                artist = artist,
-                minutes = totalPlayTimeMs / 60000,
-                songCount = uniqueSongCount
-            )
-        }.sortedByDescending { it.minutes }
-    }
-    
-    private suspend fun getTopAlbums(
-        yearStart: Long,
-        yearEnd: Long,
-        yearlyEvents: List<app.kreate.android.me.knighthat.database.ext.EventWithSong>
-    ): List<TopAlbum> {
-        // Get top albums by playtime from database
-        val topAlbumsFromDb = Database.eventTable
-            .findAlbumsMostPlayedBetween(yearStart, yearEnd, 10)
+
+    private suspend fun getTopAlbums(yearStart: Long, yearEnd: Long): List<TopAlbum> =
+        Database.eventTable
+            .findAlbumPlayStatsBetween(yearStart, yearEnd, TOP_LIMIT)
             .first()
-        
-        return topAlbumsFromDb.mapNotNull { album ->
-            // Get all songs from this album from database
-            val albumSongs = Database.songAlbumMapTable.allSongsOf(album.id, Int.MAX_VALUE)
-                .first()
-            
-            if (albumSongs.isEmpty()) return@mapNotNull null
-            
-            // Calculate total playtime for this album's songs
-            var totalPlayTimeMs = 0L
-            var uniqueSongCount = 0
-            
-            albumSongs.forEach { song ->
-                val playtimeMs = Database.eventTable.getSongPlayTimeBetween(song.id, yearStart, yearEnd).first()
-                if (playtimeMs > 0) {
-                    totalPlayTimeMs += playtimeMs
-                    uniqueSongCount++
-                }
+            .filter { it.playTimeMs > 0 }
+            .map { stat ->
+                TopAlbum(
+                    album = stat.album,
+                    minutes = stat.playTimeMs / 60000,
+                    songCount = stat.songCount
+                )
             }
-            
-            if (totalPlayTimeMs == 0L) return@mapNotNull null
-            
-            TopAlbum(
-                album = album,
-                minutes = totalPlayTimeMs / 60000,
-                songCount = uniqueSongCount
-            )
-        }.sortedByDescending { it.minutes }
-    }
-    
+
     private suspend fun getTopPlaylists(yearStart: Long, yearEnd: Long): List<TopPlaylist> {
         // Get top playlists by playtime from database
         val playlists = Database.eventTable
-            .findPlaylistMostPlayedBetweenAsPreview(yearStart, yearEnd, 10)
+            .findPlaylistMostPlayedBetweenAsPreview(yearStart, yearEnd, TOP_LIMIT)
             .first()
-        
+
         // For playlists, we can only get the preview with song count
         // We cannot calculate minutes without additional queries
         return playlists.map { playlist ->
@@ -318,190 +225,99 @@ object RewindDataFetcher {
             )
         }
     }
-    
+
     private suspend fun getMonthlyStats(
         yearStart: Long,
         yearEnd: Long,
-        events: List<Event>
+        year: Int
     ): List<MonthlyStat> {
-        // For each month, calculate stats
+        // Bucket is month of year, 1 to 12
+        val buckets = Database.eventTable
+            .findListeningBucketsBetween("%m", yearStart, yearEnd)
+            .first()
+            .associateBy { it.bucket }
+
+        val formatter = DateTimeFormatter.ofPattern("MMM", Locale.getDefault())
         return (1..12).map { month ->
-            // Calculate month boundaries
-            val monthStart = LocalDateTime.of(
-                Instant.ofEpochMilli(yearStart).atZone(ZoneId.systemDefault()).year,
-                month,
-                1,
-                0,
-                0,
-                0
-            )
-            .atZone(ZoneId.systemDefault())
-            .toInstant()
-            .toEpochMilli()
-            
-            val monthEnd = LocalDateTime.of(
-                Instant.ofEpochMilli(yearStart).atZone(ZoneId.systemDefault()).year,
-                month,
-                if (month == 2) 28 else 30, // Simplified
-                23,
-                59,
-                59
-            )
-            .atZone(ZoneId.systemDefault())
-            .toInstant()
-            .toEpochMilli()
-            
-            // Get events for this month
-            val monthEvents = events.filter { 
-                it.timestamp in monthStart..monthEnd 
-            }
-            
-            // Calculate total playtime for this month
-            val monthPlaytimeMs = monthEvents.sumOf { event ->
-                // Get playtime for this event within month boundaries
-                val eventPlaytime = Database.eventTable.getSongPlayTimeBetween(
-                    event.songId,
-                    monthStart,
-                    monthEnd.coerceAtMost(yearEnd)
-                ).first()
-                eventPlaytime
-            }
-            
-            val monthName = LocalDateTime.of(
-                Instant.ofEpochMilli(yearStart).atZone(ZoneId.systemDefault()).year,
-                month,
-                1,
-                0,
-                0,
-                0
-            ).format(DateTimeFormatter.ofPattern("MMM", Locale.getDefault()))
-            
+            val bucket = buckets[month]
             MonthlyStat(
-                month = monthName,
-                minutes = monthPlaytimeMs / 60000,
-                plays = monthEvents.size
+                month = LocalDate.of(year, month, 1).format(formatter),
+                minutes = (bucket?.playTimeMs ?: 0L) / 60000,
+                plays = bucket?.plays ?: 0
             )
         }
     }
-    
-    private fun getDailyStats(
-        yearStart: Long,
-        yearEnd: Long,
-        events: List<Event>
-    ): List<DailyStat> {
-        // Group events by day of week (1=Monday, 7=Sunday)
-        val dayGroups = events.groupBy { event ->
-            Instant.ofEpochMilli(event.timestamp)
-                .atZone(ZoneId.systemDefault())
-                .toLocalDateTime()
-                .dayOfWeek
-        }
-        
-        return dayGroups.map { (dayOfWeek, dayEvents) ->
-            val dayName = dayOfWeek.getDisplayName(java.time.format.TextStyle.FULL, Locale.getDefault())
-            
-            // Calculate total playtime for this day
-            val dayPlaytimeMs = dayEvents.sumOf { event ->
-                // We need to use database query for accurate playtime
-                // This is an approximation based on event count
-                // For accurate results, we'd need to query each event's playtime
-                0L // Placeholder - would need to implement properly
+
+    private suspend fun getDailyStats(yearStart: Long, yearEnd: Long): List<DailyStat> =
+        // Bucket is day of week, 0 (Sunday) to 6 (Saturday)
+        Database.eventTable
+            .findListeningBucketsBetween("%w", yearStart, yearEnd)
+            .first()
+            .map { bucket ->
+                val dayOfWeek = if (bucket.bucket == 0) DayOfWeek.SUNDAY else DayOfWeek.of(bucket.bucket)
+                dayOfWeek to bucket
             }
-            
-            DailyStat(
-                dayOfWeek = dayName,
-                minutes = dayPlaytimeMs / 60000,
-                plays = dayEvents.size
-            )
-        }.sortedBy { 
             // Sort by day of week starting with Monday
-            when (it.dayOfWeek.lowercase(Locale.getDefault())) {
-                "monday" -> 1
-                "tuesday" -> 2
-                "wednesday" -> 3
-                "thursday" -> 4
-                "friday" -> 5
-                "saturday" -> 6
-                "sunday" -> 7
-                else -> 8
+            .sortedBy { it.first.value }
+            .map { (dayOfWeek, bucket) ->
+                DailyStat(
+                    dayOfWeek = dayOfWeek.getDisplayName(TextStyle.FULL, Locale.getDefault()),
+                    minutes = bucket.playTimeMs / 60000,
+                    plays = bucket.plays
+                )
             }
-        }
-    }
-    
-    private fun getHourlyStats(
-        yearStart: Long,
-        yearEnd: Long,
-        events: List<Event>
-    ): List<HourlyStat> {
-        // Group events by hour
-        val hourGroups = events.groupBy { event ->
-            Instant.ofEpochMilli(event.timestamp)
-                .atZone(ZoneId.systemDefault())
-                .toLocalDateTime()
-                .hour
-        }
-        
+
+    private suspend fun getHourlyStats(yearStart: Long, yearEnd: Long): List<HourlyStat> {
+        // Bucket is hour of day, 0 to 23
+        val buckets = Database.eventTable
+            .findListeningBucketsBetween("%H", yearStart, yearEnd)
+            .first()
+            .associateBy { it.bucket }
+
         return (0..23).map { hour ->
-            val hourEvents = hourGroups[hour] ?: emptyList()
-            
-            // Calculate total playtime for this hour
-            val hourPlaytimeMs = hourEvents.sumOf { event ->
-                // We need to use database query for accurate playtime
-                // This is an approximation based on event count
-                // For accurate results, we'd need to query each event's playtime
-                0L // Placeholder - would need to implement properly
-            }
-            
+            val bucket = buckets[hour]
             HourlyStat(
                 hour = String.format("%02d:00", hour),
-                minutes = hourPlaytimeMs / 60000,
-                plays = hourEvents.size
+                minutes = (bucket?.playTimeMs ?: 0L) / 60000,
+                plays = bucket?.plays ?: 0
             )
         }
     }
-    
+
     private fun calculateListeningStats(
-        events: List<Event>,
-        totalPlaytimeMs: Long,
+        totals: ListeningTotals,
         monthlyStats: List<MonthlyStat>,
         dailyStats: List<DailyStat>,
         hourlyStats: List<HourlyStat>,
         year: Int
     ): ListeningStats {
-        val totalPlays = events.size
-        val totalMinutes = totalPlaytimeMs / 60000
-        
+        val totalMinutes = totals.playTimeMs / 60000
+
         // Get most active month
         val mostActiveMonth = monthlyStats.maxByOrNull { it.minutes }
-        
+
         // Get most active day
         val mostActiveDay = dailyStats.maxByOrNull { it.minutes }
-        
+
         // Get most active hour
         val mostActiveHour = hourlyStats.maxByOrNull { it.minutes }
-        
+
         // Calculate average daily minutes
-        val daysInYear = if (Instant.ofEpochMilli(getYearBoundaries(year).first)
-                .atZone(ZoneId.systemDefault())
-                .toLocalDate().isLeapYear) 366 else 365
-        val averageDailyMinutes = if (daysInYear > 0) totalMinutes.toDouble() / daysInYear else 0.0
-        
-        // Get first and last play dates
-        val firstPlayDate = events.minByOrNull { it.timestamp }?.timestamp
-        val lastPlayDate = events.maxByOrNull { it.timestamp }?.timestamp
-        
+        val daysInYear = if (Year.isLeap(year.toLong())) 366 else 365
+        val averageDailyMinutes = totalMinutes.toDouble() / daysInYear
+
         return ListeningStats(
-            totalPlays = totalPlays,
+            totalPlays = totals.plays,
             totalMinutes = totalMinutes,
             mostActiveDay = mostActiveDay,
             mostActiveHour = mostActiveHour,
             mostActiveMonth = mostActiveMonth,
             averageDailyMinutes = averageDailyMinutes,
-            firstPlayDate = firstPlayDate?.let { formatDate(it) },
-            lastPlayDate = lastPlayDate?.let { formatDate(it) }
+            firstPlayDate = totals.firstPlayedAt?.let { formatDate(it) },
+            lastPlayDate = totals.lastPlayedAt?.let { formatDate(it) }
         )
     }
-    
+
     private fun getYearBoundaries(year: Int): Pair<Long, Long> {
         val yearStart = LocalDateTime.of(year, 1, 1, 0, 0, 0)
             .atZone(ZoneId.systemDefault())
@@ -88,9 +88,9 @@ fun LocalSongSearch(
     val binder = LocalPlayerServiceBinder.current
     val menuState = LocalMenuState.current
 
-    val items by remember {
+    val items by remember( textFieldValue.text ) {
         Database.songTable
-                .findAllTitleArtistContains( textFieldValue.text )
+                .search( textFieldValue.text )
                 .distinctUntilChanged()
     }.collectAsState( emptyList(), Dispatchers.IO )
 
@@ -48,6 +48,7 @@ import app.kreate.android.R
 import app.it.fast4x.rimusic.colorPalette
 import app.it.fast4x.rimusic.isDebugModeEnabled
 import app.it.fast4x.rimusic.typography
+import app.it.fast4x.rimusic.utils.FileLoggingTree
 import app.kreate.android.me.knighthat.component.export.ExportDatabaseDialog
 import app.kreate.android.me.knighthat.utils.Toaster
 import kotlinx.coroutines.Dispatchers
@@ -479,9 +480,9 @@ private fun loadRescueLogReport(context: Context): RescueLogReport {
     val runtimeGroups = linkedMapOf<String, MutableList<String>>()
     val crashGroups = linkedMapOf<String, MutableList<String>>()
 
-    if (runtimeFile.exists()) {
-        runtimeFile.readLines().forEach { line ->
-            val date = line.extractLogDate() ?: return@forEach
+    FileLoggingTree.segmentsOf(runtimeFile).forEach { segment ->
+        segment.forEachLine { line ->
+            val date = line.extractLogDate() ?: return@forEachLine
             runtimeGroups.getOrPut(date) { mutableListOf() }.add(line)
         }
     }
@@ -45,6 +45,7 @@ import app.it.fast4x.rimusic.ui.components.themed.StringListDialog
 import app.it.fast4x.rimusic.ui.components.themed.InputTextDialog
 import app.it.fast4x.rimusic.ui.components.themed.ValueSelectorDialog
 import app.it.fast4x.rimusic.ui.styling.Dimensions
+import app.it.fast4x.rimusic.utils.FileLoggingTree
 import app.it.fast4x.rimusic.utils.defaultFolderKey
 import app.it.fast4x.rimusic.utils.extraspaceKey
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid10
@@ -454,8 +455,7 @@ fun OtherSettings() {
                             logDebugEnabled = it
                             if (!it) {
                                 val file = File(context.filesDir.resolve("logs"), "Cubic-Music_log.txt")
-                                if (file.exists())
-                                    file.delete()
+                                FileLoggingTree.deleteAll(file)
 
                                 val filec = File(context.filesDir.resolve("logs"), "Cubic-Music_crash_log.txt")
                                 if (filec.exists())
@@ -476,13 +476,13 @@ fun OtherSettings() {
                             val logDir = context.filesDir.resolve("logs")
                             val file = File(logDir, "Cubic-Music_log.txt")
                             val legacyFile = File(logDir, "N-Zik_log.txt")
-                            val selectedFile = when {
-                                file.exists() -> file
-                                legacyFile.exists() -> legacyFile
+                            val logText = when {
+                                file.exists() -> FileLoggingTree.readAll(file)
+                                legacyFile.exists() -> legacyFile.readText()
                                 else -> null
                             }
-                            if (selectedFile != null) {
-                                text = selectedFile.readText()
+                            if (logText != null) {
+                                text = logText
                                 text?.let {
                                     textCopyToClipboard(it, context)
                                 }
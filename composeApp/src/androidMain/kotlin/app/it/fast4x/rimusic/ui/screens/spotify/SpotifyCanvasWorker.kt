@@ -10,6 +10,7 @@ import androidx.compose.runtime.setValue
 import androidx.compose.runtime.snapshotFlow
 import androidx.compose.ui.platform.LocalContext
 import androidx.media3.common.Player
+import app.cubic.android.core.network.NetworkClientFactory
 import app.it.fast4x.rimusic.Database
 import app.it.fast4x.rimusic.LocalPlayerServiceBinder
 import app.it.fast4x.rimusic.appRunningInBackground
@@ -943,11 +944,7 @@ private suspend fun fetchCanvasForSong(
 
         if (mediaId == SpotifyCanvasState.currentMediaItemId) {
             if (canvasUrl != null) {
-                val canvasClient = OkHttpClient.Builder()
-                    .connectTimeout(15, TimeUnit.SECONDS)
-                    .readTimeout(20, TimeUnit.SECONDS)
-                    .retryOnConnectionFailure(true)
-                    .build()
+                val canvasClient = NetworkClientFactory.getClientWithTimeout(15, 20)
                 val cachedCanvasUrl = CanvasVideoCache.cache(context, mediaId, canvasUrl, canvasClient)
                 SpotifyCanvasState.currentCanvasUrl = cachedCanvasUrl ?: canvasUrl
                 SpotifyCanvasState.isPlaying = shouldPlayWhenReady
@@ -999,7 +996,7 @@ private fun fetchSpotifyCanvas(
     }
     val resolvedSpDc = spDc ?: SpotifySessionApi.extractSpDcFromSessionCookie(sessionCookie)
 
-    val client = OkHttpClient.Builder()
+    val client = NetworkClientFactory.newBuilder()
         .cache(Cache(cacheDir, 20 * 1024 * 1024))
         .connectTimeout(15, TimeUnit.SECONDS)
         .readTimeout(15, TimeUnit.SECONDS)
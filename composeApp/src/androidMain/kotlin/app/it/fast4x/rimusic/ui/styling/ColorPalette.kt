@@ -127,24 +127,21 @@ fun colorPaletteOf(
     }
 }
 
-fun dynamicColorPaletteOf(bitmap: Bitmap, isDark: Boolean): ColorPalette? {
-    val palette = Palette
-        .from(bitmap)
-        .maximumColorCount(8)
-        //.addFilter(if (isDark) ({ _, hsl -> hsl[0] !in 36f..100f }) else null)
-        .generate()
-
-
-
-    val hsl = if (isDark) {
-        palette.dominantSwatch ?: Palette
-            .from(bitmap)
+fun dynamicColorPaletteOf(bitmap: Bitmap, isDark: Boolean): ColorPalette? =
+    dynamicColorPaletteOf(
+        Palette.from(bitmap)
             .maximumColorCount(8)
-            .generate()
-            .dominantSwatch
-    } else {
-        palette.dominantSwatch
-    }?.hsl ?: return null
+            //.addFilter(if (isDark) ({ _, hsl -> hsl[0] !in 36f..100f }) else null)
+            .generate(),
+        isDark
+    )
+
+/**
+ * Same as with a bitmap, for a palette that's already generated,
+ * e.g. by [app.kreate.android.me.knighthat.coil.ArtworkDerivatives]
+ */
+fun dynamicColorPaletteOf(palette: Palette, isDark: Boolean): ColorPalette? {
+    val hsl = palette.dominantSwatch?.hsl ?: return null
 
     return if (hsl[1] < 0.08) {
         val newHsl = palette.swatches
@@ -1,6 +1,7 @@
 package app.it.fast4x.rimusic.utils
 
 import app.cubic.android.core.network.NetworkClientFactory
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl.Companion.toHttpUrl
@@ -8,6 +9,7 @@ import okhttp3.Request
 import org.json.JSONObject
 import org.w3c.dom.Element
 import timber.log.Timber
+import java.io.IOException
 import java.util.Locale
 import javax.xml.parsers.DocumentBuilderFactory
 
@@ -25,43 +27,79 @@ object BetterLyricsProvider {
         artist: String,
         album: String? = null,
         durationSeconds: Int = -1
+    ): BetterLyricsResult? =
+        try {
+            lyricsOrThrow(title, artist, album, durationSeconds)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            null
+        }
+
+    /**
+     * Same as [lyrics], except it throws when no endpoint has lyrics
+     * and at least one of them failed, so `null` only means
+     * none of endpoints has lyrics of this song.
+     */
+    suspend fun lyricsOrThrow(
+        title: String,
+        artist: String,
+        album: String? = null,
+        durationSeconds: Int = -1
     ): BetterLyricsResult? = withContext(Dispatchers.IO) {
         if (title.isBlank() || artist.isBlank()) return@withContext null
 
-        endpoints.firstNotNullOfOrNull { endpoint ->
-            runCatching {
-                val url = (BASE_URL + endpoint).toHttpUrl().newBuilder()
-                    .addQueryParameter("s", title.trim())
-                    .addQueryParameter("a", artist.trim())
-                    .apply {
-                        album?.trim()?.takeIf(String::isNotBlank)?.let {
-                            addQueryParameter("al", it)
-                        }
-                        if (durationSeconds > 0) {
-                            addQueryParameter("d", durationSeconds.toString())
-                        }
-                    }
-                    .build()
-
-                NetworkClientFactory.getClientWithTimeout(10, 20)
-                    .newCall(Request.Builder().url(url).get().build())
-                    .execute()
-                    .use { response ->
-                        if (!response.isSuccessful) return@use null
-                        val body = response.body?.string().orEmpty().trim()
-                        val ttml = when {
-                            body.startsWith("<") -> body
-                            body.startsWith("{") -> JSONObject(body)
-                                .optString("ttml")
-                                .ifBlank { JSONObject(body).optString("lyrics") }
-                            else -> body
-                        }
-                        parseTtml(ttml)
-                    }
-            }.onFailure {
-                Timber.w(it, "BetterLyrics endpoint %s failed", endpoint)
-            }.getOrNull()
+        var failure: Exception? = null
+        for (endpoint in endpoints) {
+            try {
+                request(endpoint, title, artist, album, durationSeconds)?.let { return@withContext it }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Timber.w(e, "BetterLyrics endpoint %s failed", endpoint)
+                failure = e
+            }
         }
+        failure?.let { throw it }
+        null
+    }
+
+    private fun request(
+        endpoint: String,
+        title: String,
+        artist: String,
+        album: String?,
+        durationSeconds: Int
+    ): BetterLyricsResult? {
+        val url = (BASE_URL + endpoint).toHttpUrl().newBuilder()
+            .addQueryParameter("s", title.trim())
+            .addQueryParameter("a", artist.trim())
+            .apply {
+                album?.trim()?.takeIf(String::isNotBlank)?.let {
+                    addQueryParameter("al", it)
+                }
+                if (durationSeconds > 0) {
+                    addQueryParameter("d", durationSeconds.toString())
+                }
+            }
+            .build()
+
+        return NetworkClientFactory.getClientWithTimeout(10, 20)
+            .newCall(Request.Builder().url(url).get().build())
+            .execute()
+            .use { response ->
+                if (response.code == 404) return@use null
+                if (!response.isSuccessful) throw IOException("BetterLyrics responded ${response.code}")
+                val body = response.body?.string().orEmpty().trim()
+                val ttml = when {
+                    body.startsWith("<") -> body
+                    body.startsWith("{") -> JSONObject(body)
+                        .optString("ttml")
+                        .ifBlank { JSONObject(body).optString("lyrics") }
+                    else -> body
+                }
+                parseTtml(ttml)
+            }
     }
 
     private fun parseTtml(ttml: String): BetterLyricsResult? {
@@ -2,12 +2,12 @@ package app.it.fast4x.rimusic.utils
 
 import android.graphics.Bitmap
 import android.graphics.Color
+import app.kreate.android.me.knighthat.coil.ArtworkDerivatives
 import coil3.size.Size
 import coil3.transform.Transformation
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import kotlin.math.abs
-import kotlin.math.roundToInt
 
 class BlurTransformation(
     val radius: Int = 25,
@@ -33,228 +33,251 @@ class BlurTransformation(
 private suspend fun Bitmap.blur(
     scale: Float,
     radius: Int
-): Bitmap? = withContext(Dispatchers.IO) {
-    var sentBitmap = this@blur
-    if (sentBitmap.config == null) return@withContext null
-    val width = (sentBitmap.width * scale).roundToInt()
-    val height = (sentBitmap.height * scale).roundToInt()
-    sentBitmap = Bitmap.createScaledBitmap(sentBitmap, width, height, false)
-    val bitmap = sentBitmap.copy(sentBitmap.config!!, true)
-    if (radius < 1) {
-        return@withContext null
-    }
-    val w = bitmap.width
-    val h = bitmap.height
-    val pix = IntArray(w * h)
-    bitmap.getPixels(pix, 0, w, 0, 0, w, h)
-    val wm = w - 1
-    val hm = h - 1
-    val wh = w * h
-    val div = radius + radius + 1
-    val r = IntArray(wh)
-    val g = IntArray(wh)
-    val b = IntArray(wh)
-    var rsum: Int
-    var gsum: Int
-    var bsum: Int
-    var x: Int
-    var y: Int
-    var i: Int
-    var p: Int
-    var yp: Int
-    var yi: Int
-    val vmin = IntArray(w.coerceAtLeast(h))
-    var divsum = div + 1 shr 1
-    divsum *= divsum
-    val dv = IntArray(256 * divsum)
-    i = 0
-    while (i < 256 * divsum) {
-        dv[i] = i / divsum
-        i++
-    }
-    yi = 0
-    var yw: Int = yi
-    val stack = Array(div) {
-        IntArray(
-            3
-        )
-    }
-    var stackpointer: Int
-    var stackstart: Int
-    var sir: IntArray
-    var rbs: Int
-    val r1 = radius + 1
-    var routsum: Int
-    var goutsum: Int
-    var boutsum: Int
-    var rinsum: Int
-    var ginsum: Int
-    var binsum: Int
-    y = 0
-    while (y < h) {
-        bsum = 0
-        gsum = bsum
-        rsum = gsum
-        boutsum = rsum
-        goutsum = boutsum
-        routsum = goutsum
-        binsum = routsum
-        ginsum = binsum
-        rinsum = ginsum
-        i = -radius
-        while (i <= radius) {
-            p = pix[yi + wm.coerceAtMost(i.coerceAtLeast(0))]
-            sir = stack[i + radius]
-            sir[0] = p and 0xff0000 shr 16
-            sir[1] = p and 0x00ff00 shr 8
-            sir[2] = p and 0x0000ff
-            rbs = r1 - abs(i)
-            rsum += sir[0] * rbs
-            gsum += sir[1] * rbs
-            bsum += sir[2] * rbs
-            if (i > 0) {
+): Bitmap? = withContext(Dispatchers.Default) {
+    if (config == null || radius < 1) return@withContext null
+    ArtworkDerivatives.blur(this@blur, radius, scale)
+}
+
+/**
+ * Stack blur, result is also darkened by 20%.
+ *
+ * Working arrays are kept between calls and only grow,
+ * blurs are serialized so they can share them.
+ */
+internal object StackBlur {
+
+    private var pix = IntArray(0)
+    private var r = IntArray(0)
+    private var g = IntArray(0)
+    private var b = IntArray(0)
+    private var vmin = IntArray(0)
+    private var dv = IntArray(0)
+    private var dvRadius = -1
+
+    /**
+     * Blur [bitmap] in place, it must be mutable
+     */
+    @Synchronized
+    fun blur(bitmap: Bitmap, radius: Int) {
+        val w = bitmap.width
+        val h = bitmap.height
+        val wh = w * h
+        if (pix.size < wh) {
+            pix = IntArray(wh)
+            r = IntArray(wh)
+            g = IntArray(wh)
+            b = IntArray(wh)
+        }
+        if (vmin.size < w.coerceAtLeast(h)) vmin = IntArray(w.coerceAtLeast(h))
+
+        val div = radius + radius + 1
+        var divsum = div + 1 shr 1
+        divsum *= divsum
+        if (dvRadius != radius) {
+            dv = IntArray(256 * divsum) { it / divsum }
+            dvRadius = radius
+        }
+
+        val pix = this.pix
+        val r = this.r
+        val g = this.g
+        val b = this.b
+        val vmin = this.vmin
+        val dv = this.dv
+        bitmap.getPixels(pix, 0, w, 0, 0, w, h)
+        val wm = w - 1
+        val hm = h - 1
+        var rsum: Int
+        var gsum: Int
+        var bsum: Int
+        var x: Int
+        var y: Int
+        var i: Int
+        var p: Int
+        var yp: Int
+        var yi: Int
+        yi = 0
+        var yw: Int = yi
+        val stack = Array(div) {
+            IntArray(
+                3
+            )
+        }
+        var stackpointer: Int
+        var stackstart: Int
+        var sir: IntArray
+        var rbs: Int
+        val r1 = radius + 1
+        var routsum: Int
+        var goutsum: Int
+        var boutsum: Int
+        var rinsum: Int
+        var ginsum: Int
+        var binsum: Int
+        y = 0
+        while (y < h) {
+            bsum = 0
+            gsum = bsum
+            rsum = gsum
+            boutsum = rsum
+            goutsum = boutsum
+            routsum = goutsum
+            binsum = routsum
+            ginsum = binsum
+            rinsum = ginsum
+            i = -radius
+            while (i <= radius) {
+                p = pix[yi + wm.coerceAtMost(i.coerceAtLeast(0))]
+                sir = stack[i + radius]
+                sir[0] = p and 0xff0000 shr 16
+                sir[1] = p and 0x00ff00 shr 8
+                sir[2] = p and 0x0000ff
+                rbs = r1 - abs(i)
+                rsum += sir[0] * rbs
+                gsum += sir[1] * rbs
+                bsum += sir[2] * rbs
+                if (i > 0) {
+                    rinsum += sir[0]
+                    ginsum += sir[1]
+                    binsum += sir[2]
+                } else {
+                    routsum += sir[0]
+                    goutsum += sir[1]
+                    boutsum += sir[2]
+                }
+                i++
+            }
+            stackpointer = radius
+            x = 0
+            while (x < w) {
+                r[yi] = dv[rsum]
+                g[yi] = dv[gsum]
+                b[yi] = dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                stackstart = stackpointer - radius + div
+                sir = stack[stackstart % div]
+                routsum -= sir[0]
+                goutsum -= sir[1]
+                boutsum -= sir[2]
+                if (y == 0) {
+                    vmin[x] = (x + radius + 1).coerceAtMost(wm)
+                }
+                p = pix[yw + vmin[x]]
+                sir[0] = p and 0xff0000 shr 16
+                sir[1] = p and 0x00ff00 shr 8
+                sir[2] = p and 0x0000ff
                 rinsum += sir[0]
                 ginsum += sir[1]
                 binsum += sir[2]
-            } else {
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                stackpointer = (stackpointer + 1) % div
+                sir = stack[stackpointer % div]
                 routsum += sir[0]
                 goutsum += sir[1]
                 boutsum += sir[2]
+                rinsum -= sir[0]
+                ginsum -= sir[1]
+                binsum -= sir[2]
+                yi++
+                x++
             }
-            i++
+            yw += w
+            y++
         }
-        stackpointer = radius
         x = 0
         while (x < w) {
-            r[yi] = dv[rsum]
-            g[yi] = dv[gsum]
-            b[yi] = dv[bsum]
-            rsum -= routsum
-            gsum -= goutsum
-            bsum -= boutsum
-            stackstart = stackpointer - radius + div
-            sir = stack[stackstart % div]
-            routsum -= sir[0]
-            goutsum -= sir[1]
-            boutsum -= sir[2]
-            if (y == 0) {
-                vmin[x] = (x + radius + 1).coerceAtMost(wm)
+            bsum = 0
+            gsum = bsum
+            rsum = gsum
+            boutsum = rsum
+            goutsum = boutsum
+            routsum = goutsum
+            binsum = routsum
+            ginsum = binsum
+            rinsum = ginsum
+            yp = -radius * w
+            i = -radius
+            while (i <= radius) {
+                yi = 0.coerceAtLeast(yp) + x
+                sir = stack[i + radius]
+                sir[0] = r[yi]
+                sir[1] = g[yi]
+                sir[2] = b[yi]
+                rbs = r1 - abs(i)
+                rsum += r[yi] * rbs
+                gsum += g[yi] * rbs
+                bsum += b[yi] * rbs
+                if (i > 0) {
+                    rinsum += sir[0]
+                    ginsum += sir[1]
+                    binsum += sir[2]
+                } else {
+                    routsum += sir[0]
+                    goutsum += sir[1]
+                    boutsum += sir[2]
+                }
+                if (i < hm) {
+                    yp += w
+                }
+                i++
             }
-            p = pix[yw + vmin[x]]
-            sir[0] = p and 0xff0000 shr 16
-            sir[1] = p and 0x00ff00 shr 8
-            sir[2] = p and 0x0000ff
-            rinsum += sir[0]
-            ginsum += sir[1]
-            binsum += sir[2]
-            rsum += rinsum
-            gsum += ginsum
-            bsum += binsum
-            stackpointer = (stackpointer + 1) % div
-            sir = stack[stackpointer % div]
-            routsum += sir[0]
-            goutsum += sir[1]
-            boutsum += sir[2]
-            rinsum -= sir[0]
-            ginsum -= sir[1]
-            binsum -= sir[2]
-            yi++
-            x++
-        }
-        yw += w
-        y++
-    }
-    x = 0
-    while (x < w) {
-        bsum = 0
-        gsum = bsum
-        rsum = gsum
-        boutsum = rsum
-        goutsum = boutsum
-        routsum = goutsum
-        binsum = routsum
-        ginsum = binsum
-        rinsum = ginsum
-        yp = -radius * w
-        i = -radius
-        while (i <= radius) {
-            yi = 0.coerceAtLeast(yp) + x
-            sir = stack[i + radius]
-            sir[0] = r[yi]
-            sir[1] = g[yi]
-            sir[2] = b[yi]
-            rbs = r1 - abs(i)
-            rsum += r[yi] * rbs
-            gsum += g[yi] * rbs
-            bsum += b[yi] * rbs
-            if (i > 0) {
+            yi = x
+            stackpointer = radius
+            y = 0
+            while (y < h) {
+                pix[yi] =
+                    -0x1000000 and pix[yi] or (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
+                rsum -= routsum
+                gsum -= goutsum
+                bsum -= boutsum
+                stackstart = stackpointer - radius + div
+                sir = stack[stackstart % div]
+                routsum -= sir[0]
+                goutsum -= sir[1]
+                boutsum -= sir[2]
+                if (x == 0) {
+                    vmin[y] = (y + r1).coerceAtMost(hm) * w
+                }
+                p = x + vmin[y]
+                sir[0] = r[p]
+                sir[1] = g[p]
+                sir[2] = b[p]
                 rinsum += sir[0]
                 ginsum += sir[1]
                 binsum += sir[2]
-            } else {
+                rsum += rinsum
+                gsum += ginsum
+                bsum += binsum
+                stackpointer = (stackpointer + 1) % div
+                sir = stack[stackpointer]
                 routsum += sir[0]
                 goutsum += sir[1]
                 boutsum += sir[2]
+                rinsum -= sir[0]
+                ginsum -= sir[1]
+                binsum -= sir[2]
+                yi += w
+                y++
             }
-            if (i < hm) {
-                yp += w
-            }
-            i++
-        }
-        yi = x
-        stackpointer = radius
-        y = 0
-        while (y < h) {
-            pix[yi] =
-                -0x1000000 and pix[yi] or (dv[rsum] shl 16) or (dv[gsum] shl 8) or dv[bsum]
-            rsum -= routsum
-            gsum -= goutsum
-            bsum -= boutsum
-            stackstart = stackpointer - radius + div
-            sir = stack[stackstart % div]
-            routsum -= sir[0]
-            goutsum -= sir[1]
-            boutsum -= sir[2]
-            if (x == 0) {
-                vmin[y] = (y + r1).coerceAtMost(hm) * w
-            }
-            p = x + vmin[y]
-            sir[0] = r[p]
-            sir[1] = g[p]
-            sir[2] = b[p]
-            rinsum += sir[0]
-            ginsum += sir[1]
-            binsum += sir[2]
-            rsum += rinsum
-            gsum += ginsum
-            bsum += binsum
-            stackpointer = (stackpointer + 1) % div
-            sir = stack[stackpointer]
-            routsum += sir[0]
-            goutsum += sir[1]
-            boutsum += sir[2]
-            rinsum -= sir[0]
-            ginsum -= sir[1]
-            binsum -= sir[2]
-            yi += w
-            y++
+            x++
         }
-        x++
-    }
 
-    //merge #2258
-    val darkenFactor = 0.2f // 20% darker
+        //merge #2258
+        val darkenFactor = 0.2f // 20% darker
 
-    for (i in 0 until wh) {
-        val alpha = Color.alpha(pix[i])
-        val red = (Color.red(pix[i]) * (1 - darkenFactor)).toInt()
-        val green = (Color.green(pix[i]) * (1 - darkenFactor)).toInt()
-        val blue = (Color.blue(pix[i]) * (1 - darkenFactor)).toInt()
+        for (i in 0 until wh) {
+            val alpha = Color.alpha(pix[i])
+            val red = (Color.red(pix[i]) * (1 - darkenFactor)).toInt()
+            val green = (Color.green(pix[i]) * (1 - darkenFactor)).toInt()
+            val blue = (Color.blue(pix[i]) * (1 - darkenFactor)).toInt()
 
-        pix[i] = Color.argb(alpha, red, green, blue)
-    }
+            pix[i] = Color.argb(alpha, red, green, blue)
+        }
 
-    bitmap.setPixels(pix, 0, w, 0, 0, w, h)
-    sentBitmap.recycle()
-    return@withContext bitmap
-}
\ No newline at end of file
+        bitmap.setPixels(pix, 0, w, 0, 0, w, h)
+    }
+}
@@ -1,15 +1,17 @@
 package app.it.fast4x.rimusic.utils
 
-import android.animation.ValueAnimator
 import android.os.Handler
 import android.os.Looper
+import androidx.annotation.OptIn
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableFloatStateOf
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.setValue
-import androidx.media3.exoplayer.ExoPlayer
+import androidx.media3.common.util.UnstableApi
+import app.it.fast4x.rimusic.service.modern.PlaybackFader
 
+@OptIn(UnstableApi::class)
 class FadeAdjuster {
     var duration by mutableFloatStateOf(0f)
         private set
@@ -20,22 +22,17 @@ class FadeAdjuster {
     var fadeDirection by mutableStateOf(FadeDirection.NONE)
         private set
     
-    private var animator: ValueAnimator? = null
-    private var context: android.content.Context? = null
+    private val handler = Handler(Looper.getMainLooper())
     
     enum class FadeDirection {
         IN, OUT, NONE
     }
     
-    fun setContext(ctx: android.content.Context) {
-        context = ctx
-    }
-    
     fun setDuration(durationMs: Int) {
         duration = durationMs.toFloat()
     }
     
-    fun fadeOut(player: ExoPlayer, onComplete: (() -> Unit)? = null) {
+    fun fadeOut(fader: PlaybackFader, onComplete: (() -> Unit)? = null) {
         if (duration <= 0) {
             onComplete?.invoke()
             return
@@ -44,20 +41,17 @@ class FadeAdjuster {
         isActive = true
         fadeDirection = FadeDirection.OUT
         
-        // Use the existing audioFadeOut function
-        audioFadeOut(player, duration.toInt(), context ?: return)
-        
-        // Since audioFadeOut doesn't have a callback, we'll simulate it with a delayed runnable
-        Handler(Looper.getMainLooper()).postDelayed({
+        // Completes once the end of the fade is heard
+        fader.fadeOut(duration.toLong()) {
             isActive = false
             fadeDirection = FadeDirection.NONE
             onComplete?.invoke()
-        }, duration.toLong())
+        }
     }
     
-    fun fadeIn(player: ExoPlayer, targetVolume: Float = player.volume, onComplete: (() -> Unit)? = null) {
+    fun fadeIn(fader: PlaybackFader, onComplete: (() -> Unit)? = null) {
         if (duration <= 0) {
-            player.volume = targetVolume
+            fader.restore()
             onComplete?.invoke()
             return
         }
@@ -65,11 +59,10 @@ class FadeAdjuster {
         isActive = true
         fadeDirection = FadeDirection.IN
         
-        // Use the existing audioFadeIn function
-        audioFadeIn(player, duration.toInt(), context ?: return)
+        fader.fadeIn(duration.toLong())
         
-        // Since audioFadeIn doesn't have a callback, we'll simulate it with a delayed runnable
-        Handler(Looper.getMainLooper()).postDelayed({
+        // Fade in runs on the audio thread without a callback
+        handler.postDelayed({
             isActive = false
             fadeDirection = FadeDirection.NONE
             onComplete?.invoke()
@@ -77,7 +70,7 @@ class FadeAdjuster {
     }
     
     fun cancel() {
-        animator?.cancel()
+        handler.removeCallbacksAndMessages(null)
         isActive = false
         fadeDirection = FadeDirection.NONE
     }
@@ -2,21 +2,139 @@ package app.it.fast4x.rimusic.utils
 
 import android.util.Log
 import timber.log.Timber
-import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileOutputStream
-import java.io.FileWriter
 import java.io.IOException
-import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
-
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Writes logs to [logFile] without blocking the calling thread.
+ *
+ * - [log] only puts the record into a lock-free ring buffer,
+ * formatting and I/O happen on a background writer thread
+ * - Writer drains the buffer in batches through a single open [FileChannel]
+ * - When [logFile] exceeds [SEGMENT_SIZE], it is renamed to the next
+ * segment (see [segmentsOf]) and a new file is started, only
+ * [MAX_OLD_SEGMENTS] old segments are kept
+ * - When the buffer is full, records are dropped and counted in [droppedCount],
+ * writer reports the number of dropped records in the log itself
+ */
 class FileLoggingTree(private val logFile: File) : Timber.DebugTree() {
 
-    private val maxLogSize = 5 * 1024 * 1024 // 5 MB
+    companion object {
+        private const val BUFFER_CAPACITY = 4096            // Must be power of 2
+        private const val SEGMENT_SIZE = 2 * 1024 * 1024L   // 2 MB
+        private const val MAX_OLD_SEGMENTS = 2
+        private const val FLUSH_INTERVAL_NS = 250_000_000L  // 250 ms
+
+        private fun segmentOf(logFile: File, index: Int): File =
+            if (index == 0)
+                logFile
+            else
+                File(logFile.parentFile, "${logFile.nameWithoutExtension}.$index.${logFile.extension}")
+
+        /**
+         * @return existing segments of [logFile], from oldest to newest ([logFile] itself)
+         */
+        fun segmentsOf(logFile: File): List<File> =
+            (MAX_OLD_SEGMENTS downTo 0).map { segmentOf(logFile, it) }.filter(File::exists)
+
+        /**
+         * @return content of all segments of [logFile] in chronological order,
+         * or `null` if none exists
+         */
+        fun readAll(logFile: File): String? =
+            segmentsOf(logFile).takeIf { it.isNotEmpty() }
+                               ?.joinToString("") { it.readText() }
+
+        fun deleteAll(logFile: File) = segmentsOf(logFile).forEach(File::delete)
+    }
+
+    private class Record(
+        val timeMillis: Long,
+        val priority: Int,
+        val tag: String?,
+        val message: String
+    )
+
+    /**
+     * Bounded multi-producer single-consumer queue.
+     *
+     * Each slot has a sequence number telling whether it is
+     * free for the producer at that position, or filled for the consumer.
+     */
+    private class RingBuffer(private val capacity: Int) {
+
+        private val mask = capacity - 1L
+        private val items = AtomicReferenceArray<Record?>(capacity)
+        private val sequences = AtomicLongArray(capacity).apply {
+            for (i in 0 until capacity) set(i, i.toLong())
+        }
+        private val tail = AtomicLong()
+        // Only accessed by the writer thread
+        private var head = 0L
+
+        /**
+         * @return `false` when buffer is full
+         */
+        fun offer(record: Record): Boolean {
+            var position = tail.get()
+            while (true) {
+                val index = (position and mask).toInt()
+                val diff = sequences.get(index) - position
+                when {
+                    diff == 0L && tail.compareAndSet(position, position + 1) -> {
+                        items.set(index, record)
+                        sequences.set(index, position + 1)
+                        return true
+                    }
+                    diff < 0L -> return false
+                    else -> position = tail.get()
+                }
+            }
+        }
+
+        fun poll(): Record? {
+            val index = (head and mask).toInt()
+            if (sequences.get(index) != head + 1) return null
+
+            val record = items.get(index)
+            items.set(index, null)
+            sequences.set(index, head + capacity)
+            head++
+            return record
+        }
+    }
+
+    private val buffer = RingBuffer(BUFFER_CAPACITY)
+    private val dropped = AtomicLong()
+    private var reportedDropped = 0L
 
+    // Only accessed by the writer thread
     private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss:SSS", Locale.getDefault())
+    private val date = Date()
+    private val batch = StringBuilder(16 * 1024)
+    private var channel: FileChannel? = null
+
+    private val writer = Thread({ drainLoop() }, "FileLoggingTree").apply {
+        isDaemon = true
+        priority = Thread.MIN_PRIORITY
+        start()
+    }
+
+    /**
+     * Number of records that were not written because buffer was full
+     */
+    val droppedCount: Long
+        get() = dropped.get()
 
     private fun getPriorityString(priority: Int): String {
         return when (priority) {
@@ -31,58 +149,97 @@ class FileLoggingTree(private val logFile: File) : Timber.DebugTree() {
     }
 
     override fun log(priority: Int, tag: String?, message: String, t: Throwable?) {
-        if (priority >= Log.DEBUG) {
-            val log = generateLog(priority, tag, message)
-            if (!logFile.exists()) {
-                logFile.createNewFile()
-            }
-            writeLog(logFile, log)
-            ensureLogSize(logFile)
-        }
-    }
+        if (priority < Log.DEBUG) return
 
-    private fun generateLog(priority: Int, tag: String?, message: String): String {
-        val logTimeStamp = dateFormat.format(Date())
+        if (!buffer.offer(Record(System.currentTimeMillis(), priority, tag, message)))
+            dropped.incrementAndGet()
+        else if (priority >= Log.ERROR)
+            // Errors are likely followed by a crash, write them right away
+            LockSupport.unpark(writer)
+    }
 
-        return StringBuilder().append(logTimeStamp).append(" ")
+    private fun appendLog(timeMillis: Long, priority: Int, tag: String?, message: String) {
+        date.time = timeMillis
+        batch.append(dateFormat.format(date)).append(" ")
             .append(getPriorityString(priority)).append(": ")
             .append(tag).append(" - ")
-            .append(message).append('\n').toString()
+            .append(message).append('\n')
     }
 
-    private fun writeLog(logFile: File, log: String) {
-        val writer = FileWriter(logFile, true)
-        writer.append(log)
-        writer.flush()
-        writer.close()
+    private fun drainLoop() {
+        while (true) {
+            try {
+                drain()
+            } catch (e: Exception) {
+                // Can't log this with Timber, it'd come back here
+                Log.e("FileLoggingTree", "Failed to write logs", e)
+                closeChannel()
+                batch.setLength(0)
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL_NS)
+        }
     }
 
     @Throws(IOException::class)
-    private fun ensureLogSize(logFile: File) {
-        if (logFile.length() < maxLogSize) return
+    private fun drain() {
+        var record = buffer.poll()
+        while (record != null) {
+            appendLog(record.timeMillis, record.priority, record.tag, record.message)
+            if (batch.length >= 8 * 1024) flushBatch()
 
-        // We remove first 25% part of logs
-        val startIndex = logFile.length() / 4
+            record = buffer.poll()
+        }
 
-        val randomAccessFile = RandomAccessFile(logFile, "r")
-        randomAccessFile.seek(startIndex)
+        val droppedNow = dropped.get()
+        if (droppedNow > reportedDropped) {
+            appendLog(
+                System.currentTimeMillis(),
+                Log.WARN,
+                "FileLoggingTree",
+                "${droppedNow - reportedDropped} log(s) dropped, buffer is full"
+            )
+            reportedDropped = droppedNow
+        }
 
-        val into = ByteArrayOutputStream()
+        flushBatch()
+    }
 
-        val buf = ByteArray(4096)
-        var n: Int
-        while (true) {
-            n = randomAccessFile.read(buf)
-            if (n < 0) break
-            into.write(buf, 0, n)
-        }
+    @Throws(IOException::class)
+    private fun flushBatch() {
+        if (batch.isEmpty()) return
 
-        randomAccessFile.close()
+        val channel = openChannel()
+        val bytes = ByteBuffer.wrap(batch.toString().toByteArray())
+        while (bytes.hasRemaining())
+            channel.write(bytes)
+        batch.setLength(0)
 
-        val outputStream = FileOutputStream(logFile)
-        into.writeTo(outputStream)
+        if (channel.size() >= SEGMENT_SIZE) rotate()
+    }
 
-        outputStream.close()
-        into.close()
+    @Throws(IOException::class)
+    private fun openChannel(): FileChannel {
+        channel?.takeIf { it.isOpen && logFile.exists() }?.let { return it }
+
+        // File may be deleted by user (e.g. disabling debug log)
+        closeChannel()
+        logFile.parentFile?.mkdirs()
+        return FileOutputStream(logFile, true).channel.also { channel = it }
+    }
+
+    private fun closeChannel() {
+        runCatching { channel?.close() }
+        channel = null
+    }
+
+    private fun rotate() {
+        closeChannel()
+
+        segmentOf(logFile, MAX_OLD_SEGMENTS).delete()
+        for (index in MAX_OLD_SEGMENTS - 1 downTo 0) {
+            val segment = segmentOf(logFile, index)
+            if (segment.exists())
+                segment.renameTo(segmentOf(logFile, index + 1))
+        }
     }
-}
\ No newline at end of file
+}
@@ -135,9 +135,13 @@ fun loadAppLog(context: Context, type: LogType): String? {
             LogType.Crash ->    "Cubic-Music_crash_log.txt"
         }
     )
-    if (file.exists()) {
+    val content = when (type) {
+        LogType.Default ->  FileLoggingTree.readAll(file)
+        LogType.Crash ->    file.takeIf { it.exists() }?.readText()
+    }
+    if (content != null) {
         Toaster.s( R.string.value_copied )
-        return file.readText()
+        return content
     } else
         Toaster.w( R.string.no_log_available )
     return null
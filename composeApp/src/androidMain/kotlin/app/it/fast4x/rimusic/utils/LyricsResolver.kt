@@ -0,0 +1,288 @@
+package app.it.fast4x.rimusic.utils
+
+import android.os.SystemClock
+import androidx.media3.common.MediaItem
+import app.it.fast4x.rimusic.Database
+import app.it.fast4x.rimusic.cleanPrefix
+import app.it.fast4x.rimusic.models.Lyrics
+import app.it.fast4x.rimusic.models.Song
+import it.fast4x.kugou.KuGou
+import it.fast4x.lrclib.LrcLib
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeoutOrNull
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.absoluteValue
+
+/**
+ * Finds lyrics of a song without the lyrics screen being open.
+ *
+ * All [Provider]s are asked at the same time, the best answer wins:
+ * synced lyrics over plain ones, then lyrics matching song's duration,
+ * then [Provider] order. Waiting stops as soon as synced lyrics
+ * with matching duration arrive.
+ *
+ * Songs every provider answered without lyrics aren't asked again
+ * for [NOT_FOUND_TTL_MS], failed or slow providers don't count.
+ */
+object LyricsResolver {
+
+    private const val NOT_FOUND_TTL_MS = 6 * 60 * 60 * 1000L
+    private const val RESOLVE_TIMEOUT_MS = 15_000L
+    private const val MAX_DURATION_DELTA_S = 3L
+
+    /**
+     * Number of songs after current one whose lyrics are fetched ahead
+     */
+    const val PREFETCH_COUNT = 3
+
+    enum class Provider(val displayName: String) {
+        LrcLib("LrcLib.net"),
+        KuGou("KuGou.com"),
+        SimpMusic("SimpMusic"),
+        BetterLyrics("BetterLyrics")
+    }
+
+    data class Query(
+        val videoId: String,
+        val title: String,
+        val artist: String,
+        val album: String?,
+        val durationMs: Long,
+        val thumbnailUrl: String?
+    ) {
+        /**
+         * Search results of the same song differ by duration
+         */
+        internal val key: String
+            get() = "$videoId:$durationMs"
+
+        companion object {
+            /**
+             * @param durationMs duration known by player, when it's
+             * `null` it's read from `durationText` of [mediaItem]'s extras
+             */
+            fun of(mediaItem: MediaItem, durationMs: Long? = null) = Query(
+                videoId = mediaItem.mediaId,
+                title = cleanPrefix(mediaItem.mediaMetadata.title?.toString().orEmpty()),
+                artist = mediaItem.mediaMetadata.artist?.toString().orEmpty(),
+                album = mediaItem.mediaMetadata.albumTitle?.toString(),
+                durationMs = durationMs?.takeIf { it > 0 }
+                    ?: mediaItem.mediaMetadata.durationMs
+                    ?: mediaItem.mediaMetadata.extras?.getString("durationText")?.let(::durationTextToMillis)
+                    ?: 0L,
+                thumbnailUrl = mediaItem.mediaMetadata.artworkUri?.toString()
+            )
+        }
+    }
+
+    class Result(
+        val provider: Provider,
+        val synced: String?,
+        val plain: String?,
+        val isDurationMatched: Boolean
+    ) {
+        val isEmpty: Boolean
+            get() = synced.isNullOrBlank() && plain.isNullOrBlank()
+
+        val isBest: Boolean
+            get() = !synced.isNullOrBlank() && isDurationMatched
+    }
+
+    private val ranking = compareBy<Result>(
+        { !it.synced.isNullOrBlank() },
+        { it.isDurationMatched },
+        { !it.plain.isNullOrBlank() },
+        { -it.provider.ordinal }
+    )
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private val inflight = ConcurrentHashMap<String, Deferred<Outcome>>()
+    private val notFoundUntil = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Prefetch goes one song at a time, each one already makes a request per provider
+     */
+    private val prefetchPermit = Semaphore(1)
+
+    private fun isKnownNotFound(videoId: String): Boolean {
+        val until = notFoundUntil[videoId] ?: return false
+        if (until > SystemClock.elapsedRealtime()) return true
+        notFoundUntil.remove(videoId, until)
+        return false
+    }
+
+    /**
+     * @return lyrics [provider] has of [query], `null` if it has none
+     * @throws Exception when [provider] couldn't be asked
+     */
+    private suspend fun fetch(provider: Provider, query: Query): Result? = when (provider) {
+        Provider.LrcLib -> (LrcLib.lyrics(query.artist, query.title) ?: throw CancellationException())
+            .getOrThrow()
+            .let { pickBestLrcLibTrack(it, query.title, query.durationMs) }
+            ?.let { track ->
+                Result(
+                    provider = provider,
+                    synced = track.syncedLyrics,
+                    plain = track.plainLyrics,
+                    isDurationMatched = query.durationMs > 0
+                            && (track.duration - query.durationMs / 1000).absoluteValue <= MAX_DURATION_DELTA_S
+                )
+            }
+
+        Provider.KuGou -> (KuGou.lyrics(query.artist, query.title, query.durationMs / 1000) ?: throw CancellationException())
+            .getOrThrow()
+            ?.let { Result(provider, it.value, null, false) }
+
+        // Looked up by video id, so it's lyrics of this exact song
+        Provider.SimpMusic -> fetchSimpMusicLyricsOrThrow(query.videoId)
+            ?.let { Result(provider, it.syncedLyrics, it.plainLyrics, true) }
+
+        Provider.BetterLyrics -> BetterLyricsProvider.lyricsOrThrow(
+            title = query.title,
+            artist = query.artist,
+            album = query.album,
+            durationSeconds = (query.durationMs / 1000).toInt()
+        )?.let { Result(provider, it.syncedLyrics, it.plainLyrics, false) }
+    }
+
+    /**
+     * @param isFailed whether provider couldn't be asked, as opposed to having no lyrics
+     */
+    private class Answer(val result: Result?, val isFailed: Boolean)
+
+    /**
+     * @param best lyrics found, `null` if none
+     * @param isConclusive whether every provider was asked successfully,
+     * only then missing lyrics can be remembered
+     */
+    private class Outcome(val best: Result?, val isConclusive: Boolean)
+
+    private suspend fun race(query: Query): Outcome = coroutineScope {
+        val answers = Channel<Answer>(Provider.entries.size)
+        val jobs = Provider.entries.map { provider ->
+            launch {
+                val answer = try {
+                    Answer(fetch(provider, query)?.takeUnless { it.isEmpty }, false)
+                } catch (e: Exception) {
+                    // Only this provider's failure, not the whole search being cancelled
+                    if (e is CancellationException && !isActive) throw e
+                    Timber.e("LyricsResolver ${provider.displayName} error ${e.stackTraceToString()}")
+                    Answer(null, true)
+                }
+                answers.send(answer)
+            }
+        }
+
+        var best: Result? = null
+        var failures = 0
+        val isComplete = withTimeoutOrNull(RESOLVE_TIMEOUT_MS) {
+            for (i in jobs.indices) {
+                val answer = answers.receive()
+                if (answer.isFailed) failures++
+                val result = answer.result ?: continue
+                val current = best
+                if (current == null || ranking.compare(result, current) > 0)
+                    best = result
+                if (result.isBest) break
+            }
+            true
+        } ?: false
+        jobs.forEach { it.cancel() }
+
+        Outcome(best, isComplete && failures == 0)
+    }
+
+    /**
+     * Ask all providers for lyrics of [query].
+     * Concurrent calls for the same song and duration share one search.
+     *
+     * Missing lyrics are only remembered when every provider answered,
+     * a failed or timed out provider lets next call ask again.
+     *
+     * @return best lyrics found, `null` if none of providers has any
+     */
+    suspend fun resolve(query: Query): Result? {
+        if (isKnownNotFound(query.videoId)) return null
+
+        val created = scope.async(start = CoroutineStart.LAZY) { race(query) }
+        val deferred = inflight.putIfAbsent(query.key, created)?.also { created.cancel() } ?: created.also {
+            it.invokeOnCompletion { _ -> inflight.remove(query.key, it) }
+            it.start()
+        }
+
+        val outcome = deferred.await()
+        if (outcome.best == null && outcome.isConclusive)
+            notFoundUntil[query.videoId] = SystemClock.elapsedRealtime() + NOT_FOUND_TTL_MS
+        return outcome.best
+    }
+
+    /**
+     * Same as [resolve], found lyrics are also written to [Database.lyricsTable],
+     * keeping lyrics already there that the result doesn't replace.
+     */
+    suspend fun resolveAndStore(query: Query): Result? =
+        resolve(query)?.also { store(query, it) }
+
+    private fun store(query: Query, result: Result) = Database.asyncTransaction {
+        val existing = runBlocking {
+            lyricsTable.findBySongId(query.videoId).first()
+        }
+
+        songTable.insertIgnore(
+            Song(
+                id = query.videoId,
+                title = query.title.ifBlank { query.videoId },
+                artistsText = query.artist.ifBlank { null },
+                durationText = null,
+                thumbnailUrl = query.thumbnailUrl
+            )
+        )
+        lyricsTable.upsert(
+            Lyrics(
+                songId = query.videoId,
+                fixed = existing?.fixed?.takeUnless { it.isBlank() }
+                    ?: result.plain?.takeUnless { it.isBlank() }
+                    ?: plainLyricsFromTimedText(result.synced),
+                // Empty means looked up without finding synced lyrics
+                synced = result.synced?.takeUnless { it.isBlank() } ?: existing?.synced.orEmpty()
+            )
+        )
+    }
+
+    /**
+     * Fetch lyrics of [queries] in background,
+     * songs already looked up for synced lyrics are skipped.
+     *
+     * Songs of unknown duration are skipped too, lyrics found
+     * without it may not match and would be stored for good.
+     */
+    fun prefetch(queries: List<Query>) = queries.forEach { query ->
+        if (query.durationMs <= 0 || isKnownNotFound(query.videoId)) return@forEach
+
+        scope.launch {
+            prefetchPermit.withPermit {
+                val existing = Database.lyricsTable.findBySongId(query.videoId).first()
+                if (existing?.synced != null) return@withPermit
+
+                resolveAndStore(query)?.also {
+                    Timber.d("LyricsResolver prefetched ${query.videoId} from ${it.provider.displayName}")
+                }
+            }
+        }
+    }
+}
@@ -263,14 +263,30 @@ fun buildLyricsShareLink(
     artist: String
 ): String = "$SHARE_BASE_URL?id=${Uri.encode(mediaId)}&title=${Uri.encode(cleanPrefix(title))}&artist=${Uri.encode(cleanPrefix(artist))}"
 
-fun buildLyricsShareLines(text: String): List<String> {
-    val normalizedText = text
-        .lines()
+private val LRC_TIME_TAG = Regex("""\[[^\]]*]""")
+private val LRC_WORD_TAG = Regex("""<[^>]*>""")
+private val LRC_SPEAKER_PREFIX = Regex("""\b[a-zA-Z0-9_]+:\s*""")
+
+fun buildLyricsShareLines(text: String): List<String> =
+    buildLyricsShareLines(
+        text.lines()
+            .map { line ->
+                line
+                    .replace(LRC_TIME_TAG, "")
+                    .replace(LRC_WORD_TAG, "")
+            }
+    )
+
+/**
+ * Same as [buildLyricsShareLines], reuses lines of already compiled [timeline]
+ */
+fun buildLyricsShareLines(timeline: LyricsTimeline): List<String> = buildLyricsShareLines(timeline.lines)
+
+private fun buildLyricsShareLines(lines: List<String>): List<String> {
+    val normalizedText = lines
         .map { line ->
             line
-                .replace(Regex("""\[[^\]]*]"""), "")
-                .replace(Regex("""<[^>]*>"""), "")
-                .replace(Regex("""\b[a-zA-Z0-9_]+:\s*"""), "")
+                .replace(LRC_SPEAKER_PREFIX, "")
                 .trim()
         }
         .filter { it.isNotBlank() }
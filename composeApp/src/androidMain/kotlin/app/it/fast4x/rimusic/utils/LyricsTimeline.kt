@@ -0,0 +1,167 @@
+package app.it.fast4x.rimusic.utils
+
+import it.fast4x.lrclib.LrcLib
+
+/**
+ * Synchronized lyrics compiled into primitive arrays,
+ * so looking up the line (or word) at a position doesn't
+ * allocate and takes O(log n) at worst.
+ *
+ * Lines are sorted by their start time, word tags
+ * (`<mm:ss.xx>`, enhanced LRC) are stripped from [lines]
+ * and kept in a per-line [WordTimeline] instead.
+ *
+ * Use [of] to get an instance, it returns the same
+ * timeline for the same text, so every component
+ * displaying current lyrics shares one compiled copy.
+ */
+class LyricsTimeline private constructor(
+    private val starts: LongArray,
+    val lines: List<String>,
+    private val words: Array<WordTimeline?>
+) {
+
+    companion object {
+        /**
+         * Used as the end of the last line
+         */
+        const val LAST_LINE_DURATION = 4_000L
+
+        private val WORD_TAG = Regex("""<(\d{1,2}):(\d{2})[.:](\d{2,3})>""")
+
+        @Volatile
+        private var lastCompiled: Pair<String, LyricsTimeline>? = null
+
+        /**
+         * @return compiled timeline of LRC [text], last result is cached
+         */
+        fun of(text: String): LyricsTimeline {
+            lastCompiled?.let { (cachedText, timeline) ->
+                if (cachedText == text) return timeline
+            }
+            return compile(text).also { lastCompiled = text to it }
+        }
+
+        private fun compile(text: String): LyricsTimeline {
+            val sentences = LrcLib.Lyrics(text).sentences.sortedBy { it.first }
+
+            val starts = LongArray(sentences.size)
+            val lines = ArrayList<String>(sentences.size)
+            val words = arrayOfNulls<WordTimeline>(sentences.size)
+            sentences.forEachIndexed { index, (start, line) ->
+                starts[index] = start
+                words[index] = WordTimeline.parse(line)
+                lines += words[index]?.text ?: line
+            }
+
+            return LyricsTimeline(starts, lines, words)
+        }
+
+        private fun MatchResult.toMillis(): Long {
+            val (minutes, seconds, fraction) = destructured
+            val fractionMs = if (fraction.length == 2) fraction.toLong() * 10 else fraction.toLong()
+            return minutes.toLong() * 60_000 + seconds.toLong() * 1_000 + fractionMs
+        }
+    }
+
+    /**
+     * Word-level timing of a single line.
+     *
+     * [text] is the trimmed line without word tags, word at `i` starts at
+     * [starts]`[i]` and its first character is at [offsets]`[i]` of [text].
+     */
+    class WordTimeline internal constructor(
+        val text: String,
+        private val starts: LongArray,
+        private val offsets: IntArray
+    ) {
+
+        companion object {
+            /**
+             * @return `null` when [line] has no word tags
+             */
+            internal fun parse(line: String): WordTimeline? {
+                val tags = WORD_TAG.findAll(line).toList()
+                if (tags.isEmpty()) return null
+
+                val text = StringBuilder(line.length)
+                val starts = LongArray(tags.size)
+                val offsets = IntArray(tags.size)
+                var cursor = 0
+                tags.forEachIndexed { index, tag ->
+                    text.append(line, cursor, tag.range.first)
+                    starts[index] = tag.toMillis()
+                    offsets[index] = text.length
+                    cursor = tag.range.last + 1
+                }
+                text.append(line, cursor, line.length)
+
+                // Lines are displayed trimmed, offsets must match
+                val leading = text.indexOfFirst { !it.isWhitespace() }.coerceAtLeast(0)
+                val trimmed = text.trim().toString()
+                for (index in offsets.indices)
+                    offsets[index] = (offsets[index] - leading).coerceIn(0, trimmed.length)
+
+                return WordTimeline(trimmed, starts, offsets)
+            }
+        }
+
+        /**
+         * @return number of characters of [text] that were sung at [positionMs]
+         */
+        fun activeLength(positionMs: Long): Int {
+            val index = lastStartedBefore(starts, positionMs)
+            if (index < 0) return 0
+
+            // Next tag marks end of current word
+            return if (index + 1 < offsets.size) offsets[index + 1] else text.length
+        }
+    }
+
+    val size: Int
+        get() = starts.size
+
+    fun startOf(index: Int): Long = starts[index]
+
+    /**
+     * @return start of the next line, or [startOf] + [LAST_LINE_DURATION] for the last line
+     */
+    fun endOf(index: Int): Long =
+        if (index + 1 < starts.size) starts[index + 1] else starts[index] + LAST_LINE_DURATION
+
+    fun wordsOf(index: Int): WordTimeline? = words.getOrNull(index)
+
+    /**
+     * Find the last line that started before [positionMs].
+     *
+     * [hint] is usually the previous result, during normal
+     * playback the answer is either [hint] or the line after it,
+     * so both are checked before falling back to binary search.
+     *
+     * @return index of the line, `0` when no line started yet
+     */
+    fun indexAt(positionMs: Long, hint: Int = -1): Int {
+        if (starts.isEmpty()) return 0
+
+        if (hint in starts.indices && starts[hint] < positionMs) {
+            if (hint + 1 == starts.size || starts[hint + 1] >= positionMs) return hint
+            if (hint + 2 == starts.size || starts[hint + 2] >= positionMs) return hint + 1
+        }
+
+        return lastStartedBefore(starts, positionMs).coerceAtLeast(0)
+    }
+}
+
+/**
+ * @return index of the last value in sorted [starts] that
+ * is lower than [positionMs], `-1` if there's none
+ */
+private fun lastStartedBefore(starts: LongArray, positionMs: Long): Int {
+    var low = 0
+    var high = starts.size - 1
+    while (low <= high) {
+        val mid = (low + high) ushr 1
+        if (starts[mid] < positionMs) low = mid + 1 else high = mid - 1
+    }
+    return low - 1
+}
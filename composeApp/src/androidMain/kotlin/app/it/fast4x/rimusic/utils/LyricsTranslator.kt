@@ -0,0 +1,218 @@
+package app.it.fast4x.rimusic.utils
+
+import android.util.LruCache
+import app.cubic.android.core.network.NetworkClientFactory
+import app.it.fast4x.rimusic.Database
+import app.it.fast4x.rimusic.enums.Romanization
+import app.it.fast4x.rimusic.models.LyricsTranslation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import me.bush.translator.Language
+import me.bush.translator.Translator
+import timber.log.Timber
+
+/**
+ * Translates lyrics of a song once per language and keeps the result
+ * in [Database.lyricsTranslationTable], later views don't make any request.
+ *
+ * Lines are joined and sent in batches of up to [MAX_BATCH_CHARS] characters,
+ * so most lyrics take a single batch. A batch whose result can't be split
+ * back into the same lines is sent again line by line. Blank lines aren't
+ * sent, they're put back in place afterwards.
+ *
+ * Everything the translator returns is kept, so any [Romanization]
+ * is rendered from the same result with [format].
+ */
+object LyricsTranslator {
+
+    private const val MAX_BATCH_CHARS = 4000
+    private const val MEMORY_SIZE = 16
+
+    @Serializable
+    data class Line(
+        val source: String,
+        val translated: String,
+        val sourcePronunciation: String? = null,
+        val translatedPronunciation: String? = null,
+        /**
+         * Pronunciation of [source] when it's already in [Language.CHINESE_TRADITIONAL],
+         * in which case translator returns none with [sourcePronunciation]
+         */
+        val helperPronunciation: String? = null,
+        val isHelperUnchanged: Boolean = false
+    ) {
+        val originalPronunciation: String
+            get() = (if (isHelperUnchanged) helperPronunciation else sourcePronunciation) ?: source
+
+        val translatedOrPronunciation: String
+            get() = translatedPronunciation ?: translated
+    }
+
+    private val json = Json { ignoreUnknownKeys = true }
+
+    /**
+     * Recently shown translations, spares reading database on every recomposition
+     */
+    private val memory = LruCache<String, Pair<Int, List<Line>>>(MEMORY_SIZE)
+
+    /**
+     * @param lines of lyrics, in order they are displayed
+     * @param synced whether [lines] come from synced lyrics
+     * @return translation of each line of [lines], `null` if translation failed
+     */
+    suspend fun translate(
+        songId: String,
+        lines: List<String>,
+        synced: Boolean,
+        destination: Language
+    ): List<Line>? {
+        val sourceHash = lines.hashCode()
+        val key = "$songId#${destination.code}#$synced"
+        memory.get(key)?.takeIf { it.first == sourceHash }?.let { return it.second }
+
+        return withContext(Dispatchers.IO) {
+            val cached = Database.lyricsTranslationTable
+                                 .find(songId, destination.code, synced)
+                                 ?.takeIf { it.sourceHash == sourceHash }
+                                 ?.let {
+                                     runCatching { json.decodeFromString<List<Line>>(it.lines) }.getOrNull()
+                                 }
+                                 ?.takeIf { it.size == lines.size }
+            if (cached != null) return@withContext cached
+
+            try {
+                val translator = Translator(NetworkClientFactory.getTranslatorKtorClient())
+                val translatedIterator = batchesOf(lines.filter { it.isNotBlank() })
+                    .flatMap { translateBatch(translator, it, destination) }
+                    .iterator()
+                val translated = lines.map { if (it.isBlank()) Line(it, it) else translatedIterator.next() }
+
+                Database.asyncTransaction {
+                    lyricsTranslationTable.upsert(
+                        LyricsTranslation(
+                            songId = songId,
+                            language = destination.code,
+                            synced = synced,
+                            sourceHash = sourceHash,
+                            lines = json.encodeToString(translated)
+                        )
+                    )
+                }
+                translated
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Timber.e("LyricsTranslator failed to translate ${lines.size} lines ${e.stackTraceToString()}")
+                null
+            }
+        }?.also { memory.put(key, sourceHash to it) }
+    }
+
+    /**
+     * A batch is closed only once it would exceed [MAX_BATCH_CHARS]
+     */
+    private fun batchesOf(lines: List<String>): List<List<String>> {
+        val batches = mutableListOf<List<String>>()
+        var batch = mutableListOf<String>()
+        var batchChars = 0
+        lines.forEach { line ->
+            if (batch.isNotEmpty() && batchChars + line.length + 1 > MAX_BATCH_CHARS) {
+                batches.add(batch)
+                batch = mutableListOf()
+                batchChars = 0
+            }
+            batch.add(line)
+            batchChars += line.length + 1
+        }
+        if (batch.isNotEmpty()) batches.add(batch)
+        return batches
+    }
+
+    private fun String.unescape() = replace("\\r", "").replace("\r", "").replace("\\n", "\n")
+
+    private suspend fun translateBatch(
+        translator: Translator,
+        lines: List<String>,
+        destination: Language
+    ): List<Line> {
+        val text = lines.joinToString("\n")
+
+        /** used to find the source language of the text and detect CHINESE_TRADITIONAL*/
+        val helperTranslation = translator.translate(text, Language.CHINESE_TRADITIONAL, Language.AUTO)
+        val destLanguage = when {
+            destination != Language.AUTO -> destination
+            helperTranslation.translatedText == text -> Language.CHINESE_TRADITIONAL
+            else -> helperTranslation.sourceLanguage
+        }
+        val mainTranslation = if (destLanguage == Language.CHINESE_TRADITIONAL)
+            helperTranslation
+        else
+            translator.translate(text, destLanguage, Language.AUTO)
+
+        fun String?.splitLines(): List<String>? =
+            this?.unescape()?.let { if (lines.size == 1) listOf(it) else it.split('\n') }
+
+        val helperLines = helperTranslation.translatedText.splitLines()!!
+        val helperPronunciations = helperTranslation.sourcePronunciation.splitLines()
+        val translatedLines = mainTranslation.translatedText.splitLines()!!
+        val sourcePronunciations = mainTranslation.sourcePronunciation.splitLines()
+        val translatedPronunciations = mainTranslation.translatedPronunciation.splitLines()
+
+        val isAligned = listOfNotNull(
+            helperLines,
+            helperPronunciations,
+            translatedLines,
+            sourcePronunciations,
+            translatedPronunciations
+        ).all { it.size == lines.size }
+        if (!isAligned)
+            return lines.flatMap { translateBatch(translator, listOf(it), destination) }
+
+        return lines.mapIndexed { index, source ->
+            Line(
+                source = source,
+                translated = translatedLines[index].trim(),
+                sourcePronunciation = sourcePronunciations?.get(index)?.trim(),
+                translatedPronunciation = translatedPronunciations?.get(index)?.trim(),
+                helperPronunciation = helperPronunciations?.get(index)?.trim(),
+                isHelperUnchanged = helperLines[index].trim() == source.trim()
+            )
+        }
+    }
+
+    /**
+     * All [lines] as one, for lyrics displayed as a single block
+     */
+    fun joined(lines: List<Line>) = Line(
+        source = lines.joinToString("\n") { it.source },
+        translated = lines.joinToString("\n") { it.translated },
+        sourcePronunciation = lines.joinToString("\n") { it.originalPronunciation },
+        translatedPronunciation = lines.joinToString("\n") { it.translatedOrPronunciation }
+    )
+
+    /**
+     * @return text of [line] to display with provided settings
+     */
+    fun format(
+        line: Line,
+        romanization: Romanization,
+        showSecondLine: Boolean,
+        translateEnabled: Boolean
+    ): String = when {
+        line.source.isBlank() -> line.source
+        !showSecondLine || line.source == line.translated -> when (romanization) {
+            Romanization.Off -> if (translateEnabled) line.translated else line.source
+            Romanization.Translated -> line.translatedOrPronunciation
+            Romanization.Original, Romanization.Both -> line.originalPronunciation
+        }
+        else -> when (romanization) {
+            Romanization.Off -> line.source + "\n[${line.translated}]"
+            Romanization.Original -> line.originalPronunciation + "\n[${line.translated}]"
+            Romanization.Translated -> line.source + "\n[${line.translatedOrPronunciation}]"
+            Romanization.Both -> line.originalPronunciation + "\n[${line.translatedOrPronunciation}]"
+        }
+    }
+}
@@ -5,6 +5,7 @@ package app.it.fast4x.rimusic.utils
  */
 
 
+import app.cubic.android.core.network.NetworkClientFactory
 import it.fast4x.innertube.utils.ProxyPreferences
 import it.fast4x.innertube.utils.getProxy
 import okhttp3.Call
@@ -25,7 +26,7 @@ class OkHttpRequest(client: OkHttpClient) {
 
     private fun okHttpClient() : OkHttpClient {
         ProxyPreferences.preference?.let{
-            return OkHttpClient.Builder()
+            return NetworkClientFactory.newBuilder()
                 .proxy(
                     getProxy(it)
                 )
@@ -33,7 +34,7 @@ class OkHttpRequest(client: OkHttpClient) {
                 .readTimeout(Duration.ofSeconds(8))
                 .build()
         }
-        return OkHttpClient.Builder()
+        return NetworkClientFactory.newBuilder()
             .connectTimeout(Duration.ofSeconds(16))
             .readTimeout(Duration.ofSeconds(8))
             .build()
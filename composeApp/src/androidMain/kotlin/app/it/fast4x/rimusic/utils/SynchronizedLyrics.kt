@@ -1,53 +1,28 @@
 package app.it.fast4x.rimusic.utils
 
 import androidx.compose.runtime.getValue
-import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.mutableIntStateOf
 import androidx.compose.runtime.setValue
 
-/*
-class SynchronizedLyrics(
-    val sentences: Map<Long, String>,
-    private val positionProvider: () -> Long
-) {
-    var index by mutableIntStateOf(currentIndex)
-        private set
+/**
+ * Tracks current line of [timeline] with position from [positionProvider].
+ *
+ * [update] reads position once and looks the line up from
+ * previous [index], so it's cheap enough to call on every frame.
+ */
+class SynchronizedLyrics(val timeline: LyricsTimeline, private val positionProvider: () -> Long) {
 
-    private val currentIndex: Int
-        get() {
-            var index = -1
-            for ((key) in sentences) {
-                if (key >= positionProvider()) break
-                index++
-            }
-            return if (index == -1) 0 else index
-        }
+    /**
+     * Lines of [timeline] with their start time
+     */
+    val sentences: List<Pair<Long, String>> =
+        timeline.lines.mapIndexed { index, line -> timeline.startOf(index) to line }
 
-    fun update(): Boolean {
-        val newIndex = currentIndex
-        return if (newIndex != index) {
-            index = newIndex
-            true
-        } else false
-    }
-}
-*/
-
-class SynchronizedLyrics(val sentences: List<Pair<Long, String>>, private val positionProvider: () -> Long) {
-    var index by mutableStateOf(currentIndex)
+    var index by mutableIntStateOf(timeline.indexAt(positionProvider()))
         private set
 
-    private val currentIndex: Int
-        get() {
-            var index = -1
-            for (item in sentences) {
-                if (item.first >= positionProvider()) break
-                index++
-            }
-            return if (index == -1) 0 else index
-        }
-
     fun update(): Boolean {
-        val newIndex = currentIndex
+        val newIndex = timeline.indexAt(positionProvider(), index)
         return if (newIndex != index) {
             index = newIndex
             true
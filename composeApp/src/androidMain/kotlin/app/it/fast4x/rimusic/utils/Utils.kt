@@ -58,6 +58,7 @@ import kotlinx.coroutines.flow.first
 import app.kreate.android.me.knighthat.utils.Toaster
 import timber.log.Timber
 import java.io.File
+import java.io.IOException
 import java.net.HttpURLConnection
 import java.net.URL
 import java.time.Duration
@@ -184,6 +185,37 @@ private fun parseSimpMusicLyricsJson(raw: String): SimpMusicLyricsResult? {
     }
 }
 
+/**
+ * @return response body, `null` when SimpMusic has nothing at [url]
+ * @throws IOException when request fails
+ */
+private fun fetchSimpMusicJson(url: String): String? {
+    val connection = (URL(url).openConnection() as HttpURLConnection).apply {
+        requestMethod = "GET"
+        connectTimeout = 5000
+        readTimeout = 5000
+        setRequestProperty("Accept", "application/json")
+        setRequestProperty("User-Agent", "SimpMusicLyrics/1.0")
+        setRequestProperty("Content-Type", "application/json")
+    }
+
+    return when (connection.responseCode) {
+        HttpURLConnection.HTTP_OK -> connection.inputStream.bufferedReader().use { it.readText() }
+        HttpURLConnection.HTTP_NOT_FOUND -> null
+        else -> throw IOException("SimpMusic responded ${connection.responseCode}")
+    }
+}
+
+/**
+ * Same as [fetchSimpMusicLyrics] without translation, except a failed request
+ * throws, so `null` only means SimpMusic has no lyrics of [videoId].
+ */
+suspend fun fetchSimpMusicLyricsOrThrow(videoId: String): SimpMusicLyricsResult? =
+    withContext(Dispatchers.IO) {
+        fetchSimpMusicJson("$SIMPMUSIC_LYRICS_API/$videoId?limit=10")
+            ?.let(::parseSimpMusicLyricsJson)
+    }
+
 suspend fun fetchSimpMusicLyrics(
     videoId: String,
     translatedLanguage: String? = null,
@@ -193,24 +225,7 @@ suspend fun fetchSimpMusicLyrics(
 
     return withContext(Dispatchers.IO) {
         runCatching {
-            fun fetchJson(url: String): String? {
-                val connection = (URL(url).openConnection() as HttpURLConnection).apply {
-                    requestMethod = "GET"
-                    connectTimeout = 5000
-                    readTimeout = 5000
-                    setRequestProperty("Accept", "application/json")
-                    setRequestProperty("User-Agent", "SimpMusicLyrics/1.0")
-                    setRequestProperty("Content-Type", "application/json")
-                }
-
-                return if (connection.responseCode == HttpURLConnection.HTTP_OK) {
-                    connection.inputStream.bufferedReader().use { it.readText() }
-                } else {
-                    null
-                }
-            }
-
-            val baseResult = fetchJson("$SIMPMUSIC_LYRICS_API/$videoId?limit=10")
+            val baseResult = fetchSimpMusicJson("$SIMPMUSIC_LYRICS_API/$videoId?limit=10")
                 ?.let(::parseSimpMusicLyricsJson)
                 ?: return@runCatching null
 
@@ -218,7 +233,9 @@ suspend fun fetchSimpMusicLyrics(
                 return@runCatching baseResult
             }
 
-            val translatedResult = fetchJson("$SIMPMUSIC_LYRICS_API/translated/$videoId/${translatedLanguage.lowercase()}?limit=1")
+            val translatedResult = runCatching {
+                fetchSimpMusicJson("$SIMPMUSIC_LYRICS_API/translated/$videoId/${translatedLanguage.lowercase()}?limit=1")
+            }.getOrNull()
                 ?.let(::parseSimpMusicLyricsJson)
 
             if (translatedResult?.translatedLyrics.isNullOrBlank()) {
@@ -11,6 +11,7 @@ import it.fast4x.innertube.models.bodies.ContinuationBody
 import it.fast4x.innertube.models.bodies.NextBody
 import it.fast4x.innertube.requests.nextPage
 import app.it.fast4x.rimusic.Database
+import app.it.fast4x.rimusic.extensions.youtubelogin.YouTubeRequestThrottler
 import app.it.fast4x.rimusic.service.modern.PlayerServiceModern
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -39,14 +40,16 @@ data class YouTubeRadio @OptIn(UnstableApi::class) constructor(
             val continuation = nextContinuation
 
             val result = if (continuation == null) {
-                Innertube.nextPage(
-                    NextBody(
-                        videoId = videoId,
-                        playlistId = playlistId,
-                        params = parameters,
-                        playlistSetVideoId = playlistSetVideoId
+                YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Next) {
+                    Innertube.nextPage(
+                        NextBody(
+                            videoId = videoId,
+                            playlistId = playlistId,
+                            params = parameters,
+                            playlistSetVideoId = playlistSetVideoId
+                        )
                     )
-                )?.map { nextResult ->
+                }?.map { nextResult ->
                     playlistId = nextResult.playlistId
                     parameters = nextResult.params
                     playlistSetVideoId = nextResult.playlistSetVideoId
@@ -54,7 +57,9 @@ data class YouTubeRadio @OptIn(UnstableApi::class) constructor(
                     nextResult.itemsPage
                 }
             } else {
-                Innertube.nextPage(ContinuationBody(continuation = continuation))
+                YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Next) {
+                    Innertube.nextPage(ContinuationBody(continuation = continuation))
+                }
             }
 
             result?.getOrNull()?.let { songsPage ->
@@ -0,0 +1,194 @@
+package app.kreate.android.me.knighthat.coil
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.LruCache
+import androidx.palette.graphics.Palette
+import app.it.fast4x.rimusic.appContext
+import app.it.fast4x.rimusic.utils.StackBlur
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import timber.log.Timber
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.roundToInt
+
+/**
+ * What's derived from an artwork, computed once per artwork and shared
+ * by the player, the app theme and the widgets: its color palette and
+ * its blurred variants.
+ *
+ * Results are kept in memory and on disk, keyed by artwork url.
+ * Concurrent requests for the same result wait for the same computation,
+ * which doesn't stop if the first requester goes away.
+ */
+object ArtworkDerivatives {
+
+    private const val DIRECTORY = "artwork_derivatives"
+    private const val MEMORY_PALETTES = 64
+    private const val MEMORY_BLUR_BYTES = 8 * 1024 * 1024
+    private const val MAX_DISK_FILES = 500
+
+    /**
+     * Blur is computed on an image no larger than this, the result
+     * is smooth anyway and gets scaled up when drawn
+     */
+    private const val MAX_BLUR_SIDE = 160
+    private const val BLUR_QUALITY = 85
+
+    /**
+     * Same settings used across the app before results were shared
+     */
+    private const val PALETTE_COLOR_COUNT = 8
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+    private val inflight = ConcurrentHashMap<String, Deferred<Any?>>()
+
+    private val palettes = LruCache<String, Palette>(MEMORY_PALETTES)
+    private val blurs = object : LruCache<String, Bitmap>(MEMORY_BLUR_BYTES) {
+        override fun sizeOf(key: String, value: Bitmap): Int = value.byteCount
+    }
+
+    private val directory: File by lazy {
+        File(appContext().cacheDir, DIRECTORY).apply { mkdirs() }
+    }
+
+    private fun fileOf(key: String, extension: String) =
+        File(directory, "${java.lang.Long.toHexString(ImageMetadataIndex.keyOf(key))}.$extension")
+
+    /**
+     * Run [compute] once for [key] no matter how many callers ask at the same time.
+     */
+    @Suppress("UNCHECKED_CAST")
+    private suspend fun <T> shared(key: String, compute: suspend () -> T): T {
+        val created = scope.async(start = CoroutineStart.LAZY) { compute() as Any? }
+        val deferred = inflight.putIfAbsent(key, created)?.also { created.cancel() } ?: created.also {
+            it.invokeOnCompletion { _ -> inflight.remove(key, it) }
+            it.start()
+        }
+        return deferred.await() as T
+    }
+
+    /**
+     * Drop oldest files once there are too many
+     */
+    private fun trimDisk() {
+        val files = directory.listFiles() ?: return
+        if (files.size <= MAX_DISK_FILES) return
+        files.sortedBy(File::lastModified)
+             .take(files.size - MAX_DISK_FILES)
+             .forEach(File::delete)
+    }
+
+    /**
+     * @param load provides the artwork when palette of [key] isn't known yet
+     */
+    suspend fun palette(key: String, load: suspend () -> Bitmap?): Palette? {
+        palettes.get(key)?.let { return it }
+
+        return shared("palette:$key") {
+            readPalette(key) ?: load()?.let { bitmap ->
+                Palette.from(bitmap)
+                       .maximumColorCount(PALETTE_COLOR_COUNT)
+                       .generate()
+                       .also { writePalette(key, it) }
+            }
+        }?.also { palettes.put(key, it) }
+    }
+
+    /**
+     * Swatches are all a palette needs to be rebuilt,
+     * targets (vibrant, muted...) are picked again from them.
+     */
+    private fun readPalette(key: String): Palette? = try {
+        val file = fileOf(key, "palette")
+        if (!file.exists()) null
+        else file.readLines()
+                 .mapNotNull { line ->
+                     val parts = line.split(' ')
+                     if (parts.size != 2) return@mapNotNull null
+                     Palette.Swatch(parts[0].toInt(), parts[1].toInt())
+                 }
+                 .takeIf { it.isNotEmpty() }
+                 ?.let(Palette::from)
+                 ?.also { file.setLastModified(System.currentTimeMillis()) }
+    } catch (e: Exception) {
+        Timber.tag("ArtworkDerivatives").e(e, "Failed to read palette")
+        null
+    }
+
+    private fun writePalette(key: String, palette: Palette) {
+        try {
+            fileOf(key, "palette").writeText(
+                palette.swatches.joinToString("\n") { "${it.rgb} ${it.population}" }
+            )
+            trimDisk()
+        } catch (e: Exception) {
+            Timber.tag("ArtworkDerivatives").e(e, "Failed to save palette")
+        }
+    }
+
+    /**
+     * Blurred and slightly darkened artwork of [key].
+     *
+     * @param radius blur radius in pixels of the artwork scaled by [scale]
+     * @param load provides the artwork when this blur isn't known yet
+     */
+    suspend fun blurred(key: String, radius: Int, scale: Float, load: suspend () -> Bitmap?): Bitmap? {
+        if (radius < 1) return null
+
+        val blurKey = "$key#$radius#$scale"
+        blurs.get(blurKey)?.let { return it }
+
+        return shared("blur:$blurKey") {
+            readBlur(blurKey) ?: load()?.let { source ->
+                blur(source, radius, scale).also { writeBlur(blurKey, it) }
+            }
+        }?.also { blurs.put(blurKey, it) }
+    }
+
+    /**
+     * Scales down first, then blurs with a radius scaled by the same amount,
+     * so the result looks like blurring at [scale] but costs a fraction.
+     */
+    fun blur(source: Bitmap, radius: Int, scale: Float): Bitmap {
+        val scaledSide = maxOf(source.width, source.height) * scale
+        val factor = if (scaledSide > MAX_BLUR_SIDE) MAX_BLUR_SIDE / scaledSide else 1f
+        val width = (source.width * scale * factor).roundToInt().coerceAtLeast(1)
+        val height = (source.height * scale * factor).roundToInt().coerceAtLeast(1)
+
+        val scaled = Bitmap.createScaledBitmap(source, width, height, true)
+        val bitmap = if (scaled.isMutable && scaled.config == Bitmap.Config.ARGB_8888 && scaled !== source)
+            scaled
+        else
+            scaled.copy(Bitmap.Config.ARGB_8888, true).also { if (scaled !== source) scaled.recycle() }
+
+        StackBlur.blur(bitmap, (radius * factor).roundToInt().coerceAtLeast(1))
+        return bitmap
+    }
+
+    private fun readBlur(key: String): Bitmap? = try {
+        val file = fileOf(key, "blur")
+        if (!file.exists()) null
+        else BitmapFactory.decodeFile(file.path)
+                          ?.also { file.setLastModified(System.currentTimeMillis()) }
+    } catch (e: Exception) {
+        Timber.tag("ArtworkDerivatives").e(e, "Failed to read blurred artwork")
+        null
+    }
+
+    private fun writeBlur(key: String, bitmap: Bitmap) {
+        try {
+            fileOf(key, "blur").outputStream().use {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, BLUR_QUALITY, it)
+            }
+            trimDisk()
+        } catch (e: Exception) {
+            Timber.tag("ArtworkDerivatives").e(e, "Failed to save blurred artwork")
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.net.NetworkCapabilities
 import android.net.Uri
 import android.os.Handler
 import android.os.Looper
+import android.util.LruCache
 import androidx.annotation.DrawableRes
 import androidx.compose.foundation.layout.fillMaxSize
 import androidx.compose.runtime.Composable
@@ -21,6 +22,7 @@ import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
 import androidx.compose.runtime.setValue
 import androidx.core.net.toUri
+import app.cubic.android.core.network.NetworkClientFactory
 import app.kreate.android.R
 import coil3.ImageLoader
 import coil3.annotation.ExperimentalCoilApi
@@ -50,7 +52,6 @@ import app.it.fast4x.rimusic.utils.getEnum
 import app.it.fast4x.rimusic.utils.imageQualityFormatKey
 import app.it.fast4x.rimusic.utils.isConnectionMeteredEnabledKey
 import app.it.fast4x.rimusic.utils.preferences
-import okhttp3.OkHttpClient
 import okio.Path.Companion.toOkioPath
 import java.security.MessageDigest
 import java.util.concurrent.ConcurrentHashMap
@@ -91,23 +92,25 @@ object ImageCacheFactory {
     private const val COOLDOWN_MS = 10 * 1000L
     private val cooldownMap = ConcurrentHashMap<String, Long>()
     private val retryScheduleMap = ConcurrentHashMap<String, Long>()
-    private val cacheKeyMap = ConcurrentHashMap<String, String>()
+    private const val CACHE_KEY_MAP_SIZE = 1024
+    private val cacheKeyMap = LruCache<String, String>(CACHE_KEY_MAP_SIZE)
+    private val md5Digest = object : ThreadLocal<MessageDigest>() {
+        override fun initialValue(): MessageDigest = MessageDigest.getInstance("MD5")
+    }
+    private val HEX_DIGITS = "0123456789abcdef".toCharArray()
     private val storeVersion = kotlinx.coroutines.flow.MutableStateFlow(0)
     private val mainHandler = Handler(Looper.getMainLooper())
     @Volatile
     private var connectivityRefreshScheduled = false
 
     internal object PlaylistThumbnailStore {
-        private const val PREFS_NAME = "playlist_thumbnail_store"
-        private fun getPrefs() = appContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
 
-        // Store format: "lowResUrl|highResUrl"
+        // Only the better "high" and lighter "low" variant of each playlist are kept
         fun save(id: String, url: String, isHigh: Boolean) {
             try {
-                val current = getPrefs().getString(id, null)
-                val parts = current?.split("|")
-                var low = parts?.getOrNull(0).orEmpty()
-                var high = parts?.getOrNull(1).orEmpty()
+                val current = ImageMetadataIndex.getPlaylist(id)
+                var low = current?.low.orEmpty()
+                var high = current?.high.orEmpty()
 
                 val newScore = url.getYouTubeQualityScore()
                 
@@ -123,69 +126,43 @@ object ImageCacheFactory {
                     }
                 }
 
-                if (low.isNotEmpty() || high.isNotEmpty()) {
-                    getPrefs().edit().putString(id, "$low|$high").apply()
+                if ((low.isNotEmpty() || high.isNotEmpty()) && (low != current?.low || high != current?.high)) {
+                    ImageMetadataIndex.putPlaylist(id, low, high)
                     storeVersion.value++
                 }
             } catch (e: Exception) {
             }
         }
 
-        fun getHighUrl(id: String): String? {
-            return try {
-                val current = getPrefs().getString(id, null) ?: return null
-                current.split("|").getOrNull(1)?.takeIf { it.isNotEmpty() }
-            } catch (e: Exception) { null }
-        }
+        fun getHighUrl(id: String): String? = ImageMetadataIndex.getPlaylist(id)?.high?.takeIf { it.isNotEmpty() }
 
-        fun getLowUrl(id: String): String? {
-            return try {
-                val current = getPrefs().getString(id, null) ?: return null
-                current.split("|").getOrNull(0)?.takeIf { it.isNotEmpty() }
-            } catch (e: Exception) { null }
-        }
+        fun getLowUrl(id: String): String? = ImageMetadataIndex.getPlaylist(id)?.low?.takeIf { it.isNotEmpty() }
 
-        fun clear(id: String) {
-            try {
-                getPrefs().edit().remove(id).apply()
-            } catch (e: Exception) {}
-        }
+        fun clear(id: String) = ImageMetadataIndex.removePlaylist(id)
 
-        fun clearAll() {
-            try { getPrefs().edit().clear().apply() } catch (e: Exception) {}
-        }
+        fun clearAll() = ImageMetadataIndex.clearPlaylists()
     }
 
     private object CacheMetadataStore {
-        private const val PREFS_NAME = "image_cache_metadata"
-        private fun getPrefs() = appContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
 
-        fun save(url: String, quality: NetworkQuality) {
-            try {
-                val key = url.hashCode().toString()
-                getPrefs().edit().putString(key, "${quality.name}:${System.currentTimeMillis()}").apply()
-            } catch (e: Exception) {}
-        }
+        fun save(url: String, quality: NetworkQuality) = ImageMetadataIndex.putQuality(url, quality.ordinal)
 
+        /**
+         * @return quality [url] was cached at, `null` if unknown or older than its [NetworkQuality.ttl]
+         */
         fun get(url: String): NetworkQuality? {
-            return try {
-                val key = url.hashCode().toString()
-                val value = getPrefs().getString(key, null) ?: return null
-                NetworkQuality.valueOf(value.substringBefore(":"))
-            } catch (e: Exception) { null }
+            val record = ImageMetadataIndex.getQuality(url) ?: return null
+            val quality = NetworkQuality.entries.getOrNull(record.quality) ?: return null
+            return quality.takeIf { System.currentTimeMillis() - record.savedAt < it.ttl }
         }
 
-        fun remove(url: String) {
-            try { getPrefs().edit().remove(url.hashCode().toString()).apply() } catch (e: Exception) {}
-        }
+        fun remove(url: String) = ImageMetadataIndex.removeQuality(url)
 
-        fun clearAll() {
-            try { getPrefs().edit().clear().apply() } catch (e: Exception) {}
-        }
+        fun clearAll() = ImageMetadataIndex.clearQualities()
     }
 
     val LOADER: ImageLoader by lazy {
-        val httpClient = OkHttpClient.Builder()
+        val httpClient = NetworkClientFactory.newBuilder()
             .connectTimeout(10, TimeUnit.SECONDS)
             .readTimeout(15, TimeUnit.SECONDS)
             .retryOnConnectionFailure(true)
@@ -210,14 +187,23 @@ object ImageCacheFactory {
             return "playlist_${id}_$resSuffix"
         }
 
-        val cacheKey = "${url}_${quality.size}"
-        return cacheKeyMap.getOrPut(cacheKey) {
-            try {
-                val md = MessageDigest.getInstance("MD5")
-                val digest = md.digest(url.toByteArray())
-                digest.fold("") { str, it -> str + "%02x".format(it) }
-            } catch (e: Exception) { "${url.hashCode()}_${quality.size}" }
+        // Digest only depends on url
+        cacheKeyMap.get(url)?.let { return it }
+        return try {
+            md5Digest.get()!!.digest(url.toByteArray()).toHex()
+        } catch (e: Exception) {
+            "${url.hashCode()}_${quality.size}"
+        }.also { cacheKeyMap.put(url, it) }
+    }
+
+    private fun ByteArray.toHex(): String {
+        val chars = CharArray(size * 2)
+        for (index in indices) {
+            val value = this[index].toInt() and 0xFF
+            chars[index * 2] = HEX_DIGITS[value ushr 4]
+            chars[index * 2 + 1] = HEX_DIGITS[value and 0x0F]
         }
+        return String(chars)
     }
 
     fun clearCacheForKey(url: String?, quality: NetworkQuality) {
@@ -820,7 +806,7 @@ object ImageCacheFactory {
             CacheMetadataStore.clearAll()
             
             // 5. On réinitialise les registres temporaires
-            cacheKeyMap.clear()
+            cacheKeyMap.evictAll()
             cooldownMap.clear()
             retryScheduleMap.clear()
             
@@ -0,0 +1,238 @@
+package app.kreate.android.me.knighthat.coil
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.util.LruCache
+import app.it.fast4x.rimusic.appContext
+import timber.log.Timber
+import java.io.File
+import java.util.concurrent.Executors
+
+/**
+ * Bounded store of what [ImageCacheFactory] learned about images:
+ * quality each url was cached at, and the low/high resolution
+ * variants of playlist thumbnails.
+ *
+ * Replaces the old SharedPreferences files, which had to be
+ * parsed entirely on first access and never stopped growing.
+ *
+ * Records live in a small SQLite database, looked up by primary key
+ * and fronted by an LRU. Writes are applied to memory right away
+ * and persisted in order on a background thread. Once a table grows
+ * past its limit, least recently saved records are dropped.
+ */
+internal object ImageMetadataIndex {
+
+    private const val DATABASE_NAME = "image_metadata.db"
+    private const val DATABASE_VERSION = 1
+
+    private const val QUALITY_TABLE = "image_quality"
+    private const val PLAYLIST_TABLE = "playlist_thumbnail"
+
+    private const val MAX_QUALITY_RECORDS = 4_000
+    private const val MAX_PLAYLIST_RECORDS = 1_000
+    private const val MEMORY_RECORDS = 512
+
+    /**
+     * Number of writes between trims
+     */
+    private const val TRIM_INTERVAL = 128
+
+    /** Legacy SharedPreferences files, imported (or dropped) once */
+    private const val LEGACY_QUALITY_PREFS = "image_cache_metadata"
+    private const val LEGACY_PLAYLIST_PREFS = "playlist_thumbnail_store"
+
+    data class QualityRecord(val quality: Int, val savedAt: Long)
+
+    data class PlaylistRecord(val low: String, val high: String)
+
+    /** Marks records known to be absent, so misses don't hit disk again */
+    private val NO_QUALITY = QualityRecord(-1, 0L)
+    private val NO_PLAYLIST = PlaylistRecord("", "")
+
+    private val qualityCache = LruCache<Long, QualityRecord>(MEMORY_RECORDS)
+    private val playlistCache = LruCache<String, PlaylistRecord>(MEMORY_RECORDS)
+
+    private val writer = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "ImageMetadataIndex").apply { isDaemon = true }
+    }
+    private var writesSinceTrim = 0
+
+    private val helper: OpenHelper by lazy { OpenHelper(appContext()) }
+
+    private class OpenHelper(
+        private val context: Context
+    ): SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+
+        override fun onCreate(db: SQLiteDatabase) {
+            db.execSQL("CREATE TABLE $QUALITY_TABLE (url_hash INTEGER PRIMARY KEY NOT NULL, quality INTEGER NOT NULL, saved_at INTEGER NOT NULL)")
+            db.execSQL("CREATE INDEX ${QUALITY_TABLE}_saved_at ON $QUALITY_TABLE (saved_at)")
+            db.execSQL("CREATE TABLE $PLAYLIST_TABLE (id TEXT PRIMARY KEY NOT NULL, low TEXT NOT NULL, high TEXT NOT NULL, saved_at INTEGER NOT NULL)")
+            db.execSQL("CREATE INDEX ${PLAYLIST_TABLE}_saved_at ON $PLAYLIST_TABLE (saved_at)")
+
+            importLegacy(db)
+        }
+
+        override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+            db.execSQL("DROP TABLE IF EXISTS $QUALITY_TABLE")
+            db.execSQL("DROP TABLE IF EXISTS $PLAYLIST_TABLE")
+            onCreate(db)
+        }
+
+        /**
+         * Learned playlist thumbnails are worth keeping, quality
+         * records are keyed by `String.hashCode()` and only hints,
+         * so they're dropped.
+         */
+        private fun importLegacy(db: SQLiteDatabase) {
+            try {
+                val now = System.currentTimeMillis()
+                context.getSharedPreferences(LEGACY_PLAYLIST_PREFS, Context.MODE_PRIVATE)
+                       .all
+                       .entries
+                       .take(MAX_PLAYLIST_RECORDS)
+                       .forEach { (id, value) ->
+                           val parts = (value as? String)?.split("|") ?: return@forEach
+                           db.insertWithOnConflict(
+                               PLAYLIST_TABLE,
+                               null,
+                               playlistValues(id, parts.getOrNull(0).orEmpty(), parts.getOrNull(1).orEmpty(), now),
+                               SQLiteDatabase.CONFLICT_REPLACE
+                           )
+                       }
+            } catch (e: Exception) {
+                Timber.tag("ImageMetadataIndex").e(e, "Failed to import legacy playlist thumbnails")
+            }
+
+            val prefsDir = File(context.applicationInfo.dataDir, "shared_prefs")
+            listOf(LEGACY_QUALITY_PREFS, LEGACY_PLAYLIST_PREFS).forEach { name ->
+                File(prefsDir, "$name.xml").delete()
+                File(prefsDir, "$name.xml.bak").delete()
+            }
+        }
+    }
+
+    private fun playlistValues(id: String, low: String, high: String, savedAt: Long) =
+        ContentValues(4).apply {
+            put("id", id)
+            put("low", low)
+            put("high", high)
+            put("saved_at", savedAt)
+        }
+
+    /**
+     * 64-bit FNV-1a of [url]'s characters.
+     *
+     * Unlike `String.hashCode()`, collisions are unlikely even
+     * with thousands of urls, and nothing is allocated.
+     */
+    fun keyOf(url: String): Long {
+        var hash = -0x340d631b7bdddcdbL
+        for (index in url.indices) {
+            hash = (hash xor url[index].code.toLong()) * 0x100000001b3L
+        }
+        return hash
+    }
+
+    private fun persist(block: (SQLiteDatabase) -> Unit) {
+        writer.execute {
+            try {
+                val db = helper.writableDatabase
+                block(db)
+
+                if (++writesSinceTrim >= TRIM_INTERVAL) {
+                    writesSinceTrim = 0
+                    trim(db, QUALITY_TABLE, "url_hash", MAX_QUALITY_RECORDS)
+                    trim(db, PLAYLIST_TABLE, "id", MAX_PLAYLIST_RECORDS)
+                }
+            } catch (e: Exception) {
+                Timber.tag("ImageMetadataIndex").e(e, "Failed to persist image metadata")
+            }
+        }
+    }
+
+    private fun trim(db: SQLiteDatabase, table: String, key: String, limit: Int) =
+        db.execSQL(
+            "DELETE FROM $table WHERE $key NOT IN (SELECT $key FROM $table ORDER BY saved_at DESC LIMIT $limit)"
+        )
+
+    fun getQuality(url: String): QualityRecord? {
+        val key = keyOf(url)
+        val record = qualityCache.get(key) ?: try {
+            helper.readableDatabase
+                  .rawQuery("SELECT quality, saved_at FROM $QUALITY_TABLE WHERE url_hash = ?", arrayOf(key.toString()))
+                  .use { cursor ->
+                      if (cursor.moveToFirst()) QualityRecord(cursor.getInt(0), cursor.getLong(1)) else NO_QUALITY
+                  }
+        } catch (e: Exception) {
+            Timber.tag("ImageMetadataIndex").e(e, "Failed to read image quality")
+            NO_QUALITY
+        }.also { qualityCache.put(key, it) }
+
+        return record.takeUnless { it === NO_QUALITY }
+    }
+
+    fun putQuality(url: String, quality: Int) {
+        val key = keyOf(url)
+        val record = QualityRecord(quality, System.currentTimeMillis())
+        qualityCache.put(key, record)
+
+        persist { db ->
+            val values = ContentValues(3).apply {
+                put("url_hash", key)
+                put("quality", record.quality)
+                put("saved_at", record.savedAt)
+            }
+            db.insertWithOnConflict(QUALITY_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE)
+        }
+    }
+
+    fun removeQuality(url: String) {
+        val key = keyOf(url)
+        qualityCache.put(key, NO_QUALITY)
+
+        persist { db -> db.delete(QUALITY_TABLE, "url_hash = ?", arrayOf(key.toString())) }
+    }
+
+    fun getPlaylist(id: String): PlaylistRecord? {
+        val record = playlistCache.get(id) ?: try {
+            helper.readableDatabase
+                  .rawQuery("SELECT low, high FROM $PLAYLIST_TABLE WHERE id = ?", arrayOf(id))
+                  .use { cursor ->
+                      if (cursor.moveToFirst()) PlaylistRecord(cursor.getString(0), cursor.getString(1)) else NO_PLAYLIST
+                  }
+        } catch (e: Exception) {
+            Timber.tag("ImageMetadataIndex").e(e, "Failed to read playlist thumbnail")
+            NO_PLAYLIST
+        }.also { playlistCache.put(id, it) }
+
+        return record.takeUnless { it === NO_PLAYLIST }
+    }
+
+    fun putPlaylist(id: String, low: String, high: String) {
+        playlistCache.put(id, PlaylistRecord(low, high))
+
+        val savedAt = System.currentTimeMillis()
+        persist { db ->
+            db.insertWithOnConflict(PLAYLIST_TABLE, null, playlistValues(id, low, high, savedAt), SQLiteDatabase.CONFLICT_REPLACE)
+        }
+    }
+
+    fun removePlaylist(id: String) {
+        playlistCache.put(id, NO_PLAYLIST)
+
+        persist { db -> db.delete(PLAYLIST_TABLE, "id = ?", arrayOf(id)) }
+    }
+
+    fun clearQualities() {
+        qualityCache.evictAll()
+        persist { db -> db.delete(QUALITY_TABLE, null, null) }
+    }
+
+    fun clearPlaylists() {
+        playlistCache.evictAll()
+        persist { db -> db.delete(PLAYLIST_TABLE, null, null) }
+    }
+}
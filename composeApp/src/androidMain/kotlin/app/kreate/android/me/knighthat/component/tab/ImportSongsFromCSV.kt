@@ -49,6 +49,7 @@ import app.it.fast4x.rimusic.appContext
 import app.it.fast4x.rimusic.cleanPrefix
 import app.it.fast4x.rimusic.models.Playlist
 import app.it.fast4x.rimusic.models.Song
+import app.it.fast4x.rimusic.extensions.youtubelogin.YouTubeRequestThrottler
 import app.it.fast4x.rimusic.ui.components.tab.toolbar.Descriptive
 import app.it.fast4x.rimusic.ui.components.tab.toolbar.MenuIcon
 import app.it.fast4x.rimusic.utils.SecureApiConfig
@@ -59,6 +60,7 @@ import app.kreate.android.exception.InvalidHeaderException
 import app.kreate.android.me.knighthat.component.ImportFromFile
 import app.kreate.android.me.knighthat.utils.DurationUtils
 import app.kreate.android.me.knighthat.utils.csv.CSVLocaleManager
+import app.kreate.android.me.knighthat.utils.csv.CsvImportCheckpoint
 import app.kreate.android.me.knighthat.utils.csv.SongCSV
 import androidx.documentfile.provider.DocumentFile
 import com.github.doyaaaaaken.kotlincsv.dsl.csvReader
@@ -66,10 +68,19 @@ import it.fast4x.innertube.Innertube
 import it.fast4x.innertube.models.bodies.SearchBody
 import it.fast4x.innertube.requests.searchPage
 import it.fast4x.innertube.utils.from
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -77,6 +88,7 @@ import java.io.InputStream
 import java.net.HttpURLConnection
 import java.net.URLEncoder
 import java.net.URL
+import java.util.concurrent.ConcurrentHashMap
 
 private enum class CsvImportEntryStatus {
     Converting,
@@ -168,6 +180,18 @@ private object CsvImportConversionTracker {
         )
     }
 
+    /**
+     * Counters of rows converted before import was interrupted
+     */
+    suspend fun restore(processed: Int, successCount: Int, fallbackCount: Int, failedCount: Int) = mutex.withLock {
+        _state.value = _state.value.copy(
+            processed = processed,
+            successCount = successCount,
+            fallbackCount = fallbackCount,
+            failedCount = failedCount
+        )
+    }
+
     suspend fun finish() = mutex.withLock {
         _state.value = _state.value.copy(isRunning = false, isVisible = true)
     }
@@ -211,11 +235,16 @@ private data class CsvYoutubeMatch(
     val source: CsvYoutubeMatchSource
 )
 
-private data class CsvParseResult(
-    val songs: List<SongCSV>,
-    val successCount: Int,
-    val fallbackCount: Int,
-    val failedCount: Int
+private data class CsvResolvedMatch(
+    val songId: String,
+    val thumbnailUrl: String,
+    val source: CsvYoutubeMatchSource
+)
+
+private data class CsvImportRowResult(
+    val index: Int,
+    val song: SongCSV?,
+    val status: CsvImportEntryStatus
 )
 
 class ImportSongsFromCSV(
@@ -223,6 +252,16 @@ class ImportSongsFromCSV(
 ) : ImportFromFile(launcher), MenuIcon, Descriptive {
 
     companion object {
+        /**
+         * Number of rows converted at the same time
+         */
+        private const val IMPORT_WORKERS = 4
+
+        /**
+         * Number of rows written to database (and checkpoint) at once
+         */
+        private const val IMPORT_BATCH_SIZE = 25
+
         private fun sanitizeCsvFileName(fileName: String): String =
             fileName.substringAfterLast('/')
                 .substringAfterLast(':')
@@ -251,10 +290,6 @@ class ImportSongsFromCSV(
         }
 
         private suspend fun fetchYoutubeVideoId(query: String, maxRetries: Int = 3): String? {
-            if (!hasInternetConnection()) {
-                throw IllegalStateException("No internet connection")
-            }
-
             var lastException: Exception? = null
             repeat(maxRetries) { attempt ->
                 try {
@@ -292,10 +327,12 @@ class ImportSongsFromCSV(
 
             repeat(maxRetries) { attempt ->
                 try {
-                    val songPage = Innertube.searchPage(
-                        body = SearchBody(query = query, params = Innertube.SearchFilter.Song.value),
-                        fromMusicShelfRendererContent = { content -> Innertube.SongItem.from(content) }
-                    )?.getOrThrow()
+                    val songPage = YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Search) {
+                        Innertube.searchPage(
+                            body = SearchBody(query = query, params = Innertube.SearchFilter.Song.value),
+                            fromMusicShelfRendererContent = { content -> Innertube.SongItem.from(content) }
+                        )?.getOrThrow()
+                    }
 
                     val songItem = songPage?.items
                         ?.filterIsInstance<Innertube.SongItem>()
@@ -308,10 +345,12 @@ class ImportSongsFromCSV(
                         )
                     }
 
-                    val videoPage = Innertube.searchPage(
-                        body = SearchBody(query = query, params = Innertube.SearchFilter.Video.value),
-                        fromMusicShelfRendererContent = { content -> Innertube.VideoItem.from(content) }
-                    )?.getOrThrow()
+                    val videoPage = YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Search) {
+                        Innertube.searchPage(
+                            body = SearchBody(query = query, params = Innertube.SearchFilter.Video.value),
+                            fromMusicShelfRendererContent = { content -> Innertube.VideoItem.from(content) }
+                        )?.getOrThrow()
+                    }
 
                     val videoItem = videoPage?.items
                         ?.filterIsInstance<Innertube.VideoItem>()
@@ -337,58 +376,55 @@ class ImportSongsFromCSV(
             return null
         }
 
-        private suspend fun parseFromCsvFile(inputStream: InputStream, fileName: String): CsvParseResult {
-            val rows = csvReader { skipEmptyLine = true }.readAllWithHeader(inputStream)
-            CSVLocaleManager.initialize(appContext())
-
-            val translatedRows = rows.map(CSVLocaleManager::normalizeRow)
-            val originalHeaders = rows.firstOrNull()?.keys.orEmpty()
-            val detectedLocale = CSVLocaleManager.detectLocale(originalHeaders)
-            val detectedLocaleName = detectedLocale?.let(CSVLocaleManager::getSimpleLocaleName).orEmpty()
-
-            CsvImportConversionTracker.start(
-                fileName = fileName,
-                total = translatedRows.size,
-                detectedLanguage = detectedLocaleName
-            )
+        /**
+         * State shared by all workers of one import.
+         *
+         * @param isOnline checked once per import, instead of before every lookup
+         */
+        private class ImportSession(
+            val playlistName: String,
+            val total: Int,
+            private val isOnline: Boolean,
+            private val scope: CoroutineScope
+        ) {
 
-            val headers = translatedRows.firstOrNull()?.keys.orEmpty()
-            val hasCustomFormat = headers.containsAll(
-                setOf("PlaylistBrowseId", "PlaylistName", "MediaId", "Title", "Artists", "Duration")
-            )
-            val hasSpotifyFormat = headers.containsAll(
-                setOf("Track Name", "Artist Name(s)")
-            )
-            val hasExportifyFormat = headers.containsAll(
-                setOf("Track URI", "Track Name", "Artist Name(s)", "Album Name")
-            )
-            val hasYourFormat = headers.containsAll(
-                setOf("PlaylistBrowseId", "PlaylistName", "MediaId", "Title", "Artists", "Duration", "ThumbnailUrl", "AlbumId", "AlbumTitle", "ArtistIds")
-            )
+            /**
+             * Playlists often repeat the same title and artists,
+             * each query is only looked up once per import, and
+             * rows asking for it concurrently share the same lookup.
+             */
+            private val matches = ConcurrentHashMap<String, Deferred<Result<CsvResolvedMatch?>>>()
+
+            private suspend fun lookup(query: String): CsvResolvedMatch? {
+                if (!isOnline) throw IllegalStateException("No internet connection")
+
+                val omadaVideoId = runCatching { fetchYoutubeVideoId(query) }.getOrNull()
+                if (!omadaVideoId.isNullOrBlank()) {
+                    return CsvResolvedMatch(
+                        songId = omadaVideoId,
+                        thumbnailUrl = "https://yt.omada.cafe/vi/$omadaVideoId/hqdefault.jpg",
+                        source = CsvYoutubeMatchSource.Omada
+                    )
+                }
 
-            if (!hasCustomFormat && !hasSpotifyFormat && !hasExportifyFormat && !hasYourFormat) {
-                CsvImportConversionTracker.setBannerMessage(
-                    appContext().getString(R.string.error_message_unsupported_local_playlist)
+                val innertubeMatch = searchInnertubeMatch(query) ?: return null
+                return CsvResolvedMatch(
+                    songId = innertubeMatch.song.id,
+                    thumbnailUrl = innertubeMatch.song.thumbnailUrl.orEmpty(),
+                    source = innertubeMatch.source
                 )
-                CsvImportConversionTracker.finish()
-                throw InvalidHeaderException("Unsupported CSV format")
             }
 
-            val converted = mutableListOf<SongCSV>()
-            var successCount = 0
-            var fallbackCount = 0
-            var failCount = 0
+            suspend fun resolve(query: String): CsvResolvedMatch? {
+                val key = query.trim().lowercase()
+                val lookup = scope.async(start = CoroutineStart.LAZY) { runCatching { lookup(query) } }
+                val existing = matches.putIfAbsent(key, lookup)
+                if (existing != null) lookup.cancel() else lookup.start()
 
-            val csvPlaylistName = translatedRows.firstOrNull()?.get("PlaylistName") ?: ""
-            val playlistName = if (csvPlaylistName.isNotBlank()) {
-                csvPlaylistName
-            } else {
-                sanitizeCsvFileName(fileName)
+                return (existing ?: lookup).await().getOrThrow()
             }
 
-            CsvImportConversionTracker.setPlaylistName(playlistName)
-
-            translatedRows.forEachIndexed { index, row ->
+            suspend fun convertRow(index: Int, row: Map<String, String>): CsvImportRowResult {
                 val rowTitle = row["Title"].orEmpty().ifBlank { row["Track Name"].orEmpty() }
                 val rowArtists = row["Artists"].orEmpty().ifBlank { row["Artist Name(s)"].orEmpty() }
 
@@ -413,7 +449,6 @@ class ImportSongsFromCSV(
                         val query = "$title $cleanArtists".trim()
 
                         if (query.isBlank() || title.isBlank()) {
-                            failCount++
                             CsvImportConversionTracker.markFinished(
                                 index = index,
                                 title = rowTitle,
@@ -421,7 +456,7 @@ class ImportSongsFromCSV(
                                 status = CsvImportEntryStatus.Failed,
                                 message = appContext().getString(R.string.csv_import_status_failed_missing_query)
                             )
-                            return@forEachIndexed
+                            return CsvImportRowResult(index, null, CsvImportEntryStatus.Failed)
                         }
 
                         CsvImportConversionTracker.markConverting(
@@ -431,80 +466,45 @@ class ImportSongsFromCSV(
                             message = appContext().getString(
                                 R.string.csv_import_status_converting_row,
                                 index + 1,
-                                translatedRows.size
+                                total
                             )
                         )
 
-                        try {
-                            val omadaVideoId = runCatching { fetchYoutubeVideoId(query) }.getOrNull()
-                            val rawDurationMs = row["Track Duration (ms)"]?.toLongOrNull() ?: 0L
-                            val convertedDuration = if (rawDurationMs > 0) formatAsDuration(rawDurationMs) else "0"
-
-                            when {
-                                !omadaVideoId.isNullOrBlank() -> {
-                                    converted += SongCSV(
-                                        songId = omadaVideoId,
-                                        playlistBrowseId = "",
-                                        playlistName = playlistName,
-                                        title = explicitPrefix + title,
-                                        artists = cleanArtists,
-                                        duration = convertedDuration,
-                                        thumbnailUrl = "https://yt.omada.cafe/vi/$omadaVideoId/hqdefault.jpg"
-                                    )
-                                    successCount++
-                                    CsvImportConversionTracker.markFinished(
-                                        index = index,
-                                        title = title,
-                                        artists = cleanArtists,
-                                        status = CsvImportEntryStatus.Success,
-                                        message = appContext().getString(R.string.csv_import_status_success_omada)
-                                    )
-                                }
-
-                                else -> {
-                                    val innertubeMatch = searchInnertubeMatch(query)
-                                        ?: throw IllegalStateException("No conversion match found")
-
-                                    converted += SongCSV(
-                                        songId = innertubeMatch.song.id,
-                                        playlistBrowseId = "",
-                                        playlistName = playlistName,
-                                        title = explicitPrefix + title,
-                                        artists = cleanArtists,
-                                        duration = convertedDuration,
-                                        thumbnailUrl = innertubeMatch.song.thumbnailUrl.orEmpty()
-                                    )
-                                    successCount++
-                                    val messageRes = when (innertubeMatch.source) {
-                                        CsvYoutubeMatchSource.Song -> R.string.csv_import_status_success_song
-                                        CsvYoutubeMatchSource.Video -> R.string.csv_import_status_success_video
-                                        CsvYoutubeMatchSource.Omada -> R.string.csv_import_status_success_omada
-                                    }
-                                    CsvImportConversionTracker.markFinished(
-                                        index = index,
-                                        title = title,
-                                        artists = cleanArtists,
-                                        status = CsvImportEntryStatus.Success,
-                                        message = appContext().getString(messageRes)
-                                    )
-                                }
+                        val rawDurationMs = row["Track Duration (ms)"]?.toLongOrNull() ?: 0L
+                        val convertedDuration = if (rawDurationMs > 0) formatAsDuration(rawDurationMs) else "0"
+
+                        return try {
+                            val match = resolve(query) ?: throw IllegalStateException("No conversion match found")
+
+                            val messageRes = when (match.source) {
+                                CsvYoutubeMatchSource.Song -> R.string.csv_import_status_success_song
+                                CsvYoutubeMatchSource.Video -> R.string.csv_import_status_success_video
+                                CsvYoutubeMatchSource.Omada -> R.string.csv_import_status_success_omada
                             }
-                        } catch (_: Exception) {
-                            val encodedSearch = URLEncoder.encode(query, "UTF-8")
-                            val fallbackSongId = "search:$encodedSearch"
-                            val rawDurationMs = row["Track Duration (ms)"]?.toLongOrNull() ?: 0L
-                            val convertedDuration = if (rawDurationMs > 0) formatAsDuration(rawDurationMs) else "0"
-
-                            converted += SongCSV(
-                                songId = fallbackSongId,
-                                playlistBrowseId = "",
-                                playlistName = playlistName,
-                                title = explicitPrefix + title,
+                            CsvImportConversionTracker.markFinished(
+                                index = index,
+                                title = title,
                                 artists = cleanArtists,
-                                duration = convertedDuration,
-                                thumbnailUrl = row["Album Image URL"].orEmpty()
+                                status = CsvImportEntryStatus.Success,
+                                message = appContext().getString(messageRes)
+                            )
+                            CsvImportRowResult(
+                                index = index,
+                                song = SongCSV(
+                                    songId = match.songId,
+                                    playlistBrowseId = "",
+                                    playlistName = playlistName,
+                                    title = explicitPrefix + title,
+                                    artists = cleanArtists,
+                                    duration = convertedDuration,
+                                    thumbnailUrl = match.thumbnailUrl
+                                ),
+                                status = CsvImportEntryStatus.Success
                             )
-                            fallbackCount++
+                        } catch (error: Exception) {
+                            if (error is CancellationException) throw error
+
+                            val encodedSearch = URLEncoder.encode(query, "UTF-8")
                             CsvImportConversionTracker.markFinished(
                                 index = index,
                                 title = title,
@@ -512,9 +512,20 @@ class ImportSongsFromCSV(
                                 status = CsvImportEntryStatus.Fallback,
                                 message = appContext().getString(R.string.csv_import_status_fallback_search)
                             )
+                            CsvImportRowResult(
+                                index = index,
+                                song = SongCSV(
+                                    songId = "search:$encodedSearch",
+                                    playlistBrowseId = "",
+                                    playlistName = playlistName,
+                                    title = explicitPrefix + title,
+                                    artists = cleanArtists,
+                                    duration = convertedDuration,
+                                    thumbnailUrl = row["Album Image URL"].orEmpty()
+                                ),
+                                status = CsvImportEntryStatus.Fallback
+                            )
                         }
-
-                        kotlinx.coroutines.delay(1_000L)
                     } else if (isYourFormat || isCustomFormat) {
                         var browseId = row["PlaylistBrowseId"].orEmpty()
                         if (browseId.toLongOrNull() != null) browseId = ""
@@ -536,21 +547,11 @@ class ImportSongsFromCSV(
                                 .filter { it.isNotBlank() }
                                 .joinToString(" ")
                                 .trim()
-                            runCatching { fetchYoutubeVideoId(query) }.getOrNull().orEmpty()
+                            runCatching { resolve(query)?.songId }.getOrNull().orEmpty()
                         } else {
                             rawMediaId
                         }
                         if (mediaId.isNotBlank()) {
-                            converted += SongCSV(
-                                songId = mediaId,
-                                playlistBrowseId = browseId,
-                                playlistName = playlistName,
-                                title = inferred.first,
-                                artists = inferred.second,
-                                duration = convertedDuration,
-                                thumbnailUrl = row["ThumbnailUrl"].orEmpty()
-                            )
-                            successCount++
                             CsvImportConversionTracker.markFinished(
                                 index = index,
                                 title = inferred.first,
@@ -558,8 +559,20 @@ class ImportSongsFromCSV(
                                 status = CsvImportEntryStatus.Success,
                                 message = appContext().getString(R.string.csv_import_status_kept_media_id)
                             )
+                            return CsvImportRowResult(
+                                index = index,
+                                song = SongCSV(
+                                    songId = mediaId,
+                                    playlistBrowseId = browseId,
+                                    playlistName = playlistName,
+                                    title = inferred.first,
+                                    artists = inferred.second,
+                                    duration = convertedDuration,
+                                    thumbnailUrl = row["ThumbnailUrl"].orEmpty()
+                                ),
+                                status = CsvImportEntryStatus.Success
+                            )
                         } else {
-                            failCount++
                             CsvImportConversionTracker.markFinished(
                                 index = index,
                                 title = row["Title"].orEmpty(),
@@ -569,8 +582,9 @@ class ImportSongsFromCSV(
                             )
                         }
                     }
-                } catch (_: Exception) {
-                    failCount++
+                } catch (error: Exception) {
+                    if (error is CancellationException) throw error
+
                     CsvImportConversionTracker.markFinished(
                         index = index,
                         title = rowTitle,
@@ -579,16 +593,196 @@ class ImportSongsFromCSV(
                         message = appContext().getString(R.string.csv_import_status_failed_generic)
                     )
                 }
+
+                return CsvImportRowResult(index, null, CsvImportEntryStatus.Failed)
             }
+        }
+
+        private fun openCsv(uri: Uri): InputStream =
+            appContext().contentResolver.openInputStream(uri)
+                ?: throw IllegalStateException("Unable to open $uri")
+
+        /**
+         * Rows are read lazily and converted by [IMPORT_WORKERS] workers,
+         * finished rows are put back in file order and committed every
+         * [IMPORT_BATCH_SIZE] rows. Rows already committed according
+         * to [checkpoint] are skipped.
+         *
+         * @return `null` if file has no rows
+         */
+        private suspend fun importFromCsvFile(
+            uri: Uri,
+            fileName: String,
+            checkpoint: CsvImportCheckpoint
+        ): ImportSession? {
+            val reader = csvReader { skipEmptyLine = true }
+            // Quick pass without any conversion, only to know how many rows there are
+            val total = openCsv(uri).use { stream ->
+                reader.openAsync(stream) { readAllWithHeaderAsSequence().count() }
+            }
+            CSVLocaleManager.initialize(appContext())
 
-            CsvImportConversionTracker.finish()
+            return openCsv(uri).use { stream ->
+                reader.openAsync(stream) {
+                    val rows = readAllWithHeaderAsSequence().iterator()
+                    if (!rows.hasNext()) return@openAsync null
 
-            return CsvParseResult(
-                songs = converted,
-                successCount = successCount,
-                fallbackCount = fallbackCount,
-                failedCount = failCount
+                    val firstRow = rows.next()
+                    val detectedLocale = CSVLocaleManager.detectLocale(firstRow.keys)
+                    val detectedLocaleName = detectedLocale?.let(CSVLocaleManager::getSimpleLocaleName).orEmpty()
+
+                    CsvImportConversionTracker.start(
+                        fileName = fileName,
+                        total = total,
+                        detectedLanguage = detectedLocaleName
+                    )
+
+                    val translatedFirstRow = CSVLocaleManager.normalizeRow(firstRow)
+                    val headers = translatedFirstRow.keys
+                    val hasCustomFormat = headers.containsAll(
+                        setOf("PlaylistBrowseId", "PlaylistName", "MediaId", "Title", "Artists", "Duration")
+                    )
+                    val hasSpotifyFormat = headers.containsAll(
+                        setOf("Track Name", "Artist Name(s)")
+                    )
+                    val hasExportifyFormat = headers.containsAll(
+                        setOf("Track URI", "Track Name", "Artist Name(s)", "Album Name")
+                    )
+                    val hasYourFormat = headers.containsAll(
+                        setOf("PlaylistBrowseId", "PlaylistName", "MediaId", "Title", "Artists", "Duration", "ThumbnailUrl", "AlbumId", "AlbumTitle", "ArtistIds")
+                    )
+
+                    if (!hasCustomFormat && !hasSpotifyFormat && !hasExportifyFormat && !hasYourFormat) {
+                        CsvImportConversionTracker.setBannerMessage(
+                            appContext().getString(R.string.error_message_unsupported_local_playlist)
+                        )
+                        CsvImportConversionTracker.finish()
+                        throw InvalidHeaderException("Unsupported CSV format")
+                    }
+
+                    val csvPlaylistName = translatedFirstRow["PlaylistName"] ?: ""
+                    val playlistName = if (csvPlaylistName.isNotBlank()) {
+                        csvPlaylistName
+                    } else {
+                        sanitizeCsvFileName(fileName)
+                    }
+
+                    CsvImportConversionTracker.setPlaylistName(playlistName)
+
+                    if (checkpoint.isResumed) {
+                        CsvImportConversionTracker.restore(
+                            processed = checkpoint.rowsCommitted,
+                            successCount = checkpoint.successCount,
+                            fallbackCount = checkpoint.fallbackCount,
+                            failedCount = checkpoint.failedCount
+                        )
+                        CsvImportConversionTracker.setBannerMessage(
+                            appContext().getString(R.string.csv_import_conversion_resuming, checkpoint.rowsCommitted + 1)
+                        )
+                    }
+
+                    coroutineScope {
+                        val session = ImportSession(playlistName, total, hasInternetConnection(), this)
+                        val pending = Channel<IndexedValue<Map<String, String>>>(IMPORT_WORKERS * 2)
+                        val finished = Channel<CsvImportRowResult>(IMPORT_WORKERS * 2)
+
+                        launch {
+                            (sequenceOf(firstRow) + rows.asSequence()).forEachIndexed { index, row ->
+                                if (index >= checkpoint.rowsCommitted)
+                                    pending.send(IndexedValue(index, CSVLocaleManager.normalizeRow(row)))
+                            }
+                            pending.close()
+                        }
+
+                        val workers = List(IMPORT_WORKERS) {
+                            launch {
+                                for ((index, row) in pending)
+                                    finished.send(session.convertRow(index, row))
+                            }
+                        }
+                        launch {
+                            workers.joinAll()
+                            finished.close()
+                        }
+
+                        // Workers finish out of order, rows are committed in file order
+                        val outOfOrder = HashMap<Int, CsvImportRowResult>()
+                        val batch = ArrayList<CsvImportRowResult>(IMPORT_BATCH_SIZE)
+                        var nextIndex = checkpoint.rowsCommitted
+                        for (result in finished) {
+                            outOfOrder[result.index] = result
+                            while (true) {
+                                batch += outOfOrder.remove(nextIndex) ?: break
+                                nextIndex++
+                            }
+
+                            if (batch.size >= IMPORT_BATCH_SIZE) {
+                                commitBatch(batch, checkpoint)
+                                batch.clear()
+                            }
+                        }
+                        commitBatch(batch, checkpoint)
+
+                        session
+                    }
+                }
+            }
+        }
+
+        private fun SongCSV.toSong(): Song =
+            Song(
+                id = songId,
+                title = title,
+                artistsText = artists,
+                thumbnailUrl = thumbnailUrl,
+                durationText = duration,
+                totalPlayTimeMs = 1L
             )
+
+        /**
+         * Write converted songs of [batch] to database,
+         * then move [checkpoint] past it.
+         */
+        private suspend fun commitBatch(batch: List<CsvImportRowResult>, checkpoint: CsvImportCheckpoint) {
+            if (batch.isEmpty()) return
+
+            // Checkpoint only learns about rows once SQLite committed them
+            val playlistIds = mutableMapOf<Pair<String, String>, Long>()
+            val committed = CompletableDeferred<Unit>()
+            Database.asyncBatchTransaction(
+                onFailure = { committed.completeExceptionally(it) },
+                onSuccess = { committed.complete(Unit) }
+            ) {
+                playlistIds.clear()
+                batch.mapNotNull { it.song }
+                    .fastFilter { it.songId.isNotBlank() }
+                    .groupBy { it.playlistName to it.playlistBrowseId }
+                    .forEach { (playlist, songs) ->
+                        val entities = songs.fastMap { it.toSong() }
+                        songTable.upsert(entities)
+
+                        val (name, browseId) = playlist
+                        if (name.isBlank()) return@forEach
+
+                        playlistIds[playlist] = mapIgnore(
+                            Playlist(id = checkpoint.playlistIdOf(name, browseId) ?: 0L, name = name, browseId = browseId),
+                            *entities.toTypedArray()
+                        )
+                    }
+            }
+            committed.await()
+
+            playlistIds.forEach { (playlist, playlistId) ->
+                checkpoint.setPlaylistId(playlist.first, playlist.second, playlistId)
+            }
+
+            checkpoint.advance(
+                rows = batch.size,
+                success = batch.count { it.status == CsvImportEntryStatus.Success },
+                fallback = batch.count { it.status == CsvImportEntryStatus.Fallback },
+                failed = batch.count { it.status == CsvImportEntryStatus.Failed }
+            )
+            checkpoint.save()
         }
 
         private fun getSimpleLocaleName(locale: String): String = when (locale) {
@@ -606,22 +800,6 @@ class ImportSongsFromCSV(
             else -> locale
         }
 
-        private fun processSongs(songs: List<SongCSV>): Map<Pair<String, String>, List<Song>> =
-            songs.fastFilter { it.songId.isNotBlank() }
-                .groupBy { it.playlistName to it.playlistBrowseId }
-                .mapValues { (_, groupedSongs) ->
-                    groupedSongs.fastMap {
-                        Song(
-                            id = it.songId,
-                            title = it.title,
-                            artistsText = it.artists,
-                            thumbnailUrl = it.thumbnailUrl,
-                            durationText = it.duration,
-                            totalPlayTimeMs = 1L
-                        )
-                    }
-                }
-
         @Composable
         operator fun invoke(): ImportSongsFromCSV {
             val scope = rememberCoroutineScope()
@@ -631,7 +809,8 @@ class ImportSongsFromCSV(
             ) { uri ->
                 uri ?: return@rememberLauncherForActivityResult
 
-                val fileName = DocumentFile.fromSingleUri(appContext(), uri)?.name
+                val document = DocumentFile.fromSingleUri(appContext(), uri)
+                val fileName = document?.name
                     ?: uri.lastPathSegment
                     ?: "imported_playlist.csv"
 
@@ -647,16 +826,15 @@ class ImportSongsFromCSV(
                 }
 
                 scope.launch(Dispatchers.IO) {
-                    val straySongs = mutableListOf<Song>()
-                    val combos = mutableMapOf<Playlist, List<Song>>()
+                    // Same file imported again continues where it stopped
+                    val checkpoint = CsvImportCheckpoint.load(appContext(), "$uri|${document?.length() ?: 0L}")
 
                     try {
-                        val parseResult = appContext().contentResolver
-                            .openInputStream(uri)
-                            ?.use { stream -> parseFromCsvFile(stream, fileName) }
-                            ?: CsvParseResult(emptyList(), 0, 0, 0)
+                        val session = importFromCsvFile(uri, fileName, checkpoint)
+                        val songsCount = checkpoint.successCount + checkpoint.fallbackCount
+                        checkpoint.delete()
 
-                        if (parseResult.songs.isEmpty()) {
+                        if (session == null || songsCount == 0) {
                             CsvImportConversionTracker.setBannerMessage(
                                 appContext().getString(R.string.csv_import_no_valid_songs)
                             )
@@ -664,49 +842,25 @@ class ImportSongsFromCSV(
                             return@launch
                         }
 
-                        val processedSongs = processSongs(parseResult.songs)
-                        processedSongs.forEach { (playlist, songs) ->
-                            if (playlist.first.isNotBlank()) {
-                                combos[Playlist(name = playlist.first, browseId = playlist.second)] = songs
-                            } else {
-                                straySongs.addAll(songs)
-                            }
-                        }
-
-                        if (combos.isEmpty() && straySongs.isEmpty()) {
-                            CsvImportConversionTracker.setBannerMessage(
-                                appContext().getString(R.string.csv_import_no_valid_songs)
-                            )
-                            CsvImportConversionTracker.finish()
-                            return@launch
-                        }
-
-                        Database.asyncTransaction {
-                            val allSongs = straySongs + combos.values.flatten()
-                            songTable.upsert(allSongs)
-                            combos.forEach { (playlist, songs) ->
-                                mapIgnore(playlist, *songs.toTypedArray())
-                            }
-                        }
-
-                        val allSongs = straySongs + combos.values.flatten()
-                        val playableSongs = allSongs.count { it.id.isNotBlank() && !it.id.startsWith("search:") }
-                        val playlistName = combos.keys.firstOrNull()?.name ?: sanitizeCsvFileName(fileName)
-
                         CsvImportConversionTracker.setBannerMessage(
                             appContext().getString(
                                 R.string.csv_import_summary_complete,
-                                playlistName,
-                                playableSongs,
-                                allSongs.size
+                                session.playlistName,
+                                checkpoint.successCount,
+                                songsCount
                             )
                         )
                         CsvImportConversionTracker.finish()
                     } catch (error: Exception) {
+                        if (error is CancellationException) throw error
+
                         when (error) {
-                            is InvalidHeaderException -> CsvImportConversionTracker.setBannerMessage(
-                                appContext().getString(R.string.error_message_unsupported_local_playlist)
-                            )
+                            is InvalidHeaderException -> {
+                                checkpoint.delete()
+                                CsvImportConversionTracker.setBannerMessage(
+                                    appContext().getString(R.string.error_message_unsupported_local_playlist)
+                                )
+                            }
                             else -> CsvImportConversionTracker.setBannerMessage(
                                 appContext().getString(
                                     R.string.csv_import_failed_with_reason,
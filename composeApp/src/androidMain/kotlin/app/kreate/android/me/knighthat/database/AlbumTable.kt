@@ -51,6 +51,43 @@ interface AlbumTable {
     """)
     fun allInLibrary( limit: Int = Int.MAX_VALUE ): Flow<List<Album>>
 
+    /**
+     * Every word of [searchTerm] appears at the start of a word in [Album.title] or [Album.authorsText].
+     * Albums whose title starts with [searchTerm] come first, then bookmarked albums.
+     *
+     * @param match expression made by [FtsQuery.prefixMatchOf]
+     * @param searchTerm user's input, only used for ranking
+     */
+    @Query("""
+        SELECT A.*
+        FROM Album A
+        JOIN AlbumFts ON AlbumFts.rowid = A.ROWID
+        WHERE AlbumFts MATCH :match
+        ORDER BY 
+            A.title LIKE :searchTerm || '%' DESC,
+            A.bookmarkedAt IS NULL,
+            A.title COLLATE NOCASE
+        LIMIT :limit
+    """)
+    fun findAllMatching( match: String, searchTerm: String, limit: Int = Int.MAX_VALUE ): Flow<List<Album>>
+
+    /**
+     * @return number of albums returned by [allBookmarked]
+     */
+    @Query("SELECT COUNT(*) FROM Album WHERE bookmarkedAt IS NOT NULL")
+    fun countBookmarked(): Flow<Int>
+
+    /**
+     * @return number of albums returned by [allInLibrary]
+     */
+    @Query("""
+        SELECT COUNT(DISTINCT sam.albumId)
+        FROM SongAlbumMap sam
+        JOIN SongPlaylistMap spm ON spm.songId = sam.songId
+        JOIN Album A ON A.id = sam.albumId
+    """)
+    fun countInLibrary(): Flow<Int>
+
     /**
      * @return all songs of bookmarked albums
      */
@@ -45,6 +45,43 @@ interface ArtistTable {
     """)
     fun allInLibrary( limit: Int = Int.MAX_VALUE ): Flow<List<Artist>>
 
+    /**
+     * Every word of [searchTerm] appears at the start of a word in [Artist.name].
+     * Artists whose name starts with [searchTerm] come first, then followed artists.
+     *
+     * @param match expression made by [FtsQuery.prefixMatchOf]
+     * @param searchTerm user's input, only used for ranking
+     */
+    @Query("""
+        SELECT A.*
+        FROM Artist A
+        JOIN ArtistFts ON ArtistFts.rowid = A.ROWID
+        WHERE ArtistFts MATCH :match
+        ORDER BY 
+            A.name LIKE :searchTerm || '%' DESC,
+            A.bookmarkedAt IS NULL,
+            A.name COLLATE NOCASE
+        LIMIT :limit
+    """)
+    fun findAllMatching( match: String, searchTerm: String, limit: Int = Int.MAX_VALUE ): Flow<List<Artist>>
+
+    /**
+     * @return number of artists returned by [allFollowing]
+     */
+    @Query("SELECT COUNT(*) FROM Artist WHERE bookmarkedAt IS NOT NULL")
+    fun countFollowing(): Flow<Int>
+
+    /**
+     * @return number of artists returned by [allInLibrary]
+     */
+    @Query("""
+        SELECT COUNT(DISTINCT sam.artistId)
+        FROM SongArtistMap sam
+        JOIN SongPlaylistMap spm ON spm.songId = sam.songId
+        JOIN Artist A ON A.id = sam.artistId
+    """)
+    fun countInLibrary(): Flow<Int>
+
     /**
      * @return all songs of following artists
      */
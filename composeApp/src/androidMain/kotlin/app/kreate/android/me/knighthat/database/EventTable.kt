@@ -14,9 +14,14 @@ import app.it.fast4x.rimusic.models.PlaylistPreview
 import app.it.fast4x.rimusic.models.Song
 import kotlinx.coroutines.flow.Flow
 import app.kreate.android.me.knighthat.database.ext.AlbumListeningStat
+import app.kreate.android.me.knighthat.database.ext.AlbumPlayStat
 import app.kreate.android.me.knighthat.database.ext.ArtistListeningStat
+import app.kreate.android.me.knighthat.database.ext.ArtistPlayStat
 import app.kreate.android.me.knighthat.database.ext.EventWithSong
+import app.kreate.android.me.knighthat.database.ext.ListeningBucketStat
+import app.kreate.android.me.knighthat.database.ext.ListeningTotals
 import app.kreate.android.me.knighthat.database.ext.SongListeningStat
+import app.kreate.android.me.knighthat.database.ext.SongPlayStat
 
 @Dao
 @RewriteQueriesToDropUnusedColumns
@@ -256,4 +261,138 @@ interface EventTable {
      */
     @Query("SELECT IFNULL(SUM(E.playtime), 0) FROM Event E WHERE E.songId = :songId AND E.timestamp BETWEEN :from AND :to")
     fun getSongPlayTimeBetween(songId: String, from: Long, to: Long = System.currentTimeMillis()): Flow<Long>
+
+    /**
+     * Aggregate all events between [from] and [to] in a single pass.
+     *
+     * Days are counted in device's local time.
+     *
+     * @param from start of the period (epoch millis)
+     * @param to end of the period (epoch millis)
+     */
+    @Query("""
+        SELECT COUNT(*) AS plays,
+               IFNULL(SUM(E.playtime), 0) AS playTimeMs,
+               MIN(E.timestamp) AS firstPlayedAt,
+               MAX(E.timestamp) AS lastPlayedAt,
+               COUNT(DISTINCT strftime('%Y-%m-%d', E.timestamp / 1000, 'unixepoch', 'localtime')) AS activeDays,
+               COUNT(DISTINCT E.songId) AS uniqueSongs
+        FROM Event E
+        WHERE E.timestamp BETWEEN :from AND :to
+    """)
+    fun findListeningTotalsBetween( from: Long, to: Long = System.currentTimeMillis() ): Flow<ListeningTotals>
+
+    /**
+     * Group events between [from] and [to] into buckets,
+     * bucket is the result of `strftime(format)` on
+     * event's timestamp in device's local time.
+     *
+     * Common formats:
+     * - `%m` month of year (01-12)
+     * - `%w` day of week (0-6, 0 is Sunday)
+     * - `%H` hour of day (00-23)
+     *
+     * Buckets without any event are absent from the results.
+     *
+     * @param format `strftime` format that produces an integer
+     * @param from start of the period (epoch millis)
+     * @param to end of the period (epoch millis)
+     */
+    @Query("""
+        SELECT CAST(strftime(:format, E.timestamp / 1000, 'unixepoch', 'localtime') AS INTEGER) AS bucket,
+               IFNULL(SUM(E.playtime), 0) AS playTimeMs,
+               COUNT(*) AS plays
+        FROM Event E
+        WHERE E.timestamp BETWEEN :from AND :to
+        GROUP BY bucket
+        ORDER BY bucket
+    """)
+    fun findListeningBucketsBetween(
+        format: String,
+        from: Long,
+        to: Long = System.currentTimeMillis()
+    ): Flow<List<ListeningBucketStat>>
+
+    /**
+     * Same as [findSongListeningStatsBetween], with number
+     * of times each song was played in the period.
+     */
+    @Query("""
+        SELECT S.*, SUM(E.playtime) AS playTimeMs, COUNT(E.id) AS plays
+        FROM Song S
+        JOIN Event E ON E.songId = S.id
+        WHERE E.timestamp BETWEEN :from AND :to
+        GROUP BY S.id
+        ORDER BY playTimeMs DESC
+        LIMIT :limit
+    """)
+    fun findSongPlayStatsBetween(
+        from: Long,
+        to: Long = System.currentTimeMillis(),
+        limit: Int = Int.MAX_VALUE
+    ): Flow<List<SongPlayStat>>
+
+    /**
+     * Same as [findArtistListeningStatsBetween], with number
+     * of distinct songs of each artist played in the period.
+     */
+    @Query("""
+        SELECT A.*, SUM(E.playtime) AS playTimeMs, COUNT(DISTINCT E.songId) AS songCount
+        FROM Artist A
+        JOIN SongArtistMap SAM ON SAM.artistId = A.id
+        JOIN Event E ON E.songId = SAM.songId
+        WHERE E.timestamp BETWEEN :from AND :to
+        GROUP BY A.id
+        ORDER BY playTimeMs DESC
+        LIMIT :limit
+    """)
+    fun findArtistPlayStatsBetween(
+        from: Long,
+        to: Long = System.currentTimeMillis(),
+        limit: Int = Int.MAX_VALUE
+    ): Flow<List<ArtistPlayStat>>
+
+    /**
+     * Same as [findAlbumListeningStatsBetween], with number
+     * of distinct songs of each album played in the period.
+     */
+    @Query("""
+        SELECT A.*, SUM(E.playtime) AS playTimeMs, COUNT(DISTINCT E.songId) AS songCount
+        FROM Album A
+        JOIN SongAlbumMap SAM ON SAM.albumId = A.id
+        JOIN Event E ON E.songId = SAM.songId
+        WHERE E.timestamp BETWEEN :from AND :to
+        GROUP BY A.id
+        ORDER BY playTimeMs DESC
+        LIMIT :limit
+    """)
+    fun findAlbumPlayStatsBetween(
+        from: Long,
+        to: Long = System.currentTimeMillis(),
+        limit: Int = Int.MAX_VALUE
+    ): Flow<List<AlbumPlayStat>>
+
+    @Query("""
+        SELECT COUNT(DISTINCT SAM.artistId)
+        FROM Event E
+        JOIN SongArtistMap SAM ON SAM.songId = E.songId
+        WHERE E.timestamp BETWEEN :from AND :to
+    """)
+    fun countArtistsPlayedBetween( from: Long, to: Long = System.currentTimeMillis() ): Flow<Int>
+
+    @Query("""
+        SELECT COUNT(DISTINCT SAM.albumId)
+        FROM Event E
+        JOIN SongAlbumMap SAM ON SAM.songId = E.songId
+        WHERE E.timestamp BETWEEN :from AND :to
+    """)
+    fun countAlbumsPlayedBetween( from: Long, to: Long = System.currentTimeMillis() ): Flow<Int>
+
+    @Query("""
+        SELECT COUNT(DISTINCT SPM.playlistId)
+        FROM Event E
+        JOIN SongPlaylistMap SPM ON SPM.songId = E.songId
+        WHERE E.timestamp BETWEEN :from AND :to
+    """)
+    fun countPlaylistsPlayedBetween( from: Long, to: Long = System.currentTimeMillis() ): Flow<Int>
 }
@@ -0,0 +1,27 @@
+package app.kreate.android.me.knighthat.database
+
+object FtsQuery {
+
+    /**
+     * Same separators as `unicode61` tokenizer,
+     * anything that isn't a letter or a digit.
+     */
+    private val SEPARATOR = Regex("""[^\p{L}\p{N}]+""")
+
+    /**
+     * Turn user's input into an FTS `MATCH` expression,
+     * every word must appear as a prefix of a word in the record.
+     *
+     * I.E.: `hel wor` matches `Hello World` and `World of Hell`
+     *
+     * Words are lowercased so they're never treated as
+     * operators (`AND`, `OR`, `NOT`, `NEAR`).
+     *
+     * @return expression for `MATCH`, or `null` when [input] has no word
+     */
+    fun prefixMatchOf( input: String ): String? =
+        input.split( SEPARATOR )
+             .filter( String::isNotEmpty )
+             .joinToString( " " ) { "${it.lowercase()}*" }
+             .ifEmpty { null }
+}
@@ -0,0 +1,40 @@
+package app.kreate.android.me.knighthat.database
+
+import androidx.room.Dao
+import androidx.room.Query
+import androidx.room.RewriteQueriesToDropUnusedColumns
+import androidx.room.Upsert
+import app.it.fast4x.rimusic.models.LyricsTranslation
+
+@Dao
+@RewriteQueriesToDropUnusedColumns
+interface LyricsTranslationTable {
+
+    /**
+     * @param songId of song to look for
+     * @param language code of language lyrics were translated into
+     * @param synced whether translation is of synced lyrics
+     * @return [LyricsTranslation] matches all arguments, `null` if not translated yet
+     */
+    @Query("""
+        SELECT * 
+        FROM LyricsTranslation 
+        WHERE songId = :songId 
+        AND language = :language 
+        AND synced = :synced
+    """)
+    fun find( songId: String, language: String, synced: Boolean ): LyricsTranslation?
+
+    /**
+     * Attempt to write [translation] into database.
+     *
+     * If [translation] exist (determined by its primary key),
+     * existing record's columns will be replaced
+     * by provided [translation]' data.
+     *
+     * @param translation data intended to insert in to database
+     * @return ROWID of successfully modified record
+     */
+    @Upsert
+    fun upsert( translation: LyricsTranslation ): Long
+}
\ No newline at end of file
@@ -18,6 +18,7 @@ import app.it.fast4x.rimusic.models.Artist
 import app.it.fast4x.rimusic.models.Playlist
 import app.it.fast4x.rimusic.models.PlaylistPreview
 import app.it.fast4x.rimusic.models.Song
+import app.kreate.android.me.knighthat.database.ext.PlaylistCategoryCounts
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.take
@@ -130,6 +131,56 @@ interface PlaylistTable {
     """)
     fun allAsPreviewSortedByName( limit: Int = Int.MAX_VALUE ): Flow<List<PlaylistPreview>>
 
+    /**
+     * Every word of [searchTerm] appears at the start of a word in [Playlist.name].
+     * Playlists whose name starts with [searchTerm] come first.
+     *
+     * @param match expression made by [FtsQuery.prefixMatchOf]
+     * @param searchTerm user's input, only used for ranking
+     * @return matching playlists with number of songs they carry
+     */
+    @Query("""
+        SELECT 
+            P.*,
+            (
+                SELECT COUNT(songId)
+                FROM SongPlaylistMap
+                WHERE playlistId = P.id
+            ) as songCount
+        FROM Playlist P
+        JOIN PlaylistFts ON PlaylistFts.rowid = P.ROWID
+        WHERE PlaylistFts MATCH :match
+        ORDER BY 
+            P.name LIKE :searchTerm || '%' DESC,
+            P.name COLLATE NOCASE
+        LIMIT :limit
+    """)
+    fun findAllMatching( match: String, searchTerm: String, limit: Int = Int.MAX_VALUE ): Flow<List<PlaylistPreview>>
+
+    /**
+     * Count playlists of every category in a single pass.
+     *
+     * `LIKE` is case-insensitive, same as matching
+     * prefixes with `startsWith(prefix, true)`.
+     *
+     * @return number of playlists in each category
+     */
+    @Query("""
+        SELECT 
+            COALESCE(SUM(name LIKE '$PINNED_PREFIX%'), 0) AS pinned,
+            COALESCE(SUM(
+                isYoutubePlaylist = 0
+                AND name NOT LIKE '$PIPED_PREFIX%'
+                AND name NOT LIKE '$PINNED_PREFIX%'
+                AND name NOT LIKE '$MONTHLY_PREFIX%'
+            ), 0) AS local,
+            COALESCE(SUM(isYoutubePlaylist = 1), 0) AS youtube,
+            COALESCE(SUM(name LIKE '$PIPED_PREFIX%'), 0) AS piped,
+            COALESCE(SUM(name LIKE '$MONTHLY_PREFIX%'), 0) AS monthly
+        FROM Playlist
+    """)
+    fun countByCategory(): Flow<PlaylistCategoryCounts>
+
     /**
      * @param browseId of playlist to look for
      * @return [Playlist] that has [Playlist.browseId] matches [browseId]
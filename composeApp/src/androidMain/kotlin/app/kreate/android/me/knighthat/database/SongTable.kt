@@ -50,6 +50,12 @@ interface SongTable {
     """)
     fun allOnDevice( limit: Int = Int.MAX_VALUE ): Flow<List<Song>>
 
+    /**
+     * @return ids of all records that have [Song.id] start with [LOCAL_KEY_PREFIX]
+     */
+    @Query("SELECT id FROM Song WHERE id LIKE '$LOCAL_KEY_PREFIX%'")
+    fun allOnDeviceIds(): Flow<List<String>>
+
     @Query("""
         SELECT DISTINCT * 
         FROM Song 
@@ -59,6 +65,26 @@ interface SongTable {
     """)
     fun allFavorites( limit: Int = Int.MAX_VALUE ): Flow<List<Song>>
 
+    /**
+     * Same condition as [all], without loading the records.
+     *
+     * @return number of songs in this table
+     */
+    @Query("SELECT COUNT(*) FROM Song WHERE totalPlayTimeMs >= :excludeHidden")
+    fun countAll( excludeHidden: Boolean = false ): Flow<Int>
+
+    /**
+     * @return number of songs returned by [allFavorites]
+     */
+    @Query("SELECT COUNT(*) FROM Song WHERE likedAt IS NOT NULL AND likedAt > 0")
+    fun countFavorites(): Flow<Int>
+
+    /**
+     * @return number of songs returned by [allOnDevice]
+     */
+    @Query("SELECT COUNT(*) FROM Song WHERE id LIKE '$LOCAL_KEY_PREFIX%'")
+    fun countOnDevice(): Flow<Int>
+
     @Query("""
         SELECT DISTINCT * 
         FROM Song 
@@ -85,21 +111,58 @@ interface SongTable {
     fun findById( songId: String ): Flow<Song?>
 
     /**
-     * [searchTerm] appears in [Song.title] or [Song.artistsText].
-     * Additionally, it's **case-insensitive**
+     * Look up [SongFts] index, results are ranked by:
+     * 1. [Song.title] starts with [searchTerm]
+     * 2. [Song.artistsText] starts with [searchTerm]
+     * 3. Everything else
      *
-     * I.E.: `name` matches `1name_to` and `1_NaMe_to`
+     * Ties are broken by [Song.totalPlayTimeMs], most played first.
      *
-     * @param searchTerm what to look for
-     * @return all [Song]s that have [Song.title] or [Song.artistsText] contain [searchTerm]
+     * @param match expression made by [FtsQuery.prefixMatchOf]
+     * @param searchTerm user's input, only used for ranking
      */
     @Query("""
-        SELECT DISTINCT * 
-        FROM Song 
-        WHERE title LIKE '%' || :searchTerm || '%' COLLATE NOCASE
-        OR artistsText LIKE '%' || :searchTerm || '%' COLLATE NOCASE
+        SELECT S.*
+        FROM Song S
+        JOIN SongFts ON SongFts.rowid = S.ROWID
+        WHERE SongFts MATCH :match
+        ORDER BY 
+            CASE 
+                WHEN S.title LIKE :searchTerm || '%' THEN 0
+                WHEN S.artistsText LIKE :searchTerm || '%' THEN 1
+                ELSE 2
+            END,
+            S.totalPlayTimeMs DESC
+        LIMIT :limit
+    """)
+    fun findAllMatching( match: String, searchTerm: String, limit: Int = Int.MAX_VALUE ): Flow<List<Song>>
+
+    /**
+     * @param match expression made by [FtsQuery.prefixMatchOf]
+     * @return ids of songs that have [Song.title] or [Song.artistsText] matching [match]
+     */
+    @Query("""
+        SELECT S.id
+        FROM Song S
+        JOIN SongFts ON SongFts.rowid = S.ROWID
+        WHERE SongFts MATCH :match
     """)
-    fun findAllTitleArtistContains( searchTerm: String ): Flow<List<Song>>
+    fun findIdsMatching( match: String ): Flow<List<String>>
+
+    /**
+     * Every word of [searchTerm] appears at the start of a word
+     * in [Song.title] or [Song.artistsText], case-insensitive.
+     *
+     * I.E.: `nev gon` matches `Never Gonna Give You Up`
+     *
+     * @param searchTerm what to look for
+     * @return ranked [Song]s that match [searchTerm] (see [findAllMatching]),
+     * or all songs when [searchTerm] has no word
+     */
+    fun search( searchTerm: String, limit: Int = Int.MAX_VALUE ): Flow<List<Song>> {
+        val match = FtsQuery.prefixMatchOf( searchTerm ) ?: return all( limit )
+        return findAllMatching( match, searchTerm.trim(), limit )
+    }
 
     /**
      * Require [artistName] to match [Song.artistsText], except for case-sensitive.
@@ -193,6 +256,16 @@ interface SongTable {
     @Delete
     fun delete( song: Song )
 
+    /**
+     * Remove records with id in [songIds].
+     *
+     * Keep size of [songIds] under 999 (SQLite's variable limit).
+     *
+     * @return number of rows affected by this operation
+     */
+    @Query("DELETE FROM Song WHERE id IN (:songIds)")
+    fun deleteByIds( songIds: List<String> ): Int
+
     /**
      * @return whether any record in [Song] table has id [songId]
      */
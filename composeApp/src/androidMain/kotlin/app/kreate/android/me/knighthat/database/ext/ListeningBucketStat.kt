@@ -0,0 +1,13 @@
+package app.kreate.android.me.knighthat.database.ext
+
+/**
+ * Aggregated listening activity of a single time bucket.
+ *
+ * @param bucket value of the period (month, day of week, hour, etc.)
+ * in device's local time
+ */
+data class ListeningBucketStat(
+    val bucket: Int,
+    val playTimeMs: Long,
+    val plays: Int
+)
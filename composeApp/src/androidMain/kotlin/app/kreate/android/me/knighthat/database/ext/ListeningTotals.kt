@@ -0,0 +1,16 @@
+package app.kreate.android.me.knighthat.database.ext
+
+/**
+ * Aggregated listening activity of a period.
+ *
+ * [firstPlayedAt] and [lastPlayedAt] are `null` when
+ * nothing was played within the period.
+ */
+data class ListeningTotals(
+    val plays: Int,
+    val playTimeMs: Long,
+    val firstPlayedAt: Long?,
+    val lastPlayedAt: Long?,
+    val activeDays: Int,
+    val uniqueSongs: Int
+)
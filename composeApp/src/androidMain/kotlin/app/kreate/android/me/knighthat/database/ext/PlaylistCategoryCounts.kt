@@ -0,0 +1,25 @@
+package app.kreate.android.me.knighthat.database.ext
+
+import app.it.fast4x.rimusic.MONTHLY_PREFIX
+import app.it.fast4x.rimusic.PINNED_PREFIX
+import app.it.fast4x.rimusic.PIPED_PREFIX
+
+/**
+ * Number of playlists in each category shown by the library.
+ *
+ * Categories are not exclusive, i.e. a YouTube playlist
+ * can be pinned too, except [local] which excludes all others.
+ *
+ * @param pinned playlists whose name starts with [PINNED_PREFIX]
+ * @param local playlists that don't belong to any other category
+ * @param youtube playlists synced with YouTube
+ * @param piped playlists whose name starts with [PIPED_PREFIX]
+ * @param monthly playlists whose name starts with [MONTHLY_PREFIX]
+ */
+data class PlaylistCategoryCounts(
+    val pinned: Int,
+    val local: Int,
+    val youtube: Int,
+    val piped: Int,
+    val monthly: Int
+)
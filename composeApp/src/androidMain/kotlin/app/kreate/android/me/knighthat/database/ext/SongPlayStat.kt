@@ -0,0 +1,10 @@
+package app.kreate.android.me.knighthat.database.ext
+
+import androidx.room.Embedded
+import app.it.fast4x.rimusic.models.Song
+
+data class SongPlayStat(
+    @Embedded val song: Song,
+    val playTimeMs: Long,
+    val plays: Int
+)
@@ -0,0 +1,15 @@
+package app.kreate.android.me.knighthat.database.migration
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class From27To28Migration : Migration(27, 28) {
+
+    override fun migrate(db: SupportSQLiteDatabase) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_Event_timestamp_songId` ON `Event` (`timestamp`, `songId`);")
+        } catch (e: Exception) {
+            println("Database From27To28Migration error ${e.stackTraceToString()}")
+        }
+    }
+}
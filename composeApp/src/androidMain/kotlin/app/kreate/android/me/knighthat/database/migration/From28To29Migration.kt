@@ -0,0 +1,58 @@
+package app.kreate.android.me.knighthat.database.migration
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class From28To29Migration : Migration(28, 29) {
+
+    /**
+     * Same statements Room generates for an entity annotated
+     * with `@Fts4(contentEntity = ...)`, including sync triggers.
+     *
+     * @param notNull columns of non-null properties
+     */
+    private fun createFtsTable(
+        db: SupportSQLiteDatabase,
+        ftsTable: String,
+        contentTable: String,
+        columns: List<String>,
+        notNull: List<String> = emptyList()
+    ) {
+        val definitions = columns.joinToString {
+            if( it in notNull ) "`$it` TEXT NOT NULL" else "`$it` TEXT"
+        }
+        val names = columns.joinToString { "`$it`" }
+        val values = columns.joinToString { "NEW.`$it`" }
+
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `$ftsTable` USING FTS4($definitions, tokenize=unicode61, content=`$contentTable`)")
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_${ftsTable}_BEFORE_UPDATE BEFORE UPDATE ON `$contentTable` BEGIN DELETE FROM `$ftsTable` WHERE `docid`=OLD.`rowid`; END")
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_${ftsTable}_BEFORE_DELETE BEFORE DELETE ON `$contentTable` BEGIN DELETE FROM `$ftsTable` WHERE `docid`=OLD.`rowid`; END")
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_${ftsTable}_AFTER_UPDATE AFTER UPDATE ON `$contentTable` BEGIN INSERT INTO `$ftsTable`(`docid`, $names) VALUES (NEW.`rowid`, $values); END")
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_${ftsTable}_AFTER_INSERT AFTER INSERT ON `$contentTable` BEGIN INSERT INTO `$ftsTable`(`docid`, $names) VALUES (NEW.`rowid`, $values); END")
+        // Index existing records
+        db.execSQL("INSERT INTO `$ftsTable`(`$ftsTable`) VALUES('rebuild')")
+    }
+
+    override fun migrate(db: SupportSQLiteDatabase) {
+        try {
+            createFtsTable( db, "SongFts", "Song", listOf("title", "artistsText"), listOf("title") )
+        } catch (e: Exception) {
+            println("Database From28To29Migration error ${e.stackTraceToString()}")
+        }
+        try {
+            createFtsTable( db, "AlbumFts", "Album", listOf("title", "authorsText") )
+        } catch (e: Exception) {
+            println("Database From28To29Migration error ${e.stackTraceToString()}")
+        }
+        try {
+            createFtsTable( db, "ArtistFts", "Artist", listOf("name") )
+        } catch (e: Exception) {
+            println("Database From28To29Migration error ${e.stackTraceToString()}")
+        }
+        try {
+            createFtsTable( db, "PlaylistFts", "Playlist", listOf("name"), listOf("name") )
+        } catch (e: Exception) {
+            println("Database From28To29Migration error ${e.stackTraceToString()}")
+        }
+    }
+}
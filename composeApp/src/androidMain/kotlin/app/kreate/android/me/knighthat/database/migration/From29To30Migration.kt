@@ -0,0 +1,11 @@
+package app.kreate.android.me.knighthat.database.migration
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class From29To30Migration : Migration(29, 30) {
+
+    override fun migrate(db: SupportSQLiteDatabase) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS `LyricsTranslation` (`songId` TEXT NOT NULL, `language` TEXT NOT NULL, `synced` INTEGER NOT NULL, `sourceHash` INTEGER NOT NULL, `lines` TEXT NOT NULL, PRIMARY KEY(`songId`, `language`, `synced`), FOREIGN KEY(`songId`) REFERENCES `Song`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE)")
+    }
+}
@@ -16,6 +16,7 @@ import androidx.compose.ui.Modifier
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.util.fastFirstOrNull
+import app.cubic.android.core.network.NetworkClientFactory
 import app.kreate.android.BuildConfig
 import app.kreate.android.R
 import app.it.fast4x.rimusic.appContext
@@ -36,7 +37,6 @@ import kotlinx.coroutines.withContext
 import kotlinx.serialization.json.Json
 import app.kreate.android.me.knighthat.utils.Repository
 import app.kreate.android.me.knighthat.utils.Toaster
-import okhttp3.OkHttpClient
 import okhttp3.Protocol
 import okhttp3.Request
 import org.json.JSONObject
@@ -51,7 +51,7 @@ object Updater {
     lateinit var build: GithubRelease.Build
     var githubRelease: GithubRelease? = null
     private val updateHttpClient by lazy {
-        OkHttpClient.Builder()
+        NetworkClientFactory.newBuilder()
             .retryOnConnectionFailure(true)
             .protocols(listOf(Protocol.HTTP_1_1))
             .build()
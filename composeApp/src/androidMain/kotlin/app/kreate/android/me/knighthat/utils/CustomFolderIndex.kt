@@ -0,0 +1,281 @@
+package app.kreate.android.me.knighthat.utils
+
+import android.content.Context
+import android.media.MediaMetadataRetriever
+import android.net.Uri
+import android.provider.DocumentsContract
+import android.util.AtomicFile
+import app.it.fast4x.rimusic.models.Song
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import org.json.JSONArray
+import org.json.JSONObject
+import timber.log.Timber
+import java.io.File
+import java.io.FileNotFoundException
+
+/**
+ * Songs found in custom download folder, remembered between scans.
+ *
+ * Every audio file is indexed by its document uri, along with
+ * its last modified time and size. A rescan lists each directory
+ * with a single [DocumentsContract] query, and only reads metadata
+ * of files that are new or changed since they were indexed,
+ * a few files at a time.
+ */
+object CustomFolderIndex {
+
+    private const val DIRECTORY = "custom_folder_index"
+    private const val EXTRACT_WORKERS = 4
+
+    private val AUDIO_EXTENSIONS = setOf( "mp3", "m4a", "aac", "flac", "wav", "ogg", "opus", "mp4" )
+
+    private val CHILD_PROJECTION = arrayOf(
+        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+        DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+        DocumentsContract.Document.COLUMN_MIME_TYPE,
+        DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+        DocumentsContract.Document.COLUMN_SIZE
+    )
+
+    private class Child( val uri: Uri, val name: String, val lastModified: Long, val size: Long )
+
+    private data class Entry(
+        val uri: String,
+        val lastModified: Long,
+        val size: Long,
+        val title: String,
+        val artist: String?,
+        val durationMs: Long
+    ) {
+        fun toSong() = Song(
+            id = uri,
+            title = title,
+            artistsText = artist,
+            durationText = durationMs.takeIf { it >= 0L }?.toDurationText(),
+            thumbnailUrl = null
+        )
+    }
+
+    /**
+     * Emits songs of the last scan right away, if there are any,
+     * then songs of a new scan when something changed.
+     */
+    fun songsOf( context: Context, treeUri: Uri ): Flow<List<Song>> = flow {
+        val file = fileOf( context, treeUri )
+        val indexed = load( file, treeUri )
+        if( indexed.isNotEmpty() )
+            emit( indexed.values.map( Entry::toSong ) )
+
+        val scanned = try {
+            scan( context, treeUri, indexed )
+        } catch ( e: SecurityException ) {
+            // Permission to the folder is gone
+            Timber.tag( "CustomFolderIndex" ).e( e, "Lost access to %s", treeUri )
+            file.delete()
+            emit( emptyList() )
+            return@flow
+        } catch ( e: CancellationException ) {
+            throw e
+        } catch ( e: Exception ) {
+            // Indexed songs stay until next scan
+            Timber.tag( "CustomFolderIndex" ).e( e, "Failed to scan %s", treeUri )
+            return@flow
+        }
+        if( scanned == indexed ) return@flow
+
+        save( file, treeUri, scanned )
+        emit( scanned.values.map( Entry::toSong ) )
+    }.flowOn( Dispatchers.IO )
+
+    private fun fileOf( context: Context, treeUri: Uri ) =
+        AtomicFile(File(context.filesDir, DIRECTORY).resolve( "${Integer.toHexString( treeUri.toString().hashCode() )}.json" ))
+
+    private suspend fun scan( context: Context, treeUri: Uri, indexed: Map<String, Entry> ): Map<String, Entry> = coroutineScope {
+        val children = listAudioFiles( context, treeUri )
+
+        val dispatcher = Dispatchers.IO.limitedParallelism( EXTRACT_WORKERS )
+        children.map { child ->
+                    val previous = indexed[child.uri.toString()]
+                    if( previous != null && previous.lastModified == child.lastModified && previous.size == child.size )
+                        CompletableDeferred( previous )
+                    else
+                        async( dispatcher ) { extract( context, child ) }
+                }
+                .awaitAll()
+                .filterNotNull()
+                .associateByTo( LinkedHashMap() ) { it.uri }
+    }
+
+    private suspend fun listAudioFiles( context: Context, treeUri: Uri ): List<Child> = coroutineScope {
+        val resolver = context.contentResolver
+        val files = mutableListOf<Child>()
+        val visited = HashSet<String>()
+        val pending = ArrayDeque<String>()
+        pending.add( DocumentsContract.getTreeDocumentId( treeUri ) )
+
+        while( pending.isNotEmpty() ) {
+            ensureActive()
+
+            val documentId = pending.removeFirst()
+            if( !visited.add( documentId ) ) continue
+
+            val childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree( treeUri, documentId )
+            resolver.query( childrenUri, CHILD_PROJECTION, null, null, null )?.use { cursor ->
+                while( cursor.moveToNext() ) {
+                    val childId = cursor.getString( 0 ) ?: continue
+                    val name = cursor.getString( 1 ).orEmpty()
+                    val mimeType = cursor.getString( 2 ).orEmpty()
+
+                    if( mimeType == DocumentsContract.Document.MIME_TYPE_DIR ) {
+                        pending.add( childId )
+                        continue
+                    }
+                    if( !isPlayableAudio( name, mimeType ) ) continue
+
+                    files += Child(
+                        uri = DocumentsContract.buildDocumentUriUsingTree( treeUri, childId ),
+                        name = name,
+                        lastModified = if( cursor.isNull( 3 ) ) -1L else cursor.getLong( 3 ),
+                        size = if( cursor.isNull( 4 ) ) -1L else cursor.getLong( 4 )
+                    )
+                }
+            }
+        }
+
+        files.distinctBy { it.uri }
+    }
+
+    private fun isPlayableAudio( name: String, mimeType: String ): Boolean {
+        if( mimeType.startsWith( "audio/", true ) ) return true
+        return name.substringAfterLast( '.', "" ).lowercase() in AUDIO_EXTENSIONS
+    }
+
+    /**
+     * @return `null` when the file can't be read
+     */
+    private fun extract( context: Context, child: Child ): Entry? {
+        val fileName = child.name.substringBeforeLast( "." )
+        val retriever = MediaMetadataRetriever()
+        return runCatching {
+            retriever.setDataSource( context, child.uri )
+            val metadataTitle = retriever.extractMetadata( MediaMetadataRetriever.METADATA_KEY_TITLE )
+                                         ?.takeIf { it.isNotBlank() }
+            val metadataArtist = retriever.extractMetadata( MediaMetadataRetriever.METADATA_KEY_ARTIST )
+                                          ?.takeIf { it.isNotBlank() }
+                                          ?.takeUnless { it.equals( "unknown", true ) || it.equals( "<unknown>", true ) }
+            val filenameParts = splitArtistTitle( fileName )
+            val title = metadataTitle ?: filenameParts?.second ?: fileName
+            val durationMs = retriever.extractMetadata( MediaMetadataRetriever.METADATA_KEY_DURATION )
+                                      ?.toLongOrNull()
+
+            Entry(
+                uri = child.uri.toString(),
+                lastModified = child.lastModified,
+                size = child.size,
+                title = title.ifBlank { child.name.ifBlank { child.uri.lastPathSegment.orEmpty() } },
+                artist = metadataArtist ?: filenameParts?.first,
+                durationMs = durationMs ?: -1L
+            )
+        }.getOrNull().also {
+            runCatching { retriever.release() }
+        }
+    }
+
+    private fun splitArtistTitle( name: String ): Pair<String, String>? {
+        val parts = name.split( Regex("\\s+-\\s+"), 2 )
+        if( parts.size != 2 ) return null
+        val artist = parts[0].trim()
+        val title = parts[1].trim()
+        return if( artist.isNotBlank() && title.isNotBlank() ) artist to title else null
+    }
+
+    private fun Long.toDurationText(): String {
+        val totalSeconds = (this / 1000L).coerceAtLeast( 0L )
+        val hours = totalSeconds / 3600L
+        val minutes = (totalSeconds % 3600L) / 60L
+        val seconds = totalSeconds % 60L
+        return if( hours > 0L )
+            "%d:%02d:%02d".format( hours, minutes, seconds )
+        else
+            "%d:%02d".format( minutes, seconds )
+    }
+
+    private fun load( file: AtomicFile, treeUri: Uri ): Map<String, Entry> {
+        val entries = LinkedHashMap<String, Entry>()
+        try {
+            val json = JSONObject( file.readFully().decodeToString() )
+            // Different folder with the same hash
+            if( json.optString( "tree" ) != treeUri.toString() ) return entries
+
+            val array = json.getJSONArray( "entries" )
+            for( i in 0 until array.length() ) {
+                val item = array.getJSONObject( i )
+                val entry = Entry(
+                    uri = item.getString( "uri" ),
+                    lastModified = item.optLong( "lastModified", -1L ),
+                    size = item.optLong( "size", -1L ),
+                    title = item.getString( "title" ),
+                    artist = if( item.isNull( "artist" ) ) null else item.optString( "artist" ),
+                    durationMs = item.optLong( "durationMs", -1L )
+                )
+                entries[entry.uri] = entry
+            }
+        } catch ( _: FileNotFoundException ) {
+            // Folder wasn't scanned before
+        } catch ( e: Exception ) {
+            Timber.tag( "CustomFolderIndex" ).e( e, "Failed to read index, rescanning everything" )
+            entries.clear()
+        }
+
+        return entries
+    }
+
+    /**
+     * A failed write leaves the previous index in place,
+     * worst case is some files are read again next scan.
+     */
+    private fun save( file: AtomicFile, treeUri: Uri, entries: Map<String, Entry> ) {
+        file.baseFile.parentFile?.mkdirs()
+        val stream = try {
+            file.startWrite()
+        } catch ( e: Exception ) {
+            Timber.tag( "CustomFolderIndex" ).e( e, "Failed to save index" )
+            return
+        }
+
+        try {
+            val array = JSONArray()
+            entries.values.forEach { entry ->
+                array.put(
+                    JSONObject().apply {
+                        put( "uri", entry.uri )
+                        put( "lastModified", entry.lastModified )
+                        put( "size", entry.size )
+                        put( "title", entry.title )
+                        put( "artist", entry.artist ?: JSONObject.NULL )
+                        put( "durationMs", entry.durationMs )
+                    }
+                )
+            }
+            val json = JSONObject().apply {
+                put( "tree", treeUri.toString() )
+                put( "entries", array )
+            }
+
+            stream.write( json.toString().encodeToByteArray() )
+            file.finishWrite( stream )
+        } catch ( e: Exception ) {
+            file.failWrite( stream )
+            Timber.tag( "CustomFolderIndex" ).e( e, "Failed to save index" )
+        }
+    }
+}
@@ -2,7 +2,10 @@ package app.kreate.android.me.knighthat.utils
 
 import android.content.ContentUris
 import android.content.Context
+import android.database.ContentObserver
+import android.net.Uri
 import android.provider.MediaStore
+import androidx.core.content.edit
 import androidx.core.net.toUri
 import app.it.fast4x.rimusic.Database
 import app.it.fast4x.rimusic.enums.OnDeviceSongSortBy
@@ -12,15 +15,31 @@ import app.it.fast4x.rimusic.models.Song
 import app.it.fast4x.rimusic.service.modern.LOCAL_KEY_PREFIX
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid10
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid11
-import kotlinx.coroutines.CoroutineScope
+import app.it.fast4x.rimusic.utils.preferences
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.SharingStarted
-import kotlinx.coroutines.flow.flow
-import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.launch
+import timber.log.Timber
 import java.io.File
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.math.max
 import kotlin.time.Duration.Companion.milliseconds
 
+private const val INGEST_BATCH_SIZE = 500
+private const val RESCAN_DEBOUNCE_MS = 1_000L
+private const val LOCAL_SCAN_HIGH_WATER_MARK_KEY = "onDeviceScanHighWaterMark"
+private const val LOCAL_MISSING_SONGS_KEY = "onDeviceMissingSongs"
+/**
+ * Songs missing from MediaStore for this long are removed from database
+ */
+private const val MISSING_GRACE_MS = 7L * 24 * 60 * 60 * 1000
+
 val PROJECTION by lazy {
     var projection = arrayOf(
         MediaStore.Audio.Media._ID,
@@ -99,22 +118,103 @@ private fun normalizeDeviceDirectory(path: String?): String {
     }
 }
 
-fun Context.getLocalSongs(
+/**
+ * Write [songs] and their [formats] in batches of [INGEST_BATCH_SIZE],
+ * each batch is committed in a single transaction.
+ *
+ * @param onCommitted called once every batch is committed, not called if any failed
+ */
+private fun ingest( songs: List<Song>, formats: List<Format>, onCommitted: () -> Unit ) {
+    if( songs.isEmpty() ) {
+        onCommitted()
+        return
+    }
+
+    val chunks = songs.indices.chunked( INGEST_BATCH_SIZE )
+    val failed = AtomicBoolean(false)
+    chunks.forEachIndexed { index, chunk ->
+        // Transactions run one after another, last one to succeed is the last batch
+        Database.asyncBatchTransaction(
+            onFailure = {
+                failed.set( true )
+                Timber.e( it, "Failed to write %d on-device songs", chunk.size )
+            },
+            onSuccess = {
+                if( index == chunks.lastIndex && !failed.get() ) onCommitted()
+            }
+        ) {
+            chunk.forEach {
+                songTable.insertIgnore( songs[it] )
+                formatTable.upsert( formats[it] )
+            }
+        }
+    }
+}
+
+/**
+ * Remove songs that have been missing from MediaStore for [MISSING_GRACE_MS].
+ *
+ * Play history and playlist entries go along with the song,
+ * so storage being unavailable for a while (SD card, USB,
+ * MediaStore rescan) must not remove anything.
+ *
+ * @param vanishedIds songs known to database but not found by this scan
+ * @return number of songs removed
+ */
+private fun Context.removeVanished( vanishedIds: Set<String> ): Int {
+    val now = System.currentTimeMillis()
+    val missingSince = preferences.getStringSet( LOCAL_MISSING_SONGS_KEY, null )
+                                   .orEmpty()
+                                   .associate { it.substringBeforeLast( '|' ) to (it.substringAfterLast( '|' ).toLongOrNull() ?: now) }
+
+    // Songs that came back are forgotten
+    val stillMissing = vanishedIds.associateWith { missingSince[it] ?: now }
+    val expired = stillMissing.filterValues { now - it >= MISSING_GRACE_MS }.keys
+
+    expired.chunked( INGEST_BATCH_SIZE ).forEach { chunk ->
+        Database.asyncBatchTransaction(
+            onFailure = { Timber.e( it, "Failed to remove %d vanished on-device songs", chunk.size ) }
+        ) {
+            songTable.deleteByIds( chunk )
+        }
+    }
+    preferences.edit {
+        putStringSet(
+            LOCAL_MISSING_SONGS_KEY,
+            stillMissing.filterKeys { it !in expired }.mapTo( HashSet() ) { "${it.key}|${it.value}" }
+        )
+    }
+
+    return expired.size
+}
+
+/**
+ * Query MediaStore and return songs to display.
+ *
+ * Only rows modified since the last scan (or not yet in
+ * the database) are written to database, rows that
+ * no longer exist are removed from it after a while.
+ */
+private suspend fun Context.scanLocalSongs(
+    uri: Uri,
     sortBy: OnDeviceSongSortBy,
     sortOrder: SortOrder
-): Flow<Map<Song, String>> = flow {
+): Map<Song, String> {
     val results = linkedMapOf<Song, String>()
-    val blacklistedPaths = blacklistedPaths( this@getLocalSongs )
+    val blacklistedPaths = blacklistedPaths( this )
+    val highWaterMark = preferences.getLong( LOCAL_SCAN_HIGH_WATER_MARK_KEY, 0L )
+    val knownIds = Database.songTable.allOnDeviceIds().first().toHashSet()
+    val vanishedIds = HashSet( knownIds )
+    var newHighWaterMark = highWaterMark
+
+    val changedSongs = mutableListOf<Song>()
+    val changedFormats = mutableListOf<Format>()
 
-    val uri =
-        if (isAtLeastAndroid10)
-            MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL)
-        else
-            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
     val selection = "${MediaStore.Audio.Media.IS_MUSIC} > 0"
     val order = "${sortBy.value} COLLATE NOCASE ${sortOrder.asSqlString}"
 
-    contentResolver.query( uri, PROJECTION, selection, null, order )?.use { cursor ->
+    val cursor = contentResolver.query( uri, PROJECTION, selection, null, order ) ?: return results
+    cursor.use {
         val idColumn = cursor.getColumnIndex( MediaStore.Audio.Media._ID )
         val nameColumn = cursor.getColumnIndex( MediaStore.Audio.Media.DISPLAY_NAME )
         val durationColumn = cursor.getColumnIndex( MediaStore.Audio.Media.DURATION )
@@ -132,6 +232,11 @@ fun Context.getLocalSongs(
         val dateModifiedColumn = cursor.getColumnIndex( MediaStore.Audio.Media.DATE_MODIFIED )
 
         while( cursor.moveToNext() ) {
+            val id = cursor.getLong( idColumn )
+            val songId = "$LOCAL_KEY_PREFIX$id"
+            // Blacklisted songs still exist on device, they must not be removed
+            vanishedIds.remove( songId )
+
             val relPath = normalizeDeviceDirectory(cursor.getString(pathColumn))
             if( blacklistedPaths.contains( relPath ) ) continue
 
@@ -147,7 +252,6 @@ fun Context.getLocalSongs(
                         else
                             "%02d:%02d".format( mins, secs )
                     }
-            val id = cursor.getLong( idColumn )
             val displayName = cursor.getString( nameColumn ).orEmpty()
             val filename = displayName.substringBeforeLast(".")
             val rawTitle = cursor.getString( titleColumn )?.takeIf { it.isNotBlank() } ?: filename
@@ -156,25 +260,87 @@ fun Context.getLocalSongs(
             val title = if (rawArtist == null && filenameParts != null) filenameParts.second else rawTitle
             val artist = rawArtist ?: filenameParts?.first
             val albumUri = ContentUris.withAppendedId( ALBUM_URI, cursor.getLong( albumIdColumn ) )
-            val song = Song( "$LOCAL_KEY_PREFIX$id", title, artist, durationText, albumUri.toString() )
+            val song = Song( songId, title, artist, durationText, albumUri.toString() )
 
-            val mimeType = cursor.getString( mimeTypeColumn )
-            val bitrate = if( isAtLeastAndroid11 ) cursor.getLong( bitrateColumn ) else 0
-            val fileSize = cursor.getLong( fileSizeColumn )
             val dateModified = cursor.getLong( dateModifiedColumn )
-            val format = Format( song.id, 0, mimeType, bitrate, fileSize, dateModified )
+            // DATE_MODIFIED is in seconds, a file changed later within
+            // the same second as the mark must not be missed
+            if( dateModified >= highWaterMark || songId !in knownIds ) {
+                val mimeType = cursor.getString( mimeTypeColumn )
+                val bitrate = if( isAtLeastAndroid11 ) cursor.getLong( bitrateColumn ) else 0
+                val fileSize = cursor.getLong( fileSizeColumn )
 
-            Database.asyncTransaction {
-                songTable.insertIgnore( song )
-                formatTable.upsert( format )
+                changedSongs.add( song )
+                changedFormats.add( Format( song.id, 0, mimeType, bitrate, fileSize, dateModified ) )
             }
+            newHighWaterMark = max( newHighWaterMark, dateModified )
 
             results[song] = relPath
         }
     }
 
-    emit( results )
-}.stateIn( CoroutineScope(Dispatchers.IO), SharingStarted.Eagerly, mapOf() )
+    // Mark moves only once what it covers is in database,
+    // otherwise a failed write would never be retried
+    ingest( changedSongs, changedFormats ) {
+        preferences.edit { putLong( LOCAL_SCAN_HIGH_WATER_MARK_KEY, newHighWaterMark ) }
+    }
+    // Empty result usually means storage isn't available (yet),
+    // keep the records rather than wiping user's local library
+    val removedCount = if( results.isNotEmpty() ) removeVanished( vanishedIds ) else 0
+    Timber.d(
+        "Scanned %d on-device songs: %d changed, %d missing, %d removed",
+        results.size,
+        changedSongs.size,
+        vanishedIds.size,
+        removedCount
+    )
+
+    return results
+}
+
+/**
+ * Continuously emit on-device songs.
+ *
+ * First emission comes from a scan of MediaStore, subsequence
+ * emissions come when MediaStore reports changes (debounced by
+ * [RESCAN_DEBOUNCE_MS]), so the list updates without reopening
+ * the screen.
+ */
+fun Context.getLocalSongs(
+    sortBy: OnDeviceSongSortBy,
+    sortOrder: SortOrder
+): Flow<Map<Song, String>> = callbackFlow {
+    val uri =
+        if (isAtLeastAndroid10)
+            MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL)
+        else
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
+
+    val rescanRequests = Channel<Unit>( Channel.CONFLATED )
+    val observer = object : ContentObserver( null ) {
+        override fun onChange( selfChange: Boolean ) {
+            rescanRequests.trySend( Unit )
+        }
+    }
+    contentResolver.registerContentObserver( uri, true, observer )
+
+    launch {
+        send( scanLocalSongs( uri, sortBy, sortOrder ) )
+
+        for( request in rescanRequests ) {
+            // MediaStore fires many changes in a row while scanning
+            delay( RESCAN_DEBOUNCE_MS )
+            rescanRequests.tryReceive()
+
+            send( scanLocalSongs( uri, sortBy, sortOrder ) )
+        }
+    }
+
+    awaitClose {
+        contentResolver.unregisterContentObserver( observer )
+        rescanRequests.close()
+    }
+}.flowOn( Dispatchers.IO )
 
 private fun String?.asKnownMetadata(): String? =
     this
@@ -0,0 +1,136 @@
+package app.kreate.android.me.knighthat.utils.csv
+
+import android.content.Context
+import android.util.AtomicFile
+import org.json.JSONObject
+import timber.log.Timber
+import java.io.File
+import java.io.FileNotFoundException
+
+/**
+ * Progress of a CSV import, saved after every batch
+ * committed to the database.
+ *
+ * Rows are committed in the order they appear in the file,
+ * so [rowsCommitted] is enough to know where to continue
+ * when the same file is imported again after an interruption.
+ * Playlists created by previous batches are remembered,
+ * resumed import keeps adding to them instead of creating new ones.
+ *
+ * Only one import runs at a time, so there's only one checkpoint.
+ */
+class CsvImportCheckpoint private constructor(
+    private val file: AtomicFile,
+    /**
+     * Identity of imported file, usually its uri and size
+     */
+    val source: String
+) {
+
+    companion object {
+        private const val DIRECTORY = "csv_import"
+        private const val FILE_NAME = "checkpoint.json"
+
+        private fun fileOf( context: Context ) = AtomicFile(File(context.filesDir, DIRECTORY).resolve( FILE_NAME ))
+
+        private fun playlistKey( name: String, browseId: String ) = "$name\n$browseId"
+
+        /**
+         * @return saved checkpoint of [source], or an empty one if
+         * there's none or it belongs to another file
+         */
+        fun load( context: Context, source: String ): CsvImportCheckpoint {
+            val checkpoint = CsvImportCheckpoint( fileOf( context ), source )
+            try {
+                val json = JSONObject( checkpoint.file.readFully().decodeToString() )
+                if( json.optString( "source" ) != source ) return checkpoint
+
+                checkpoint.rowsCommitted = json.optInt( "rowsCommitted" )
+                checkpoint.successCount = json.optInt( "successCount" )
+                checkpoint.fallbackCount = json.optInt( "fallbackCount" )
+                checkpoint.failedCount = json.optInt( "failedCount" )
+                json.optJSONObject( "playlists" )?.let { playlists ->
+                    playlists.keys().forEach { key ->
+                        checkpoint.playlistIds[key] = playlists.getLong( key )
+                    }
+                }
+            } catch ( _: FileNotFoundException ) {
+                return checkpoint
+            } catch ( e: Exception ) {
+                Timber.tag( "CsvImportCheckpoint" ).e( e, "Failed to read checkpoint, starting over" )
+                return CsvImportCheckpoint( checkpoint.file, source )
+            }
+
+            return checkpoint
+        }
+    }
+
+    private val playlistIds = mutableMapOf<String, Long>()
+
+    var rowsCommitted: Int = 0
+        private set
+    var successCount: Int = 0
+        private set
+    var fallbackCount: Int = 0
+        private set
+    var failedCount: Int = 0
+        private set
+
+    val isResumed: Boolean
+        get() = rowsCommitted > 0
+
+    fun playlistIdOf( name: String, browseId: String ): Long? = playlistIds[playlistKey( name, browseId )]
+
+    fun setPlaylistId( name: String, browseId: String, id: Long ) {
+        playlistIds[playlistKey( name, browseId )] = id
+    }
+
+    /**
+     * Mark next [rows] as committed
+     */
+    fun advance( rows: Int, success: Int, fallback: Int, failed: Int ) {
+        rowsCommitted += rows
+        successCount += success
+        fallbackCount += fallback
+        failedCount += failed
+    }
+
+    /**
+     * Replaces saved checkpoint only when the new one
+     * is completely written, otherwise previous checkpoint
+     * is kept and those rows are imported again.
+     */
+    fun save() {
+        file.baseFile.parentFile?.mkdirs()
+        val stream = try {
+            file.startWrite()
+        } catch ( e: Exception ) {
+            Timber.tag( "CsvImportCheckpoint" ).e( e, "Failed to save checkpoint" )
+            return
+        }
+
+        try {
+            val json = JSONObject().apply {
+                put( "source", source )
+                put( "rowsCommitted", rowsCommitted )
+                put( "successCount", successCount )
+                put( "fallbackCount", fallbackCount )
+                put( "failedCount", failedCount )
+                put( "playlists", JSONObject( playlistIds.toMap() ) )
+            }
+
+            stream.write( json.toString().encodeToByteArray() )
+            file.finishWrite( stream )
+        } catch ( e: Exception ) {
+            file.failWrite( stream )
+            Timber.tag( "CsvImportCheckpoint" ).e( e, "Failed to save checkpoint" )
+        }
+    }
+
+    /**
+     * Import finished or can't be resumed
+     */
+    fun delete() {
+        file.delete()
+    }
+}
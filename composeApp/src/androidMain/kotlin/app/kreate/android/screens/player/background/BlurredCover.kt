@@ -5,6 +5,7 @@ import androidx.compose.animation.core.animateFloat
 import androidx.compose.animation.core.infiniteRepeatable
 import androidx.compose.animation.core.rememberInfiniteTransition
 import androidx.compose.animation.core.tween
+import androidx.compose.foundation.Image
 import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.Box
 import androidx.compose.foundation.layout.BoxWithConstraints
@@ -13,23 +14,34 @@ import androidx.compose.foundation.layout.requiredSize
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
-import androidx.compose.runtime.referentialEqualityPolicy
+import androidx.compose.runtime.produceState
 import androidx.compose.runtime.remember
+import androidx.compose.runtime.snapshotFlow
 import androidx.compose.runtime.structuralEqualityPolicy
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.draw.blur
 import androidx.compose.ui.graphics.Color
+import androidx.compose.ui.graphics.ImageBitmap
+import androidx.compose.ui.graphics.asImageBitmap
 import androidx.compose.ui.graphics.graphicsLayer
 import androidx.compose.ui.layout.ContentScale
 import androidx.compose.ui.platform.LocalDensity
 import androidx.compose.ui.unit.dp
-import app.it.fast4x.rimusic.utils.BlurTransformation
 import app.it.fast4x.rimusic.utils.isAtLeastAndroid12
+import app.kreate.android.me.knighthat.coil.ArtworkDerivatives
 import app.kreate.android.me.knighthat.coil.ImageCacheFactory
 import app.kreate.android.me.knighthat.component.player.BlurAdjuster
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collectLatest
 import kotlin.math.sqrt
 
+/**
+ * How long blur strength must stay unchanged before
+ * a new blurred copy is computed, see [BlurFilter]
+ */
+private const val BLUR_SETTLE_MS = 300L
+
 @Composable
 private fun BlurFilter(
     thumbnailUrl: String,
@@ -69,17 +81,31 @@ private fun BlurFilter(
                     0f
             }
         }
-        val blurTransformation by remember {
-            derivedStateOf(referentialEqualityPolicy()) {
-                if (!isAtLeastAndroid12) {
-                    val radius: Float =
-                        if (showThumbnail || (isShowingLyrics && !isShowingVisualizer) || !noBlur)
-                            blurAdjuster.strength
-                        else
-                            0f
-                    listOf(BlurTransformation(radius.toInt(), .5f))
-                } else
-                    emptyList()
+        /**
+         * Devices without [Modifier.blur] draw a blurred copy of the
+         * artwork instead, computed once per artwork and radius.
+         *
+         * While the slider is being dragged, previous copy stays on screen,
+         * only the radius it settles on is computed and cached.
+         */
+        val blurredCover by produceState<ImageBitmap?>( null, thumbnailUrl ) {
+            if( isAtLeastAndroid12 ) return@produceState
+
+            var isFirst = true
+            snapshotFlow { blurRadius.toInt() }.collectLatest { radius ->
+                val isAdjusting = !isFirst
+                isFirst = false
+
+                if( radius < 1 ) {
+                    value = null
+                    return@collectLatest
+                }
+                // Cancelled by the next radius if user is still dragging
+                if( isAdjusting ) delay( BLUR_SETTLE_MS )
+
+                value = ArtworkDerivatives.blurred( thumbnailUrl, radius, .5f ) {
+                    ImageCacheFactory.loadBitmap( thumbnailUrl, allowHardware = false )
+                }?.asImageBitmap()
             }
         }
         val angle by rememberInfiniteTransition().animateFloat(
@@ -90,19 +116,28 @@ private fun BlurFilter(
             )
         )
 
-        ImageCacheFactory.Thumbnail(
-            thumbnailUrl = thumbnailUrl,
-            contentDescription = "blurred_background",
-            contentScale = ContentScale.Fit,
-            // [Modifier.blur] will be
-            modifier = modifier.fillMaxSize()
-                               .blur( blurRadius.dp )       // ignored on unsupported devices by default
-                               .graphicsLayer {
-                                   scaleX = scale
-                                   scaleY = scale
-                                   rotationZ = angle
-                               }
-        )
+        val coverModifier = modifier.fillMaxSize()
+                                    .blur( blurRadius.dp )       // ignored on unsupported devices by default
+                                    .graphicsLayer {
+                                        scaleX = scale
+                                        scaleY = scale
+                                        rotationZ = angle
+                                    }
+        val blurred = blurredCover
+        if( blurred != null )
+            Image(
+                bitmap = blurred,
+                contentDescription = "blurred_background",
+                contentScale = ContentScale.Fit,
+                modifier = coverModifier
+            )
+        else
+            ImageCacheFactory.Thumbnail(
+                thumbnailUrl = thumbnailUrl,
+                contentDescription = "blurred_background",
+                contentScale = ContentScale.Fit,
+                modifier = coverModifier
+            )
     }
 }
 
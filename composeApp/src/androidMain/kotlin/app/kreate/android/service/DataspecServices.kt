@@ -56,8 +56,10 @@ import app.it.fast4x.rimusic.utils.preferences
 import app.cubic.android.core.network.NetworkClientFactory
 import app.cubic.android.core.utils.cipher.CipherDeobfuscator
 import app.cubic.android.core.utils.potoken.PoTokenGenerator
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.TimeoutCancellationException
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.MutableStateFlow
@@ -65,6 +67,9 @@ import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.runInterruptible
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withTimeout
 import kotlinx.serialization.json.Json
 import app.kreate.android.me.knighthat.utils.Toaster
@@ -81,21 +86,37 @@ import java.net.HttpURLConnection
 import java.net.URL
 import java.net.URLEncoder
 import java.net.UnknownHostException
+import java.util.concurrent.ConcurrentHashMap
 import it.fast4x.innertube.requests.player
 import it.fast4x.innertube.utils.NewPipeUtils
 import it.fast4x.innertube.utils.from
 import timber.log.Timber
 
-private const val CHUNK_LENGTH = 512 * 1024L     // 512Kb
 private const val STREAM_RESOLVE_RETRIES = 3
 private const val FORMAT_CACHE_EXPIRY_SAFETY_MS = 30_000L
 private const val INNERTUBE_CLIENT_TIMEOUT_MS = 5_000L
+private const val HEDGED_RESOLVE_PARALLELISM = 3
+/**
+ * How long an Innertube client gets before the next one is started alongside it
+ */
+private const val INNERTUBE_HEDGE_DELAY_MS = 1_200L
 private const val LAST_SUCCESSFUL_YT_CLIENT_AUTH_KEY = "last_successful_yt_client_auth"
 private const val LAST_SUCCESSFUL_YT_CLIENT_NOAUTH_KEY = "last_successful_yt_client_noauth"
 
-private val formatCache = mutableMapOf<String, Uri>()
-private val formatCacheLock = Any()
-private val forceFormatResolveIds = mutableSetOf<String>()
+private const val FORMAT_CACHE_MAX_ENTRIES = 200
+private const val DOWNLOAD_FORMAT_CACHE_MAX_ENTRIES = 32
+private const val DOWNLOAD_FORMAT_CACHE_SAFETY_MS = 60 * 60 * 1000L
+
+private val formatCache = StreamUrlCache(FORMAT_CACHE_MAX_ENTRIES, FORMAT_CACHE_EXPIRY_SAFETY_MS)
+/**
+ * Stream URLs resolved for downloads before they get a slot.
+ *
+ * Downloads don't reuse [formatCache], but a URL resolved moments ago
+ * for this exact download is fresh enough. Each one is used only once,
+ * and must stay valid long enough for the whole file.
+ */
+private val downloadFormatCache = StreamUrlCache(DOWNLOAD_FORMAT_CACHE_MAX_ENTRIES, DOWNLOAD_FORMAT_CACHE_SAFETY_MS, persistent = false)
+private val forceFormatResolveIds: MutableSet<String> = ConcurrentHashMap.newKeySet()
 private val sessionRecoveryLock = Any()
 private var lastSessionRecoveryMs = 0L
 private var playbackAuthQuarantinedUntilMs = 0L
@@ -193,7 +214,9 @@ private fun upsertSongInfo( videoId: String ) = runBlocking {       // Use this
     // Skip adding if it's just added in previous call
     if( videoId == justInserted ) return@runBlocking
 
-    Innertube.nextPage( NextBody(videoId = videoId) )?.fold(
+    YouTubeRequestThrottler.run( YouTubeRequestThrottler.Endpoint.Next ) {
+        Innertube.nextPage( NextBody(videoId = videoId) )
+    }?.fold(
         onSuccess = { nextPage ->
             val songItem = nextPage.itemsPage?.items?.firstOrNull() ?: return@fold
             Database.upsert( songItem )
@@ -214,6 +237,8 @@ private fun upsertSongInfo( videoId: String ) = runBlocking {       // Use this
  */
 @NonBlocking
 private fun upsertSongFormat( videoId: String, format: PlayerResponse.StreamingData.Format ) {
+    format.contentLengthValue?.let { PlaybackChunks.setContentLength( videoId, it ) }
+
     // Skip adding if it's just added in previous call
     if( videoId == justInserted ) return
 
@@ -489,7 +514,7 @@ suspend fun getIosFormatUrl(
             val poToken = PoTokenGenerator.shared
                 .getWebClientPoToken(videoId, Store.getIosVisitorData())
                 ?.playerRequestPoToken
-            val response = YouTubeRequestThrottler.run {
+            val response = YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Player) {
                 Innertube.player(videoId = videoId, poToken = poToken)
             }?.getOrThrow() ?: throw IllegalStateException("Null player response")
             val jsonString = Gson().toJson(response)
@@ -516,177 +541,286 @@ suspend fun getIosFormatUrl(
     return getFormatUrl( videoId, cpn, response, audioQualityFormat, connectionMetered, ytClient = YouTubeClient.IOS )
 }
 
-@UnstableApi
-suspend fun getInnertubePlayerFormatUrl(
-    videoId: String,
-    audioQualityFormat: AudioQualityFormat,
-    connectionMetered: Boolean
-): Uri {
-    applyPlaybackSessionForResolver()
-
-    val locale = YouTubeLocale(
-        gl = java.util.Locale.getDefault().country.takeIf { it.isNotEmpty() } ?: "US",
-        hl = java.util.Locale.getDefault().language.takeIf { it.isNotEmpty() } ?: "en"
-    )
-    var visitorData = Store.getIosVisitorData().ifBlank { Innertube.visitorData.ifBlank { Innertube.DEFAULT_VISITOR_DATA } }
-    var isLoggedIn = !Innertube.cookie.isNullOrBlank() && Innertube.cookie?.contains("SAPISID") == true
-    val prefs = appContext().preferences
-    val rememberedClientKey = if (isLoggedIn) LAST_SUCCESSFUL_YT_CLIENT_AUTH_KEY else LAST_SUCCESSFUL_YT_CLIENT_NOAUTH_KEY
-    val rememberedClientName = prefs.getString(rememberedClientKey, null)
-    val clientsToTry = rememberedClientName
-        ?.let { clientName ->
-            FALLBACK_CLIENTS.firstOrNull { it.clientName == clientName }
-                ?.takeUnless { it.useWebPoTokens }
-                ?.let { rememberedClient ->
-                    Timber.d(
-                        "Prioritizing remembered Innertube client: %s (%s)",
-                        rememberedClient.clientName,
-                        if (isLoggedIn) "auth" else "noauth"
-                    )
-                    listOf(rememberedClient) + FALLBACK_CLIENTS.filterNot { it.clientName == clientName }
-                }
-        }
-        ?: FALLBACK_CLIENTS
+/**
+ * Shared state of a single [getInnertubePlayerFormatUrl] call.
+ *
+ * Multiple clients are tried concurrently, so lazily computed
+ * values (signature timestamp, PoToken) and session downgrade
+ * must be safe to access from all of them.
+ */
+private class InnertubeResolveSession(
+    val videoId: String,
+    visitorData: String,
+    isLoggedIn: Boolean
+) {
+    @Volatile
+    var visitorData: String = visitorData
+        private set
+    @Volatile
+    var isLoggedIn: Boolean = isLoggedIn
+        private set
+
+    private val signatureTimestampMutex = Mutex()
+    private var signatureTimestamp: Int? = null
+    private var signatureTimestampAttempted = false
+
+    private val poTokenMutex = Mutex()
+    private var poToken: app.cubic.android.core.utils.potoken.PoTokenResult? = null
+    private var poTokenAttempted = false
+
+    private var firstError: Throwable? = null
+    var lastFailureReason: String? = null
+        private set
 
-    var signatureTimestamp: Int? = null
-    var signatureTimestampAttempted = false
     suspend fun signatureTimestampFor(client: YouTubeClient): Int? {
         if (!client.useSignatureTimestamp) return null
-        if (!signatureTimestampAttempted) {
-            signatureTimestampAttempted = true
-            signatureTimestamp = NewPipeUtils.getSignatureTimestamp(videoId)
-                .onFailure { Timber.w(it, "Could not get signature timestamp for %s; using default", videoId) }
-                .getOrNull()
+        return signatureTimestampMutex.withLock {
+            if (!signatureTimestampAttempted) {
+                signatureTimestampAttempted = true
+                signatureTimestamp = NewPipeUtils.getSignatureTimestamp(videoId)
+                    .onFailure { Timber.w(it, "Could not get signature timestamp for %s; using default", videoId) }
+                    .getOrNull()
+            }
+            signatureTimestamp
         }
-        return signatureTimestamp
     }
 
-    var poToken: app.cubic.android.core.utils.potoken.PoTokenResult? = null
-    var poTokenAttempted = false
-    fun poTokenFor(client: YouTubeClient): app.cubic.android.core.utils.potoken.PoTokenResult? {
+    suspend fun poTokenFor(client: YouTubeClient): app.cubic.android.core.utils.potoken.PoTokenResult? {
         if (!client.useWebPoTokens) return null
-        if (!poTokenAttempted) {
-            poTokenAttempted = true
-            poToken = runCatching {
-                PoTokenGenerator.shared.getWebClientPoToken(videoId, visitorData)
-            }.onFailure {
-                Timber.w(it, "Innertube PoToken generation failed for %s; continuing with fallback clients", videoId)
-            }.getOrNull()
+        return poTokenMutex.withLock {
+            if (!poTokenAttempted) {
+                poTokenAttempted = true
+                poToken = runCatching {
+                    PoTokenGenerator.shared.getWebClientPoToken(videoId, visitorData)
+                }.onFailure {
+                    Timber.w(it, "Innertube PoToken generation failed for %s; continuing with fallback clients", videoId)
+                }.getOrNull()
+            }
+            poToken
         }
-        return poToken
     }
 
-    var firstError: Throwable? = null
-    var lastFailureReason: String? = null
+    @Synchronized
+    fun recordFailure(reason: String, error: Throwable? = null) {
+        if (firstError == null && error != null) firstError = error
+        lastFailureReason = reason
+    }
 
-    clientsToTry.forEachIndexed { index, ytClient ->
-        if (ytClient.loginRequired && !isLoggedIn) {
-            Timber.d("Skipping Innertube client %s for %s because login is required", ytClient.clientName, videoId)
-            return@forEachIndexed
+    @Synchronized
+    fun failure(): Exception = firstError as? Exception ?: UnplayableException()
+
+    /**
+     * Continue with no-auth session after logged-in session broke.
+     * Only first caller does the work, other racing clients see [isLoggedIn] `false`.
+     */
+    suspend fun downgradeToNoAuth(clientName: String, error: Throwable) {
+        synchronized(this) {
+            if (!isLoggedIn) return
+            isLoggedIn = false
+            visitorData = Store.getIosVisitorData().ifBlank { Innertube.DEFAULT_VISITOR_DATA }
         }
+        invalidateYouTubePlaybackSession(videoId, clientName, error)
+        poTokenMutex.withLock {
+            poToken = null
+            poTokenAttempted = false
+        }
+    }
+}
 
-        val context = ytClient.toContext(
-            locale = locale,
-            visitorData = visitorData,
-            dataSyncId = if (isLoggedIn) Innertube.dataSyncId else null
-        )
-        val clientPoToken = poTokenFor(ytClient)
-        val clientSignatureTimestamp = signatureTimestampFor(ytClient)
-
-        val playerResponse = runCatching {
-            Timber.d("Trying Innertube client (%d/%d): %s for %s", index + 1, clientsToTry.size, ytClient.clientName, videoId)
-            withTimeout(INNERTUBE_CLIENT_TIMEOUT_MS) {
-                YouTubeRequestThrottler.run {
-                    Innertube.player(
-                        videoId = videoId,
-                        poToken = clientPoToken?.playerRequestPoToken,
-                        context = context,
-                        signatureTimestamp = clientSignatureTimestamp
-                    )
-                }?.getOrThrow() ?: throw IllegalStateException("Null Innertube player response")
-            }
-        }.onFailure { error ->
-            if (firstError == null) firstError = error
-            lastFailureReason = "${ytClient.clientName}: ${error::class.simpleName}: ${error.message}"
-            Timber.w(error, "Innertube client %s failed for %s", ytClient.clientName, videoId)
-            if (isLoggedIn && error.looksLikeBrokenYouTubeSession()) {
-                invalidateYouTubePlaybackSession(videoId, ytClient.clientName, error)
-                isLoggedIn = false
-                visitorData = Store.getIosVisitorData().ifBlank { Innertube.DEFAULT_VISITOR_DATA }
-                poToken = null
-                poTokenAttempted = false
-            }
-        }.getOrNull() ?: return@forEachIndexed
+/**
+ * Resolve and validate playable audio URL with [ytClient].
+ *
+ * @return validated [Uri], or `null` if this client couldn't provide one,
+ * reason of failure is recorded to [session]
+ */
+@UnstableApi
+private suspend fun attemptInnertubeClient(
+    session: InnertubeResolveSession,
+    ytClient: YouTubeClient,
+    locale: YouTubeLocale,
+    audioQualityFormat: AudioQualityFormat,
+    connectionMetered: Boolean
+): Uri? {
+    val videoId = session.videoId
+    val isLoggedIn = session.isLoggedIn
+    if (ytClient.loginRequired && !isLoggedIn) {
+        Timber.d("Skipping Innertube client %s for %s because login is required", ytClient.clientName, videoId)
+        return null
+    }
 
-        Timber.d(
-            "Innertube client %s for %s returned status=%s audioFormats=%d",
-            ytClient.clientName,
-            videoId,
-            playerResponse.playabilityStatus?.status,
-            playerResponse.streamingData?.adaptiveFormats?.count { it.isAudio } ?: 0
-        )
+    val context = ytClient.toContext(
+        locale = locale,
+        visitorData = session.visitorData,
+        dataSyncId = if (isLoggedIn) Innertube.dataSyncId else null
+    )
+    val clientPoToken = session.poTokenFor(ytClient)
+    val clientSignatureTimestamp = session.signatureTimestampFor(ytClient)
 
-        if (playerResponse.playabilityStatus?.status != "OK") {
-            lastFailureReason = "${ytClient.clientName}: status=${playerResponse.playabilityStatus?.status} reason=${playerResponse.playabilityStatus?.reason}"
-            return@forEachIndexed
+    val playerResponse = try {
+        withTimeout(INNERTUBE_CLIENT_TIMEOUT_MS) {
+            YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Player) {
+                Innertube.player(
+                    videoId = videoId,
+                    poToken = clientPoToken?.playerRequestPoToken,
+                    context = context,
+                    signatureTimestamp = clientSignatureTimestamp
+                )
+            }?.getOrThrow() ?: throw IllegalStateException("Null Innertube player response")
         }
+    } catch (e: Exception) {
+        // Timeout is reported as failure, cancellation by a winning client is not
+        if (e is CancellationException && e !is TimeoutCancellationException) throw e
+
+        session.recordFailure("${ytClient.clientName}: ${e::class.simpleName}: ${e.message}", e)
+        Timber.w(e, "Innertube client %s failed for %s", ytClient.clientName, videoId)
+        if (isLoggedIn && e.looksLikeBrokenYouTubeSession())
+            session.downgradeToNoAuth(ytClient.clientName, e)
+        return null
+    }
 
-        if (!playerResponse.hasPlayableAudioFormats()) {
-            lastFailureReason = "${ytClient.clientName}: no playable audio formats"
-            return@forEachIndexed
+    Timber.d(
+        "Innertube client %s for %s returned status=%s audioFormats=%d",
+        ytClient.clientName,
+        videoId,
+        playerResponse.playabilityStatus?.status,
+        playerResponse.streamingData?.adaptiveFormats?.count { it.isAudio } ?: 0
+    )
+
+    if (playerResponse.playabilityStatus?.status != "OK") {
+        session.recordFailure("${ytClient.clientName}: status=${playerResponse.playabilityStatus?.status} reason=${playerResponse.playabilityStatus?.reason}")
+        return null
+    }
+
+    if (!playerResponse.hasPlayableAudioFormats()) {
+        session.recordFailure("${ytClient.clientName}: no playable audio formats")
+        return null
+    }
+
+    val cpn = CharUtils.randomString(16)
+    val uri = try {
+        withTimeout(INNERTUBE_CLIENT_TIMEOUT_MS) {
+            val jsonString = Gson().toJson(playerResponse)
+            getFormatUrl(
+                videoId = videoId,
+                cpn = cpn,
+                responseJson = Gson().fromJson(jsonString, JsonObject::class.java),
+                audioQualityFormat = audioQualityFormat,
+                connectionMetered = connectionMetered,
+                streamingDataPoToken = clientPoToken?.streamingDataPoToken,
+                appendPlaybackParameters = false,
+                ytClient = ytClient
+            )
         }
+    } catch (e: Exception) {
+        if (e is CancellationException && e !is TimeoutCancellationException) throw e
 
-        val cpn = CharUtils.randomString(16)
-        val uri = runCatching {
-            withTimeout(INNERTUBE_CLIENT_TIMEOUT_MS) {
-                val jsonString = Gson().toJson(playerResponse)
-                getFormatUrl(
-                    videoId = videoId,
-                    cpn = cpn,
-                    responseJson = Gson().fromJson(jsonString, JsonObject::class.java),
-                    audioQualityFormat = audioQualityFormat,
-                    connectionMetered = connectionMetered,
-                    streamingDataPoToken = clientPoToken?.streamingDataPoToken,
-                    appendPlaybackParameters = false,
-                    ytClient = ytClient
-                )
-            }
-        }.onFailure { error ->
-            if (firstError == null) firstError = error
-            lastFailureReason = "${ytClient.clientName}: URL resolution failed: ${error.message}"
-            Timber.w(error, "Innertube client %s URL resolution failed for %s", ytClient.clientName, videoId)
-        }.getOrNull() ?: return@forEachIndexed
+        session.recordFailure("${ytClient.clientName}: URL resolution failed: ${e.message}", e)
+        Timber.w(e, "Innertube client %s URL resolution failed for %s", ytClient.clientName, videoId)
+        return null
+    }
 
-        val playableUri = uri.buildUpon()
-            .appendQueryParameter("cpn", cpn)
-            .apply {
-                if (ytClient.useWebPoTokens) {
-                    clientPoToken?.streamingDataPoToken
-                        ?.takeIf { it.isNotBlank() }
-                        ?.let { appendQueryParameter("pot", it) }
-                }
+    val playableUri = uri.buildUpon()
+        .appendQueryParameter("cpn", cpn)
+        .apply {
+            if (ytClient.useWebPoTokens) {
+                clientPoToken?.streamingDataPoToken
+                    ?.takeIf { it.isNotBlank() }
+                    ?.let { appendQueryParameter("pot", it) }
             }
-            .build()
-        val isValid = NetworkClientFactory.validateStreamUrl(
+        }
+        .build()
+    // Interruptible, so a losing client doesn't keep probing after the race is over
+    val isValid = runInterruptible(Dispatchers.IO) {
+        NetworkClientFactory.validateStreamUrl(
             streamUrl = playableUri.toString(),
             expectedContentTypePrefix = "audio/",
             userAgent = ytClient.userAgent,
             origin = ytClient.playbackOrigin(),
             referer = ytClient.playbackReferer()
         )
-        if (!isValid) {
-            lastFailureReason = "${ytClient.clientName}: stream URL validation failed"
-            Timber.w("Innertube client %s stream URL validation failed for %s", ytClient.clientName, videoId)
-            return@forEachIndexed
-        }
+    }
+    if (!isValid) {
+        session.recordFailure("${ytClient.clientName}: stream URL validation failed")
+        Timber.w("Innertube client %s stream URL validation failed for %s", ytClient.clientName, videoId)
+        return null
+    }
 
-        Timber.d("Innertube client %s stream resolved successfully for %s", ytClient.clientName, videoId)
-        prefs.edit().putString(rememberedClientKey, ytClient.clientName).apply()
-        return playableUri
+    return playableUri
+}
+
+/**
+ * Resolve audio stream using Innertube `player` endpoint.
+ *
+ * Instead of walking [FALLBACK_CLIENTS] one by one, clients are
+ * ranked by [InnertubeClientStats] and raced with [hedgedFirstOrNull]:
+ * up to [HEDGED_RESOLVE_PARALLELISM] clients run at the same time,
+ * each one started [INNERTUBE_HEDGE_DELAY_MS] after the previous
+ * one (or immediately when previous one fails).
+ * First validated URL wins, the rest are cancelled.
+ */
+@UnstableApi
+suspend fun getInnertubePlayerFormatUrl(
+    videoId: String,
+    audioQualityFormat: AudioQualityFormat,
+    connectionMetered: Boolean
+): Uri {
+    applyPlaybackSessionForResolver()
+
+    val locale = YouTubeLocale(
+        gl = java.util.Locale.getDefault().country.takeIf { it.isNotEmpty() } ?: "US",
+        hl = java.util.Locale.getDefault().language.takeIf { it.isNotEmpty() } ?: "en"
+    )
+    val visitorData = Store.getIosVisitorData().ifBlank { Innertube.visitorData.ifBlank { Innertube.DEFAULT_VISITOR_DATA } }
+    val isLoggedIn = !Innertube.cookie.isNullOrBlank() && Innertube.cookie?.contains("SAPISID") == true
+    val session = InnertubeResolveSession(videoId, visitorData, isLoggedIn)
+
+    val prefs = appContext().preferences
+    val clientsToTry = InnertubeClientStats.rank(prefs, isLoggedIn, FALLBACK_CLIENTS)
+    Timber.d(
+        "Racing Innertube clients for %s (%s, hedge=%dms): %s",
+        videoId,
+        if (isLoggedIn) "auth" else "noauth",
+        INNERTUBE_HEDGE_DELAY_MS,
+        clientsToTry.joinToString { it.clientName }
+    )
+
+    val startedAt = System.currentTimeMillis()
+    val winner = hedgedFirstOrNull(clientsToTry, HEDGED_RESOLVE_PARALLELISM, INNERTUBE_HEDGE_DELAY_MS) { index, ytClient ->
+        Timber.d("Trying Innertube client (%d/%d): %s for %s", index + 1, clientsToTry.size, ytClient.clientName, videoId)
+        // Skipped clients don't count as attempt
+        if (ytClient.loginRequired && !session.isLoggedIn) return@hedgedFirstOrNull null
+
+        // Stats are recorded to the mode this attempt started with,
+        // session may be downgraded midway
+        val attemptLoggedIn = session.isLoggedIn
+        val attemptStartedAt = System.currentTimeMillis()
+        val uri = attemptInnertubeClient(session, ytClient, locale, audioQualityFormat, connectionMetered)
+        if (uri == null)
+            InnertubeClientStats.recordFailure(prefs, attemptLoggedIn, ytClient)
+        else
+            InnertubeClientStats.recordWin(prefs, attemptLoggedIn, ytClient, System.currentTimeMillis() - attemptStartedAt)
+
+        uri?.let { ytClient to it }
+    }
+
+    if (winner == null) {
+        Timber.e("Innertube playback failed for %s: %s", videoId, session.lastFailureReason)
+        throw session.failure()
     }
 
-    Timber.e("Innertube playback failed for %s: %s", videoId, lastFailureReason)
-    throw (firstError as? Exception ?: UnplayableException())
+    val (ytClient, playableUri) = winner
+    Timber.d(
+        "Innertube client %s stream resolved successfully for %s in %dms, stats: %s",
+        ytClient.clientName,
+        videoId,
+        System.currentTimeMillis() - startedAt,
+        InnertubeClientStats.snapshot(prefs, session.isLoggedIn)
+    )
+    // Video resolver still relies on last successful client
+    prefs.edit()
+        .putString(if (session.isLoggedIn) LAST_SUCCESSFUL_YT_CLIENT_AUTH_KEY else LAST_SUCCESSFUL_YT_CLIENT_NOAUTH_KEY, ytClient.clientName)
+        .apply()
+    return playableUri
 }
 
 @UnstableApi
@@ -758,7 +892,7 @@ suspend fun getInnertubeVideoStream(videoId: String): ResolvedVideoStream {
                 videoId
             )
             withTimeout(INNERTUBE_CLIENT_TIMEOUT_MS) {
-                YouTubeRequestThrottler.run {
+                YouTubeRequestThrottler.run(YouTubeRequestThrottler.Endpoint.Player) {
                     Innertube.player(
                         videoId = videoId,
                         poToken = clientPoToken?.playerRequestPoToken,
@@ -846,10 +980,14 @@ private suspend fun resolvePrimaryFormatUrl(
     videoId: String,
     audioQualityFormat: AudioQualityFormat,
     connectionMetered: Boolean,
-    isFallback: Boolean = false
+    isFallback: Boolean = false,
+    reportSource: Boolean = true
 ): Uri =
     getInnertubePlayerFormatUrl(videoId, audioQualityFormat, connectionMetered)
-        .also { PlaybackSourceMonitor.report(PlaybackSourceKind.YouTubeInnertube, videoId, isFallback) }
+        .also {
+            if (reportSource)
+                PlaybackSourceMonitor.report(PlaybackSourceKind.YouTubeInnertube, videoId, isFallback)
+        }
 
 private fun <T> pickPreferredFormat(
     high: T?,
@@ -1083,34 +1221,28 @@ private fun formatCacheKey(
 ): String = "$videoId:${audioQualityFormat.name}:$connectionMetered"
 
 fun invalidateFormatCache(videoId: String? = null) {
-    synchronized(formatCacheLock) {
-        if (videoId.isNullOrBlank()) {
-            val count = formatCache.size
-            formatCache.clear()
-            forceFormatResolveIds.clear()
-            Timber.w("Cleared all cached stream URLs (%d entries)", count)
-        } else {
-            val prefix = "$videoId:"
-            val removed = formatCache.keys
-                .filter { it.startsWith(prefix) }
-                .onEach { formatCache.remove(it) }
-                .size
-            forceFormatResolveIds.add(videoId)
-            if (removed > 0) {
-                Timber.w("Cleared %d cached stream URL(s) for %s", removed, videoId)
-            }
-            appContext().preferences.edit()
-                .remove(LAST_SUCCESSFUL_YT_CLIENT_AUTH_KEY)
-                .remove(LAST_SUCCESSFUL_YT_CLIENT_NOAUTH_KEY)
-                .apply()
+    if (videoId.isNullOrBlank()) {
+        val count = formatCache.size
+        formatCache.clear()
+        forceFormatResolveIds.clear()
+        InnertubeClientStats.reset(appContext().preferences)
+        Timber.w("Cleared all cached stream URLs (%d entries)", count)
+    } else {
+        val prefix = "$videoId:"
+        val removed = formatCache.removeIf { it.startsWith(prefix) }
+        forceFormatResolveIds.add(videoId)
+        if (removed > 0) {
+            Timber.w("Cleared %d cached stream URL(s) for %s", removed, videoId)
         }
+        appContext().preferences.edit()
+            .remove(LAST_SUCCESSFUL_YT_CLIENT_AUTH_KEY)
+            .remove(LAST_SUCCESSFUL_YT_CLIENT_NOAUTH_KEY)
+            .apply()
     }
 }
 
 private fun consumeForceFormatResolve(videoId: String): Boolean =
-    synchronized(formatCacheLock) {
-        forceFormatResolveIds.remove(videoId)
-    }
+    forceFormatResolveIds.remove(videoId)
 
 private fun Throwable.httpStatusCode(): Int? = when (this) {
     is ClientRequestException -> response.status.value
@@ -1166,18 +1298,18 @@ private fun invalidateYouTubePlaybackSession(videoId: String, clientName: String
         .apply()
 }
 
-private fun Uri.isExpiredSoon(): Boolean {
-    val expiresAt = getQueryParameter("expire")?.toLongOrNull()?.times(1000) ?: return false
-    return System.currentTimeMillis() >= expiresAt - FORMAT_CACHE_EXPIRY_SAFETY_MS
-}
-
+/**
+ * @param reportSource whether resolved source is reported to [PlaybackSourceMonitor],
+ * must be `false` when [videoId] isn't the song being played
+ */
 @UnstableApi
 fun DataSpec.process(
     videoId: String,
     audioQualityFormat: AudioQualityFormat,
     connectionMetered: Boolean,
     chunkedPlayback: Boolean = true,
-    useCachedFormatUrl: Boolean = true
+    useCachedFormatUrl: Boolean = true,
+    reportSource: Boolean = true
 ): DataSpec = runBlocking( Dispatchers.IO ) {
     if (!isNetworkConnected(appContext())) {
         throw NoInternetException()
@@ -1185,25 +1317,20 @@ fun DataSpec.process(
 
     val cacheKey = formatCacheKey(videoId, audioQualityFormat, connectionMetered)
     val forceNetwork = consumeForceFormatResolve(videoId)
-    var formatUri = synchronized(formatCacheLock) {
-        if (forceNetwork || !useCachedFormatUrl) {
-            formatCache.remove(cacheKey)
-            if (forceNetwork) {
-                Timber.w("Forcing fresh stream URL resolution for %s", videoId)
-            } else {
-                Timber.d("Bypassing cached stream URL for %s", videoId)
-            }
+    var formatUri = if (forceNetwork || !useCachedFormatUrl) {
+        formatCache.remove(cacheKey)
+        if (forceNetwork) {
+            downloadFormatCache.remove(cacheKey)
+            Timber.w("Forcing fresh stream URL resolution for %s", videoId)
             null
         } else {
-            formatCache[cacheKey]?.takeUnless { cachedUri ->
-            cachedUri.isExpiredSoon().also { expired ->
-                if (expired) {
-                    Timber.d("Cached stream URL expired/near-expired for %s; resolving again", videoId)
-                    formatCache.remove(cacheKey)
-                }
-            }
+            Timber.d("Bypassing cached stream URL for %s", videoId)
+            downloadFormatCache.take(cacheKey)?.also {
+                Timber.d("Using pre-resolved download stream URL for %s", videoId)
             }
         }
+    } else {
+        formatCache.get(cacheKey)
     }
 
     if (formatUri == null) {
@@ -1213,7 +1340,7 @@ fun DataSpec.process(
         while (attempt < STREAM_RESOLVE_RETRIES && formatUri == null) {
             attempt++
             try {
-                formatUri = resolvePrimaryFormatUrl(videoId, audioQualityFormat, connectionMetered, isFallback = false)
+                formatUri = resolvePrimaryFormatUrl(videoId, audioQualityFormat, connectionMetered, isFallback = false, reportSource = reportSource)
             } catch (e: Exception) {
                 lastException = e
                 Timber.w(e, "Stream extraction failed on attempt %d/%d for %s", attempt, STREAM_RESOLVE_RETRIES, videoId)
@@ -1224,9 +1351,7 @@ fun DataSpec.process(
         }
 
         val newlyResolvedUri = formatUri ?: throw (lastException ?: UnplayableException())
-        synchronized(formatCacheLock) {
-            formatCache[cacheKey] = newlyResolvedUri
-        }
+        formatCache.put(cacheKey, newlyResolvedUri)
         formatUri = newlyResolvedUri
     } else {
         Timber.d("Using cached stream URL for %s", videoId)
@@ -1242,14 +1367,48 @@ fun DataSpec.process(
         }
     }
 
-    val resolvedLength = if (length >= 0) minOf(length, CHUNK_LENGTH) else CHUNK_LENGTH
+    val resolvedLength = PlaybackChunks.nextLength(
+        videoId,
+        position,
+        length,
+        StreamUrlCache.expirationOf(resolvedFormatUri)
+    )
     resolvedSpec.subrange(uriPositionOffset, resolvedLength)
 }
 
+/**
+ * Resolve stream URL of [videoId] ahead of its download,
+ * so [DataSpec.process] with `useCachedFormatUrl = false`
+ * can start transferring right away.
+ *
+ * @return `true` if a URL is ready for the download
+ */
+@UnstableApi
+suspend fun preResolveDownloadFormatUrl(
+    videoId: String,
+    audioQualityFormat: AudioQualityFormat,
+    connectionMetered: Boolean
+): Boolean {
+    val cacheKey = formatCacheKey(videoId, audioQualityFormat, connectionMetered)
+    if (downloadFormatCache.get(cacheKey) != null) return true
+
+    return runCatching {
+        // Not reported to PlaybackSourceMonitor, nothing is playing it yet
+        getInnertubePlayerFormatUrl(videoId, audioQualityFormat, connectionMetered)
+    }.onFailure {
+        Timber.w(it, "Failed to pre-resolve download stream URL for %s", videoId)
+    }.getOrNull()
+     ?.also { downloadFormatCache.put(cacheKey, it) } != null
+}
+
 //<editor-fold defaultstate="collapsed" desc="Data source factories">
 @UnstableApi
 fun PlayerServiceModern.createDataSourceFactory(): DataSource.Factory {
-    val upstreamFactory = appContext().okHttpDataSourceFactory
+    // Shared factory stays untouched, only playback's transfers are measured
+    val networkFactory = appContext().okHttpDataSourceFactory
+    val upstreamFactory = DataSource.Factory {
+        networkFactory.createDataSource().apply { addTransferListener(PlaybackChunks.transferListener) }
+    }
 
     val lruCacheFactory = CacheDataSource.Factory()
         .setCache(cache)
@@ -1264,58 +1423,96 @@ fun PlayerServiceModern.createDataSourceFactory(): DataSource.Factory {
 
     // Resolve before the cache layer, like OpenTune. This prevents a partial cached span
     // from being treated as the whole stream and surfacing as mid-song EOF.
-    return ResolvingDataSource.Factory(cacheDataSourceFactory) { dataSpec ->
-        val videoId = dataSpec.key
-            ?: dataSpec.uri.toString().substringAfter("watch?v=")
-        val isLocal = dataSpec.uri.scheme == ContentResolver.SCHEME_CONTENT || dataSpec.uri.scheme == ContentResolver.SCHEME_FILE
-
-        if (isLocal) {
-            PlaybackSourceMonitor.report(PlaybackSourceKind.Local, videoId)
-            return@Factory dataSpec
-        }
+    return ResolvingDataSource.Factory(cacheDataSourceFactory) { resolvePlaybackDataSpec(it) }
+}
 
-        val requiredCachedLength =
-            if (dataSpec.length >= 0L) {
-                dataSpec.length
-            } else {
-                val contentLength =
-                    runBlocking(Dispatchers.IO) {
-                        Database.formatTable.findContentLengthOf(videoId).first()
-                    } ?: runCatching {
-                        downloadCache.getContentMetadata(videoId)
-                            .get(ContentMetadata.KEY_CONTENT_LENGTH, -1L)
-                    }.getOrNull()?.takeIf { it > 0L } ?: runCatching {
-                        cache.getContentMetadata(videoId)
-                            .get(ContentMetadata.KEY_CONTENT_LENGTH, -1L)
-                    }.getOrNull()?.takeIf { it > 0L }
-
-                contentLength?.let { (it - dataSpec.position).takeIf { remaining -> remaining > 0L } }
+/**
+ * Data source that writes into [PlayerServiceModern.cache], used
+ * by [androidx.media3.datasource.cache.CacheWriter] to pre-fetch
+ * beginning of upcoming songs.
+ *
+ * Unlike [createDataSourceFactory], the cache layer must be
+ * on top so [androidx.media3.datasource.cache.CacheWriter] can use it,
+ * URL is resolved right before reaching the network.
+ */
+@UnstableApi
+fun PlayerServiceModern.createPrefetchDataSourceFactory(): CacheDataSource.Factory =
+    CacheDataSource.Factory()
+        .setCache(cache)
+        .setUpstreamDataSourceFactory(
+            ResolvingDataSource.Factory(appContext().okHttpDataSourceFactory) {
+                // Upcoming song, current one's source must stay on display
+                resolvePlaybackDataSpec(it, skipWhenCached = false, reportSource = false)
             }
+        )
+        .setFlags(FLAG_IGNORE_CACHE_ON_ERROR)
 
-        if (requiredCachedLength != null) {
-            val isFullyCached =
-                downloadCache.isCached(videoId, dataSpec.position, requiredCachedLength) ||
-                    cache.isCached(videoId, dataSpec.position, requiredCachedLength)
-            if (isFullyCached) {
-                PlaybackSourceMonitor.report(PlaybackSourceKind.Local, videoId)
-                return@Factory dataSpec
+/**
+ * @param skipWhenCached return [dataSpec] untouched when requested range
+ * is already in one of the caches. Must be `false` when the resolved spec
+ * goes straight to the network.
+ * @param reportSource whether source is reported to [PlaybackSourceMonitor]
+ */
+@UnstableApi
+private fun PlayerServiceModern.resolvePlaybackDataSpec(
+    dataSpec: DataSpec,
+    skipWhenCached: Boolean = true,
+    reportSource: Boolean = true
+): DataSpec {
+    val videoId = dataSpec.key
+        ?: dataSpec.uri.toString().substringAfter("watch?v=")
+    val isLocal = dataSpec.uri.scheme == ContentResolver.SCHEME_CONTENT || dataSpec.uri.scheme == ContentResolver.SCHEME_FILE
+
+    if (isLocal) {
+        if (reportSource) PlaybackSourceMonitor.report(PlaybackSourceKind.Local, videoId)
+        return dataSpec
+    }
+
+    val requiredCachedLength =
+        if (!skipWhenCached) {
+            null
+        } else if (dataSpec.length >= 0L) {
+            dataSpec.length
+        } else {
+            // Looked up once per song, not once per chunk
+            val contentLength = PlaybackChunks.contentLengthOf(videoId) {
+                runBlocking(Dispatchers.IO) {
+                    Database.formatTable.findContentLengthOf(videoId).first()
+                } ?: runCatching {
+                    downloadCache.getContentMetadata(videoId)
+                        .get(ContentMetadata.KEY_CONTENT_LENGTH, -1L)
+                }.getOrNull()?.takeIf { it > 0L } ?: runCatching {
+                    cache.getContentMetadata(videoId)
+                        .get(ContentMetadata.KEY_CONTENT_LENGTH, -1L)
+                }.getOrNull()?.takeIf { it > 0L }
             }
-        }
 
-        // Only upsert info if we are actually resolving (cache miss)
-        CoroutineScope(Threads.DATASPEC_DISPATCHER).launch { upsertSongInfo(videoId) }
+            contentLength?.let { (it - dataSpec.position).takeIf { remaining -> remaining > 0L } }
+        }
 
-        // Always resolve URL for non-local files and ensure key is set to videoId
-        // This ensures CacheDataSource uses the correct key even if URI changes
-        runCatching {
-            dataSpec.process(videoId, audioQualityFormat, applicationContext.isConnectionMetered())
-                .buildUpon()
-                .setKey(videoId)
-                .build()
-        }.onFailure {
-            Timber.e(it, "Failed to resolve playback DataSpec for %s.", videoId)
-        }.getOrThrow()
+    if (requiredCachedLength != null) {
+        val isFullyCached =
+            downloadCache.isCached(videoId, dataSpec.position, requiredCachedLength) ||
+                cache.isCached(videoId, dataSpec.position, requiredCachedLength)
+        if (isFullyCached) {
+            if (reportSource) PlaybackSourceMonitor.report(PlaybackSourceKind.Local, videoId)
+            return dataSpec
+        }
     }
+
+    // Only upsert info if we are actually resolving (cache miss)
+    CoroutineScope(Threads.DATASPEC_DISPATCHER).launch { upsertSongInfo(videoId) }
+
+    // Always resolve URL for non-local files and ensure key is set to videoId
+    // This ensures CacheDataSource uses the correct key even if URI changes
+    return runCatching {
+        dataSpec.process(videoId, audioQualityFormat, applicationContext.isConnectionMetered(), reportSource = reportSource)
+            .buildUpon()
+            .setKey(videoId)
+            .build()
+    }.onFailure {
+        Timber.e(it, "Failed to resolve playback DataSpec for %s.", videoId)
+    }.getOrThrow()
 }
 
 @UnstableApi
@@ -1333,7 +1530,9 @@ fun MyDownloadHelper.createDataSourceFactory(): DataSource.Factory {
                 audioQualityFormat = audioQualityFormat,
                 connectionMetered = appContext().isConnectionMetered(),
                 chunkedPlayback = false,
-                useCachedFormatUrl = false
+                useCachedFormatUrl = false,
+                // Downloads aren't what's playing
+                reportSource = false
             )
                 .buildUpon()
                 .setKey(videoId)
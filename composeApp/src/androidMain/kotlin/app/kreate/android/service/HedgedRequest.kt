@@ -0,0 +1,90 @@
+package app.kreate.android.service
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.onTimeout
+import kotlinx.coroutines.selects.select
+
+/**
+ * Wrapper around result of a single attempt, required
+ * to differentiate between a failed attempt (`null` [value])
+ * and an elapsed hedge delay.
+ */
+private class HedgeOutcome<T>( val value: T? )
+
+/**
+ * Run [attempt] on [candidates] concurrently and return the first non-null result.
+ *
+ * - First candidate starts immediately
+ * - Next candidate starts when [hedgeDelayMs] passed without any result,
+ * or right away when a running attempt fails
+ * - At most [parallelism] attempts are in flight at the same time
+ * - When an attempt wins, all other attempts are cancelled
+ *
+ * [attempt] must handle its own errors and return `null` to indicate failure,
+ * any thrown exception (other than cancellation) is treated as failure too.
+ *
+ * @return first non-null result, or `null` when all candidates failed
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+suspend fun <C, T : Any> hedgedFirstOrNull(
+    candidates: List<C>,
+    parallelism: Int,
+    hedgeDelayMs: Long,
+    attempt: suspend (index: Int, candidate: C) -> T?
+): T? = coroutineScope {
+    if( candidates.isEmpty() ) return@coroutineScope null
+
+    val outcomes = Channel<HedgeOutcome<T>>( Channel.UNLIMITED )
+    val running = mutableListOf<Job>()
+    var nextIndex = 0
+    var inFlight = 0
+
+    fun launchNext() {
+        val index = nextIndex++
+        val candidate = candidates[index]
+        inFlight++
+        running += launch {
+            val result = try {
+                attempt( index, candidate )
+            } catch ( e: CancellationException ) {
+                throw e
+            } catch ( e: Exception ) {
+                null
+            }
+            outcomes.send( HedgeOutcome(result) )
+        }
+    }
+
+    var winner: T? = null
+    launchNext()
+    while( winner == null && inFlight > 0 ) {
+        val canHedge = inFlight < parallelism.coerceAtLeast( 1 ) && nextIndex < candidates.size
+        // [select] guarantees an outcome is never lost when the delay elapses
+        val outcome: HedgeOutcome<T>? = select {
+            outcomes.onReceive { it }
+            if( canHedge )
+                onTimeout( hedgeDelayMs ) { null }
+        }
+
+        if( outcome == null ) {
+            // Nobody answered in time, start another candidate alongside
+            launchNext()
+            continue
+        }
+
+        inFlight--
+        winner = outcome.value
+        if( winner == null && nextIndex < candidates.size )
+            // Failed attempt frees its slot, no need to wait for hedge delay
+            launchNext()
+    }
+
+    running.forEach { it.cancel() }
+    outcomes.close()
+    winner
+}
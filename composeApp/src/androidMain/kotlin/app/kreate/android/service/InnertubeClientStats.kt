@@ -0,0 +1,164 @@
+package app.kreate.android.service
+
+import android.content.SharedPreferences
+import androidx.core.content.edit
+import it.fast4x.innertube.clients.YouTubeClient
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps track of how well each Innertube client performs when
+ * resolving playback URLs, so that the hedged resolver can start
+ * with the clients that are most likely to win.
+ *
+ * Stats are split by authentication mode because a client that works
+ * with a logged-in session might not work without it (and vice versa).
+ *
+ * Values are persisted to [SharedPreferences] as a single compact
+ * string per mode, and are reloaded lazily on first use.
+ */
+object InnertubeClientStats {
+
+    private const val AUTH_KEY = "innertube_client_stats_auth"
+    private const val NOAUTH_KEY = "innertube_client_stats_noauth"
+
+    /**
+     * Weight given to the most recent outcome,
+     * higher value makes ranking adapt faster.
+     */
+    private const val SMOOTHING = 0.3
+
+    /**
+     * Score given to client without any recorded outcome.
+     * Slightly above 50/50 so untested clients get a chance
+     * before a client that is known to fail often.
+     */
+    private const val NEUTRAL_SCORE = 0.55
+
+    data class Entry(
+        val clientName: String,
+        val wins: Int,
+        val failures: Int,
+        val successScore: Double,
+        val avgLatencyMs: Long
+    ) {
+        override fun toString(): String =
+            "$clientName(wins=$wins, failures=$failures, score=${"%.2f".format( successScore )}, avg=${avgLatencyMs}ms)"
+    }
+
+    private val loaded = ConcurrentHashMap<Boolean, ConcurrentHashMap<String, Entry>>()
+
+    private fun keyOf( isLoggedIn: Boolean ) = if( isLoggedIn ) AUTH_KEY else NOAUTH_KEY
+
+    private fun decode( raw: String? ): ConcurrentHashMap<String, Entry> {
+        val result = ConcurrentHashMap<String, Entry>()
+        raw?.split( ';' )
+           ?.forEach { token ->
+               val parts = token.split( ':' )
+               if( parts.size != 5 ) return@forEach
+
+               val entry = runCatching {
+                   Entry(
+                       clientName = parts[0],
+                       wins = parts[1].toInt(),
+                       failures = parts[2].toInt(),
+                       successScore = parts[3].toDouble(),
+                       avgLatencyMs = parts[4].toLong()
+                   )
+               }.getOrNull() ?: return@forEach
+               result[entry.clientName] = entry
+           }
+        return result
+    }
+
+    private fun encode( entries: Collection<Entry> ): String =
+        entries.joinToString( ";" ) {
+            "${it.clientName}:${it.wins}:${it.failures}:${it.successScore}:${it.avgLatencyMs}"
+        }
+
+    private fun entriesOf( prefs: SharedPreferences, isLoggedIn: Boolean ): ConcurrentHashMap<String, Entry> =
+        loaded.getOrPut( isLoggedIn ) { decode( prefs.getString( keyOf( isLoggedIn ), null ) ) }
+
+    private fun persist( prefs: SharedPreferences, isLoggedIn: Boolean ) =
+        prefs.edit {
+            putString( keyOf( isLoggedIn ), encode( entriesOf( prefs, isLoggedIn ).values ) )
+        }
+
+    /**
+     * Sort [clients] so the ones with best recent success rate come first.
+     * Ties (including clients without any recorded outcome) are broken
+     * by lower average latency, then by their original order.
+     *
+     * Clients using web PoTokens always go last, generating a token is slow
+     * and may fail, so they mustn't take the first slot even after a win.
+     */
+    fun rank(
+        prefs: SharedPreferences,
+        isLoggedIn: Boolean,
+        clients: List<YouTubeClient>
+    ): List<YouTubeClient> {
+        val entries = entriesOf( prefs, isLoggedIn )
+        return clients.withIndex()
+                      .sortedWith(
+                          compareBy<IndexedValue<YouTubeClient>> {
+                              it.value.useWebPoTokens
+                          }.thenByDescending {
+                              entries[it.value.clientName]?.successScore ?: NEUTRAL_SCORE
+                          }.thenBy {
+                              entries[it.value.clientName]?.takeIf { e -> e.wins > 0 }?.avgLatencyMs ?: Long.MAX_VALUE
+                          }.thenBy { it.index }
+                      )
+                      .map { it.value }
+    }
+
+    fun recordWin( prefs: SharedPreferences, isLoggedIn: Boolean, client: YouTubeClient, latencyMs: Long ) {
+        entriesOf( prefs, isLoggedIn ).compute( client.clientName ) { name, old ->
+            if( old == null )
+                Entry( name, 1, 0, 1.0, latencyMs )
+            else
+                old.copy(
+                    wins = old.wins + 1,
+                    successScore = old.successScore + SMOOTHING * (1.0 - old.successScore),
+                    avgLatencyMs =
+                        if( old.wins == 0 )
+                            latencyMs
+                        else
+                            (old.avgLatencyMs + SMOOTHING * (latencyMs - old.avgLatencyMs)).toLong()
+                )
+        }
+        persist( prefs, isLoggedIn )
+    }
+
+    /**
+     * Cancelled attempts (losers of a race) must not be recorded,
+     * they didn't fail, they just weren't fast enough.
+     */
+    fun recordFailure( prefs: SharedPreferences, isLoggedIn: Boolean, client: YouTubeClient ) {
+        entriesOf( prefs, isLoggedIn ).compute( client.clientName ) { name, old ->
+            if( old == null )
+                Entry( name, 0, 1, NEUTRAL_SCORE * (1.0 - SMOOTHING), 0L )
+            else
+                old.copy(
+                    failures = old.failures + 1,
+                    successScore = old.successScore * (1.0 - SMOOTHING)
+                )
+        }
+        persist( prefs, isLoggedIn )
+    }
+
+    fun snapshot( prefs: SharedPreferences, isLoggedIn: Boolean ): List<Entry> =
+        entriesOf( prefs, isLoggedIn ).values.sortedByDescending( Entry::successScore )
+
+    /**
+     * Forget everything, used when the playback session
+     * is invalidated and previous results are no longer relevant.
+     */
+    fun reset( prefs: SharedPreferences ) {
+        loaded.clear()
+        prefs.edit {
+            remove( AUTH_KEY )
+            remove( NOAUTH_KEY )
+        }
+        Timber.d( "Innertube client stats were reset" )
+    }
+}
@@ -0,0 +1,218 @@
+package app.kreate.android.service
+
+import android.os.SystemClock
+import androidx.media3.common.C
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.datasource.DataSource
+import androidx.media3.datasource.DataSpec
+import androidx.media3.datasource.TransferListener
+import timber.log.Timber
+
+/**
+ * Decides how much of a stream each chunked playback request asks for,
+ * and remembers content length of streams so it isn't looked up per chunk.
+ *
+ * A song starts with [INITIAL_CHUNK_LENGTH] so playback begins quickly.
+ * Each time a chunk continues right where the previous one ended, and
+ * the previous one was transferred faster than [GROWTH_MIN_BYTES_PER_SECOND]
+ * (measured by [transferListener]), the next one is larger:
+ * [INITIAL_CHUNK_LENGTH], [MIDDLE_CHUNK_LENGTH], then the rest of the file up to [MAX_CHUNK_LENGTH].
+ * A seek, a slow chunk or a stream URL about to expire starts over
+ * or stops the growth, so a fresh URL can be used for the next chunk.
+ */
+object PlaybackChunks {
+
+    const val INITIAL_CHUNK_LENGTH = 512 * 1024L       // 512Kb
+    const val MIDDLE_CHUNK_LENGTH = 2 * 1024 * 1024L   // 2Mb
+    /**
+     * Larger ranges get throttled by googlevideo
+     */
+    const val MAX_CHUNK_LENGTH = 10 * 1024 * 1024L     // 10Mb
+
+    private const val GROWTH_MIN_BYTES_PER_SECOND = 256 * 1024L
+    /**
+     * Speed of a chunk is measured over its first bytes only,
+     * player stops reading once its buffer is full
+     */
+    private const val MEASURED_BYTES = 256 * 1024L
+    /**
+     * No bytes for this long means player stopped reading,
+     * far longer than a read takes at [GROWTH_MIN_BYTES_PER_SECOND]
+     */
+    private const val STALL_MS = 1_000L
+    private const val URL_EXPIRY_MARGIN_MS = 10 * 60 * 1000L
+    /**
+     * Unknown content length is looked up again after this
+     */
+    private const val UNKNOWN_LENGTH_RETRY_MS = 30_000L
+    private const val MAX_SONGS = 64
+
+    private class Song {
+        var requestCount = 0
+        var nextPosition = -1L
+        var lastLength = 0L
+        /**
+         * Speed of the last chunk transferred from network, `-1` until one is
+         */
+        var bytesPerSecond = -1L
+        /** `-1` when no transfer is being measured */
+        var transferStartedAt = -1L
+        var lastBytesAt = 0L
+        var transferredBytes = 0L
+
+        fun endMeasurement( endedAt: Long ) {
+            if( transferStartedAt < 0L ) return
+            if( transferredBytes > 0L )
+                bytesPerSecond = transferredBytes * 1000L / (endedAt - transferStartedAt).coerceAtLeast( 1L )
+            transferStartedAt = -1L
+        }
+    }
+
+    private class ContentLength( val value: Long?, val checkedAt: Long )
+
+    private val songs = object : LinkedHashMap<String, Song>( MAX_SONGS, 0.75f, true ) {
+        override fun removeEldestEntry( eldest: MutableMap.MutableEntry<String, Song> ): Boolean =
+            (size > MAX_SONGS).also {
+                if( it ) Timber.d( "PlaybackChunks %s took %d requests", eldest.key, eldest.value.requestCount )
+            }
+    }
+
+    private var currentVideoId: String? = null
+
+    private val contentLengths = object : LinkedHashMap<String, ContentLength>( MAX_SONGS, 0.75f, true ) {
+        override fun removeEldestEntry( eldest: MutableMap.MutableEntry<String, ContentLength> ): Boolean =
+            size > MAX_SONGS
+    }
+
+    /**
+     * @param load looks content length up when it isn't known yet,
+     * not called again for a while when it returns `null`
+     */
+    fun contentLengthOf( videoId: String, load: () -> Long? ): Long? {
+        val now = SystemClock.elapsedRealtime()
+        synchronized( contentLengths ) {
+            val cached = contentLengths[videoId]
+            if( cached != null && (cached.value != null || now - cached.checkedAt < UNKNOWN_LENGTH_RETRY_MS) )
+                return cached.value
+        }
+
+        val value = load()?.takeIf { it > 0L }
+        synchronized( contentLengths ) {
+            contentLengths[videoId] = ContentLength( value, now )
+        }
+        return value
+    }
+
+    fun setContentLength( videoId: String, length: Long ) {
+        if( length <= 0L ) return
+        synchronized( contentLengths ) {
+            contentLengths[videoId] = ContentLength( length, SystemClock.elapsedRealtime() )
+        }
+    }
+
+    /**
+     * @param position where the request starts in the stream
+     * @param requestedLength length asked by the player, or [C.LENGTH_UNSET]
+     * @param expiresAt when stream URL expires, in milliseconds, `null` if unknown
+     *
+     * @return length of the range to request
+     */
+    fun nextLength( videoId: String, position: Long, requestedLength: Long, expiresAt: Long? ): Long {
+        val contentLength = synchronized( contentLengths ) { contentLengths[videoId]?.value }
+
+        val length = synchronized( songs ) {
+            val song = songs.getOrPut( videoId, ::Song )
+
+            val isContinuation = position == song.nextPosition
+            val isFast = song.bytesPerSecond >= GROWTH_MIN_BYTES_PER_SECOND
+            val isExpiring = expiresAt != null && expiresAt - System.currentTimeMillis() < URL_EXPIRY_MARGIN_MS
+
+            val chunkLength = when {
+                !isContinuation                          -> INITIAL_CHUNK_LENGTH
+                !isFast                                  -> song.lastLength
+                song.lastLength < MIDDLE_CHUNK_LENGTH    -> MIDDLE_CHUNK_LENGTH
+                isExpiring                               -> MIDDLE_CHUNK_LENGTH
+                contentLength != null                    -> (contentLength - position).coerceIn( MIDDLE_CHUNK_LENGTH, MAX_CHUNK_LENGTH )
+                else                                     -> MAX_CHUNK_LENGTH
+            }.coerceAtLeast( INITIAL_CHUNK_LENGTH )
+            val length = if( requestedLength >= 0L ) minOf( requestedLength, chunkLength ) else chunkLength
+
+            song.requestCount++
+            song.nextPosition = position + length
+            song.lastLength = length
+
+            Timber.d( "PlaybackChunks %s request #%d at %d for %d bytes", videoId, song.requestCount, position, length )
+            length
+        }
+
+        return length
+    }
+
+    /**
+     * Log how many range requests the song played until now took,
+     * call when playback moves to [videoId].
+     */
+    fun onTransition( videoId: String? ) {
+        val previous = synchronized( songs ) {
+            val previousId = currentVideoId?.takeUnless { it == videoId }
+            currentVideoId = videoId
+            previousId?.let { id -> songs[id]?.let { id to it } }
+        } ?: return
+
+        Timber.d(
+            "PlaybackChunks %s took %d requests, last chunk at %d bytes/s",
+            previous.first, previous.second.requestCount, previous.second.bytesPerSecond
+        )
+    }
+
+    /**
+     * Measures how fast chunks are transferred from network,
+     * must be added to the upstream (network) data source of playback.
+     *
+     * Only active transfer is timed: from opening the range until
+     * [MEASURED_BYTES] arrived, or until the last bytes before a pause
+     * of [STALL_MS], when player's buffer got full and it stopped reading.
+     */
+    @UnstableApi
+    val transferListener: TransferListener = object : TransferListener {
+
+        private fun songOf( dataSpec: DataSpec, isNetwork: Boolean ): Song? =
+            if( isNetwork ) dataSpec.key?.let( songs::get ) else null
+
+        override fun onTransferInitializing( source: DataSource, dataSpec: DataSpec, isNetwork: Boolean ) {}
+
+        override fun onTransferStart( source: DataSource, dataSpec: DataSpec, isNetwork: Boolean ) {
+            synchronized( songs ) {
+                val song = songOf( dataSpec, isNetwork ) ?: return
+                song.transferStartedAt = SystemClock.elapsedRealtime()
+                song.lastBytesAt = song.transferStartedAt
+                song.transferredBytes = 0L
+            }
+        }
+
+        override fun onBytesTransferred( source: DataSource, dataSpec: DataSpec, isNetwork: Boolean, bytesTransferred: Int ) {
+            synchronized( songs ) {
+                val song = songOf( dataSpec, isNetwork ) ?: return
+                if( song.transferStartedAt < 0L ) return
+
+                val now = SystemClock.elapsedRealtime()
+                // Time to first byte counts, it's part of the transfer
+                if( song.transferredBytes > 0L && now - song.lastBytesAt > STALL_MS ) {
+                    song.endMeasurement( song.lastBytesAt )
+                    return
+                }
+
+                song.transferredBytes += bytesTransferred
+                song.lastBytesAt = now
+                if( song.transferredBytes >= MEASURED_BYTES ) song.endMeasurement( now )
+            }
+        }
+
+        override fun onTransferEnd( source: DataSource, dataSpec: DataSpec, isNetwork: Boolean ) {
+            synchronized( songs ) {
+                val song = songOf( dataSpec, isNetwork ) ?: return
+                song.endMeasurement( song.lastBytesAt )
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package app.kreate.android.service
+
+import android.net.Uri
+import androidx.core.net.toUri
+import app.it.fast4x.rimusic.appContext
+import timber.log.Timber
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Bounded, expiry-aware storage of resolved stream URLs.
+ *
+ * - Backed by [ConcurrentHashMap], so concurrent [get]/[put] calls
+ * from different `ResolvingDataSource`s never wait on each other
+ * - Entries are considered expired [safetyMs] before their `expire`
+ * query parameter, URLs without one live for [DEFAULT_TTL_MS]
+ * - When more than [maxEntries] are stored, entries closest to
+ * expiration are evicted first
+ * - Content is written to [FILE_NAME] (debounced) and restored on
+ * first access, so a cold start can reuse URLs that are still valid.
+ * Writes run on a thread of their own, which lives as long as the process
+ */
+class StreamUrlCache(
+    private val maxEntries: Int,
+    private val safetyMs: Long,
+    private val persistent: Boolean = true
+) {
+
+    companion object {
+        private const val FILE_NAME = "stream_url_cache"
+        private const val DEFAULT_TTL_MS = 5 * 60 * 60 * 1000L       // 5 hours
+        private const val PERSIST_DEBOUNCE_MS = 2_000L
+
+        private val persister = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread( runnable, "StreamUrlCache" ).apply { isDaemon = true }
+        }
+
+        /**
+         * @return expiration time in milliseconds, taken from `expire` query
+         * parameter (in seconds) or `null` if none present
+         */
+        fun expirationOf( uri: Uri ): Long? =
+            runCatching { uri.getQueryParameter( "expire" ) }.getOrNull()
+                                                            ?.toLongOrNull()
+                                                            ?.times( 1000 )
+    }
+
+    private data class Entry( val uri: Uri, val expiresAt: Long )
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val loadLock = Any()
+    @Volatile
+    private var loaded = !persistent
+    private val persistScheduled = AtomicBoolean( false )
+    // Bumped on every change, tells whether a write missed some
+    private val changes = AtomicInteger()
+
+    private val file: File
+        get() = File( appContext().filesDir, FILE_NAME )
+
+    val size: Int
+        get() {
+            ensureLoaded()
+            return entries.size
+        }
+
+    private fun Entry.isExpired( now: Long = System.currentTimeMillis() ): Boolean =
+        now >= expiresAt - safetyMs
+
+    private fun ensureLoaded() {
+        if( loaded ) return
+
+        synchronized( loadLock ) {
+            if( !loaded ) load()
+            loaded = true
+        }
+    }
+
+    private fun load() {
+        runCatching {
+            if( !file.exists() ) return@runCatching
+
+            val now = System.currentTimeMillis()
+            file.forEachLine { line ->
+                val parts = line.split( '\t' )
+                if( parts.size != 3 ) return@forEachLine
+
+                val expiresAt = parts[1].toLongOrNull() ?: return@forEachLine
+                val entry = Entry( parts[2].toUri(), expiresAt )
+                if( !entry.isExpired( now ) )
+                    entries.putIfAbsent( parts[0], entry )
+            }
+            Timber.d( "Restored %d stream URL(s) from disk", entries.size )
+        }.onFailure {
+            Timber.w( it, "Failed to restore stream URL cache" )
+        }
+    }
+
+    private fun schedulePersist() {
+        if( !persistent ) return
+
+        changes.incrementAndGet()
+        if( !persistScheduled.compareAndSet( false, true ) ) return
+
+        persister.schedule( Runnable( ::persist ), PERSIST_DEBOUNCE_MS, TimeUnit.MILLISECONDS )
+    }
+
+    private fun persist() {
+        val written = changes.get()
+        try {
+            val now = System.currentTimeMillis()
+            val tmp = File( file.parentFile, "$FILE_NAME.tmp" )
+            tmp.bufferedWriter().use { writer ->
+                entries.forEach { (key, entry) ->
+                    if( entry.isExpired( now ) ) return@forEach
+
+                    writer.append( key )
+                          .append( '\t' )
+                          .append( entry.expiresAt.toString() )
+                          .append( '\t' )
+                          .append( entry.uri.toString() )
+                          .append( '\n' )
+                }
+            }
+            if( !tmp.renameTo( file ) )
+                tmp.delete()
+        } catch( e: Exception ) {
+            Timber.w( e, "Failed to persist stream URL cache" )
+        } finally {
+            persistScheduled.set( false )
+            // Changes made while writing would otherwise wait for the next one
+            if( changes.get() != written )
+                schedulePersist()
+        }
+    }
+
+    /**
+     * Remove expired entries, then the ones closest to
+     * expiration until size is back under [maxEntries].
+     */
+    private fun trim() {
+        val now = System.currentTimeMillis()
+        entries.entries.removeIf { it.value.isExpired( now ) }
+
+        val overflow = entries.size - maxEntries
+        if( overflow <= 0 ) return
+
+        entries.entries
+               .sortedBy { it.value.expiresAt }
+               .take( overflow )
+               .forEach { entries.remove( it.key, it.value ) }
+    }
+
+    /**
+     * @return cached [Uri] of [key], or `null` if absent or about to expire
+     */
+    fun get( key: String ): Uri? {
+        ensureLoaded()
+
+        val entry = entries[key] ?: return null
+        if( !entry.isExpired() ) return entry.uri
+
+        entries.remove( key, entry )
+        Timber.d( "Cached stream URL expired/near-expired for %s; resolving again", key )
+        return null
+    }
+
+    /**
+     * Same as [get], but entry is removed, so [Uri] is only used once
+     */
+    fun take( key: String ): Uri? {
+        ensureLoaded()
+
+        val entry = entries.remove( key ) ?: return null
+        schedulePersist()
+        return entry.uri.takeUnless { entry.isExpired() }
+    }
+
+    fun put( key: String, uri: Uri ) {
+        ensureLoaded()
+
+        val expiresAt = expirationOf( uri ) ?: (System.currentTimeMillis() + DEFAULT_TTL_MS)
+        entries[key] = Entry( uri, expiresAt )
+        if( entries.size > maxEntries )
+            trim()
+        schedulePersist()
+    }
+
+    fun remove( key: String ) {
+        ensureLoaded()
+        if( entries.remove( key ) != null )
+            schedulePersist()
+    }
+
+    /**
+     * @return number of removed entries
+     */
+    fun removeIf( predicate: (String) -> Boolean ): Int {
+        ensureLoaded()
+
+        var removed = 0
+        entries.keys.forEach {
+            if( predicate( it ) && entries.remove( it ) != null )
+                removed++
+        }
+        if( removed > 0 )
+            schedulePersist()
+        return removed
+    }
+
+    fun clear() {
+        synchronized( loadLock ) { loaded = true }
+        entries.clear()
+        schedulePersist()
+    }
+}
@@ -1,6 +1,5 @@
 package app.kreate.android.themed.rimusic.screen.home
 
-import android.media.MediaMetadataRetriever
 import android.net.Uri
 import androidx.compose.foundation.ExperimentalFoundationApi
 import androidx.compose.foundation.background
@@ -35,7 +34,6 @@ import androidx.compose.ui.text.style.TextOverflow
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.util.fastFilter
 import androidx.compose.ui.util.fastMap
-import androidx.documentfile.provider.DocumentFile
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.exoplayer.offline.Download
 import androidx.navigation.NavController
@@ -89,6 +87,7 @@ import app.it.fast4x.rimusic.utils.semiBold
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
@@ -101,7 +100,9 @@ import app.kreate.android.me.knighthat.component.tab.ExportSongsToCSVDialog
 import app.kreate.android.me.knighthat.component.tab.HiddenSongs
 import app.kreate.android.me.knighthat.component.tab.ItemSelector
 import app.kreate.android.me.knighthat.component.tab.Search
+import app.kreate.android.me.knighthat.database.FtsQuery
 import app.kreate.android.me.knighthat.database.ext.FormatWithSong
+import app.kreate.android.me.knighthat.utils.CustomFolderIndex
 import app.kreate.android.themed.rimusic.component.AlphabetIndexBar
 import app.kreate.android.themed.rimusic.component.buildSongAlphabetIndex
 import kotlinx.coroutines.launch
@@ -183,7 +184,9 @@ fun HomeSongs(
         customFolderSongs = emptyList()
         if (customDownloadUri.isBlank()) return@LaunchedEffect
 
-        customFolderSongs = loadCustomDownloadFolderSongs(context, customDownloadUri)
+        // Indexed songs show up right away, a rescan replaces them when something changed
+        CustomFolderIndex.songsOf( context, Uri.parse(customDownloadUri) )
+                         .collect { customFolderSongs = it }
     }
 
     //<editor-fold defaultstate="collapsed" desc="Smart recommendation state">
@@ -365,6 +368,17 @@ fun HomeSongs(
     }
 
     LaunchedEffect( items, search.inputValue, isRecommendationEnabled, relatedSongsPositions ) {
+        // Songs in database are looked up in the search index,
+        // `null` means there's nothing to filter
+        val matchedIds: Set<String>? = FtsQuery.prefixMatchOf( search.inputValue )?.let { match ->
+            Database.songTable.findIdsMatching( match ).first().toSet()
+        }
+        // Recommendations and songs from custom folder may not be in database
+        val notIndexedIds: Set<String> = if( matchedIds == null )
+            emptySet()
+        else
+            (relatedSongs + customFolderSongs).mapTo( HashSet(), Song::id )
+
         val filteredItems = items
              .toMutableList()
              .apply {
@@ -379,6 +393,9 @@ fun HomeSongs(
              .distinctBy( Song::id )
              .filter { !parentalControlEnabled || !it.title.startsWith( EXPLICIT_PREFIX, true ) }
              .filter { song ->
+                 if( matchedIds == null || song.id in matchedIds ) return@filter true
+                 if( song.id !in notIndexedIds ) return@filter false
+
                  val containsTitle = song.cleanTitle().contains( search.inputValue, true )
                  val containsArtist = song.cleanArtistsText().contains( search.inputValue, true )
                  containsTitle || containsArtist
@@ -631,54 +648,6 @@ fun HomeSongs(
     }
 }
 
-private suspend fun loadCustomDownloadFolderSongs(
-    context: android.content.Context,
-    treeUriString: String,
-): List<Song> = kotlinx.coroutines.withContext(Dispatchers.IO) {
-    if (treeUriString.isBlank()) return@withContext emptyList()
-
-    val root = DocumentFile.fromTreeUri(context, Uri.parse(treeUriString)) ?: return@withContext emptyList()
-    root.walkAudioFiles().mapNotNull { file ->
-        val fileUri = file.uri
-        val fileName = file.name?.substringBeforeLast(".").orEmpty()
-        val retriever = MediaMetadataRetriever()
-        runCatching {
-            retriever.setDataSource(context, fileUri)
-            val metadataTitle = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE)
-                ?.takeIf { it.isNotBlank() }
-            val metadataArtist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST)
-                ?.takeIf { it.isNotBlank() }
-                ?.takeUnless { it.equals("unknown", ignoreCase = true) || it.equals("<unknown>", ignoreCase = true) }
-            val filenameParts = splitArtistTitle(fileName)
-            val title = metadataTitle ?: filenameParts?.second ?: fileName
-            val artist = metadataArtist ?: filenameParts?.first
-            val durationMs = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)
-                ?.toLongOrNull()
-            Song(
-                id = fileUri.toString(),
-                title = title.ifBlank { file.name ?: fileUri.lastPathSegment.orEmpty() },
-                artistsText = artist,
-                durationText = durationMs?.toDurationText(),
-                thumbnailUrl = null
-            )
-        }.getOrNull().also {
-            runCatching { retriever.release() }
-        }
-    }.distinctBy(Song::id)
-}
-
-private fun DocumentFile.walkAudioFiles(): List<DocumentFile> {
-    if (!exists()) return emptyList()
-    if (isFile) return listOfNotNull(takeIf { it.isPlayableAudioFile() })
-    return listFiles().flatMap { child ->
-        when {
-            child.isDirectory -> child.walkAudioFiles()
-            child.isPlayableAudioFile() -> listOf(child)
-            else -> emptyList()
-        }
-    }
-}
-
 private fun List<Song>.sortedForHome(sortBy: SongSortBy, sortOrder: app.it.fast4x.rimusic.enums.SortOrder): List<Song> {
     if (sortBy in setOf(SongSortBy.DateAdded, SongSortBy.DatePlayed, SongSortBy.AlbumName)) {
         return toList()
@@ -697,30 +666,3 @@ private fun List<Song>.sortedForHome(sortBy: SongSortBy, sortOrder: app.it.fast4
     }
     return sortOrder.applyTo(sorted)
 }
-
-private fun splitArtistTitle(name: String): Pair<String, String>? {
-    val parts = name.split(Regex("\\s+-\\s+"), limit = 2)
-    if (parts.size != 2) return null
-    val artist = parts[0].trim()
-    val title = parts[1].trim()
-    return if (artist.isNotBlank() && title.isNotBlank()) artist to title else null
-}
-
-private fun DocumentFile.isPlayableAudioFile(): Boolean {
-    val mime = type.orEmpty()
-    if (mime.startsWith("audio/", ignoreCase = true)) return true
-    val extension = name?.substringAfterLast('.', "").orEmpty().lowercase()
-    return extension in setOf("mp3", "m4a", "aac", "flac", "wav", "ogg", "opus", "mp4")
-}
-
-private fun Long.toDurationText(): String {
-    val totalSeconds = (this / 1000L).coerceAtLeast(0L)
-    val hours = totalSeconds / 3600L
-    val minutes = (totalSeconds % 3600L) / 60L
-    val seconds = totalSeconds % 60L
-    return if (hours > 0L) {
-        "%d:%02d:%02d".format(hours, minutes, seconds)
-    } else {
-        "%d:%02d".format(minutes, seconds)
-    }
-}
@@ -3,8 +3,6 @@ package app.kreate.android.themed.rimusic.screen.home
 import android.content.Context
 import android.content.Intent
 import android.net.Uri
-import android.os.Environment
-import android.provider.DocumentsContract
 import androidx.activity.compose.rememberLauncherForActivityResult
 import androidx.activity.result.contract.ActivityResultContracts
 import androidx.compose.animation.ExperimentalAnimationApi
@@ -63,10 +61,8 @@ import androidx.compose.ui.text.style.TextOverflow
 import androidx.compose.ui.unit.IntOffset
 import androidx.compose.ui.unit.dp
 import androidx.compose.ui.util.fastDistinctBy
-import androidx.documentfile.provider.DocumentFile
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.datasource.cache.Cache
-import androidx.media3.datasource.cache.CacheSpan
 import androidx.navigation.NavController
 import app.kreate.android.R
 import app.kreate.android.me.knighthat.component.dialog.RestartAppDialog
@@ -90,6 +86,7 @@ import app.it.fast4x.rimusic.enums.NavigationBarPosition
 import app.it.fast4x.rimusic.enums.RecommendationsNumber
 import app.it.fast4x.rimusic.enums.UiType
 import app.it.fast4x.rimusic.models.Song
+import app.it.fast4x.rimusic.service.DownloadExporter
 import app.it.fast4x.rimusic.service.MyDownloadHelper
 import app.it.fast4x.rimusic.service.modern.PlayerServiceModern
 import app.it.fast4x.rimusic.typography
@@ -125,7 +122,6 @@ import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import timber.log.Timber
-import java.io.File
 import java.io.IOException
 import kotlin.math.roundToInt
 
@@ -141,11 +137,6 @@ private data class DownloadStorageOperationState(
     val progress: Float? = null,
 )
 
-private data class ExportSummary(
-    val exportedCount: Int,
-    val skippedCount: Int,
-)
-
 @UnstableApi
 @ExperimentalMaterial3Api
 @ExperimentalAnimationApi
@@ -500,7 +491,8 @@ private fun DownloadedPlaylistFloatingTool(
 
             result.onSuccess { summary ->
                 when {
-                    summary.exportedCount > 0 -> Toaster.s(R.string.downloaded_tools_export_completed)
+                    summary.exportedCount > 0
+                            || summary.unchangedCount > 0 -> Toaster.s(R.string.downloaded_tools_export_completed)
                     summary.skippedCount > 0  -> Toaster.i(R.string.downloaded_tools_export_none_available)
                     else                      -> Toaster.i(R.string.downloaded_tools_no_songs)
                 }
@@ -525,7 +517,7 @@ private fun DownloadedPlaylistFloatingTool(
 
         pendingStorageTarget = DownloadStorageTarget(
             treeUri = uri,
-            displayPath = resolveTreeUriToFile(context, uri)?.absolutePath ?: uri.toString()
+            displayPath = DownloadExporter.resolveTreeUriToFile(context, uri)?.absolutePath ?: uri.toString()
         )
         showMoveExistingPrompt = true
     }
@@ -1040,75 +1032,20 @@ private suspend fun exportDownloadedSongsToTree(
     songs: List<Song>,
     treeUri: Uri,
     onProgress: (current: Int, total: Int, title: String) -> Unit,
-): ExportSummary = withContext(Dispatchers.IO) {
-    val root = DocumentFile.fromTreeUri(context, treeUri)
+): DownloadExporter.Summary = withContext(Dispatchers.IO) {
+    val target = DownloadExporter.open(context, treeUri)
         ?: throw IOException("Could not open the selected export folder")
     val downloadCache = binder?.downloadCache ?: MyDownloadHelper.getDownloadCache(context)
-    val distinctSongs = songs.fastDistinctBy(Song::id)
-    var exportedCount = 0
-    var skippedCount = 0
-
-    distinctSongs.forEachIndexed { index, song ->
-        onProgress(index + 1, distinctSongs.size, song.title)
-
-        val spans = downloadCache.getCachedSpans(song.id)
-            .sortedBy(CacheSpan::position)
-            .mapNotNull(CacheSpan::file)
-
-        if (spans.isEmpty()) {
-            skippedCount++
-            return@forEachIndexed
-        }
 
-        val outputName = buildDownloadedExportFileName(song)
-        root.findFile(outputName)?.delete()
-        val outputFile = root.createFile("audio/mp4", outputName)
-            ?: throw IOException("Could not create $outputName in the selected folder")
-
-        context.contentResolver.openOutputStream(outputFile.uri, "w")?.use { outputStream ->
-            spans.forEach { cacheFile ->
-                cacheFile.inputStream().use { inputStream ->
-                    inputStream.copyTo(outputStream)
-                }
-            }
-        } ?: throw IOException("Could not open $outputName for writing")
-
-        exportedCount++
-    }
-
-    ExportSummary(exportedCount = exportedCount, skippedCount = skippedCount)
-}
-
-private fun resolveTreeUriToFile(context: Context, treeUri: Uri): File? {
-    val treeDocumentId = runCatching { DocumentsContract.getTreeDocumentId(treeUri) }.getOrNull()
-        ?: return null
-    val parts = treeDocumentId.split(":", limit = 2)
-    val volume = parts.firstOrNull()?.lowercase().orEmpty()
-    val relativePath = parts.getOrNull(1).orEmpty()
-
-    return when (volume) {
-        "primary" -> {
-            val root = Environment.getExternalStorageDirectory()
-            if (relativePath.isBlank()) root else root.resolve(relativePath)
-        }
-        "home" -> {
-            val documentsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS)
-            if (relativePath.isBlank()) documentsDir else documentsDir.resolve(relativePath)
-        }
-        else -> {
-            context.getExternalFilesDirs(null)
-                .filterNotNull()
-                .firstOrNull { file -> file.absolutePath.contains(volume, ignoreCase = true) }
-                ?.let { scopedDir ->
-                    val androidDataIndex = scopedDir.absolutePath.indexOf("/Android/", ignoreCase = true)
-                    val storageRoot = if (androidDataIndex >= 0) {
-                        File(scopedDir.absolutePath.substring(0, androidDataIndex))
-                    } else {
-                        scopedDir
-                    }
-                    if (relativePath.isBlank()) storageRoot else storageRoot.resolve(relativePath)
-                }
-        }
+    DownloadExporter.exportAll(
+        context = context,
+        target = target,
+        cache = downloadCache,
+        items = songs.fastDistinctBy(Song::id),
+        idOf = Song::id,
+        nameOf = ::buildDownloadedExportFileName
+    ) { current, total, song ->
+        onProgress(current, total, song.title)
     }
 }
 
@@ -57,6 +57,7 @@ import androidx.compose.ui.graphics.Color
 import android.content.Intent
 import android.os.SystemClock
 import app.it.fast4x.rimusic.service.modern.PlayerServiceModern
+import app.kreate.android.me.knighthat.coil.ArtworkDerivatives
 
 // ─────────────────────────────────────────────────────────────────────────────
 // Broadcast action strings — must match PlayerServiceModern.Action exactly.
@@ -148,8 +149,7 @@ private fun FloatArray.setSaturation(s: Float): FloatArray {
     return this
 }
 
-private fun extractPalette(bitmap: Bitmap): WidgetPalette {
-    val p = Palette.from(bitmap).maximumColorCount(8).generate()
+private fun extractPalette(p: Palette): WidgetPalette {
 
     val fallbackDark  = AndroidColor.parseColor("#0F1014")
     val fallbackLight = AndroidColor.parseColor("#F0EDE6")
@@ -404,12 +404,20 @@ sealed class Widget : GlanceAppWidget() {
         @Suppress("UNUSED_PARAMETER")
         actions: Triple<() -> Unit, () -> Unit, () -> Unit>,
         status: Triple<String, String, Boolean>,
-        bitmapFile: File
+        bitmapFile: File,
+        // Palette of this artwork is computed once and shared with the player
+        artworkUrl: String? = null
     ) {
         val glanceId = GlanceAppWidgetManager(context)
             .getGlanceIds(this::class.java).firstOrNull() ?: return
 
         val bmp = decodeFast(bitmapFile.absolutePath, maxDim = 128)
+        val palette = bmp?.let {
+            if (artworkUrl != null)
+                ArtworkDerivatives.palette(artworkUrl) { it }
+            else
+                Palette.from(it).maximumColorCount(8).generate()
+        }
 
         updateAppWidgetState(context, glanceId) { prefs ->
             prefs[PREF_TITLE]       = cleanPrefix(status.first)
@@ -418,8 +426,8 @@ sealed class Widget : GlanceAppWidget() {
             prefs[PREF_BITMAP_PATH] = bitmapFile.absolutePath
             prefs[PREF_THUMB_READY] = (bmp != null)
 
-            if (bmp != null) {
-                val wp = extractPalette(bmp)
+            if (palette != null) {
+                val wp = extractPalette(palette)
                 prefs[PREF_DYN_BG_D]   = colorIntToComposeColor(wp.bgDark).encode()
                 prefs[PREF_DYN_SURF_D] = colorIntToComposeColor(wp.surfDark).encode()
                 prefs[PREF_DYN_ACC_D]  = colorIntToComposeColor(wp.accDark).encode()
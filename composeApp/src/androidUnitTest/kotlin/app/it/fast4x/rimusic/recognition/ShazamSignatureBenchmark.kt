@@ -0,0 +1,73 @@
+package app.it.fast4x.rimusic.recognition
+
+import app.it.fast4x.rimusic.recognition.ShazamSignatureTest.Companion.resource
+import app.it.fast4x.rimusic.recognition.ShazamSignatureTest.Companion.toSamples
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.lang.management.ManagementFactory
+
+/**
+ * Time and allocations of fingerprinting `fixture.pcm`.
+ *
+ * Excluded from regular runs, use `./gradlew :composeApp:testDebugUnitTest -Pbenchmark`
+ */
+@Tag("benchmark")
+class ShazamSignatureBenchmark {
+
+    companion object {
+        private const val WARMUP = 20
+        private const val ITERATIONS = 100
+        // What AudioRecorder reads at most at once
+        private const val READ_SIZE = 32_000
+        // FindScreen tries to recognize every 2 seconds
+        private const val ENCODE_EVERY = 2 * READ_SIZE
+    }
+
+    private val pcm = resource( "fixture.pcm" )
+    private val audioMs = pcm.size / 2 * 1000L / AudioRecorder.SAMPLE_RATE
+
+    private fun allocatedBytes(): Long =
+        (ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean).currentThreadAllocatedBytes
+
+    private fun measure( name: String, block: () -> Unit ) {
+        repeat( WARMUP ) { block() }
+
+        val bytesBefore = allocatedBytes()
+        val start = System.nanoTime()
+        repeat( ITERATIONS ) { block() }
+        val nsPerOp = (System.nanoTime() - start) / ITERATIONS
+        val bytesPerOp = (allocatedBytes() - bytesBefore) / ITERATIONS
+
+        println(
+            "%s: %.2f ms/op, %d bytes/op, %.0fx realtime for %d ms of audio".format(
+                name, nsPerOp / 1e6, bytesPerOp, audioMs * 1e6 / nsPerOp, audioMs
+            )
+        )
+    }
+
+    @Test
+    fun benchmarkOneShot() {
+        val samples = pcm.toSamples()
+        val signature = ShazamSignature()
+        measure( "safeCreate" ) { signature.safeCreate( samples ) }
+    }
+
+    @Test
+    fun benchmarkStreaming() {
+        val signature = ShazamSignature()
+        val reads = (pcm.indices step READ_SIZE).map {
+            pcm.copyOfRange( it, minOf( it + READ_SIZE, pcm.size ) )
+        }
+
+        measure( "feed + encode every 2s" ) {
+            signature.reset()
+            var fed = 0
+            for( read in reads ) {
+                signature.feed( read, read.size )
+                fed += read.size
+                if( fed % ENCODE_EVERY == 0 ) signature.encode()
+            }
+            signature.encode()
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package app.it.fast4x.rimusic.recognition
+
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * `fixture.pcm` is 16 kHz mono 16-bit little-endian PCM, its length
+ * isn't a multiple of a batch so the last, shorter batch is covered too.
+ *
+ * `fixture.sig` is the signature the previous (non-streaming)
+ * implementation made of it, the fingerprinter must keep matching it
+ * or Shazam would recognize songs differently.
+ */
+class ShazamSignatureTest {
+
+    companion object {
+        // Uneven sizes, odd ones split samples between reads
+        private val CHUNK_SIZES = intArrayOf( 1, 3, 254, 4096, 7, 1, 1000, 129, 2, 32_000, 513 )
+
+        fun resource( name: String ): ByteArray =
+            ShazamSignatureTest::class.java
+                               .getResourceAsStream( "/recognition/$name" )!!
+                               .use { it.readBytes() }
+
+        fun ByteArray.toSamples(): ShortArray {
+            val samples = ShortArray(size / 2)
+            ByteBuffer.wrap( this ).order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer().get( samples )
+            return samples
+        }
+
+        /** Feed [pcm] the way [AudioRecorder] does, in reads of varying size */
+        fun ShazamSignature.feedInChunks( pcm: ByteArray ) {
+            var offset = 0
+            var i = 0
+            while( offset < pcm.size ) {
+                val size = minOf( CHUNK_SIZES[i++ % CHUNK_SIZES.size], pcm.size - offset )
+                val chunk = pcm.copyOfRange( offset, offset + size )
+                feed( chunk, size )
+                offset += size
+            }
+        }
+    }
+
+    private val pcm = resource( "fixture.pcm" )
+    private val golden = String(resource( "fixture.sig" )).trim()
+
+    @Test
+    fun testMatchesPreviousImplementation() {
+        val signature = ShazamSignature().safeCreate( pcm.toSamples() )
+        Assertions.assertEquals( golden, signature )
+    }
+
+    @Test
+    fun testChunkedBytesMatchOneShot() {
+        val oneShot = ShazamSignature().apply { feed( pcm, pcm.size ) }
+        val chunked = ShazamSignature().apply { feedInChunks( pcm ) }
+
+        Assertions.assertEquals( oneShot.sampleCount, chunked.sampleCount )
+        Assertions.assertEquals( oneShot.encode(), chunked.encode() )
+    }
+
+    @Test
+    fun testChunkedSamplesMatchOneShot() {
+        val samples = pcm.toSamples()
+        val oneShot = ShazamSignature().apply { feed( samples ) }
+        val chunked = ShazamSignature()
+        var offset = 0
+        var i = 0
+        while( offset < samples.size ) {
+            val size = minOf( CHUNK_SIZES[i++ % CHUNK_SIZES.size], samples.size - offset )
+            chunked.feed( samples, offset, size )
+            offset += size
+        }
+
+        Assertions.assertEquals( oneShot.encode(), chunked.encode() )
+    }
+
+    @Test
+    fun testOddReadKeepsByteForNextRead() {
+        val oneShot = ShazamSignature().apply { feed( pcm, pcm.size ) }
+        // Every sample is split in two reads
+        val split = ShazamSignature()
+        split.feed( pcm.copyOfRange( 0, 1 ), 1 )
+        var offset = 1
+        while( offset < pcm.size ) {
+            val size = minOf( 2, pcm.size - offset )
+            split.feed( pcm.copyOfRange( offset, offset + size ), size )
+            offset += size
+        }
+
+        Assertions.assertEquals( oneShot.sampleCount, split.sampleCount )
+        Assertions.assertEquals( oneShot.encode(), split.encode() )
+    }
+
+    @Test
+    fun testEarlyEncodeDoesNotChangeResult() {
+        val expected = ShazamSignature().apply { feed( pcm, pcm.size ) }.encode()
+
+        val signature = ShazamSignature()
+        val half = pcm.size / 2
+        signature.feed( pcm.copyOfRange( 0, half ), half )
+        val early = signature.encode()
+        signature.feed( pcm.copyOfRange( half, pcm.size ), pcm.size - half )
+
+        Assertions.assertNotEquals( expected, early )
+        Assertions.assertEquals( expected, signature.encode() )
+    }
+
+    @Test
+    fun testResetStartsOver() {
+        val expected = ShazamSignature().apply { feed( pcm, pcm.size ) }.encode()
+
+        // Odd length leaves half a sample behind, reset must drop it too
+        val signature = ShazamSignature()
+        signature.feedInChunks( pcm.copyOfRange( 0, 10_001 ) )
+        signature.reset()
+        Assertions.assertEquals( 0, signature.sampleCount )
+
+        signature.feedInChunks( pcm )
+        Assertions.assertEquals( expected, signature.encode() )
+    }
+}
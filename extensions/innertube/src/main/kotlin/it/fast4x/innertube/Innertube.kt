@@ -56,6 +56,8 @@ import kotlinx.serialization.Serializable
 import kotlinx.serialization.json.Json
 import nl.adaptivity.xmlutil.XmlDeclMode
 import nl.adaptivity.xmlutil.serialization.XML
+import okhttp3.Dispatcher
+import okhttp3.OkHttpClient
 import java.net.Proxy
 import java.util.Locale
 
@@ -92,6 +94,13 @@ object Innertube {
             deflate(0.8F)
         }
 
+        engine {
+            okHttpClient?.let { preconfigured = it }
+            // Closing the engine shuts its dispatcher down,
+            // it must not be the one of shared client
+            config { dispatcher( Dispatcher() ) }
+        }
+
     val p = proxy ?: ProxyPreferences.preference?.let { getProxy(it) }
         if (p != null) {
             engine {
@@ -111,11 +120,32 @@ object Innertube {
 
     var proxy: Proxy? = null
         set(value) {
+            if (value == field) return
+            field = value
+            replaceClient()
+        }
+
+    /**
+     * Shared by the app, so requests reuse its connections.
+     * Set before first use, or the client is rebuilt.
+     */
+    var okHttpClient: OkHttpClient? = null
+        set(value) {
+            if (value === field) return
             field = value
-            client.close()
-            client = createClient()
+            replaceClient()
         }
 
+    /**
+     * New requests go to the new client right away, the old one
+     * is closed once its in-flight requests finish.
+     */
+    private fun replaceClient() {
+        val old = client
+        client = createClient()
+        old.close()
+    }
+
     var locale = YouTubeLocale(
         gl = Locale.getDefault().country,
         hl = Locale.getDefault().toLanguageTag()
@@ -18,6 +18,7 @@ import io.ktor.http.HttpMethod
 import io.ktor.http.HttpStatusCode
 import io.ktor.http.URLProtocol
 import io.ktor.serialization.kotlinx.json.json
+import it.fast4x.innertube.Innertube
 import it.fast4x.innertube.utils.ProxyPreferences
 import it.fast4x.innertube.utils.getProxy
 import kotlinx.coroutines.async
@@ -88,6 +89,10 @@ internal object HttpFetcher {
             gzip(0.9F)
             deflate(0.8F)
         }
+        engine {
+            // Reuse connections of the app when it shares its client
+            Innertube.okHttpClient?.let { preconfigured = it }
+        }
         ProxyPreferences.preference?.let {
             engine {
                 proxy = getProxy(it)
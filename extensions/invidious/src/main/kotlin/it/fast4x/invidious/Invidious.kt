@@ -30,6 +30,7 @@ import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.json.jsonObject
 import kotlinx.serialization.json.jsonPrimitive
+import okhttp3.OkHttpClient
 import okhttp3.logging.HttpLoggingInterceptor
 
 
@@ -37,9 +38,19 @@ operator fun Url.div(path: String) = URLBuilder(this).apply { path(path) }.build
 operator fun JsonElement.div(key: String) = jsonObject[key]!!
 
 object Invidious {
+    /**
+     * Shared by the app, so requests reuse its connections.
+     * Must be set before first request.
+     */
+    var okHttpClient: OkHttpClient? = null
+
     @OptIn(ExperimentalSerializationApi::class)
     private val client by lazy {
         HttpClient(OkHttp) {
+            engine {
+                okHttpClient?.let { preconfigured = it }
+            }
+
             //BrowserUserAgent()
 
             //expectSuccess = true
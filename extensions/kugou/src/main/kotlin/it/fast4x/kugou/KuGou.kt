@@ -18,11 +18,22 @@ import it.fast4x.kugou.models.SearchLyricsResponse
 import it.fast4x.kugou.models.SearchSongResponse
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
+import okhttp3.OkHttpClient
 
 object KuGou {
+    /**
+     * Shared by the app, so requests reuse its connections.
+     * Must be set before first request.
+     */
+    var okHttpClient: OkHttpClient? = null
+
     @OptIn(ExperimentalSerializationApi::class)
     private val client by lazy {
         HttpClient(OkHttp) {
+            engine {
+                okHttpClient?.let { preconfigured = it }
+            }
+
             BrowserUserAgent()
 
             expectSuccess = true
@@ -17,14 +17,25 @@ import it.fast4x.lrclib.utils.getProxy
 import it.fast4x.lrclib.utils.runCatchingCancellable
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
+import okhttp3.OkHttpClient
 import java.net.InetSocketAddress
 import java.net.Proxy
 import kotlin.time.Duration
 
 object LrcLib {
+    /**
+     * Shared by the app, so requests reuse its connections.
+     * Must be set before first request.
+     */
+    var okHttpClient: OkHttpClient? = null
+
     @OptIn(ExperimentalSerializationApi::class)
     private val client by lazy {
         HttpClient(OkHttp) {
+            engine {
+                okHttpClient?.let { preconfigured = it }
+            }
+
             BrowserUserAgent()
 
             expectSuccess = true